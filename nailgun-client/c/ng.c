@@ -28,10 +28,12 @@
 	#include <arpa/inet.h>
 	#include <netdb.h>
 	#include <netinet/in.h>
+	#include <netinet/tcp.h>
 	#include <sys/socket.h>
 	#include <sys/un.h>
 	#include <sys/time.h>
 	#include <sys/types.h>
+	#include <sys/uio.h>
 #endif
 
 #include <stdio.h>
@@ -41,6 +43,10 @@
 #include <fcntl.h>
 #include <errno.h>
 
+#ifdef WITH_ZLIB
+	#include <zlib.h>
+#endif
+
 #define NAILGUN_VERSION "1.0.0"
 
 #define BUFSIZE (2048)
@@ -103,6 +109,17 @@
 #define CHUNKTYPE_EXIT 'X'
 #define CHUNKTYPE_SENDINPUT 'S'
 #define CHUNKTYPE_HEARTBEAT 'H'
+#define CHUNKTYPE_TIMING 'T'
+#define CHUNKTYPE_COMPRESSION 'Z'
+#define CHUNKTYPE_INVOCATION_HEADER 'I'
+#define CHUNKTYPE_ARGFILE 'F'
+
+#define INVOCATION_HEADER_VERSION 1
+
+#define NAILGUN_ACCEPT_ENCODING "NAILGUN_ACCEPT_ENCODING="
+#define NAILGUN_COMPRESSION_DEFLATE "deflate"
+
+#define NAILGUN_PASSED_FDS "NAILGUN_FDS="
 
 #define HEARTBEAT_TIMEOUT_MILLIS 500
 
@@ -122,6 +139,46 @@ int nailgunsocket = 0;
 /* buffer used for receiving and writing nail output chunks */
 char buf[BUFSIZE];
 
+/* microseconds spent connecting to the server, or -1 if unknown */
+long connectMicros = -1;
+
+#ifdef WITH_ZLIB
+/* true if compression was requested with NAILGUN_COMPRESSION=deflate */
+int compressionAdvertised = 0;
+
+/* raw deflate streams, set up once the server acknowledges compression */
+int compressing = 0;
+z_stream stdoutStream;
+z_stream stderrStream;
+z_stream stdinStream;
+
+/* buffers for decompressed output and compressed stdin */
+char inflateBuf[BUFSIZE];
+char deflateBuf[BUFSIZE * 2];
+#endif
+
+/* true if arguments and environment are collected into a single invocation
+   header chunk rather than sent one chunk each */
+int useInvocationHeader = 0;
+
+/* true if @file arguments are sent as paths for the server to expand */
+int serverArgfiles = 0;
+
+/* true if stdin, stdout and stderr are passed to the server over a local
+   socket rather than forwarded in chunks */
+int passFds = 0;
+
+/* length-prefixed strings of one section of the invocation header */
+struct headerSection {
+  char *data;
+  unsigned long len;
+  unsigned long capacity;
+  int count;
+};
+
+struct headerSection headerArgs;
+struct headerSection headerEnv;
+
 /* track whether server is ready to receive */
 #ifdef WIN32
     HANDLE readyToSend = 0;
@@ -297,6 +354,243 @@ void sendText(char chunkType, char *text) {
   sendChunk(len, chunkType, text);
 }
 
+/**
+ * Writes len bytes from buf to the specified file descriptor.
+ *
+ * @param destFD the destination file descriptor (stdout or stderr)
+ * @param buf the bytes to write
+ * @param len the number of bytes to write
+ */
+void writeToFD(HANDLE destFD, char *buf, int len) {
+  int bytesCopied = 0;
+
+  while(bytesCopied < len) {
+    #ifdef WIN32
+      DWORD thisWrite =  0;
+
+      WriteFile(destFD, buf + bytesCopied, len - bytesCopied,
+        &thisWrite, NULL);
+
+      if (thisWrite < 0) {
+        break;
+      }
+
+      bytesCopied += thisWrite;
+    #else
+      int bytesWritten = write(destFD, buf + bytesCopied, len - bytesCopied);
+      if (bytesWritten == -1) {
+        perror("write");
+        handleSocketClose();
+      }
+      bytesCopied += bytesWritten;
+    #endif
+  }
+}
+
+#ifdef WITH_ZLIB
+/**
+ * Decompresses len bytes of a compressed stdout or stderr stream and writes
+ * the result to the specified file descriptor.
+ *
+ * @param destFD the destination file descriptor (stdout or stderr)
+ * @param buf the compressed bytes
+ * @param len the number of compressed bytes
+ */
+void inflateToFD(HANDLE destFD, char *buf, int len) {
+  z_stream *stream = destFD == NG_STDOUT_FILENO ? &stdoutStream : &stderrStream;
+  int result;
+
+  stream->next_in = (Bytef *) buf;
+  stream->avail_in = len;
+  do {
+    stream->next_out = (Bytef *) inflateBuf;
+    stream->avail_out = BUFSIZE;
+    result = inflate(stream, Z_SYNC_FLUSH);
+    if (result != Z_OK && result != Z_BUF_ERROR) {
+      fprintf(stderr, "Invalid compressed data from server\n");
+      cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
+    }
+    writeToFD(destFD, inflateBuf, BUFSIZE - stream->avail_out);
+  } while (stream->avail_in > 0 || stream->avail_out == 0);
+}
+#endif
+
+/**
+ * Writes a big-endian 32-bit integer at p.
+ *
+ * @return the position right after the integer
+ */
+char *putHeaderInt(char *p, unsigned long value) {
+  p[0] = (value >> 24) & 0xff;
+  p[1] = (value >> 16) & 0xff;
+  p[2] = (value >> 8) & 0xff;
+  p[3] = value & 0xff;
+  return p + 4;
+}
+
+/**
+ * Writes a length-prefixed string at p.
+ *
+ * @return the position right after the string
+ */
+char *putHeaderString(char *p, const char *text, unsigned long len) {
+  p = putHeaderInt(p, len);
+  memcpy(p, text, len);
+  return p + len;
+}
+
+/**
+ * Returns nonzero if the specified argument is an argfile to be expanded by
+ * the server, i.e. "@file" when NAILGUN_ARGFILES=server is set.
+ *
+ * @param arg the argument
+ */
+int isServerArgfile(char *arg) {
+  return serverArgfiles && arg[0] == '@' && arg[1] != 0;
+}
+
+/**
+ * Sends an argument or environment variable to the server, or adds it to the
+ * invocation header if one is being built.
+ *
+ * @param chunkType CHUNKTYPE_ARG or CHUNKTYPE_ENV
+ * @param text the null-terminated string to send
+ */
+void sendContextText(char chunkType, char *text) {
+  struct headerSection *section;
+  unsigned long len;
+
+  if (!useInvocationHeader) {
+    sendText(chunkType, text);
+    return;
+  }
+
+  section = chunkType == CHUNKTYPE_ARG ? &headerArgs : &headerEnv;
+  len = strlen(text);
+  if (section->len + 4 + len > section->capacity) {
+    section->capacity = (section->len + 4 + len) * 2;
+    section->data = realloc(section->data, section->capacity);
+    if (section->data == NULL) {
+      perror("realloc");
+      cleanUpAndExit(NAILGUN_BAD_ARGUMENTS);
+    }
+  }
+  putHeaderString(section->data + section->len, text, len);
+  section->len += 4 + len;
+  section->count++;
+}
+
+/**
+ * Sends the command, working directory and the collected arguments and
+ * environment to the server in a single invocation header chunk, so the
+ * server can parse the whole context at once.
+ *
+ * @param cmd the command
+ * @param cwd the working directory
+ */
+void sendInvocationHeader(char *cmd, char *cwd) {
+  unsigned long cmdLen = strlen(cmd);
+  unsigned long cwdLen = strlen(cwd);
+  unsigned long size = 1 + 4 + cmdLen + 4 + cwdLen + 4 + headerArgs.len + 4 + headerEnv.len;
+  char *header = malloc(size);
+  char *p = header;
+
+  if (header == NULL) {
+    perror("malloc");
+    cleanUpAndExit(NAILGUN_BAD_ARGUMENTS);
+  }
+  *p++ = INVOCATION_HEADER_VERSION;
+  p = putHeaderString(p, cmd, cmdLen);
+  p = putHeaderString(p, cwd, cwdLen);
+  p = putHeaderInt(p, headerArgs.count);
+  memcpy(p, headerArgs.data, headerArgs.len);
+  p += headerArgs.len;
+  p = putHeaderInt(p, headerEnv.count);
+  memcpy(p, headerEnv.data, headerEnv.len);
+
+  sendChunk(size, CHUNKTYPE_INVOCATION_HEADER, header);
+  free(header);
+  free(headerArgs.data);
+  free(headerEnv.data);
+}
+
+#ifndef WIN32
+/**
+ * Sends an environment chunk naming the client's open stdin, stdout and
+ * stderr, with the file descriptors themselves attached (SCM_RIGHTS) so
+ * that the nail can read and write them directly.  Servers that do not use
+ * them keep asking for stdin and sending output in chunks as usual.
+ */
+void sendFileDescriptors() {
+  char chunk[CHUNK_HEADER_LEN + sizeof(NAILGUN_PASSED_FDS "0,1,2")];
+  char *text = chunk + CHUNK_HEADER_LEN;
+  char *p;
+  int fds[3];
+  int count = 0;
+  unsigned int size;
+  struct iovec iov;
+  struct msghdr msg;
+  union {
+    struct cmsghdr align;
+    char buf[CMSG_SPACE(sizeof(fds))];
+  } control;
+  struct cmsghdr *cmsg;
+  ssize_t sent;
+  int i;
+
+  strcpy(text, NAILGUN_PASSED_FDS);
+  p = text + strlen(text);
+  for (i = 0; i < 3; i++) {
+    if (fcntl(i, F_GETFD) != -1) {
+      if (count > 0) {
+        *p++ = ',';
+      }
+      *p++ = '0' + i;
+      fds[count++] = i;
+    }
+  }
+  *p = '\0';
+  if (count == 0) {
+    return;
+  }
+
+  size = strlen(text);
+  chunk[0] = (size >> 24) & 0xff;
+  chunk[1] = (size >> 16) & 0xff;
+  chunk[2] = (size >> 8) & 0xff;
+  chunk[3] = size & 0xff;
+  chunk[4] = CHUNKTYPE_ENV;
+
+  iov.iov_base = chunk;
+  iov.iov_len = CHUNK_HEADER_LEN + size;
+  memset(&msg, 0, sizeof(msg));
+  memset(&control, 0, sizeof(control));
+  msg.msg_iov = &iov;
+  msg.msg_iovlen = 1;
+  msg.msg_control = control.buf;
+  msg.msg_controllen = CMSG_SPACE(count * sizeof(int));
+  cmsg = CMSG_FIRSTHDR(&msg);
+  cmsg->cmsg_level = SOL_SOCKET;
+  cmsg->cmsg_type = SCM_RIGHTS;
+  cmsg->cmsg_len = CMSG_LEN(count * sizeof(int));
+  memcpy(CMSG_DATA(cmsg), fds, count * sizeof(int));
+
+  gettimeofday(&sendtime, NULL);
+  sent = sendmsg(nailgunsocket, &msg, SEND_FLAGS);
+  if (sent == -1) {
+    perror("sendmsg");
+    handleSocketClose();
+  }
+  /* the file descriptors travel with the first byte, the rest of the chunk
+     may still need sending */
+  if (sent < (ssize_t) iov.iov_len
+      && sendAll(nailgunsocket, chunk + sent, iov.iov_len - sent) == 0) {
+    perror("send");
+    handleSocketClose();
+  }
+}
+#endif
+
 /**
  * Receives len bytes from the nailgun socket and copies them to the specified file descriptor.
  * Used to route data to stdout or stderr on the client.
@@ -306,7 +600,6 @@ void sendText(char chunkType, char *text) {
  */
 void recvToFD(HANDLE destFD, char *buf, unsigned long len) {
   unsigned long bytesRead = 0;
-  int bytesCopied;
 
   while (bytesRead < len) {
     unsigned long bytesRemaining = len - bytesRead;
@@ -320,29 +613,13 @@ void recvToFD(HANDLE destFD, char *buf, unsigned long len) {
     }
     bytesRead += thisPass;
 
-    bytesCopied = 0;
-
-    while(bytesCopied < thisPass) {
-      #ifdef WIN32
-        DWORD thisWrite =  0;
-
-        WriteFile(destFD, buf + bytesCopied, thisPass - bytesCopied,
-          &thisWrite, NULL);
-
-        if (thisWrite < 0) {
-          break;
-        }
-
-        bytesCopied += thisWrite;
-      #else
-        int bytesWritten = write(destFD, buf + bytesCopied, thisPass - bytesCopied);
-        if (bytesWritten == -1) {
-          perror("write");
-          handleSocketClose();
-        }
-        bytesCopied += bytesWritten;
-      #endif
+#ifdef WITH_ZLIB
+    if (compressing) {
+      inflateToFD(destFD, buf, thisPass);
+      continue;
     }
+#endif
+    writeToFD(destFD, buf, thisPass);
   }
 }
 
@@ -359,6 +636,19 @@ unsigned long recvToBuffer(unsigned long len) {
   return bytesRead;
 }
 
+/**
+ * Reads and discards len bytes from the nailgun socket, such as the part of a
+ * chunk that does not fit in the buffer.
+ *
+ * @param len the number of bytes to discard
+ */
+void recvAndDiscard(unsigned long len) {
+  while (len > 0) {
+    unsigned long bytesToRead = (BUFSIZE < len) ? BUFSIZE : len;
+    len -= recvToBuffer(bytesToRead);
+  }
+}
+
 /**
  * Processes an exit chunk from the server.  This is just a string
  * containing the exit code in decimal format.  It should fit well
@@ -383,6 +673,69 @@ void processExit(char *buf, unsigned long len) {
 }
 
 
+/**
+ * Prints the timing trailer sent by the server to stderr, prefixed with the
+ * time spent connecting to the server.  The server only sends it if
+ * NAILGUN_TIMING=1 is set in the environment.
+ *
+ * @param buf the buffer containing the timing trailer
+ * @param len the length of the timing trailer
+ */
+void processTiming(char *buf, unsigned long len) {
+  int bytesToRead = (BUFSIZE - 1 < len) ? BUFSIZE - 1 : len;
+  int bytesRead = recvToBuffer(bytesToRead);
+
+  if (bytesRead < 0) {
+    handleSocketClose();
+  }
+
+  buf[bytesRead] = 0;
+  /* keep the stream in sync if the trailer is longer than the buffer */
+  recvAndDiscard(len - bytesRead);
+
+  if (connectMicros >= 0) {
+    fprintf(stderr, "nailgun timing: connect=%ldus %s\n", connectMicros, buf);
+  } else {
+    fprintf(stderr, "nailgun timing: %s\n", buf);
+  }
+}
+
+/**
+ * Processes the compression acknowledgement from the server.  From then on
+ * stdout, stderr and stdin are raw deflate streams.  The server only sends it
+ * if the client advertised NAILGUN_ACCEPT_ENCODING=deflate.
+ *
+ * @param buf the buffer containing the chosen encoding
+ * @param len the length of the chosen encoding
+ */
+void processCompression(char *buf, unsigned long len) {
+  int bytesToRead = (BUFSIZE - 1 < len) ? BUFSIZE - 1 : len;
+  int bytesRead = recvToBuffer(bytesToRead);
+
+  buf[bytesRead] = 0;
+  recvAndDiscard(len - bytesRead);
+
+#ifdef WITH_ZLIB
+  if (compressionAdvertised && !strcmp(buf, NAILGUN_COMPRESSION_DEFLATE)) {
+    memset(&stdoutStream, 0, sizeof(z_stream));
+    memset(&stderrStream, 0, sizeof(z_stream));
+    memset(&stdinStream, 0, sizeof(z_stream));
+    if (inflateInit2(&stdoutStream, -MAX_WBITS) != Z_OK
+        || inflateInit2(&stderrStream, -MAX_WBITS) != Z_OK
+        || deflateInit2(&stdinStream, Z_DEFAULT_COMPRESSION, Z_DEFLATED, -MAX_WBITS, 8,
+          Z_DEFAULT_STRATEGY) != Z_OK) {
+      fprintf(stderr, "Unable to initialize compression\n");
+      cleanUpAndExit(NAILGUN_CONNECTION_BROKEN);
+    }
+    compressing = 1;
+    return;
+  }
+#endif
+
+  fprintf(stderr, "Unexpected compression %s\n", buf);
+  cleanUpAndExit(NAILGUN_UNEXPECTED_CHUNKTYPE);
+}
+
 /**
  * Sends len bytes from buf to the nailgun server in a stdin chunk.
  *
@@ -392,6 +745,19 @@ void processExit(char *buf, unsigned long len) {
 void sendStdin(char *buf, unsigned int len) {
 #ifndef WIN32
   readyToSend = 0;
+#endif
+#ifdef WITH_ZLIB
+  /* the server expects exactly one chunk per send-input request, and
+     deflateBuf is large enough for BUFSIZE bytes however incompressible */
+  if (compressing) {
+    stdinStream.next_in = (Bytef *) buf;
+    stdinStream.avail_in = len;
+    stdinStream.next_out = (Bytef *) deflateBuf;
+    stdinStream.avail_out = sizeof(deflateBuf);
+    deflate(&stdinStream, Z_SYNC_FLUSH);
+    sendChunk(sizeof(deflateBuf) - stdinStream.avail_out, CHUNKTYPE_STDIN, deflateBuf);
+    return;
+  }
 #endif
   sendChunk(len, CHUNKTYPE_STDIN, buf);
 }
@@ -556,6 +922,10 @@ void processnailgunstream() {
             break;
       case CHUNKTYPE_EXIT:   processExit(buf, len);
             break;
+      case CHUNKTYPE_TIMING: processTiming(buf, len);
+            break;
+      case CHUNKTYPE_COMPRESSION: processCompression(buf, len);
+            break;
       case CHUNKTYPE_SENDINPUT:
 #ifdef WIN32
             SetEvent(readyToSend);
@@ -646,6 +1016,21 @@ void usage(int exitcode) {
   fprintf(stderr, "                               using the server's default character set.  May be\n");
   fprintf(stderr, "                               specified more than once.\n");
   fprintf(stderr, "   --nailgun-help              print this message and exit\n");
+  fprintf(stderr, "\nSet NAILGUN_TIMING=1 in the environment to print how long each phase of the\n");
+  fprintf(stderr, "invocation took to stderr.\n");
+  fprintf(stderr, "Set NAILGUN_INVOCATION_HEADER=1 to send the command, arguments and environment\n");
+  fprintf(stderr, "in a single chunk; the server must be recent enough to understand it.\n");
+  fprintf(stderr, "Set NAILGUN_ARGFILES=server to have @file arguments expanded by the server\n");
+  fprintf(stderr, "rather than passed as is; the server must share the file system.\n");
+#ifndef WIN32
+  fprintf(stderr, "Set NAILGUN_PASS_FDS=1 to let the nail read and write stdin, stdout and\n");
+  fprintf(stderr, "stderr directly when connected to a local: server started with\n");
+  fprintf(stderr, "-Dnailgun.fdPassing=true.\n");
+#endif
+#ifdef WITH_ZLIB
+  fprintf(stderr, "Set NAILGUN_COMPRESSION=deflate to compress output and input on the wire;\n");
+  fprintf(stderr, "the server must be started with -Dnailgun.compression=true.\n");
+#endif
 
   cleanUpAndExit(exitcode);
 }
@@ -662,6 +1047,7 @@ int main(int argc, char *argv[], char *env[]) {
   char *nailgun_port;          /* port as specified by user */
   char *cwd;
   u_short port;                /* port */
+  int tcp_nodelay;             /* TCP_NODELAY option value */
   struct hostent *hostinfo;
   char *cmd;
   int firstArgIndex;           /* the first argument _to pass to the server_ */
@@ -672,6 +1058,8 @@ int main(int argc, char *argv[], char *env[]) {
     int eof = 0;
     struct timeval readtimeout;
     struct timeval currenttime;
+    struct timeval connectstart;
+    struct timeval connectend;
     memset(&sendtime, '\0', sizeof(sendtime));
   #endif
 
@@ -773,6 +1161,9 @@ int main(int argc, char *argv[], char *env[]) {
       #endif
       server_addr = (struct sockaddr *)&server_addr_un;
       server_addr_len = sizeof(server_addr_un);
+
+      /* the server can only use our file descriptors if it is on this host */
+      passFds = getenv("NAILGUN_PASS_FDS") != NULL && !strcmp(getenv("NAILGUN_PASS_FDS"), "1");
     } else {
   #endif
 
@@ -791,6 +1182,14 @@ int main(int argc, char *argv[], char *env[]) {
         cleanUpAndExit(NAILGUN_SOCKET_FAILED);
       }
 
+      /* the protocol is made of small chunks; do not let Nagle's algorithm
+         hold them back waiting for delayed acknowledgements */
+      tcp_nodelay = 1;
+      if (setsockopt(nailgunsocket, IPPROTO_TCP, TCP_NODELAY,
+                     (char *) &tcp_nodelay, sizeof(tcp_nodelay)) < 0) {
+        perror("setsockopt");
+      }
+
       server_addr_in.sin_family = AF_INET;
       server_addr_in.sin_port = htons(port);
       server_addr_in.sin_addr = *(struct in_addr *) hostinfo->h_addr;
@@ -812,11 +1211,36 @@ int main(int argc, char *argv[], char *env[]) {
 #endif
 #endif
 
+#ifndef WIN32
+  gettimeofday(&connectstart, NULL);
+#endif
+
   if (connect(nailgunsocket, server_addr, server_addr_len) == -1) {
     perror("connect");
     cleanUpAndExit(NAILGUN_CONNECT_FAILED);
   }
 
+#ifndef WIN32
+  gettimeofday(&connectend, NULL);
+  connectMicros = (connectend.tv_sec - connectstart.tv_sec) * 1000000L
+    + (connectend.tv_usec - connectstart.tv_usec);
+#endif
+
+  /* servers that do not know the invocation header would wait for the
+     command forever, so it is only used when asked for; file arguments are
+     not part of it */
+  useInvocationHeader = getenv("NAILGUN_INVOCATION_HEADER") != NULL
+    && !strcmp(getenv("NAILGUN_INVOCATION_HEADER"), "1");
+  /* with NAILGUN_ARGFILES=server, @file arguments are expanded by the server,
+     which must share the file system with the client */
+  serverArgfiles = getenv("NAILGUN_ARGFILES") != NULL
+    && !strcmp(getenv("NAILGUN_ARGFILES"), "server");
+  for(i = firstArgIndex; i < argc; ++i) {
+    if (argv[i] != NULL && (!strcmp("--nailgun-filearg", argv[i]) || isServerArgfile(argv[i]))) {
+      useInvocationHeader = 0;
+    }
+  }
+
   /* ok, now we're connected.  first send all of the command line
      arguments for the server, if any.  remember that we may have
      marked some arguments NULL if we read them to specify the
@@ -829,33 +1253,60 @@ int main(int argc, char *argv[], char *env[]) {
           perror("send");
           handleSocketClose();
         }
-      } else sendText(CHUNKTYPE_ARG, argv[i]);
+      } else if (isServerArgfile(argv[i])) {
+        sendText(CHUNKTYPE_ARGFILE, argv[i] + 1);
+      } else sendContextText(CHUNKTYPE_ARG, argv[i]);
     }
   }
 
   /* now send environment */
-  sendText(CHUNKTYPE_ENV, NAILGUN_FILESEPARATOR);
-  sendText(CHUNKTYPE_ENV, NAILGUN_PATHSEPARATOR);
+  sendContextText(CHUNKTYPE_ENV, NAILGUN_FILESEPARATOR);
+  sendContextText(CHUNKTYPE_ENV, NAILGUN_PATHSEPARATOR);
 #ifndef WIN32
   /* notify isatty for standard pipes */
   for(i = 0; i < 3; i++) {
     sprintf(isattybuf, NAILGUN_TTY_FORMAT, i, isatty(i));
-    sendText(CHUNKTYPE_ENV, isattybuf);
+    sendContextText(CHUNKTYPE_ENV, isattybuf);
   }
 #endif
-  /* forward the client process environment */
+  /* forward the client process environment, except for the compression
+     advertisement and passed file descriptors which only this client knows
+     about */
   for(i = 0; env[i]; ++i) {
-    sendText(CHUNKTYPE_ENV, env[i]);
+    if (strncmp(env[i], NAILGUN_ACCEPT_ENCODING, strlen(NAILGUN_ACCEPT_ENCODING))
+        && strncmp(env[i], NAILGUN_PASSED_FDS, strlen(NAILGUN_PASSED_FDS))) {
+      sendContextText(CHUNKTYPE_ENV, env[i]);
+    }
+  }
+#ifndef WIN32
+  /* a chunk of its own even with the invocation header, since the file
+     descriptors are attached to it */
+  if (passFds) {
+    sendFileDescriptors();
   }
+#endif
+#ifdef WITH_ZLIB
+  if (getenv("NAILGUN_COMPRESSION") != NULL
+      && !strcmp(getenv("NAILGUN_COMPRESSION"), NAILGUN_COMPRESSION_DEFLATE)) {
+    compressionAdvertised = 1;
+    sendContextText(CHUNKTYPE_ENV, NAILGUN_ACCEPT_ENCODING NAILGUN_COMPRESSION_DEFLATE);
+  }
+#endif
 
   /* now send the working directory */
   cwd = getcwd(NULL, 0);
-  sendText(CHUNKTYPE_DIR, cwd);
-  free(cwd);
-
-  /* and finally send the command.  this marks the point at which
-     streams are linked between client and server. */
-  sendText(CHUNKTYPE_CMD, cmd);
+  if (useInvocationHeader) {
+    /* everything at once, including the command */
+    sendInvocationHeader(cmd, cwd);
+    free(cwd);
+  } else {
+    sendText(CHUNKTYPE_DIR, cwd);
+    free(cwd);
+
+    /* and finally send the command.  this marks the point at which
+       streams are linked between client and server. */
+    sendText(CHUNKTYPE_CMD, cmd);
+  }
 
 
   /* initialise the std-* handles and the thread to send stdin to the server */
@@ -26,6 +26,7 @@ import socket
 import struct
 import sys
 import time
+import zlib
 from io import BytesIO
 from threading import Condition, Event, Thread, RLock
 
@@ -44,6 +45,8 @@ else:
     from io import UnsupportedOperation
 
     def to_bytes(s):
+        if isinstance(s, bytes):
+            return s
         return bytes(s, "utf-8")
 
 
@@ -79,6 +82,15 @@ CHUNKTYPE_CMD = b"C"
 CHUNKTYPE_EXIT = b"X"
 CHUNKTYPE_SENDINPUT = b"S"
 CHUNKTYPE_HEARTBEAT = b"H"
+CHUNKTYPE_TIMING = b"T"
+CHUNKTYPE_COMPRESSION = b"Z"
+CHUNKTYPE_INVOCATION_HEADER = b"I"
+CHUNKTYPE_ARGFILE = b"F"
+INVOCATION_HEADER_VERSION = 1
+
+# advertised to the server when compression is requested with NAILGUN_COMPRESSION=deflate
+COMPRESSION_ENV = "NAILGUN_ACCEPT_ENCODING"
+COMPRESSION_DEFLATE = "deflate"
 
 NSEC_PER_SEC = 1000000000
 DEFAULT_HEARTBEAT_INTERVAL_SEC = 0.5
@@ -467,8 +479,13 @@ class NailgunConnection(object):
         stderr=sys.stderr,
         cwd=None,
         heartbeat_interval_sec=DEFAULT_HEARTBEAT_INTERVAL_SEC,
+        compression=False,
+        invocation_header=False,
+        server_argfiles=False,
     ):
+        connect_start = monotonic_time_nanos()
         self.transport = make_nailgun_transport(server_name, server_port, cwd)
+        self.connect_time_nanos = monotonic_time_nanos() - connect_start
         self.stdin = stdin
         self.stdout = stdout
         self.stderr = stderr
@@ -479,6 +496,17 @@ class NailgunConnection(object):
 
         self.exit_code = None
 
+        # raw deflate streams, set up once the server acknowledges compression
+        self.compression = compression
+        self.decompressors = None
+        self.stdin_compressor = None
+
+        # send the whole command context in one chunk; only servers that know it may be told so
+        self.invocation_header = invocation_header
+
+        # send @file arguments as paths for the server to expand; it must share the file system
+        self.server_argfiles = server_argfiles
+
         self.shutdown_event = Event()
 
         self.error_lock = RLock()
@@ -528,19 +556,39 @@ class NailgunConnection(object):
 
         try:
 
-            if filearg:
-                self._send_file_arg(filearg)
-            for cmd_arg in cmd_args:
-                self._send_chunk(cmd_arg, CHUNKTYPE_ARG)
-            self._send_env_var("NAILGUN_FILESEPARATOR", os.sep)
-            self._send_env_var("NAILGUN_PATHSEPARATOR", os.pathsep)
-            self._send_tty_format(self.stdin)
-            self._send_tty_format(self.stdout)
-            self._send_tty_format(self.stderr)
+            env_vars = [
+                ("NAILGUN_FILESEPARATOR", os.sep),
+                ("NAILGUN_PATHSEPARATOR", os.pathsep),
+            ]
+            for f in (self.stdin, self.stdout, self.stderr):
+                tty_format = self._tty_format(f)
+                if tty_format is not None:
+                    env_vars.append(tty_format)
             for k, v in env.items():
-                self._send_env_var(k, v)
-            self._send_chunk(cwd, CHUNKTYPE_DIR)
-            self._send_chunk(cmd, CHUNKTYPE_CMD)
+                # only advertise compression if it was requested from this client
+                if k != COMPRESSION_ENV:
+                    env_vars.append((k, v))
+            if self.compression:
+                env_vars.append((COMPRESSION_ENV, COMPRESSION_DEFLATE))
+
+            argfiles = [self._is_server_argfile(cmd_arg) for cmd_arg in cmd_args]
+            if self.invocation_header and not filearg and not any(argfiles):
+                self._send_chunk(
+                    self._invocation_header(cmd, cmd_args, env_vars, cwd),
+                    CHUNKTYPE_INVOCATION_HEADER,
+                )
+            else:
+                if filearg:
+                    self._send_file_arg(filearg)
+                for cmd_arg, is_argfile in zip(cmd_args, argfiles):
+                    if is_argfile:
+                        self._send_chunk(cmd_arg[1:], CHUNKTYPE_ARGFILE)
+                    else:
+                        self._send_chunk(cmd_arg, CHUNKTYPE_ARG)
+                for k, v in env_vars:
+                    self._send_env_var(k, v)
+                self._send_chunk(cwd, CHUNKTYPE_DIR)
+                self._send_chunk(cmd, CHUNKTYPE_CMD)
 
             if self.heartbeat_thread is not None:
                 self.heartbeat_thread.start()
@@ -601,31 +649,71 @@ class NailgunConnection(object):
         """
         self._send_chunk("=".join((name, value)), CHUNKTYPE_ENV)
 
-    def _send_tty_format(self, f):
+    def _is_server_argfile(self, cmd_arg):
         """
-        Sends a NAILGUN_TTY_# environment variable.
+        Returns True if the argument is an @file to be expanded by the server.
+        """
+        return self.server_argfiles and len(cmd_arg) > 1 and cmd_arg.startswith("@")
+
+    def _tty_format(self, f):
+        """
+        Returns the NAILGUN_TTY_# environment variable for a file as a (name, value) tuple, or None.
         """
         if not f or not hasattr(f, "fileno") or isinstance(f, BytesIO):
-            return
+            return None
         try:
             fileno = f.fileno()
             isatty = os.isatty(fileno)
-            self._send_env_var("NAILGUN_TTY_" + str(fileno), str(int(isatty)))
+            return ("NAILGUN_TTY_" + str(fileno), str(int(isatty)))
         except UnsupportedOperation:
-            return
+            return None
+
+    def _invocation_header(self, cmd, cmd_args, env_vars, cwd):
+        """
+        Builds the payload of an invocation header chunk, which carries the command, working
+        directory, arguments and environment at once. Strings are UTF-8 prefixed with their
+        big-endian length.
+        """
+        parts = [struct.pack(">b", INVOCATION_HEADER_VERSION)]
+
+        def add_string(value):
+            data = to_bytes(value)
+            parts.append(struct.pack(">i", len(data)))
+            parts.append(data)
+
+        add_string(cmd)
+        add_string(cwd)
+        parts.append(struct.pack(">i", len(cmd_args)))
+        for cmd_arg in cmd_args:
+            add_string(cmd_arg)
+        parts.append(struct.pack(">i", len(env_vars)))
+        for name, value in env_vars:
+            add_string("=".join((name, value)))
+        return b"".join(parts)
 
     def _send_file_arg(self, filename):
         """
         Sends the contents of a file to the server.
         """
-        with open(filename) as f:
+        with open(filename, "rb") as f:
             while True:
                 num_bytes = f.readinto(self.buf)
                 if not num_bytes:
                     break
                 self._send_chunk(self.buf.raw[:num_bytes], CHUNKTYPE_LONGARG)
+        # an empty chunk completes the argument
+        self._send_chunk(b"", CHUNKTYPE_LONGARG)
 
-    def _recv_to_fd(self, dest_file, num_bytes):
+    def _send_stdin(self, buf):
+        """
+        Sends a piece of stdin to the server, compressed if the server has agreed to.
+        """
+        if self.stdin_compressor is not None:
+            buf = self.stdin_compressor.compress(to_bytes(buf))
+            buf += self.stdin_compressor.flush(zlib.Z_SYNC_FLUSH)
+        self._send_chunk(buf, CHUNKTYPE_STDIN)
+
+    def _recv_to_fd(self, dest_file, num_bytes, chunk_type):
         """
         Receives num_bytes bytes from the nailgun socket and copies them to the specified file
         object. Used to route data to stdout or stderr on the client.
@@ -639,6 +727,17 @@ class NailgunConnection(object):
             # Make sure we've written anything that already existed in the buffer
             dest_fd.flush()
 
+        if self.decompressors is not None:
+            # the whole chunk is needed to decompress it
+            compressed = ctypes.create_string_buffer(num_bytes)
+            self._recv_to_buffer(num_bytes, compressed)
+            data = self.decompressors[chunk_type].decompress(compressed.raw)
+            if dest_fd:
+                dest_fd.write(data)
+                if flush:
+                    dest_fd.flush()
+            return
+
         while bytes_read < num_bytes:
             bytes_to_read = min(len(self.buf), num_bytes - bytes_read)
             bytes_received = self.transport.recv_into(self.buf, bytes_to_read)
@@ -702,6 +801,45 @@ class NailgunConnection(object):
         self._recv_to_buffer(num_bytes, self.buf)
         self.exit_code = int(self.buf.raw[:num_bytes])
 
+    def _process_timing(self, timing_len):
+        """
+        Receives the timing trailer from the nailgun server and prints it to stderr, along with the
+        time it took to connect. The server only sends it if NAILGUN_TIMING=1 is in the environment.
+        """
+        num_bytes = min(len(self.buf), timing_len)
+        self._recv_to_buffer(num_bytes, self.buf)
+        message = "nailgun timing: connect={0}us {1}\n".format(
+            self.connect_time_nanos // 1000, self.buf.raw[:num_bytes].decode("ascii")
+        )
+        if not self.stderr:
+            return
+        if hasattr(self.stderr, "buffer"):
+            self.stderr.buffer.write(to_bytes(message))
+            self.stderr.buffer.flush()
+        else:
+            self.stderr.write(message)
+
+    def _process_compression(self, compression_len):
+        """
+        Receives the compression acknowledgement from the nailgun server. From then on stdout,
+        stderr and stdin are raw deflate streams. The server only sends it if the client asked.
+        """
+        num_bytes = min(len(self.buf), compression_len)
+        self._recv_to_buffer(num_bytes, self.buf)
+        encoding = self.buf.raw[:num_bytes].decode("ascii")
+        if not self.compression or encoding != COMPRESSION_DEFLATE:
+            raise NailgunException(
+                "Unexpected compression: {0}".format(encoding),
+                NailgunException.UNEXPECTED_CHUNKTYPE,
+            )
+        self.decompressors = {
+            CHUNKTYPE_STDOUT: zlib.decompressobj(-zlib.MAX_WBITS),
+            CHUNKTYPE_STDERR: zlib.decompressobj(-zlib.MAX_WBITS),
+        }
+        self.stdin_compressor = zlib.compressobj(
+            zlib.Z_DEFAULT_COMPRESSION, zlib.DEFLATED, -zlib.MAX_WBITS
+        )
+
     def _send_heartbeat(self):
         """
         Sends a heartbeat to the nailgun server to indicate the client is still alive.
@@ -716,11 +854,15 @@ class NailgunConnection(object):
         (chunk_len, chunk_type) = struct.unpack_from(">ic", self.header_buf.raw)
 
         if chunk_type == CHUNKTYPE_STDOUT:
-            self._recv_to_fd(self.stdout, chunk_len)
+            self._recv_to_fd(self.stdout, chunk_len, chunk_type)
         elif chunk_type == CHUNKTYPE_STDERR:
-            self._recv_to_fd(self.stderr, chunk_len)
+            self._recv_to_fd(self.stderr, chunk_len, chunk_type)
         elif chunk_type == CHUNKTYPE_EXIT:
             self._process_exit(chunk_len)
+        elif chunk_type == CHUNKTYPE_TIMING:
+            self._process_timing(chunk_len)
+        elif chunk_type == CHUNKTYPE_COMPRESSION:
+            self._process_compression(chunk_len)
         elif chunk_type == CHUNKTYPE_SENDINPUT:
             # signal stdin thread to get and send more data
             with self.stdin_condition:
@@ -910,7 +1052,7 @@ def stdin_thread_main(conn):
                 eof = True
                 conn._send_chunk(buf, CHUNKTYPE_STDIN_EOF)
                 continue
-            conn._send_chunk(buf, CHUNKTYPE_STDIN)
+            conn._send_stdin(buf)
     except Exception as e:
         # save exception to rethrow on main thread
         with conn.error_lock:
@@ -1058,7 +1200,11 @@ def main():
 
     try:
         with NailgunConnection(
-            options.nailgun_server, server_port=options.nailgun_port
+            options.nailgun_server,
+            server_port=options.nailgun_port,
+            compression=os.environ.get("NAILGUN_COMPRESSION") == COMPRESSION_DEFLATE,
+            invocation_header=os.environ.get("NAILGUN_INVOCATION_HEADER") == "1",
+            server_argfiles=os.environ.get("NAILGUN_ARGFILES") == "server",
         ) as c:
             exit_code = c.send_command(cmd, cmd_args, options.nailgun_filearg)
             sys.exit(exit_code)
@@ -76,9 +76,12 @@ class TestNailgunConnection(unittest.TestCase):
             self.transport_address = u"local:{0}".format(pipe_name)
             self.transport_file = u"\\\\.\\pipe\{0}".format(pipe_name)
 
+    def getServerJar(self):
+        return "nailgun-server/target/nailgun-server-1.0.1-uber.jar"
+
     def getClassPath(self):
         cp = [
-            "nailgun-server/target/nailgun-server-1.0.1-uber.jar",
+            self.getServerJar(),
             "nailgun-examples/target/nailgun-examples-1.0.1.jar",
         ]
         if os.name == "nt":
@@ -126,6 +129,8 @@ class TestNailgunConnection(unittest.TestCase):
             "java",
             "-Djna.nosys=true",
             "-Djava.util.logging.config.file=" + log_config_file,
+            # intercepts System.exit() of nails on JDKs without security managers
+            "-javaagent:" + self.getServerJar(),
             "-classpath",
             self.getClassPath(),
         ]
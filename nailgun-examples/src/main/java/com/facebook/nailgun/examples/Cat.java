@@ -0,0 +1,34 @@
+/*
+  Copyright 2017-Present Facebook, Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.facebook.nailgun.examples;
+
+import com.facebook.nailgun.NGContext;
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Prints the files named on the command line, relative to the client working directory, using
+ * {@link NGContext#sendFile}.
+ */
+public class Cat {
+
+  public static void nailMain(NGContext context) throws IOException {
+    for (String arg : context.getArgList()) {
+      context.sendFile(Paths.get(context.getWorkingDirectory()).resolve(arg));
+    }
+  }
+}
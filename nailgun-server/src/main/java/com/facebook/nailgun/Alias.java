@@ -33,8 +33,14 @@ public class Alias implements Comparable {
   /** The alias description (may be used to provide help to users) */
   private String description;
 
-  /** The class providing a <code>main()</code> or <code>nailMain()</code> method */
-  private Class clazz;
+  /** The name of the class providing a <code>main()</code> or <code>nailMain()</code> method */
+  private String className;
+
+  /** The class providing a <code>main()</code> or <code>nailMain()</code> method, once loaded */
+  private volatile Class clazz;
+
+  /** Milliseconds the command may run before the server cancels it, 0 for the server's default */
+  private long timeoutMillis = 0;
 
   /**
    * Creates a new Alias with the specified properties.
@@ -50,18 +56,89 @@ public class Alias implements Comparable {
 
     if (clazz == null) throw (new IllegalArgumentException("Alias must have an associated class."));
     this.description = description;
+    this.className = clazz.getName();
     this.clazz = clazz;
   }
 
+  /**
+   * Creates a new Alias for a class that is only loaded and initialized when the Alias is first
+   * used, so that defining many Aliases does not slow down server startup.
+   *
+   * @param name the alias name (short command)
+   * @param description a description of the command
+   * @param className the fully qualified name of the class implementing the command
+   */
+  public Alias(String name, String description, String className) {
+    this(name, description, className, 0);
+  }
+
+  /**
+   * Creates a new Alias for a class that is only loaded and initialized when the Alias is first
+   * used, with a timeout enforced by the server.
+   *
+   * @param name the alias name (short command)
+   * @param description a description of the command
+   * @param className the fully qualified name of the class implementing the command
+   * @param timeoutMillis milliseconds the command may run before the server cancels it, 0 for the
+   *     server's default
+   */
+  public Alias(String name, String description, String className, long timeoutMillis) {
+    if (name == null) throw (new IllegalArgumentException("Alias must have a name."));
+    this.name = name.trim();
+    if (this.name.length() == 0) throw (new IllegalArgumentException("Alias must have a name."));
+
+    if (className == null || className.trim().length() == 0)
+      throw (new IllegalArgumentException("Alias must have an associated class."));
+    if (timeoutMillis < 0)
+      throw (new IllegalArgumentException("Alias timeout must not be negative."));
+    this.description = description;
+    this.className = className.trim();
+    this.timeoutMillis = timeoutMillis;
+  }
+
   /**
    * Returns the <code>Class</code> object providing a static <code>main()</code> or <code>
    * nailMain()</code> method for this command.
    *
+   * <p>The class is loaded and initialized on the first call if this Alias was created from a class
+   * name.
+   *
    * @return the <code>Class</code> object providing a static <code>main()</code> or <code>
    *     nailMain()</code> method for this command.
+   * @throws NoClassDefFoundError if the class cannot be found
    */
   public Class getAliasedClass() {
-    return (clazz);
+    Class result = clazz;
+    if (result == null) {
+      try {
+        result = Class.forName(className);
+      } catch (ClassNotFoundException e) {
+        NoClassDefFoundError error = new NoClassDefFoundError(className);
+        error.initCause(e);
+        throw error;
+      }
+      clazz = result;
+    }
+    return (result);
+  }
+
+  /**
+   * Returns the name of the class providing the command, without loading it
+   *
+   * @return the fully qualified name of the class providing the command
+   */
+  public String getAliasedClassName() {
+    return (className);
+  }
+
+  /**
+   * Tells whether the aliased class has been loaded, either because the Alias was created from a
+   * <code>Class</code> or because it was used.
+   *
+   * @return true if {@link #getAliasedClass()} will not need to load the class
+   */
+  public boolean isAliasedClassLoaded() {
+    return clazz != null;
   }
 
   /**
@@ -82,6 +159,15 @@ public class Alias implements Comparable {
     return (description);
   }
 
+  /**
+   * Returns how long the aliased command may run before the server cancels it
+   *
+   * @return the timeout in milliseconds, 0 if the server's default applies
+   */
+  public long getTimeoutMillis() {
+    return (timeoutMillis);
+  }
+
   /** @see Object#hashCode() */
   public int hashCode() {
     return (name.hashCode());
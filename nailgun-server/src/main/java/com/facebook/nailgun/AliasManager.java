@@ -18,26 +18,43 @@
 package com.facebook.nailgun;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * An AliasManager is used to store and lookup command Aliases by name. See <a
  * href="Alias.html">Alias</a> for more details.
  *
+ * <p>Aliases are kept in an immutable map that is replaced as a whole on every change, so lookups
+ * never lock and always see a consistent set of aliases.
+ *
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 public class AliasManager {
 
-  /** actual alias storage */
-  private Map aliases;
+  /** actual alias storage, never modified once published */
+  private volatile Map<String, Alias> aliases = Collections.emptyMap();
+
+  /** aliases loaded from builtins.properties, kept by {@link #reloadFromProperties} */
+  private final Map<String, Alias> builtins;
+
+  /** serializes changes to {@link #aliases} */
+  private final Object writeLock = new Object();
+
+  /** listeners to notify of changes */
+  private final List<NGAliasListener> listeners = new CopyOnWriteArrayList<>();
 
   /** Creates a new AliasManager, populating it with default Aliases. */
   public AliasManager() {
-    aliases = new java.util.HashMap();
-
     Properties props = new Properties();
     ClassLoader cl = getClass().getClassLoader();
     if (cl == null)
@@ -50,6 +67,7 @@ public class AliasManager {
     } catch (java.io.IOException e) {
       System.err.println("Unable to load builtins.properties: " + e.getMessage());
     }
+    builtins = aliases;
   }
 
   /**
@@ -62,6 +80,10 @@ public class AliasManager {
    *
    * <pre><code>[alias name].desc=[alias description]</code></pre>
    *
+   * and an optional
+   *
+   * <pre><code>[alias name].timeout=[milliseconds the command may run]</code></pre>
+   *
    * For example, to create an alias called " <code>myprog</code>" for class <code>
    * com.mydomain.myapp.MyProg</code>, the following properties would be defined:
    *
@@ -69,21 +91,80 @@ public class AliasManager {
    * myprog.desc=Runs my program.
    * </code></pre>
    *
+   * All the Aliases become visible at once. Classes are only loaded when their Alias is first used,
+   * or by {@link #loadAliasedClasses()}.
+   *
    * @param properties the Properties to load.
    */
   public void loadFromProperties(java.util.Properties properties) {
+    Map<String, Alias> loaded = parseProperties(properties);
+    update(current -> current.putAll(loaded), loaded.keySet());
+  }
+
+  /**
+   * Replaces all Aliases but the builtin ones with the Aliases defined by the specified Properties,
+   * in the format described in {@link #loadFromProperties(Properties)}. Aliases added by other
+   * means, like the ng-alias command, are removed too. Lookups see either the previous or the new
+   * set of Aliases, never a mix of both.
+   *
+   * @param properties the Properties to load.
+   */
+  public void reloadFromProperties(java.util.Properties properties) {
+    replaceAliases(parseProperties(properties));
+  }
+
+  /**
+   * Replaces all Aliases but the builtin ones with the specified ones, see {@link
+   * #reloadFromProperties(Properties)}.
+   *
+   * @param loaded the new Aliases by name, as returned by {@link #parseProperties(Properties)}
+   */
+  void replaceAliases(Map<String, Alias> loaded) {
+    synchronized (writeLock) {
+      Map<String, Alias> result = new HashMap<>(builtins);
+      result.putAll(loaded);
+      Set<String> changed = new HashSet<>();
+      for (Alias alias : aliases.values()) {
+        if (!isSameDefinition(alias, result.get(alias.getName()))) {
+          changed.add(alias.getName());
+        }
+      }
+      for (Alias alias : result.values()) {
+        if (!aliases.containsKey(alias.getName())) {
+          changed.add(alias.getName());
+        }
+      }
+      publish(result, changed);
+    }
+  }
+
+  /** @return true if both Aliases run the same class with the same description and timeout */
+  private static boolean isSameDefinition(Alias alias, Alias other) {
+    return other != null
+        && alias.getAliasedClassName().equals(other.getAliasedClassName())
+        && Objects.equals(alias.getDescription(), other.getDescription())
+        && alias.getTimeoutMillis() == other.getTimeoutMillis();
+  }
+
+  /**
+   * Parses Aliases in the format described in {@link #loadFromProperties(Properties)}.
+   *
+   * @param properties the Properties to parse
+   * @return the Aliases by name
+   * @throws NumberFormatException if a timeout is not a number
+   */
+  static Map<String, Alias> parseProperties(Properties properties) {
+    Map<String, Alias> result = new HashMap<>();
     for (Iterator i = properties.keySet().iterator(); i.hasNext(); ) {
       String key = (String) i.next();
-      if (!key.endsWith(".desc")) {
-        try {
-          Class clazz = Class.forName(properties.getProperty(key));
-          String desc = properties.getProperty(key + ".desc", "");
-          addAlias(new Alias(key, desc, clazz));
-        } catch (ClassNotFoundException e) {
-          System.err.println("Unable to locate class " + properties.getProperty(key));
-        }
+      if (!key.endsWith(".desc") && !key.endsWith(".timeout")) {
+        String desc = properties.getProperty(key + ".desc", "");
+        long timeoutMillis = Long.parseLong(properties.getProperty(key + ".timeout", "0").trim());
+        Alias alias = new Alias(key, desc, properties.getProperty(key), timeoutMillis);
+        result.put(alias.getName(), alias);
       }
     }
+    return result;
   }
 
   /**
@@ -92,9 +173,7 @@ public class AliasManager {
    * @param alias the Alias to add
    */
   public void addAlias(Alias alias) {
-    synchronized (aliases) {
-      aliases.put(alias.getName(), alias);
-    }
+    update(current -> current.put(alias.getName(), alias), Collections.singleton(alias.getName()));
   }
 
   /**
@@ -104,11 +183,7 @@ public class AliasManager {
    * @return a Set that is a snapshot of the Alias list.
    */
   public Set getAliases() {
-    Set result = new java.util.TreeSet();
-    synchronized (aliases) {
-      result.addAll(aliases.values());
-    }
-    return (result);
+    return new java.util.TreeSet(aliases.values());
   }
 
   /**
@@ -118,9 +193,7 @@ public class AliasManager {
    * @param aliasName the name of the Alias to remove
    */
   public void removeAlias(String aliasName) {
-    synchronized (aliases) {
-      aliases.remove(aliasName);
-    }
+    update(current -> current.remove(aliasName), Collections.singleton(aliasName));
   }
 
   /**
@@ -130,6 +203,71 @@ public class AliasManager {
    * @return the requested Alias, or null if no such Alias is defined in this AliasManager.
    */
   public Alias getAlias(String aliasName) {
-    return ((Alias) aliases.get(aliasName));
+    return aliases.get(aliasName);
+  }
+
+  /**
+   * Loads and initializes the classes of all Aliases that were not used yet, i.e. to warm up the
+   * server in the background after it has started. Classes that cannot be loaded are reported to
+   * System.err.
+   *
+   * @return number of classes that were loaded
+   */
+  public int loadAliasedClasses() {
+    int loaded = 0;
+    for (Alias alias : aliases.values()) {
+      if (alias.isAliasedClassLoaded()) {
+        continue;
+      }
+      try {
+        alias.getAliasedClass();
+        loaded++;
+      } catch (LinkageError e) {
+        System.err.println("Unable to load class " + alias.getAliasedClassName() + ": " + e);
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Registers a listener to be notified after Aliases are added, replaced or removed, i.e. to
+   * invalidate anything that was derived from them.
+   *
+   * @param listener the listener to notify
+   */
+  public void addAliasListener(NGAliasListener listener) {
+    listeners.add(listener);
+  }
+
+  /** @param listener the listener to no longer notify */
+  public void removeAliasListener(NGAliasListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Applies a change to a copy of the aliases and publishes the copy. */
+  private void update(Consumer<Map<String, Alias>> change, Set<String> changed) {
+    if (changed.isEmpty()) {
+      return;
+    }
+    synchronized (writeLock) {
+      Map<String, Alias> result = new HashMap<>(aliases);
+      change.accept(result);
+      publish(result, changed);
+    }
+  }
+
+  /**
+   * Makes the specified aliases visible, then notifies the listeners. Listeners are called with the
+   * write lock held so that they see changes in order.
+   */
+  private void publish(Map<String, Alias> result, Set<String> changed) {
+    aliases = Collections.unmodifiableMap(result);
+    if (changed.isEmpty()) {
+      return;
+    }
+    Set<String> names = Collections.unmodifiableSet(changed);
+    for (NGAliasListener listener : listeners) {
+      listener.aliasesChanged(names);
+    }
   }
 }
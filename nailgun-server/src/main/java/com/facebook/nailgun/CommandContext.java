@@ -16,13 +16,12 @@
 
 package com.facebook.nailgun;
 
-import java.util.List;
 import java.util.Properties;
 
 /** Provides all information required to run a nail command */
 class CommandContext {
 
-  private final List<String> commandArguments;
+  private final NGArgumentList commandArguments;
   private final Properties environmentVariables;
   private final String workingDirectory;
   private String command; // alias or class name
@@ -31,7 +30,7 @@ class CommandContext {
       String command,
       String workingDirectory,
       Properties environmentVariables,
-      List<String> commandArguments) {
+      NGArgumentList commandArguments) {
     this.command = command;
     this.workingDirectory = workingDirectory;
     this.environmentVariables = environmentVariables;
@@ -39,7 +38,7 @@ class CommandContext {
   }
 
   /** @return arguments passed with command */
-  List<String> getCommandArguments() {
+  NGArgumentList getCommandArguments() {
     return commandArguments;
   }
 
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.util.Set;
+
+/** Receives notifications of changes to the Aliases of an {@link AliasManager}. */
+public interface NGAliasListener {
+
+  /**
+   * Called after Aliases were added, replaced or removed, once the change is visible to {@link
+   * AliasManager#getAlias(String)}. Called by the thread making the change, one change at a time,
+   * so implementations must be quick and must not change Aliases themselves.
+   *
+   * @param aliasNames names of the Aliases that changed
+   */
+  void aliasesChanged(Set<String> aliasNames);
+}
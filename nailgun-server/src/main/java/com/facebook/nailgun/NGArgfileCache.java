@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parsed contents of argfiles, shared by all sessions of a server. Build tools pass the same
+ * argfiles with tens of thousands of paths over and over, so parsed files are kept until they
+ * change (by modification time, size and file key) or are evicted to stay within the capacity.
+ *
+ * <p>An argfile is a UTF-8 text file with one argument per line; empty lines are skipped and a
+ * trailing carriage return is removed. Lines are otherwise taken as they are: there is no quoting,
+ * escaping or comment syntax, and lines starting with '@' are not expanded again. Files are read
+ * through a memory mapping and lines are copied straight into an {@link NGArgumentList}, without
+ * being decoded.
+ */
+final class NGArgfileCache {
+
+  /** Default limit of the total size of cached argfiles */
+  static final long DEFAULT_CAPACITY_BYTES = 64L * 1024 * 1024;
+
+  private final long capacityBytes;
+  private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeBytes = 0;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private static final class Entry {
+    final Object fileKey;
+    final long lastModifiedMillis;
+    final long size;
+    final NGArgumentList arguments;
+
+    Entry(BasicFileAttributes attributes, NGArgumentList arguments) {
+      this.fileKey = attributes.fileKey();
+      this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+      this.size = attributes.size();
+      this.arguments = arguments;
+    }
+
+    boolean isCurrent(BasicFileAttributes attributes) {
+      return Objects.equals(fileKey, attributes.fileKey())
+          && lastModifiedMillis == attributes.lastModifiedTime().toMillis()
+          && size == attributes.size();
+    }
+  }
+
+  /** @param capacityBytes limit of the total size of cached argfiles */
+  NGArgfileCache(long capacityBytes) {
+    this.capacityBytes = capacityBytes;
+  }
+
+  /**
+   * Returns the arguments in the specified argfile, parsing it unless an up to date copy is cached.
+   *
+   * @param path absolute path of the argfile
+   * @return the arguments, which must not be modified
+   * @throws IOException if the file cannot be read
+   */
+  NGArgumentList get(Path path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    synchronized (entries) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.isCurrent(attributes)) {
+        hits.increment();
+        return entry.arguments;
+      }
+    }
+    misses.increment();
+
+    // if the file changes while being read, the next lookup sees new attributes and parses it again
+    NGArgumentList arguments = parse(path);
+    if (attributes.size() <= capacityBytes) {
+      synchronized (entries) {
+        Entry previous = entries.put(path, new Entry(attributes, arguments));
+        if (previous != null) {
+          sizeBytes -= previous.size;
+        }
+        sizeBytes += attributes.size();
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > capacityBytes && eldest.hasNext()) {
+          sizeBytes -= eldest.next().getValue().size;
+          eldest.remove();
+        }
+      }
+    }
+    return arguments;
+  }
+
+  private static NGArgumentList parse(Path path) throws IOException {
+    NGArgumentList arguments = new NGArgumentList();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int limit = buffer.limit();
+      int start = 0;
+      for (int i = 0; i <= limit; i++) {
+        if (i < limit && buffer.get(i) != '\n') {
+          continue;
+        }
+        int end = i;
+        if (end > start && buffer.get(end - 1) == '\r') {
+          end--;
+        }
+        if (end > start) {
+          arguments.add(buffer, start, end - start);
+        }
+        start = i + 1;
+      }
+    }
+    return arguments;
+  }
+
+  /** @return number of lookups served from the cache */
+  long getHitCount() {
+    return hits.sum();
+  }
+
+  /** @return number of lookups that had to read the argfile */
+  long getMissCount() {
+    return misses.sum();
+  }
+}
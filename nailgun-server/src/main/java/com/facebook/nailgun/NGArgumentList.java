@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.RandomAccess;
+
+/**
+ * Command line arguments received from the client, stored as UTF-8 in a single byte array rather
+ * than as one String each. Arguments are decoded when accessed and the result is not cached, so
+ * iterating over them never holds more than one decoded argument at a time. This keeps the memory
+ * footprint of invocations with thousands of arguments (i.e. source paths passed by build tools)
+ * low.
+ *
+ * <p>Arguments are appended by the thread reading the command context and must not be modified once
+ * the nail has started.
+ */
+final class NGArgumentList extends AbstractList<String> implements RandomAccess {
+
+  private byte[] data = new byte[256];
+  private int dataLength = 0;
+
+  /** offsets[i] is the start of argument i in data, offsets[size] is the end of the last one */
+  private int[] offsets = new int[17];
+
+  private int size = 0;
+
+  /** true while a long argument is being streamed in with {@link #readLongArgumentChunk} */
+  private boolean longArgumentOpen = false;
+
+  /** indices of arguments which are argfile paths still to be expanded */
+  private BitSet argfiles = null;
+
+  /** Charset long arguments are sent in, see {@link #endLongArgument()} */
+  private final Charset longArgumentCharset;
+
+  /** Creates an empty argument list, long arguments being sent in the default charset */
+  NGArgumentList() {
+    this(Charset.defaultCharset());
+  }
+
+  /** @param longArgumentCharset charset in which clients send long arguments */
+  NGArgumentList(Charset longArgumentCharset) {
+    this.longArgumentCharset = longArgumentCharset;
+  }
+
+  /**
+   * Appends an argument
+   *
+   * @param utf8 buffer holding the UTF-8 encoded argument
+   * @param offset offset of the argument in the buffer
+   * @param len length of the argument in bytes
+   */
+  void add(byte[] utf8, int offset, int len) {
+    endLongArgument();
+    ensureDataCapacity(len);
+    System.arraycopy(utf8, offset, data, dataLength, len);
+    dataLength += len;
+    endArgument();
+  }
+
+  /**
+   * Appends an argument
+   *
+   * @param utf8 buffer holding the UTF-8 encoded argument
+   * @param offset absolute offset of the argument in the buffer
+   * @param len length of the argument in bytes
+   */
+  void add(ByteBuffer utf8, int offset, int len) {
+    endLongArgument();
+    ensureDataCapacity(len);
+    ByteBuffer source = utf8.duplicate();
+    source.position(offset);
+    source.get(data, dataLength, len);
+    dataLength += len;
+    endArgument();
+  }
+
+  /**
+   * Appends all arguments of another list
+   *
+   * @param other the arguments to append
+   */
+  void addAll(NGArgumentList other) {
+    endLongArgument();
+    ensureDataCapacity(other.dataLength);
+    System.arraycopy(other.data, 0, data, dataLength, other.dataLength);
+    if (size + other.size >= offsets.length) {
+      offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, size + other.size + 1));
+    }
+    for (int i = 1; i <= other.size; i++) {
+      offsets[size + i] = dataLength + other.offsets[i];
+    }
+    size += other.size;
+    dataLength += other.dataLength;
+  }
+
+  /**
+   * Appends the path of an argfile, to be replaced by its contents with {@link #expandArgfiles}
+   *
+   * @param utf8 buffer holding the UTF-8 encoded path
+   * @param offset offset of the path in the buffer
+   * @param len length of the path in bytes
+   */
+  void addArgfile(byte[] utf8, int offset, int len) {
+    add(utf8, offset, len);
+    if (argfiles == null) {
+      argfiles = new BitSet();
+    }
+    argfiles.set(size - 1);
+  }
+
+  /**
+   * Replaces all argfile paths added with {@link #addArgfile} by the arguments they contain.
+   *
+   * @param workingDirectory directory relative paths are resolved against, or null for the working
+   *     directory of the server
+   * @param cache where argfiles are read from
+   * @throws IOException if an argfile cannot be read
+   */
+  void expandArgfiles(String workingDirectory, NGArgfileCache cache) throws IOException {
+    if (argfiles == null) {
+      return;
+    }
+    NGArgumentList result = new NGArgumentList(longArgumentCharset);
+    for (int i = 0; i < size; i++) {
+      if (!argfiles.get(i)) {
+        result.add(data, offsets[i], offsets[i + 1] - offsets[i]);
+        continue;
+      }
+      Path path = Paths.get(get(i));
+      if (!path.isAbsolute() && workingDirectory != null) {
+        path = Paths.get(workingDirectory).resolve(path);
+      }
+      result.addAll(cache.get(path.toAbsolutePath().normalize()));
+    }
+    data = result.data;
+    dataLength = result.dataLength;
+    offsets = result.offsets;
+    size = result.size;
+    argfiles = null;
+  }
+
+  @Override
+  public boolean add(String argument) {
+    byte[] utf8 = argument.getBytes(StandardCharsets.UTF_8);
+    add(utf8, 0, utf8.length);
+    return true;
+  }
+
+  /**
+   * Reads the payload of a {@link NGConstants#CHUNKTYPE_LONGARG} chunk. A long argument is sent as
+   * any number of non-empty chunks which are appended to each other, followed by an empty chunk
+   * which completes it. Payloads are read straight into the backing array.
+   *
+   * @param in stream to read the payload from
+   * @param len payload length
+   */
+  void readLongArgumentChunk(DataInputStream in, int len) throws IOException {
+    longArgumentOpen = true;
+    if (len == 0) {
+      endLongArgument();
+      return;
+    }
+    ensureDataCapacity(len);
+    in.readFully(data, dataLength, len);
+    dataLength += len;
+  }
+
+  /**
+   * Completes the long argument being streamed, if any. Called for the empty chunk terminating it,
+   * before any other argument is added and when the command arrives.
+   */
+  void endLongArgument() {
+    if (!longArgumentOpen) {
+      return;
+    }
+    longArgumentOpen = false;
+    int start = offsets[size];
+    if (!longArgumentCharset.equals(StandardCharsets.UTF_8)) {
+      // only needed on JVMs whose default charset is not UTF-8
+      byte[] utf8 =
+          new String(data, start, dataLength - start, longArgumentCharset)
+              .getBytes(StandardCharsets.UTF_8);
+      dataLength = start;
+      ensureDataCapacity(utf8.length);
+      System.arraycopy(utf8, 0, data, dataLength, utf8.length);
+      dataLength += utf8.length;
+    }
+    endArgument();
+  }
+
+  private void endArgument() {
+    if (size + 1 == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    size++;
+    offsets[size] = dataLength;
+  }
+
+  private void ensureDataCapacity(int len) {
+    if (dataLength + len > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + len));
+    }
+  }
+
+  @Override
+  public String get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    return new String(
+        data, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of chunks to be sent to the client, drained by a writer thread. What happens when
+ * the queue is full is governed by an {@link NGOutputPolicy}: senders block by default, so a slow
+ * client can not stall them on a socket write but still slows them down; once the client is known
+ * to be gone, chunks are discarded without blocking at all.
+ *
+ * <p>Chunks are written in the order they were enqueued, header and payload together, and small
+ * chunks queued back to back are coalesced into a single socket write. {@link #flush()} is an
+ * ordering barrier: it returns once everything enqueued before it has been written or discarded.
+ *
+ * <p>With {@link NGOutputPolicy#SPILL}, chunks which do not fit the queue are appended to a
+ * temporary file. Once spilling has started, all chunks go to the file until the writer has caught
+ * up with it, so ordering is preserved.
+ *
+ * <p>{@link #writeExclusively} lets a caller write whole chunks to the stream itself, i.e. straight
+ * from a file, while the writer thread is held back.
+ *
+ * <p>A client which stopped sending heartbeats may still be reading, so after {@link
+ * #clientDisconnected()} output is discarded but the exit chunk is still sent on a best effort
+ * basis, waiting at most {@link #DISCONNECTED_FLUSH_TIMEOUT_MILLIS} for it.
+ *
+ * <p>The exit chunk never waits for room in the queue, and {@link #flush(long)} can give up on a
+ * connected client which stopped reading, so sending the exit code can not block forever.
+ */
+class NGChunkWriter {
+
+  private static final Logger LOG = Logger.getLogger(NGChunkWriter.class.getName());
+
+  /** Default number of bytes, headers included, that may be queued before the policy applies */
+  static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+  /** Chunk header length: 4 bytes of payload length and 1 byte of chunk type */
+  static final int HEADER_LENGTH = 5;
+
+  /** How long {@link #flush()} waits for the exit chunk to be sent to a disconnected client */
+  static final long DISCONNECTED_FLUSH_TIMEOUT_MILLIS = 1000;
+
+  /** Default time {@link #flush(long)} waits for the client to read anything before giving up */
+  static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 60000;
+
+  /** Size of the buffer used to coalesce small chunks into one write */
+  private static final int BATCH_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+  private final Executor executor;
+  private final int capacity;
+  private final NGOutputPolicy policy;
+  private final Object lock = new Object();
+  private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+  private final byte[] batch = new byte[BATCH_SIZE];
+
+  // all fields below are guarded by lock
+  /** bytes in the queue, including the ones being written */
+  private int pendingBytes = 0;
+  /** number of chunks ever enqueued, also the sequence number of the last one */
+  private long enqueued = 0;
+  /** number of chunks ever written or discarded */
+  private long completed = 0;
+  /** true if a drain task was submitted to the executor and has not finished yet */
+  private boolean draining = false;
+  /** true if the client is gone and output chunks should be thrown away */
+  private boolean disconnected = false;
+  /** true if the writer was closed or failed to write, and all chunks should be thrown away */
+  private boolean closed = false;
+  /**
+   * if not negative, an exclusive write is waiting for, or doing, and the writer thread stops once
+   * this many chunks are completed
+   */
+  private long exclusiveTarget = -1;
+
+  /** temporary file holding spilled chunks, created on first use */
+  private FileChannel spill = null;
+  /** type and length of each chunk in the spill file not written yet, see spillEntry() */
+  private final ArrayDeque<Long> spilledChunks = new ArrayDeque<>();
+  /** position in the spill file of the first chunk not written yet */
+  private long spillReadPosition = 0;
+  /** position in the spill file to append the next chunk at */
+  private long spillWritePosition = 0;
+  /** incremented when spilled chunks are discarded, so the writer ignores what it was writing */
+  private long spillGeneration = 0;
+
+  private long payloadBytesWritten = 0;
+  private long payloadBytesDiscarded = 0;
+  private long payloadBytesSpilled = 0;
+
+  /**
+   * @param out the stream to write chunks to, i.e. socket output stream
+   * @param executor runs the writer, it should have a single thread dedicated to this writer
+   * @param capacity number of bytes that may be queued before the policy applies; a single chunk
+   *     larger than that is still accepted when the queue is empty
+   * @param policy what to do with chunks that do not fit the queue
+   */
+  NGChunkWriter(OutputStream out, Executor executor, int capacity, NGOutputPolicy policy) {
+    this.out = out;
+    this.executor = executor;
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  /**
+   * Queues a chunk to be sent to the client. If the queue is full, the chunk is handled according
+   * to the policy, except for the exit chunk which is always queued. The data is copied, so the
+   * caller may reuse the buffer as soon as this method returns.
+   *
+   * @param chunkType chunk type
+   * @param b buffer with the payload
+   * @param offset offset of the payload in the buffer
+   * @param len payload length
+   * @return false if the chunk was discarded because the client is gone or because of the policy
+   * @throws InterruptedIOException if the calling thread was interrupted while waiting for room
+   */
+  boolean enqueue(byte chunkType, byte[] b, int offset, int len) throws InterruptedIOException {
+    return enqueue(chunkType, b, offset, len, chunkType == NGConstants.CHUNKTYPE_EXIT);
+  }
+
+  /**
+   * Queues a chunk to be sent to the client, see {@link #enqueue(byte, byte[], int, int)}.
+   *
+   * @param urgent if true, the chunk is queued even if the queue is full, so this never waits
+   */
+  boolean enqueue(byte chunkType, byte[] b, int offset, int len, boolean urgent)
+      throws InterruptedIOException {
+    boolean isExit = chunkType == NGConstants.CHUNKTYPE_EXIT;
+    byte[] chunk = new byte[HEADER_LENGTH + len];
+    chunk[0] = (byte) (len >>> 24);
+    chunk[1] = (byte) (len >>> 16);
+    chunk[2] = (byte) (len >>> 8);
+    chunk[3] = (byte) len;
+    chunk[4] = chunkType;
+    System.arraycopy(b, offset, chunk, HEADER_LENGTH, len);
+
+    synchronized (lock) {
+      while (true) {
+        if (closed || (disconnected && !isExit)) {
+          payloadBytesDiscarded += payloadLength(chunk);
+          return false;
+        }
+        // to keep the order, nothing goes to the queue while there are spilled chunks
+        boolean spilling = !spilledChunks.isEmpty() && !disconnected;
+        boolean full = !urgent && isFull(chunk.length);
+        if (!spilling && !full) {
+          break;
+        }
+        if (spilling || policy == NGOutputPolicy.SPILL) {
+          if (spill(chunk)) {
+            return true;
+          }
+          if (urgent) {
+            // queued, it would be sent before the spilled output
+            return false;
+          }
+          // could not spill, wait for the writer instead
+        } else if (policy == NGOutputPolicy.DROP_STDERR
+            && chunkType == NGConstants.CHUNKTYPE_STDERR) {
+          payloadBytesDiscarded += len;
+          return false;
+        }
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting to send data to the client");
+        }
+      }
+      queue.add(chunk);
+      pendingBytes += chunk.length;
+      enqueued++;
+      return startDraining();
+    }
+  }
+
+  /** Must be called under lock. */
+  private boolean isFull(int chunkLength) {
+    return !disconnected && !closed && pendingBytes > 0 && pendingBytes + chunkLength > capacity;
+  }
+
+  /**
+   * Appends a chunk to the spill file. Must be called under lock.
+   *
+   * @return false if the chunk could not be written to the file
+   */
+  private boolean spill(byte[] chunk) throws InterruptedIOException {
+    try {
+      if (spill == null) {
+        Path path = Files.createTempFile("nailgun-output-", ".spill");
+        spill =
+            FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      long position = spillWritePosition;
+      while (buffer.hasRemaining()) {
+        position += spill.write(buffer, position);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to spill output to disk, waiting for the client instead", e);
+      return false;
+    }
+    spillWritePosition += chunk.length;
+    spilledChunks.add(spillEntry(chunk[4], chunk.length));
+    payloadBytesSpilled += payloadLength(chunk);
+    enqueued++;
+    return startDraining();
+  }
+
+  /** Must be called under lock. */
+  private boolean startDraining() {
+    if (draining) {
+      return true;
+    }
+    try {
+      executor.execute(this::drain);
+      draining = true;
+      return true;
+    } catch (RejectedExecutionException e) {
+      // the communicator is already closed
+      closed = true;
+      discardQueued();
+      lock.notifyAll();
+      return false;
+    }
+  }
+
+  /**
+   * Blocks until all chunks enqueued so far have been written to the stream, or discarded because
+   * the client is gone.
+   *
+   * @throws InterruptedIOException if the calling thread was interrupted while waiting
+   */
+  void flush() throws InterruptedIOException {
+    flush(0);
+  }
+
+  /**
+   * Blocks until all chunks enqueued so far have been written to the stream, or discarded because
+   * the client is gone, or until no chunk could be written for the specified time.
+   *
+   * @param writeTimeoutMillis how long the client may read nothing before giving up, 0 to wait as
+   *     long as it takes
+   * @return false if it gave up before the chunks were sent
+   * @throws InterruptedIOException if the calling thread was interrupted while waiting
+   */
+  boolean flush(long writeTimeoutMillis) throws InterruptedIOException {
+    synchronized (lock) {
+      long target = enqueued;
+      long deadline = 0;
+      long lastCompleted = completed;
+      long lastProgress = System.currentTimeMillis();
+      while (completed < target && !closed) {
+        long now = System.currentTimeMillis();
+        long timeout = 0;
+        if (disconnected) {
+          if (deadline == 0) {
+            deadline = now + DISCONNECTED_FLUSH_TIMEOUT_MILLIS;
+          } else if (now >= deadline) {
+            LOG.log(Level.FINE, "Gave up waiting for output to be sent to disconnected client");
+            return false;
+          }
+          timeout = deadline - now;
+        }
+        if (writeTimeoutMillis > 0) {
+          if (completed != lastCompleted) {
+            lastCompleted = completed;
+            lastProgress = now;
+          }
+          long left = lastProgress + writeTimeoutMillis - now;
+          if (left <= 0) {
+            LOG.log(Level.FINE, "Gave up waiting for output to be read by the client");
+            return false;
+          }
+          timeout = timeout == 0 ? left : Math.min(timeout, left);
+        }
+        try {
+          lock.wait(timeout);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting for output to be sent");
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Writes chunks directly to the stream, see {@link #writeExclusively}. */
+  interface ExclusiveWrite {
+    /** @return number of payload bytes written */
+    long write() throws IOException;
+  }
+
+  /**
+   * Waits until all chunks enqueued so far have been written, then runs a write to the stream on
+   * the calling thread while the writer thread is held back. Chunks enqueued in the meantime are
+   * written afterwards.
+   *
+   * @param write writes whole chunks to the stream this writer writes to
+   * @return false if nothing was written because the client is gone or the writer is closed
+   * @throws IOException if the write failed, after which all output is discarded
+   */
+  boolean writeExclusively(ExclusiveWrite write) throws IOException {
+    synchronized (lock) {
+      try {
+        while (exclusiveTarget >= 0 && !closed && !disconnected) {
+          lock.wait();
+        }
+        if (closed || disconnected) {
+          return false;
+        }
+        exclusiveTarget = enqueued;
+        while ((completed < exclusiveTarget || draining) && !closed && !disconnected) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        endExclusiveWrite();
+        throw new InterruptedIOException("Interrupted while waiting for output to be sent");
+      }
+      if (closed || disconnected) {
+        endExclusiveWrite();
+        return false;
+      }
+    }
+
+    long written;
+    try {
+      written = write.write();
+      out.flush();
+    } catch (IOException | RuntimeException e) {
+      synchronized (lock) {
+        closed = true;
+        discardQueued();
+        endExclusiveWrite();
+      }
+      throw e;
+    }
+
+    synchronized (lock) {
+      payloadBytesWritten += written;
+      endExclusiveWrite();
+    }
+    return true;
+  }
+
+  /** Lets the writer thread go on with chunks enqueued meanwhile. Must be called under lock. */
+  private void endExclusiveWrite() {
+    exclusiveTarget = -1;
+    if (!closed && (!queue.isEmpty() || !spilledChunks.isEmpty())) {
+      startDraining();
+    }
+    lock.notifyAll();
+  }
+
+  /**
+   * Throws away all queued output and any output enqueued from now on, and releases all threads
+   * waiting in {@link #enqueue}. Exit chunks are still sent.
+   */
+  void clientDisconnected() {
+    synchronized (lock) {
+      disconnected = true;
+      discardQueued();
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Throws away all queued chunks and any chunk enqueued from now on, and releases all threads
+   * waiting in {@link #enqueue} or {@link #flush()}. A write in progress is not interrupted.
+   */
+  void close() {
+    synchronized (lock) {
+      closed = true;
+      discardQueued();
+      lock.notifyAll();
+      if (spill != null) {
+        try {
+          spill.close();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete output spill file", e);
+        }
+      }
+    }
+  }
+
+  /** @return number of payload bytes of chunks written to the stream, excluding exit chunks */
+  long getPayloadBytesWritten() {
+    synchronized (lock) {
+      return payloadBytesWritten;
+    }
+  }
+
+  /** @return number of payload bytes of chunks discarded because the client was gone or policy */
+  long getPayloadBytesDiscarded() {
+    synchronized (lock) {
+      return payloadBytesDiscarded;
+    }
+  }
+
+  /** @return number of payload bytes of chunks that went through the spill file */
+  long getPayloadBytesSpilled() {
+    synchronized (lock) {
+      return payloadBytesSpilled;
+    }
+  }
+
+  /** Must be called under lock. */
+  private void discardQueued() {
+    byte[] chunk;
+    while ((chunk = queue.poll()) != null) {
+      pendingBytes -= chunk.length;
+      payloadBytesDiscarded += payloadLength(chunk);
+      completed++;
+    }
+    Long entry;
+    while ((entry = spilledChunks.poll()) != null) {
+      payloadBytesDiscarded += payloadLength(entry);
+      completed++;
+    }
+    spillReadPosition = spillWritePosition;
+    spillGeneration++;
+  }
+
+  /** Writes queued chunks until the queue is empty. Runs on the executor. */
+  private void drain() {
+    try {
+      while (drainOnce()) {}
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.FINE, "Unable to send data to the client, discarding further output", e);
+      synchronized (lock) {
+        closed = true;
+        discardQueued();
+        draining = false;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /** @return false if there is nothing left to write, in which case draining is over */
+  private boolean drainOnce() throws IOException {
+    int chunks = 0;
+    int batchLength = 0;
+    long payload = 0;
+    byte[] single = null;
+    long spillPosition = -1;
+    long spillLength = 0;
+    long generation;
+    synchronized (lock) {
+      generation = spillGeneration;
+      if (exclusiveTarget >= 0 && completed >= exclusiveTarget) {
+        // everything before the exclusive write is out, hand the stream over
+        draining = false;
+        lock.notifyAll();
+        return false;
+      }
+      if (!queue.isEmpty()) {
+        // take the first chunk as is if it does not fit the batch buffer, otherwise coalesce as
+        // many chunks as fit
+        if (queue.peek().length > batch.length) {
+          single = queue.poll();
+          chunks = 1;
+          payload = payloadLength(single);
+        } else {
+          while (!queue.isEmpty() && batchLength + queue.peek().length <= batch.length) {
+            byte[] chunk = queue.poll();
+            System.arraycopy(chunk, 0, batch, batchLength, chunk.length);
+            batchLength += chunk.length;
+            chunks++;
+            payload += payloadLength(chunk);
+          }
+        }
+      } else if (!spilledChunks.isEmpty()) {
+        // spilled chunks are all older than chunks in the queue, as nothing is queued in memory
+        // while there is something in the spill file
+        spillPosition = spillReadPosition;
+        for (Long entry : spilledChunks) {
+          long length = entry >>> 8;
+          if (chunks > 0 && spillLength + length > batch.length) {
+            break;
+          }
+          spillLength += length;
+          payload += payloadLength(entry);
+          chunks++;
+        }
+      } else {
+        // writer caught up with the spill file, start it over
+        spillReadPosition = 0;
+        spillWritePosition = 0;
+        draining = false;
+        if (exclusiveTarget >= 0) {
+          lock.notifyAll();
+        }
+        return false;
+      }
+    }
+
+    if (single != null) {
+      out.write(single, 0, single.length);
+    } else if (spillPosition < 0) {
+      out.write(batch, 0, batchLength);
+    } else {
+      // a single spilled chunk may be larger than the batch buffer, stream it in pieces
+      for (long done = 0; done < spillLength; ) {
+        ByteBuffer buffer =
+            ByteBuffer.wrap(batch, 0, (int) Math.min(batch.length, spillLength - done));
+        while (buffer.hasRemaining()) {
+          if (spill.read(buffer, spillPosition + done + buffer.position()) < 0) {
+            throw new IOException("Output spill file is truncated");
+          }
+        }
+        out.write(batch, 0, buffer.position());
+        done += buffer.position();
+      }
+    }
+    out.flush();
+
+    synchronized (lock) {
+      if (single != null) {
+        pendingBytes -= single.length;
+      } else if (spillPosition < 0) {
+        pendingBytes -= batchLength;
+      } else if (generation == spillGeneration) {
+        for (int i = 0; i < chunks; i++) {
+          spilledChunks.poll();
+        }
+        spillReadPosition += spillLength;
+      } else {
+        // spilled chunks were discarded and accounted for while they were being written
+        return true;
+      }
+      completed += chunks;
+      payloadBytesWritten += payload;
+      lock.notifyAll();
+    }
+    return true;
+  }
+
+  private static long spillEntry(byte chunkType, int chunkLength) {
+    return ((long) chunkLength << 8) | (chunkType & 0xff);
+  }
+
+  private static long payloadLength(long spillEntry) {
+    return (byte) spillEntry == NGConstants.CHUNKTYPE_EXIT ? 0 : (spillEntry >>> 8) - HEADER_LENGTH;
+  }
+
+  private static long payloadLength(byte[] chunk) {
+    return chunk[4] == NGConstants.CHUNKTYPE_EXIT ? 0 : chunk.length - HEADER_LENGTH;
+  }
+}
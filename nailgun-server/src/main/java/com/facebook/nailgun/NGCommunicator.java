@@ -16,17 +16,23 @@
 
 package com.facebook.nailgun;
 
+import com.sun.jna.LastErrorException;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -40,6 +46,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,11 +60,14 @@ public class NGCommunicator implements Closeable {
   private static final Logger LOG = Logger.getLogger(NGCommunicator.class.getName());
   private final ExecutorService orchestratorExecutor;
   private final ExecutorService readExecutor;
+  private final ExecutorService writeExecutor;
   private final Socket socket;
   private final DataInputStream in;
-  private final DataOutputStream out;
+  private final OutputStream out;
+  private final NGChunkWriter writer;
+  private final NGOutputPolicy outputPolicy;
+  private volatile NGDeflateCodec codec = null;
   private final Object readLock = new Object();
-  private final Object writeLock = new Object();
   private final Object orchestratorEvent = new Object();
   private boolean shutdown = false;
   private InputStream stdin = null;
@@ -65,13 +75,27 @@ public class NGCommunicator implements Closeable {
   private boolean closed = false;
   private boolean inClosed = false;
   private boolean outClosed = false;
-  private boolean isExited = false;
+  private volatile boolean isExited = false;
+  private volatile int exitCode = NGConstants.EXIT_SUCCESS;
+  private volatile NGClientDisconnectReason disconnectReason = null;
   private int remaining = 0;
   private AtomicBoolean clientConnected = new AtomicBoolean(true);
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final NGEventRecorder events = NGEventRecorder.get();
   private final Set<NGClientListener> clientListeners = new HashSet<>();
+  /** Notified of a disconnect before clientListeners, not affected by nails removing listeners */
+  private NGClientListener disconnectListener = null;
+
   private final Set<NGHeartbeatListener> heartbeatListeners = new HashSet<>();
   private static final long TERMINATION_TIMEOUT_MS = 1000;
+  /** Largest chunk written by sendFile() when the kernel copies the file */
+  private static final int SEND_FILE_CHUNK_SIZE = 1024 * 1024;
+  /** Buffer size used by sendFile() when the file is read into the heap */
+  private static final int SEND_FILE_BUFFER_SIZE = 64 * 1024;
+
   private final int heartbeatTimeoutMillis;
+  /** How long exit() waits for the client to read anything before giving up */
+  private final long writeTimeoutMillis;
 
   /**
    * Creates a new NGCommunicator wrapping the specified Socket. Also sets up a timer to
@@ -83,19 +107,52 @@ public class NGCommunicator implements Closeable {
    *     disconnected
    */
   NGCommunicator(Socket socket, final int heartbeatTimeoutMillis) throws IOException {
+    this(
+        socket,
+        heartbeatTimeoutMillis,
+        NGChunkWriter.DEFAULT_CAPACITY,
+        NGOutputPolicy.BLOCK,
+        NGChunkWriter.DEFAULT_WRITE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a new NGCommunicator wrapping the specified Socket. Also sets up a timer to
+   * periodically consume heartbeats sent from the client and call registered NGClientListeners if a
+   * client disconnection is detected.
+   *
+   * @param socket Socket used to comminicate with the client, will be closed on close()
+   * @param heartbeatTimeoutMillis the interval between heartbeats before considering the client
+   *     disconnected
+   * @param outputQueueCapacity number of bytes of output that may be queued for the client before
+   *     outputPolicy applies
+   * @param outputPolicy what to do with output when the client does not keep up
+   * @param writeTimeoutMillis how long to wait for a client which does not read its output when
+   *     sending the exit code, before the output is discarded and the connection closed; 0 to wait
+   *     as long as it takes
+   */
+  NGCommunicator(
+      Socket socket,
+      final int heartbeatTimeoutMillis,
+      int outputQueueCapacity,
+      NGOutputPolicy outputPolicy,
+      long writeTimeoutMillis)
+      throws IOException {
 
     this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+    this.writeTimeoutMillis = writeTimeoutMillis;
     this.socket = socket;
     in = new DataInputStream(socket.getInputStream());
-    out = new DataOutputStream(socket.getOutputStream());
+    out = socket.getOutputStream();
 
-    /** Thread factory that overrides name and priority for executor threads */
+    /** Thread factory that overrides name, priority and daemon status for executor threads */
     final class NamedThreadFactory implements ThreadFactory {
 
       private final String threadName;
+      private final boolean daemon;
 
-      public NamedThreadFactory(String threadName) {
+      public NamedThreadFactory(String threadName, boolean daemon) {
         this.threadName = threadName;
+        this.daemon = daemon;
       }
 
       @Override
@@ -104,8 +161,8 @@ public class NGCommunicator implements Closeable {
         ThreadGroup group =
             (s != null) ? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
         Thread t = new Thread(group, r, this.threadName, 0);
-        if (t.isDaemon()) {
-          t.setDaemon(false);
+        if (t.isDaemon() != daemon) {
+          t.setDaemon(daemon);
         }
         if (t.getPriority() != Thread.MAX_PRIORITY) {
           // warning - it may actually set lower priority if current thread group does not allow
@@ -119,16 +176,23 @@ public class NGCommunicator implements Closeable {
     Thread mainThread = Thread.currentThread();
     this.orchestratorExecutor =
         Executors.newSingleThreadExecutor(
-            new NamedThreadFactory(mainThread.getName() + " (NGCommunicator orchestrator)"));
+            new NamedThreadFactory(mainThread.getName() + " (NGCommunicator orchestrator)", false));
     this.readExecutor =
         Executors.newSingleThreadExecutor(
-            new NamedThreadFactory(mainThread.getName() + " (NGCommunicator reader)"));
+            new NamedThreadFactory(mainThread.getName() + " (NGCommunicator reader)", false));
+    this.writeExecutor =
+        Executors.newSingleThreadExecutor(
+            // a writer stuck on a client which does not read must not keep the JVM alive
+            new NamedThreadFactory(mainThread.getName() + " (NGCommunicator writer)", true));
+    this.writer = new NGChunkWriter(out, writeExecutor, outputQueueCapacity, outputPolicy);
+    this.outputPolicy = outputPolicy;
   }
 
   /** Get nail command context from the header and start reading for stdin and heartbeats */
   CommandContext readCommandContext() throws IOException {
+    Object parseEvent = events.beginCommandContext();
     // client info - command line arguments and environment
-    List<String> remoteArgs = new ArrayList();
+    NGArgumentList remoteArgs = new NGArgumentList();
     Properties remoteEnv = new Properties();
     String cwd = null; // working directory
     String command = null; // alias or class name
@@ -137,16 +201,40 @@ public class NGCommunicator implements Closeable {
       int bytesToRead = in.readInt();
       byte chunkType = in.readByte();
 
+      if (chunkType == NGConstants.CHUNKTYPE_LONGARG) {
+        // possibly huge, so it is streamed straight into the argument list
+        remoteArgs.readLongArgumentChunk(in, bytesToRead);
+        continue;
+      }
+      remoteArgs.endLongArgument();
+
       byte[] b = new byte[bytesToRead];
       in.readFully(b);
+
+      if (chunkType == NGConstants.CHUNKTYPE_INVOCATION_HEADER) {
+        // the whole context in one chunk; anything sent before it is kept
+        CommandContext header = parseInvocationHeader(b, remoteArgs);
+        remoteEnv.putAll(header.getEnvironmentVariables());
+        cwd = header.getWorkingDirectory();
+        command = header.getCommand();
+        continue;
+      }
+
+      if (chunkType == NGConstants.CHUNKTYPE_ARGUMENT) {
+        // command line argument, kept UTF-8 encoded
+        remoteArgs.add(b, 0, b.length);
+        continue;
+      }
+
+      if (chunkType == NGConstants.CHUNKTYPE_ARGFILE) {
+        // expanded by the session once the working directory is known
+        remoteArgs.addArgfile(b, 0, b.length);
+        continue;
+      }
+
       String line = new String(b, "UTF-8");
 
       switch (chunkType) {
-        case NGConstants.CHUNKTYPE_ARGUMENT:
-          //	command line argument
-          remoteArgs.add(line);
-          break;
-
         case NGConstants.CHUNKTYPE_ENVIRONMENT:
           //	parse environment into property
           int equalsIndex = line.indexOf('=');
@@ -174,9 +262,75 @@ public class NGCommunicator implements Closeable {
     // stdin, to background thread
     startBackgroundReceive();
 
+    events.endCommandContext(parseEvent, command, remoteArgs.size(), remoteEnv.size());
+
     return new CommandContext(command, cwd, remoteEnv, remoteArgs);
   }
 
+  /**
+   * Parses the payload of a {@link NGConstants#CHUNKTYPE_INVOCATION_HEADER} chunk. All integers are
+   * big-endian and all strings are UTF-8 prefixed with their length in bytes:
+   *
+   * <pre>
+   * byte    version (1)
+   * string  command
+   * string  working directory
+   * int     number of arguments, followed by the arguments as strings
+   * int     number of environment variables, followed by them as "NAME=value" strings
+   * </pre>
+   *
+   * @param payload the chunk payload
+   * @param args argument list to append the arguments of the header to
+   * @return the command context carried by the header, with args as its arguments
+   * @throws IOException if the header is malformed or of an unsupported version
+   */
+  static CommandContext parseInvocationHeader(byte[] payload, NGArgumentList args)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    try {
+      byte version = buffer.get();
+      if (version != NGConstants.INVOCATION_HEADER_VERSION) {
+        throw new IOException("Unsupported invocation header version " + version);
+      }
+      String command = getHeaderString(buffer);
+      String cwd = getHeaderString(buffer);
+      int argCount = buffer.getInt();
+      for (int i = 0; i < argCount; i++) {
+        // arguments are kept UTF-8 encoded
+        int len = getHeaderStringLength(buffer);
+        args.add(payload, buffer.position(), len);
+        buffer.position(buffer.position() + len);
+      }
+      int envCount = buffer.getInt();
+      Properties env = new Properties();
+      for (int i = 0; i < envCount; i++) {
+        String line = getHeaderString(buffer);
+        int equalsIndex = line.indexOf('=');
+        if (equalsIndex > 0) {
+          env.setProperty(line.substring(0, equalsIndex), line.substring(equalsIndex + 1));
+        }
+      }
+      return new CommandContext(command, cwd, env, args);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Truncated invocation header", e);
+    }
+  }
+
+  private static int getHeaderStringLength(ByteBuffer buffer) {
+    int len = buffer.getInt();
+    if (len < 0 || len > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    return len;
+  }
+
+  private static String getHeaderString(ByteBuffer buffer) {
+    int len = getHeaderStringLength(buffer);
+    String result = new String(buffer.array(), buffer.position(), len, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + len);
+    return result;
+  }
+
   /**
    * Call this to move all reads, like heartbeats and stdin, to be performed by background thread.
    * This method should only be called once, as header data is read from the input stream.
@@ -231,6 +385,7 @@ public class NGCommunicator implements Closeable {
               reason = NGClientDisconnectReason.SOCKET_ERROR;
             } else if (cause instanceof SocketTimeoutException) {
               reason = NGClientDisconnectReason.SOCKET_TIMEOUT;
+              events.heartbeatMissed(heartbeatTimeoutMillis);
               LOG.log(
                   Level.WARNING,
                   "Nailgun client socket timed out after " + heartbeatTimeoutMillis + " ms",
@@ -240,6 +395,7 @@ public class NGCommunicator implements Closeable {
             }
           } catch (TimeoutException e) {
             reason = NGClientDisconnectReason.HEARTBEAT;
+            events.heartbeatMissed(futureTimeout);
             LOG.log(
                 Level.WARNING,
                 "Nailgun client read future timed out after " + futureTimeout + " ms",
@@ -253,6 +409,20 @@ public class NGCommunicator implements Closeable {
           // set client disconnected flag
           clientConnected.set(false);
 
+          NGClientListener sessionListener = null;
+          synchronized (orchestratorEvent) {
+            if (!shutdown) {
+              disconnectReason = reason;
+              events.clientDisconnected(reason);
+              // nobody is going to read the output anymore, do not make nails wait for it
+              writer.clientDisconnected();
+              sessionListener = disconnectListener;
+            }
+          }
+          if (sessionListener != null) {
+            sessionListener.clientDisconnected(reason);
+          }
+
           // notify stream readers there will be no more data
           setEof();
 
@@ -318,11 +488,12 @@ public class NGCommunicator implements Closeable {
   /**
    * Signal nail completion to the client. It will close communication socket afterwards, so any
    * read or write would result in an error This method is idempotent and need to be called only
-   * once. Any subsequent call will result in noop.
+   * once. Any subsequent call will result in noop. It is synchronized, as the server may exit on
+   * behalf of a nail while the nail exits on its own.
    *
    * @param exitCode exit code as output by Nailgun client
    */
-  void exit(int exitCode) {
+  synchronized void exit(int exitCode) {
     if (isExited) {
       return;
     }
@@ -336,19 +507,50 @@ public class NGCommunicator implements Closeable {
           Level.WARNING, "Unable to close socket for reading while sending final exit code", ex);
     }
 
-    // send the command - client will exit
-    try (PrintStream exit = new PrintStream(new NGOutputStream(this, NGConstants.CHUNKTYPE_EXIT))) {
-      exit.println(exitCode);
-    }
-    isExited = true;
+    this.exitCode = exitCode;
 
-    // close writing too - there is no point to send anything to client after the resulting exit
-    // code
+    // send the command - client will exit; this is queued after all output sent so far, and is a
+    // barrier: nothing is closed until the client has got all the output and the exit code, or is
+    // gone. The calling thread may be interrupted, e.g. a cancelled nail, but the client must still
+    // get its exit code, so interrupts are put off until the end. The exit chunk never waits for
+    // room in the queue, and a client which does not read for writeTimeoutMillis is given up on.
+    byte[] exit = (exitCode + "\n").getBytes(StandardCharsets.US_ASCII);
+    boolean interrupted = Thread.interrupted();
     try {
-      stopOut();
-    } catch (IOException ex) {
-      LOG.log(
-          Level.WARNING, "Unable to close socket for writing while sending final exit code", ex);
+      boolean sent;
+      try {
+        sent = writer.enqueue(NGConstants.CHUNKTYPE_EXIT, exit, 0, exit.length);
+      } catch (InterruptedIOException ex) {
+        interrupted = true;
+        sent = false;
+      }
+      while (sent) {
+        try {
+          sent = writer.flush(writeTimeoutMillis);
+          break;
+        } catch (InterruptedIOException ex) {
+          interrupted = true;
+        }
+      }
+      isExited = true;
+      if (!sent) {
+        // the client does not read: throw its output away, shutting the socket down below also
+        // releases the writer thread
+        writer.close();
+      }
+
+      // close writing too - there is no point to send anything to client after the resulting exit
+      // code
+      try {
+        stopOut();
+      } catch (IOException ex) {
+        LOG.log(
+            Level.WARNING, "Unable to close socket for writing while sending final exit code", ex);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
@@ -400,6 +602,12 @@ public class NGCommunicator implements Closeable {
     }
     closed = true;
 
+    // in case exit() was not called, do not wait for the output to be sent
+    writer.close();
+    if (codec != null) {
+      codec.end();
+    }
+
     stopIn();
     stopOut();
 
@@ -410,6 +618,7 @@ public class NGCommunicator implements Closeable {
 
     terminateExecutor(readExecutor, "read");
     terminateExecutor(orchestratorExecutor, "orchestrator");
+    terminateExecutor(writeExecutor, "write");
 
     socket.close();
   }
@@ -454,7 +663,7 @@ public class NGCommunicator implements Closeable {
    * @throws EOFException if EOF is reached by underlying stream before the payload has been read,
    *     or if underlying stream was closed
    */
-  private InputStream readPayload(InputStream in, int len) throws IOException {
+  private byte[] readPayload(InputStream in, int len) throws IOException {
     byte[] receiveBuffer = new byte[len];
     int totalRead = 0;
     while (totalRead < len) {
@@ -467,7 +676,7 @@ public class NGCommunicator implements Closeable {
       }
       totalRead += currentRead;
     }
-    return new ByteArrayInputStream(receiveBuffer);
+    return receiveBuffer;
   }
 
   /**
@@ -505,8 +714,11 @@ public class NGCommunicator implements Closeable {
     switch (chunkType) {
       case NGConstants.CHUNKTYPE_STDIN:
         LOG.log(Level.FINEST, "Got stdin chunk, len {0}", chunkLen);
-        InputStream chunkStream = readPayload(in, chunkLen);
-        setInput(chunkStream, chunkLen);
+        byte[] payload = readPayload(in, chunkLen);
+        if (codec != null) {
+          payload = codec.inflate(payload);
+        }
+        setInput(new ByteArrayInputStream(payload), payload.length);
         break;
 
       case NGConstants.CHUNKTYPE_STDIN_EOF:
@@ -532,6 +744,7 @@ public class NGCommunicator implements Closeable {
       }
       stdin = chunkStream;
       remaining = chunkLen;
+      bytesReceived.addAndGet(chunkLen);
       readLock.notifyAll();
     }
   }
@@ -578,22 +791,185 @@ public class NGCommunicator implements Closeable {
     }
   }
 
-  /** Send data to the client */
+  /**
+   * Send data to the client. Data is queued and written by a dedicated thread, so this only blocks
+   * if too much data is already waiting to be sent; it is silently discarded if the client is gone.
+   * Use {@link #flush()} to wait until the data is actually written.
+   */
   void send(byte streamCode, byte[] b, int offset, int len) throws IOException {
-    synchronized (writeLock) {
-      out.writeInt(len);
-      out.writeByte(streamCode);
-      out.write(b, offset, len);
+    NGDeflateCodec codec = this.codec;
+    if (codec != null
+        && (streamCode == NGConstants.CHUNKTYPE_STDOUT
+            || streamCode == NGConstants.CHUNKTYPE_STDERR)) {
+      codec.deflate(streamCode, b, offset, len, writer::enqueue);
+    } else {
+      writer.enqueue(streamCode, b, offset, len);
     }
-    out.flush();
   }
 
-  private void sendSendInput() throws IOException {
-    synchronized (writeLock) {
-      out.writeInt(0);
-      out.writeByte(NGConstants.CHUNKTYPE_SENDINPUT);
+  /**
+   * Sends a message from the server to the stderr of the client. Unlike {@link #send}, it does not
+   * wait for room in the output queue.
+   */
+  void sendNotice(String message) throws IOException {
+    byte[] b = message.getBytes(StandardCharsets.UTF_8);
+    NGDeflateCodec.ChunkSink urgent =
+        (chunkType, bytes, offset, len) -> writer.enqueue(chunkType, bytes, offset, len, true);
+    NGDeflateCodec codec = this.codec;
+    if (codec != null) {
+      codec.deflate(NGConstants.CHUNKTYPE_STDERR, b, 0, b.length, urgent);
+    } else {
+      urgent.write(NGConstants.CHUNKTYPE_STDERR, b, 0, b.length);
+    }
+  }
+
+  /**
+   * Turns on compression of stdout, stderr and stdin if the client advertised support for it in
+   * {@link NGConstants#COMPRESSION_ENV}. The client is told so with a {@link
+   * NGConstants#CHUNKTYPE_COMPRESSION} chunk, so this must be called after the command context is
+   * read and before anything is sent to the client.
+   *
+   * @param env environment variables sent by the client
+   * @return true if compression was turned on
+   */
+  boolean negotiateCompression(Properties env) throws IOException {
+    String accepted = env == null ? null : env.getProperty(NGConstants.COMPRESSION_ENV);
+    if (accepted == null) {
+      return false;
     }
-    out.flush();
+    for (String encoding : accepted.split(",")) {
+      if (NGConstants.COMPRESSION_DEFLATE.equals(encoding.trim())) {
+        byte[] ack = NGConstants.COMPRESSION_DEFLATE.getBytes(StandardCharsets.US_ASCII);
+        writer.enqueue(NGConstants.CHUNKTYPE_COMPRESSION, ack, 0, ack.length);
+        codec = new NGDeflateCodec(outputPolicy);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sends the contents of a file to the client as stdout or stderr chunks, in order with other
+   * output. On Linux with a local socket and no compression, the kernel copies the file to the
+   * socket with sendfile(2), without going through the Java heap; otherwise the file is read and
+   * sent like any other output.
+   *
+   * @param streamCode {@link NGConstants#CHUNKTYPE_STDOUT} or {@link NGConstants#CHUNKTYPE_STDERR}
+   * @param path the file to send
+   * @return number of bytes sent, 0 if the client is gone
+   * @throws IOException if the file can not be read, or if it shrank while the kernel copied it;
+   *     the client then got part of a chunk, so the connection is shut down
+   */
+  long sendFile(byte streamCode, Path path) throws IOException {
+    if (codec != null
+        || !(socket instanceof NGUnixDomainSocket)
+        || !NGUnixDomainSocketLibrary.canSendFile()) {
+      return copyFile(streamCode, path);
+    }
+    NGUnixDomainSocket unixSocket = (NGUnixDomainSocket) socket;
+    int fileFd;
+    try {
+      fileFd = NGUnixDomainSocketLibrary.open(path.toString(), NGUnixDomainSocketLibrary.O_RDONLY);
+    } catch (LastErrorException e) {
+      throw new IOException("Unable to open " + path, e);
+    }
+    try {
+      long size = Files.size(path);
+      boolean written =
+          writer.writeExclusively(
+              () -> {
+                byte[] header = new byte[NGChunkWriter.HEADER_LENGTH];
+                header[4] = streamCode;
+                for (long sent = 0; sent < size; sent += SEND_FILE_CHUNK_SIZE) {
+                  int len = (int) Math.min(SEND_FILE_CHUNK_SIZE, size - sent);
+                  header[0] = (byte) (len >>> 24);
+                  header[1] = (byte) (len >>> 16);
+                  header[2] = (byte) (len >>> 8);
+                  header[3] = (byte) len;
+                  out.write(header);
+                  if (unixSocket.transferFrom(fileFd, len) < len) {
+                    // the file shrank: the header announced more than was sent, so the client
+                    // could not tell anything written after it from the rest of this chunk
+                    stopOut();
+                    throw new IOException(path + " was truncated while being sent");
+                  }
+                }
+                return size;
+              });
+      return written ? size : 0;
+    } finally {
+      try {
+        NGUnixDomainSocketLibrary.close(fileFd);
+      } catch (LastErrorException e) {
+        LOG.log(Level.FINE, "Unable to close " + path, e);
+      }
+    }
+  }
+
+  /** Sends the contents of a file by reading it into the heap, see {@link #sendFile}. */
+  private long copyFile(byte streamCode, Path path) throws IOException {
+    byte[] buffer = new byte[SEND_FILE_BUFFER_SIZE];
+    long sent = 0;
+    try (InputStream file = Files.newInputStream(path)) {
+      int n;
+      while ((n = file.read(buffer)) > 0) {
+        send(streamCode, buffer, 0, n);
+        sent += n;
+      }
+    }
+    return sent;
+  }
+
+  /** Waits until all data sent so far is written to the client, or discarded if it is gone */
+  void flush() throws IOException {
+    writer.flush();
+  }
+
+  private void sendSendInput() throws IOException {
+    writer.enqueue(NGConstants.CHUNKTYPE_SENDINPUT, new byte[0], 0, 0);
+  }
+
+  /** @return exit code sent to the client, or EXIT_SUCCESS if exit() was not called yet */
+  int getExitCode() {
+    return exitCode;
+  }
+
+  /** @return number of stdin bytes received from the client so far */
+  long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /** @return number of stdout and stderr bytes sent to the client so far */
+  long getBytesSent() {
+    return writer.getPayloadBytesWritten();
+  }
+
+  /** @return the codec compressing this connection, or null if compression was not negotiated */
+  NGDeflateCodec getCompression() {
+    return codec;
+  }
+
+  /** @return number of stdout and stderr bytes thrown away because the client was gone or slow */
+  long getBytesDiscarded() {
+    return writer.getPayloadBytesDiscarded();
+  }
+
+  /** @return number of stdout and stderr bytes that had to be spilled to disk */
+  long getBytesSpilled() {
+    return writer.getPayloadBytesSpilled();
+  }
+
+  /**
+   * @return why the client disconnected before the session was over, or null if it did not (or not
+   *     yet)
+   */
+  NGClientDisconnectReason getDisconnectReason() {
+    return disconnectReason;
+  }
+
+  /** @return true if the exit code was already sent to the client */
+  boolean isExited() {
+    return isExited;
   }
 
   /** @return true if interval since last read is less than heartbeat timeout interval. */
@@ -624,6 +1000,23 @@ public class NGCommunicator implements Closeable {
     }
   }
 
+  /**
+   * Sets the listener the session running the nail is notified with when the client disconnects
+   * before the nail has exited. The listener is called right away if the client is already gone.
+   *
+   * @param listener the listener, or null to remove it
+   */
+  void setDisconnectListener(NGClientListener listener) {
+    NGClientDisconnectReason reason;
+    synchronized (orchestratorEvent) {
+      disconnectListener = listener;
+      reason = shutdown ? null : disconnectReason;
+    }
+    if (listener != null && reason != null) {
+      listener.clientDisconnected(reason);
+    }
+  }
+
   /** @param listener the {@link NGClientListener} to no longer be notified of client events */
   void removeClientListener(NGClientListener listener) {
     synchronized (orchestratorEvent) {
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A configuration file that is applied to a running {@link NGServer} whenever it changes. The file
+ * is in java.util.Properties format. Keys starting with "nailgun." are settings, named like the
+ * system properties read by {@link NGServer#main(String[])}; all other keys define aliases, as
+ * described in {@link AliasManager#loadFromProperties(Properties)}. For example:
+ *
+ * <pre><code>nailgun.maxIdleSessions=8
+ * nailgun.output.policy=spill
+ * myprog=com.mydomain.myapp.MyProg
+ * myprog.desc=Runs my program.
+ * myprog.timeout=60000
+ * </code></pre>
+ *
+ * <p>On every change, aliases are replaced as a whole with the ones in the file, builtin aliases
+ * excepted, and settings are applied; a setting removed from the file goes back to the value it had
+ * when the server started. Running nails are not affected, settings apply to connections accepted
+ * afterwards, the allocation budget excepted. A file that cannot be read or that defines an invalid
+ * alias leaves the current configuration in place.
+ */
+final class NGConfigFile implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(NGConfigFile.class.getName());
+
+  /** Prefix of the keys that are settings rather than aliases */
+  static final String SETTING_PREFIX = "nailgun.";
+
+  /** How long to wait for more changes after a change, as editors often write files in steps */
+  private static final long SETTLE_MILLIS = 200;
+
+  /** A setting that can be changed at runtime */
+  private static final class Setting {
+    private final Supplier<String> getter;
+    private final Consumer<String> setter;
+
+    private Setting(Supplier<String> getter, Consumer<String> setter) {
+      this.getter = getter;
+      this.setter = setter;
+    }
+  }
+
+  private final NGServer server;
+  private final Path path;
+  private final Map<String, Setting> settings = new LinkedHashMap<>();
+
+  /** Values of the settings when the file was first applied, restored when removed from it */
+  private final Map<String, String> initialValues = new HashMap<>();
+
+  private WatchService watchService = null;
+
+  /**
+   * @param server the server to configure
+   * @param path the configuration file, which does not need to exist yet
+   */
+  NGConfigFile(NGServer server, Path path) {
+    this.server = server;
+    this.path = path.toAbsolutePath();
+
+    addSetting(
+        NGServer.MAX_IDLE_SESSIONS_PROPERTY,
+        () -> String.valueOf(server.getMaxIdleSessionCount()),
+        value -> server.setMaxIdleSessionCount(Integer.parseInt(value)));
+    addSetting(
+        NGServer.ALLOW_NAILS_BY_CLASS_NAME_PROPERTY,
+        () -> String.valueOf(server.allowsNailsByClassName()),
+        value -> server.setAllowNailsByClassName(parseBoolean(value)));
+    addSetting(
+        NGServer.OUTPUT_POLICY_PROPERTY,
+        () -> server.getOutputPolicy().name(),
+        value -> server.setOutputPolicy(NGOutputPolicy.valueOf(value.toUpperCase(Locale.ROOT))));
+    addSetting(
+        NGServer.OUTPUT_QUEUE_CAPACITY_PROPERTY,
+        () -> String.valueOf(server.getOutputQueueCapacity()),
+        value -> server.setOutputQueueCapacity(Integer.parseInt(value)));
+    addSetting(
+        NGServer.OUTPUT_WRITE_TIMEOUT_PROPERTY,
+        () -> String.valueOf(server.getOutputWriteTimeoutMillis()),
+        value -> server.setOutputWriteTimeoutMillis(Long.parseLong(value)));
+    addSetting(
+        NGServer.COMPRESSION_PROPERTY,
+        () -> String.valueOf(server.isCompressionEnabled()),
+        value -> server.setCompressionEnabled(parseBoolean(value)));
+    addSetting(
+        NGServer.FD_PASSING_PROPERTY,
+        () -> String.valueOf(server.isFileDescriptorPassingEnabled()),
+        value -> server.setFileDescriptorPassingEnabled(parseBoolean(value)));
+    addSetting(
+        NGServer.CANCEL_ON_DISCONNECT_PROPERTY,
+        () -> String.valueOf(server.isCancelOnDisconnect()),
+        value -> server.setCancelOnDisconnect(parseBoolean(value)));
+    addSetting(
+        NGServer.CANCELLATION_GRACE_PERIOD_PROPERTY,
+        () -> String.valueOf(server.getCancellationGracePeriodMillis()),
+        value -> server.setCancellationGracePeriodMillis(Long.parseLong(value)));
+    addSetting(
+        NGServer.ALLOCATION_BUDGET_PROPERTY,
+        () -> String.valueOf(server.getAllocationBudgetBytes()),
+        value -> server.setAllocationBudgetBytes(Long.parseLong(value)));
+    addSetting(
+        NGServer.TIMEOUT_PROPERTY,
+        () -> String.valueOf(server.getNailTimeoutMillis()),
+        value -> server.setNailTimeoutMillis(Long.parseLong(value)));
+    NGSocketOptions socketOptions = server.getSocketOptions();
+    addSetting(
+        NGServer.TCP_NODELAY_PROPERTY,
+        () -> String.valueOf(socketOptions.getTcpNoDelay()),
+        value -> socketOptions.setTcpNoDelay(parseBoolean(value)));
+    addSetting(
+        NGServer.KEEPALIVE_PROPERTY,
+        () -> String.valueOf(socketOptions.getKeepAlive()),
+        value -> socketOptions.setKeepAlive(parseBoolean(value)));
+    addSetting(
+        NGServer.SEND_BUFFER_SIZE_PROPERTY,
+        () -> String.valueOf(socketOptions.getSendBufferSize()),
+        value -> socketOptions.setSendBufferSize(Integer.parseInt(value)));
+    addSetting(
+        NGServer.RECEIVE_BUFFER_SIZE_PROPERTY,
+        () -> String.valueOf(socketOptions.getReceiveBufferSize()),
+        value -> socketOptions.setReceiveBufferSize(Integer.parseInt(value)));
+  }
+
+  private void addSetting(String name, Supplier<String> getter, Consumer<String> setter) {
+    settings.put(name, new Setting(getter, setter));
+    initialValues.put(name, getter.get());
+  }
+
+  private static boolean parseBoolean(String value) {
+    if (value.equalsIgnoreCase("true")) {
+      return true;
+    }
+    if (value.equalsIgnoreCase("false")) {
+      return false;
+    }
+    throw new IllegalArgumentException("Expected true or false: " + value);
+  }
+
+  /** Applies the file, then watches it for changes in a background thread. */
+  void start() {
+    reload();
+
+    try {
+      watchService = path.getFileSystem().newWatchService();
+      // the directory is watched, so that files replaced by a rename are noticed too
+      path.getParent()
+          .register(
+              watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to watch configuration file " + path, e);
+      return;
+    }
+    Thread watcher = new Thread(this::watch);
+    watcher.setName("NGServer config watcher(" + path + ")");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          changed |=
+              event.kind() == StandardWatchEventKinds.OVERFLOW
+                  || path.getFileName().equals(event.context());
+        }
+        key.reset();
+        if (!changed) {
+          continue;
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        // the changes that happened while settling are applied now
+        while ((key = watchService.poll()) != null) {
+          key.pollEvents();
+          key.reset();
+        }
+        reload();
+      }
+    } catch (ClosedWatchServiceException | InterruptedException e) {
+      // closed
+    }
+  }
+
+  /** Loads the file, logging failures. */
+  private void reload() {
+    try {
+      load();
+    } catch (NoSuchFileException e) {
+      LOG.log(Level.INFO, "Configuration file {0} does not exist, nothing to apply", path);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Unable to load configuration file " + path, e);
+    }
+  }
+
+  /**
+   * Reads the file and applies it.
+   *
+   * @throws IOException if the file cannot be read, in which case nothing is applied
+   */
+  void load() throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(path)) {
+      properties.load(in);
+    }
+    apply(properties);
+  }
+
+  /**
+   * Applies settings and aliases from the specified properties.
+   *
+   * @throws IllegalArgumentException if an alias is invalid, in which case nothing is applied
+   */
+  void apply(Properties properties) {
+    Properties aliasProperties = new Properties();
+    for (String key : properties.stringPropertyNames()) {
+      if (!key.startsWith(SETTING_PREFIX)) {
+        aliasProperties.setProperty(key, properties.getProperty(key));
+      } else if (!settings.containsKey(key)) {
+        LOG.log(Level.WARNING, "{0} cannot be changed by {1}", new Object[] {key, path});
+      }
+    }
+    // before changing any setting, so that a file with invalid aliases is not half applied
+    Map<String, Alias> aliases = AliasManager.parseProperties(aliasProperties);
+
+    for (Map.Entry<String, Setting> entry : settings.entrySet()) {
+      String name = entry.getKey();
+      Setting setting = entry.getValue();
+      String value = properties.getProperty(name, initialValues.get(name)).trim();
+      String previous = setting.getter.get();
+      if (value.equals(previous)) {
+        continue;
+      }
+      try {
+        setting.setter.accept(value);
+      } catch (RuntimeException e) {
+        LOG.log(
+            Level.WARNING,
+            "Invalid value for {0} in {1}: {2}",
+            new Object[] {name, path, e.getMessage()});
+        continue;
+      }
+      String current = setting.getter.get();
+      if (!current.equals(previous)) {
+        LOG.log(Level.INFO, "{0} changed from {1} to {2}", new Object[] {name, previous, current});
+      }
+    }
+
+    server.getAliasManager().replaceAliases(aliases);
+  }
+
+  /** Stops watching the file. */
+  public void close() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Unable to close watch service", e);
+      }
+    }
+  }
+}
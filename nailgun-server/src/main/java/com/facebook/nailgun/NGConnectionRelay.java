@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import com.sun.jna.Platform;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relays a connection accepted by a draining server to the server taking over from it, see {@link
+ * NGServer#drain(long, NGListeningAddress)}. Chunks from the client are forwarded one by one, the
+ * announcement of file descriptors passed to this server excepted: they cannot be passed on, so the
+ * successor serves the client over the socket like one that did not pass any. Everything the
+ * successor sends is copied back as is.
+ */
+final class NGConnectionRelay {
+
+  private static final Logger LOG = Logger.getLogger(NGConnectionRelay.class.getName());
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final byte[] PASSED_FDS_PREFIX =
+      (NGConstants.PASSED_FDS_ENV + "=").getBytes(StandardCharsets.UTF_8);
+
+  private final Socket client;
+  private final NGListeningAddress successorAddress;
+  private final Consumer<NGConnectionRelay> onClose;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  private Socket successor = null;
+
+  /**
+   * @param client the connection accepted by this server
+   * @param successorAddress the address of the server taking over
+   * @param onClose called with the relay once both connections are closed
+   */
+  NGConnectionRelay(
+      Socket client, NGListeningAddress successorAddress, Consumer<NGConnectionRelay> onClose) {
+    this.client = client;
+    this.successorAddress = successorAddress;
+    this.onClose = onClose;
+  }
+
+  /**
+   * Connects to the successor and starts relaying in two background threads.
+   *
+   * @throws IOException if the successor cannot be reached, in which case the client connection is
+   *     left open
+   */
+  void start() throws IOException {
+    successor = connect(successorAddress);
+    Thread upstream = new Thread(this::relayClientChunks);
+    upstream.setName("NGServer handoff(" + successorAddress + ") upstream");
+    upstream.setDaemon(true);
+    Thread downstream = new Thread(this::relaySuccessorBytes);
+    downstream.setName("NGServer handoff(" + successorAddress + ") downstream");
+    downstream.setDaemon(true);
+    upstream.start();
+    downstream.start();
+  }
+
+  /**
+   * Opens a connection to a nailgun server.
+   *
+   * @param address the address the server listens on
+   * @return the connection
+   * @throws IOException if the server cannot be reached
+   */
+  static Socket connect(NGListeningAddress address) throws IOException {
+    if (address.isInetAddress()) {
+      return new Socket(address.getInetAddress(), address.getInetPort());
+    }
+    if (Platform.isWindows()) {
+      throw new IOException("Handing connections off to named pipes is not supported");
+    }
+    return NGUnixDomainSocket.connect(address.getLocalAddress());
+  }
+
+  /** Forwards the client's chunks, then tells the successor that the client will not send more */
+  private void relayClientChunks() {
+    try {
+      DataInputStream in = new DataInputStream(client.getInputStream());
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(successor.getOutputStream(), BUFFER_SIZE));
+      byte[] payload = new byte[BUFFER_SIZE];
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        byte chunkType = in.readByte();
+        if (length < 0) {
+          throw new IOException("Invalid chunk length " + length);
+        }
+        if (length > payload.length) {
+          payload = new byte[length];
+        }
+        in.readFully(payload, 0, length);
+        if (chunkType == NGConstants.CHUNKTYPE_ENVIRONMENT
+            && startsWith(payload, length, PASSED_FDS_PREFIX)) {
+          continue;
+        }
+        out.writeInt(length);
+        out.writeByte(chunkType);
+        out.write(payload, 0, length);
+        out.flush();
+      }
+    } catch (IOException e) {
+      // the successor may have closed the connection while the client was still talking, what it
+      // sent before must reach the client, so the other thread closes both connections
+      LOG.log(Level.FINE, "Connection handed off to " + successorAddress + " broke", e);
+    }
+    try {
+      successor.shutdownOutput();
+    } catch (IOException e) {
+      // already closed
+    }
+  }
+
+  /** Copies everything the successor sends to the client until it closes the connection */
+  private void relaySuccessorBytes() {
+    try {
+      InputStream in = successor.getInputStream();
+      OutputStream out = client.getOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, count);
+        out.flush();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Connection handed off to " + successorAddress + " failed", e);
+    } finally {
+      close();
+    }
+  }
+
+  private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+    if (length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Closes both connections, which stops both threads */
+  void close() {
+    if (closed.getAndSet(true)) {
+      return;
+    }
+    for (Socket socket : new Socket[] {client, successor}) {
+      try {
+        if (socket != null) {
+          socket.close();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Unable to close a connection handed off to " + successorAddress, e);
+      }
+    }
+    onClose.accept(this);
+  }
+}
@@ -37,8 +37,24 @@ public class NGConstants {
   public static final int EXIT_EXCEPTION = 899;
   /** The exit code sent to clients if an invalid command is sent */
   public static final int EXIT_NOSUCHCOMMAND = 898;
+  /** The exit code sent to clients if the nail was cancelled for exceeding its allocation budget */
+  public static final int EXIT_ALLOCATION_BUDGET_EXCEEDED = 897;
+  /** The exit code sent to clients if the nail was cancelled for running longer than its timeout */
+  public static final int EXIT_TIMEOUT = 896;
   /** Chunk type marker for command line arguments */
   public static final byte CHUNKTYPE_ARGUMENT = 'A';
+  /**
+   * Chunk type marker for long command line arguments, i.e. the contents of a file. A long argument
+   * is sent as any number of chunks which are concatenated, followed by an empty chunk. It is
+   * decoded using the server's default character set.
+   */
+  public static final byte CHUNKTYPE_LONGARG = 'L';
+  /**
+   * Chunk type marker for argfiles expanded by the server. The payload is the path of a file, which
+   * is resolved against the client working directory and replaced by the arguments it contains, one
+   * per line. The server must share the file system with the client.
+   */
+  public static final byte CHUNKTYPE_ARGFILE = 'F';
   /** Chunk type marker for client environment variables */
   public static final byte CHUNKTYPE_ENVIRONMENT = 'E';
   /** Chunk type marker for the command (alias or class) */
@@ -65,6 +81,60 @@ public class NGConstants {
   /** Chunk type marker for heartbeats sent to let the server know the client is still alive. */
   public static final byte CHUNKTYPE_HEARTBEAT = 'H';
 
+  /**
+   * Chunk type marker for the timing trailer. This chunk type is sent from the server to the client
+   * right before the exit chunk, and only if the client environment has {@link #TIMING_ENV} set to
+   * 1. Its payload is a line of text in the form "queue=12us header=34us ..." describing how long
+   * each {@link NGInvocationPhase} took.
+   */
+  public static final byte CHUNKTYPE_TIMING = 'T';
+
+  /** Client environment variable that requests a timing trailer when set to 1 */
+  public static final String TIMING_ENV = "NAILGUN_TIMING";
+
+  /**
+   * Client environment variable with the number of milliseconds the nail may run before the server
+   * cancels it, overriding the timeout of its Alias and the server's default. 0 for no timeout.
+   */
+  public static final String TIMEOUT_ENV = "NAILGUN_TIMEOUT";
+
+  /**
+   * Chunk type marker for the compression acknowledgement. This chunk type is sent from the server
+   * to the client before any output, and only if the client environment has {@link
+   * #COMPRESSION_ENV} listing an encoding the server supports. Its payload is the chosen encoding;
+   * from then on stdout, stderr and stdin payloads are compressed with it.
+   */
+  public static final byte CHUNKTYPE_COMPRESSION = 'Z';
+
+  /**
+   * Client environment variable with a comma-separated list of encodings the client can decompress.
+   * Clients set it themselves rather than forwarding it from the user's environment.
+   */
+  public static final String COMPRESSION_ENV = "NAILGUN_ACCEPT_ENCODING";
+
+  /** Raw deflate stream, sync-flushed after every chunk */
+  public static final String COMPRESSION_DEFLATE = "deflate";
+
+  /**
+   * Chunk type marker for the invocation header. Clients may send this single chunk instead of
+   * separate argument, environment, working directory and command chunks; see {@code
+   * NGCommunicator.parseInvocationHeader} for its layout. Servers that do not know it would wait
+   * for a command forever, so clients only send it when told the server supports it.
+   */
+  public static final byte CHUNKTYPE_INVOCATION_HEADER = 'I';
+
+  /** Version of the invocation header layout understood by this server */
+  public static final byte INVOCATION_HEADER_VERSION = 1;
+
+  /**
+   * Client environment variable listing, comma-separated, which of the client's stdin (0), stdout
+   * (1) and stderr (2) were passed to the server with SCM_RIGHTS over a local socket, in the order
+   * they were passed. The server wires the nail's streams directly to those file descriptors
+   * instead of exchanging stdio chunks. Clients set it themselves rather than forwarding it from
+   * the user's environment.
+   */
+  public static final String PASSED_FDS_ENV = "NAILGUN_FDS";
+
   /** Server version number */
   public static final String VERSION = getVersion();
 
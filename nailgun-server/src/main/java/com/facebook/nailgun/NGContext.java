@@ -17,10 +17,15 @@
 
 package com.facebook.nailgun;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -51,7 +56,10 @@ public class NGContext {
   /** The port on the remote host that is communicating with NailGun */
   private int remotePort = 0;
 
-  /** Command line arguments for the nail */
+  /** Command line arguments for the nail, possibly decoded on access */
+  private List<String> argList = null;
+
+  /** Command line arguments for the nail, created by getArgs() on first use */
   private String[] args = null;
 
   /** The NGServer that accepted this connection */
@@ -73,6 +81,9 @@ public class NGContext {
 
   private NGCommunicator communicator = null;
 
+  /** stdio file descriptors passed by the client, or null */
+  private NGPassedFileDescriptors passedFds = null;
+
   /** Creates a new, empty NGContext */
   public NGContext() {}
 
@@ -84,6 +95,27 @@ public class NGContext {
     return this.communicator;
   }
 
+  void setPassedFileDescriptors(NGPassedFileDescriptors passedFds) {
+    this.passedFds = passedFds;
+  }
+
+  /**
+   * Sends the contents of a file to the client's stdout, after anything already written to {@link
+   * #out}. Where the transport allows it, the file is copied by the kernel without going through
+   * the Java heap, which is much faster than copying it to {@link #out}.
+   *
+   * @param path the file to send
+   * @return number of bytes sent
+   * @throws IOException if the file can not be read or sent
+   */
+  public long sendFile(Path path) throws IOException {
+    out.flush();
+    if (passedFds != null && passedFds.isPassed(1)) {
+      return passedFds.sendFile(1, path);
+    }
+    return communicator.sendFile(NGConstants.CHUNKTYPE_STDOUT, path);
+  }
+
   public void setPort(int remotePort) {
     this.remotePort = remotePort;
   }
@@ -172,6 +204,12 @@ public class NGContext {
 
   public void setArgs(String[] args) {
     this.args = args;
+    this.argList = args == null ? null : Arrays.asList(args);
+  }
+
+  void setArgList(List<String> argList) {
+    this.argList = argList;
+    this.args = null;
   }
 
   void setNGServer(NGServer server) {
@@ -223,9 +261,24 @@ public class NGContext {
    * @return the command line arguments for the command implementation (nail) on the server.
    */
   public String[] getArgs() {
+    if (args == null && argList != null) {
+      args = argList.toArray(new String[argList.size()]);
+    }
     return args;
   }
 
+  /**
+   * Returns the command line arguments for the command implementation (nail) on the server as a
+   * read-only list. Unlike {@link #getArgs()}, this does not create all arguments at once: each one
+   * is decoded when it is accessed, so a nail iterating over thousands of arguments keeps its
+   * memory footprint low.
+   *
+   * @return the command line arguments for the command implementation (nail) on the server.
+   */
+  public List<String> getArgList() {
+    return argList == null ? null : Collections.unmodifiableList(argList);
+  }
+
   /**
    * Returns the NGServer that accepted this connection
    *
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stdout and stderr chunks and decompresses stdin chunks of a connection that negotiated
+ * {@link NGConstants#COMPRESSION_DEFLATE} compression.
+ *
+ * <p>Each of stdout, stderr and stdin is a single raw deflate stream (no zlib header or trailer)
+ * spanning the whole connection. Every chunk payload is a sync-flushed piece of that stream, so the
+ * receiver can decompress each chunk as soon as it arrives. When stderr chunks may be dropped (see
+ * {@link NGOutputPolicy#DROP_STDERR}) stderr is full-flushed instead, so that a dropped chunk does
+ * not corrupt the ones that follow.
+ */
+final class NGDeflateCodec {
+
+  /** Receives compressed chunks, i.e. {@link NGChunkWriter#enqueue} */
+  interface ChunkSink {
+    void write(byte chunkType, byte[] b, int offset, int len) throws IOException;
+  }
+
+  private final Deflater stdout;
+  private final Deflater stderr;
+  private final int stderrFlushMode;
+  private final Inflater stdin;
+  private final AtomicLong rawBytesSent = new AtomicLong();
+  private final AtomicLong wireBytesSent = new AtomicLong();
+  private final AtomicLong rawBytesReceived = new AtomicLong();
+  private final AtomicLong wireBytesReceived = new AtomicLong();
+  private volatile boolean ended = false;
+  private byte[] inflateBuffer = new byte[NGConstants.MAXIMUM_CHUNK_LENGTH * 4];
+
+  /** @param outputPolicy the output policy of the connection */
+  NGDeflateCodec(NGOutputPolicy outputPolicy) {
+    stdout = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    stderr = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    stderrFlushMode =
+        outputPolicy == NGOutputPolicy.DROP_STDERR ? Deflater.FULL_FLUSH : Deflater.SYNC_FLUSH;
+    stdin = new Inflater(true);
+  }
+
+  /**
+   * Compresses a stdout or stderr payload and passes it to the sink as a single chunk. Calls for
+   * the same stream are serialized, so compressed chunks reach the sink in the order of the data.
+   * Does nothing once {@link #end()} was called.
+   */
+  void deflate(byte chunkType, byte[] b, int offset, int len, ChunkSink sink) throws IOException {
+    boolean isStderr = chunkType == NGConstants.CHUNKTYPE_STDERR;
+    Deflater deflater = isStderr ? stderr : stdout;
+    int flushMode = isStderr ? stderrFlushMode : Deflater.SYNC_FLUSH;
+    synchronized (deflater) {
+      if (ended) {
+        // a nail thread kept writing after the connection was closed
+        return;
+      }
+      // a sync flush adds at most a few bytes, and incompressible data grows by 5 bytes per block
+      byte[] output = new byte[len + (len >> 10) + 64];
+      deflater.setInput(b, offset, len);
+      int outputLen = 0;
+      while (true) {
+        outputLen += deflater.deflate(output, outputLen, output.length - outputLen, flushMode);
+        if (outputLen < output.length) {
+          break;
+        }
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      rawBytesSent.addAndGet(len);
+      wireBytesSent.addAndGet(outputLen);
+      sink.write(chunkType, output, 0, outputLen);
+    }
+  }
+
+  /**
+   * Decompresses a stdin payload. Only called by the thread reading from the client.
+   *
+   * @return decompressed data
+   * @throws IOException if the payload is not valid deflate data
+   */
+  byte[] inflate(byte[] payload) throws IOException {
+    stdin.setInput(payload);
+    int outputLen = 0;
+    try {
+      while (true) {
+        outputLen += stdin.inflate(inflateBuffer, outputLen, inflateBuffer.length - outputLen);
+        if (outputLen < inflateBuffer.length) {
+          // room left, so all input was consumed
+          break;
+        }
+        inflateBuffer = Arrays.copyOf(inflateBuffer, inflateBuffer.length * 2);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed stdin chunk", e);
+    }
+    rawBytesReceived.addAndGet(outputLen);
+    wireBytesReceived.addAndGet(payload.length);
+    return Arrays.copyOf(inflateBuffer, outputLen);
+  }
+
+  /** Releases native resources held by the compressors */
+  void end() {
+    ended = true;
+    synchronized (stdout) {
+      stdout.end();
+    }
+    synchronized (stderr) {
+      stderr.end();
+    }
+    stdin.end();
+  }
+
+  /** @return number of stdout and stderr bytes compressed so far */
+  long getRawBytesSent() {
+    return rawBytesSent.get();
+  }
+
+  /** @return number of compressed stdout and stderr bytes produced so far */
+  long getWireBytesSent() {
+    return wireBytesSent.get();
+  }
+
+  /** @return number of stdin bytes decompressed so far */
+  long getRawBytesReceived() {
+    return rawBytesReceived.get();
+  }
+
+  /** @return number of compressed stdin bytes received so far */
+  long getWireBytesReceived() {
+    return wireBytesReceived.get();
+  }
+}
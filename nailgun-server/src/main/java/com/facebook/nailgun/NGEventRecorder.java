@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records nail lifecycle events so JVM behavior (GC pauses, safepoints, lock contention) can be
+ * correlated with individual nail invocations.
+ *
+ * <p>The default implementation does nothing. When the server runs on a JVM that ships Java Flight
+ * Recorder and the JFR-enabled build of nailgun is used, {@link #get()} returns an implementation
+ * that emits custom JFR events. Duration events are started by a {@code begin*} method that returns
+ * an opaque handle, which must be passed back to the matching {@code end*} method; handles may be
+ * {@code null}.
+ */
+abstract class NGEventRecorder {
+
+  private static final Logger LOG = Logger.getLogger(NGEventRecorder.class.getName());
+
+  /** Name of the JFR-backed implementation, only compiled when building with JDK 11 or newer */
+  private static final String JFR_RECORDER_CLASS = "com.facebook.nailgun.NGJfrEventRecorder";
+
+  /** Set this system property to false to disable JFR events even if JFR is available */
+  static final String JFR_ENABLED_PROPERTY = "nailgun.jfr";
+
+  private static final NGEventRecorder NOOP = new NGEventRecorder() {};
+
+  private static final NGEventRecorder INSTANCE = load();
+
+  /** @return the event recorder in use by this JVM */
+  static NGEventRecorder get() {
+    return INSTANCE;
+  }
+
+  private static NGEventRecorder load() {
+    if (!Boolean.parseBoolean(System.getProperty(JFR_ENABLED_PROPERTY, "true"))) {
+      return NOOP;
+    }
+    try {
+      Class.forName("jdk.jfr.Event", false, NGEventRecorder.class.getClassLoader());
+      return (NGEventRecorder)
+          Class.forName(JFR_RECORDER_CLASS, true, NGEventRecorder.class.getClassLoader())
+              .getDeclaredConstructor()
+              .newInstance();
+    } catch (ClassNotFoundException | LinkageError e) {
+      // Java 8 without JFR, or nailgun was built without JFR support
+      return NOOP;
+    } catch (Throwable t) {
+      LOG.log(Level.WARNING, "Unable to initialize JFR event recorder", t);
+      return NOOP;
+    }
+  }
+
+  /**
+   * A new client connection was accepted by the server
+   *
+   * @param listeningAddress the address the connection was accepted on
+   */
+  void connectionAccepted(NGListeningAddress listeningAddress) {}
+
+  /** @return a handle to be passed to {@link #endCommandContext} */
+  Object beginCommandContext() {
+    return null;
+  }
+
+  /**
+   * Command, arguments and environment were read from the client
+   *
+   * @param handle the handle returned by {@link #beginCommandContext()}
+   * @param command the command (alias or class name) requested by the client
+   * @param argumentCount number of command line arguments sent by the client
+   * @param environmentCount number of environment variables sent by the client
+   */
+  void endCommandContext(Object handle, String command, int argumentCount, int environmentCount) {}
+
+  /** @return a handle to be passed to {@link #endNailResolution} */
+  Object beginNailResolution() {
+    return null;
+  }
+
+  /**
+   * The command was resolved to a nail class, or resolution failed
+   *
+   * @param handle the handle returned by {@link #beginNailResolution()}
+   * @param command the command (alias or class name) requested by the client
+   * @param nailClass the resolved class, or null if no nail was found
+   */
+  void endNailResolution(Object handle, String command, Class nailClass) {}
+
+  /**
+   * The nail is about to be invoked
+   *
+   * @param command the command (alias or class name) requested by the client
+   * @param nailClass the class implementing the nail
+   * @return a handle to be passed to {@link #endNail}
+   */
+  Object beginNail(String command, Class nailClass) {
+    return null;
+  }
+
+  /**
+   * The nail has finished and its exit code was sent to the client
+   *
+   * @param handle the handle returned by {@link #beginNail}
+   * @param exitCode exit code sent to the client
+   * @param bytesIn number of stdin bytes received from the client
+   * @param bytesOut number of stdout and stderr bytes sent to the client
+   */
+  void endNail(Object handle, int exitCode, long bytesIn, long bytesOut) {}
+
+  /**
+   * Nothing was received from the client within the heartbeat timeout
+   *
+   * @param timeoutMillis the heartbeat timeout that expired
+   */
+  void heartbeatMissed(long timeoutMillis) {}
+
+  /**
+   * The server detected that the client has gone away while the nail was running
+   *
+   * @param reason why the server thinks the client has disconnected
+   */
+  void clientDisconnected(NGClientDisconnectReason reason) {}
+}
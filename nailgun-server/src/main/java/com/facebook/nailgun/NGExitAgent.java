@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java agent intercepting System.exit() calls of nails without a security manager. With a security
+ * manager installed, every permission check of every nail goes through it, and security managers
+ * are deprecated for removal on recent JDKs.
+ *
+ * <p>The agent is loaded with {@code -javaagent:nailgun-server.jar}, or automatically when the
+ * server is started with {@code java -jar} from a jar built with the exit-agent Maven profile. It
+ * rewrites calls to System.exit(int), Runtime.exit(int) and Runtime.halt(int) in every class loaded
+ * afterwards, except JDK and server classes, into calls to the static methods of this class. While
+ * an {@link NGServer} intercepts exits with the agent, see {@link
+ * NGServer#setExitAgentEnabled(boolean)}, these throw an {@link NGExitException} like {@link
+ * NGSecurityManager} does; otherwise they exit the JVM as the original call would have.
+ */
+public final class NGExitAgent {
+
+  private static final Logger LOG = Logger.getLogger(NGExitAgent.class.getName());
+
+  /** Set once the agent is loaded */
+  private static volatile Instrumentation instrumentation = null;
+
+  /** True while a server relies on the agent to turn exits into NGExitExceptions */
+  private static volatile boolean intercepting = false;
+
+  private NGExitAgent() {}
+
+  /**
+   * Entry point when the agent is loaded with -javaagent.
+   *
+   * @param args agent arguments, unused
+   * @param inst the instrumentation instance of the JVM
+   */
+  public static void premain(String args, Instrumentation inst) {
+    install(inst);
+  }
+
+  /**
+   * Entry point when the agent is loaded by java -jar through the Launcher-Agent-Class attribute,
+   * or attached to a running JVM.
+   *
+   * @param args agent arguments, unused
+   * @param inst the instrumentation instance of the JVM
+   */
+  public static void agentmain(String args, Instrumentation inst) {
+    install(inst);
+  }
+
+  private static synchronized void install(Instrumentation inst) {
+    if (instrumentation == null) {
+      inst.addTransformer(new ExitCallTransformer());
+      instrumentation = inst;
+    }
+  }
+
+  /** @return true if the agent was loaded, so that exits of nails can be intercepted with it */
+  public static boolean isInstalled() {
+    return instrumentation != null;
+  }
+
+  /**
+   * Starts or stops turning exits into NGExitExceptions.
+   *
+   * @param intercepting true to throw NGExitException from rewritten exit calls
+   */
+  static void setIntercepting(boolean intercepting) {
+    NGExitAgent.intercepting = intercepting;
+  }
+
+  /** @return true if rewritten exit calls currently throw NGExitException */
+  static boolean isIntercepting() {
+    return intercepting;
+  }
+
+  /**
+   * Replacement for System.exit(int).
+   *
+   * @param status the exit status
+   * @throws NGExitException if a server is intercepting exits
+   */
+  public static void exit(int status) {
+    if (intercepting) {
+      throw new NGExitException(status);
+    }
+    System.exit(status);
+  }
+
+  /**
+   * Replacement for Runtime.exit(int).
+   *
+   * @param runtime the runtime exit() was called on
+   * @param status the exit status
+   * @throws NGExitException if a server is intercepting exits
+   */
+  public static void exit(Runtime runtime, int status) {
+    if (intercepting) {
+      throw new NGExitException(status);
+    }
+    runtime.exit(status);
+  }
+
+  /**
+   * Replacement for Runtime.halt(int).
+   *
+   * @param runtime the runtime halt() was called on
+   * @param status the exit status
+   * @throws NGExitException if a server is intercepting exits
+   */
+  public static void halt(Runtime runtime, int status) {
+    if (intercepting) {
+      throw new NGExitException(status);
+    }
+    runtime.halt(status);
+  }
+
+  /** Rewrites the exit calls of classes that are neither part of the JDK nor of Nailgun */
+  static final class ExitCallTransformer implements ClassFileTransformer {
+
+    /** Whether classes of each loader can link to NGExitAgent */
+    private final Map<ClassLoader, Boolean> agentVisibility = new WeakHashMap<>();
+
+    @Override
+    public byte[] transform(
+        ClassLoader loader,
+        String className,
+        Class<?> classBeingRedefined,
+        ProtectionDomain protectionDomain,
+        byte[] classfileBuffer) {
+      if (loader == null || isJdkClass(className) || isNailgunClass(className)) {
+        return null;
+      }
+      try {
+        byte[] rewritten = NGExitCallRewriter.rewrite(classfileBuffer);
+        if (rewritten == null) {
+          return null;
+        }
+        if (!canSeeAgent(loader)) {
+          LOG.log(
+              Level.FINE,
+              "Not rewriting exit calls of {0}, its class loader does not see NGExitAgent",
+              className);
+          return null;
+        }
+        return rewritten;
+      } catch (RuntimeException e) {
+        // the JVM would swallow it, keep a trace of why exits of this class are not intercepted
+        LOG.log(Level.WARNING, "Unable to rewrite exit calls of " + className, e);
+        return null;
+      }
+    }
+
+    private static boolean isJdkClass(String className) {
+      return className == null
+          || className.startsWith("java/")
+          || className.startsWith("javax/")
+          || className.startsWith("jdk/")
+          || className.startsWith("sun/")
+          || className.startsWith("com/sun/");
+    }
+
+    /**
+     * Tells server classes by their package rather than by where they are loaded from, as nails are
+     * often shaded into the same jar as the server. Other packages under com.facebook.nailgun, like
+     * the examples, are nails.
+     */
+    private static boolean isNailgunClass(String className) {
+      String serverPackage = "com/facebook/nailgun/";
+      if (!className.startsWith(serverPackage)) {
+        return false;
+      }
+      String name = className.substring(serverPackage.length());
+      return name.indexOf('/') == -1 || name.startsWith("builtins/");
+    }
+
+    private boolean canSeeAgent(ClassLoader loader) {
+      Boolean visible;
+      synchronized (agentVisibility) {
+        visible = agentVisibility.get(loader);
+      }
+      if (visible == null) {
+        // looked up without holding the lock, loading may take class loader locks
+        try {
+          visible = Class.forName(NGExitAgent.class.getName(), false, loader) == NGExitAgent.class;
+        } catch (ClassNotFoundException | LinkageError e) {
+          visible = false;
+        }
+        synchronized (agentVisibility) {
+          agentVisibility.put(loader, visible);
+        }
+      }
+      return visible;
+    }
+  }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Rewrites calls to System.exit(int), Runtime.exit(int) and Runtime.halt(int) in a class file into
+ * calls to the matching static methods of {@link NGExitAgent}.
+ *
+ * <p>Call sites are patched in place: invokestatic System.exit keeps its opcode, invokevirtual
+ * Runtime.exit/halt becomes an invokestatic of a method taking the Runtime as first argument. Both
+ * instructions are 3 bytes long and leave the same values on the stack, so no offset, stack map
+ * frame or max_stack has to change; the only structural change is a few entries appended to the
+ * constant pool. Exits through reflection or method handles are not rewritten.
+ */
+final class NGExitCallRewriter {
+
+  private static final String AGENT_CLASS = NGExitAgent.class.getName().replace('.', '/');
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESTATIC = 0xb8;
+
+  /** The methods calls are redirected to, in the order of the TARGET_ constants */
+  private static final String[][] REPLACEMENTS = {
+    {"exit", "(I)V"}, {"exit", "(Ljava/lang/Runtime;I)V"}, {"halt", "(Ljava/lang/Runtime;I)V"}
+  };
+
+  private static final int TARGET_SYSTEM_EXIT = 0;
+  private static final int TARGET_RUNTIME_EXIT = 1;
+  private static final int TARGET_RUNTIME_HALT = 2;
+
+  private NGExitCallRewriter() {}
+
+  /**
+   * @param classFile the class file to rewrite, not modified
+   * @return the rewritten class file, or null if the class does not call any of the exit methods or
+   *     has a format that is not understood
+   */
+  static byte[] rewrite(byte[] classFile) {
+    try {
+      return new Parser(classFile).rewrite();
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // truncated or malformed class file, let the class loader report it
+      return null;
+    }
+  }
+
+  private static final class Parser {
+    private final byte[] bytes;
+    private int constantCount;
+    /** offset of each constant pool entry's tag, 0 for unusable slots */
+    private int[] constantOffsets;
+
+    private int constantPoolEnd;
+
+    Parser(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    byte[] rewrite() {
+      if (u4(0) != 0xCAFEBABE || !parseConstantPool()) {
+        return null;
+      }
+
+      // TARGET_ constant each constant pool index stands for, -1 if it is not a Methodref to one;
+      // javac writes each constant once, but other compilers and bytecode tools may repeat them
+      int[] targets = new int[constantCount];
+      Arrays.fill(targets, -1);
+      boolean[] usedTargets = new boolean[REPLACEMENTS.length];
+      // whether each constant pool index is a Utf8 "Code", naming Code attributes
+      boolean[] codeAttributeNames = new boolean[constantCount];
+      boolean foundTarget = false;
+      boolean foundCode = false;
+      for (int i = 1; i < constantCount; i++) {
+        int offset = constantOffsets[i];
+        if (offset == 0) {
+          continue;
+        }
+        if (bytes[offset] == CONSTANT_UTF8 && "Code".equals(utf8(i))) {
+          codeAttributeNames[i] = true;
+          foundCode = true;
+        } else if (bytes[offset] == CONSTANT_METHODREF) {
+          int target = targetOf(offset);
+          if (target >= 0) {
+            targets[i] = target;
+            usedTargets[target] = true;
+            foundTarget = true;
+          }
+        }
+      }
+      if (!foundTarget || !foundCode) {
+        return null;
+      }
+
+      // Class, Utf8 class name, then Utf8 name, Utf8 descriptor, NameAndType and Methodref for
+      // each target
+      int nextIndex = constantCount;
+      ByteArrayOutputStream appended = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(appended);
+      int[] replacements = new int[REPLACEMENTS.length];
+      try {
+        int agentClass = nextIndex++;
+        out.writeByte(CONSTANT_CLASS);
+        out.writeShort(nextIndex);
+        nextIndex = writeUtf8(out, AGENT_CLASS, nextIndex);
+        for (int target = 0; target < REPLACEMENTS.length; target++) {
+          if (!usedTargets[target]) {
+            continue;
+          }
+          int name = nextIndex;
+          nextIndex = writeUtf8(out, REPLACEMENTS[target][0], nextIndex);
+          int descriptor = nextIndex;
+          nextIndex = writeUtf8(out, REPLACEMENTS[target][1], nextIndex);
+          int nameAndType = nextIndex++;
+          out.writeByte(CONSTANT_NAME_AND_TYPE);
+          out.writeShort(name);
+          out.writeShort(descriptor);
+          replacements[target] = nextIndex++;
+          out.writeByte(CONSTANT_METHODREF);
+          out.writeShort(agentClass);
+          out.writeShort(nameAndType);
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+      if (nextIndex > 0xFFFF) {
+        return null;
+      }
+
+      byte[] result = new byte[bytes.length + appended.size()];
+      System.arraycopy(bytes, 0, result, 0, constantPoolEnd);
+      System.arraycopy(appended.toByteArray(), 0, result, constantPoolEnd, appended.size());
+      System.arraycopy(
+          bytes,
+          constantPoolEnd,
+          result,
+          constantPoolEnd + appended.size(),
+          bytes.length - constantPoolEnd);
+      result[8] = (byte) (nextIndex >> 8);
+      result[9] = (byte) nextIndex;
+
+      // code arrays are patched in the copy, shifted by the appended entries
+      int shift = appended.size();
+      int offset = constantPoolEnd + 6; // access flags, this class, super class
+      offset += 2 + 2 * u2(offset); // interfaces
+      offset = skipMembers(offset); // fields
+      int methodCount = u2(offset);
+      offset += 2;
+      boolean patched = false;
+      for (int m = 0; m < methodCount; m++) {
+        int attributeCount = u2(offset + 6);
+        offset += 8;
+        for (int a = 0; a < attributeCount; a++) {
+          int length = u4(offset + 2);
+          int name = u2(offset);
+          if (name < constantCount && codeAttributeNames[name]) {
+            int codeStart = offset + shift + 14;
+            patched |= patchCode(result, codeStart, u4(offset + 10), targets, replacements);
+          }
+          offset += 6 + length;
+        }
+      }
+      return patched ? result : null;
+    }
+
+    /** @return false if the constant pool contains an entry type this parser does not know */
+    private boolean parseConstantPool() {
+      constantCount = u2(8);
+      constantOffsets = new int[constantCount];
+      int offset = 10;
+      for (int i = 1; i < constantCount; i++) {
+        constantOffsets[i] = offset;
+        int tag = bytes[offset];
+        switch (tag) {
+          case CONSTANT_UTF8:
+            offset += 3 + u2(offset + 1);
+            break;
+          case CONSTANT_LONG:
+          case CONSTANT_DOUBLE:
+            offset += 9;
+            i++; // takes two slots
+            break;
+          case CONSTANT_CLASS:
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            offset += 3;
+            break;
+          case 15: // MethodHandle
+            offset += 4;
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case CONSTANT_METHODREF:
+          case 11: // InterfaceMethodref
+          case CONSTANT_NAME_AND_TYPE:
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            offset += 5;
+            break;
+          default:
+            return false;
+        }
+      }
+      constantPoolEnd = offset;
+      return true;
+    }
+
+    /** @return the TARGET_ constant the Methodref at the offset refers to, or -1 */
+    private int targetOf(int methodrefOffset) {
+      String owner = utf8(u2(constantOffsets[u2(methodrefOffset + 1)] + 1));
+      int nameAndType = constantOffsets[u2(methodrefOffset + 3)];
+      if (!"(I)V".equals(utf8(u2(nameAndType + 3)))) {
+        return -1;
+      }
+      String name = utf8(u2(nameAndType + 1));
+      if ("java/lang/System".equals(owner)) {
+        return "exit".equals(name) ? TARGET_SYSTEM_EXIT : -1;
+      }
+      if ("java/lang/Runtime".equals(owner)) {
+        return "exit".equals(name)
+            ? TARGET_RUNTIME_EXIT
+            : "halt".equals(name) ? TARGET_RUNTIME_HALT : -1;
+      }
+      return -1;
+    }
+
+    /**
+     * Redirects the matching invoke instructions of a code array.
+     *
+     * @param targets TARGET_ constant of each constant pool index, -1 for other constants
+     * @param replacements constant pool index of the replacement of each TARGET_ constant
+     * @return true if at least one instruction was changed
+     */
+    private static boolean patchCode(
+        byte[] classFile, int start, int codeLength, int[] targets, int[] replacements) {
+      boolean patched = false;
+      int pc = 0;
+      while (pc < codeLength) {
+        int opcode = classFile[start + pc] & 0xFF;
+        if (opcode == INVOKESTATIC || opcode == INVOKEVIRTUAL) {
+          int index =
+              ((classFile[start + pc + 1] & 0xFF) << 8) | (classFile[start + pc + 2] & 0xFF);
+          int target = index < targets.length ? targets[index] : -1;
+          // System.exit is static, Runtime.exit and halt are not
+          if (target >= 0 && (opcode == INVOKESTATIC) == (target == TARGET_SYSTEM_EXIT)) {
+            classFile[start + pc] = (byte) INVOKESTATIC;
+            classFile[start + pc + 1] = (byte) (replacements[target] >> 8);
+            classFile[start + pc + 2] = (byte) replacements[target];
+            patched = true;
+          }
+        }
+        pc += instructionLength(classFile, start, pc);
+      }
+      return patched;
+    }
+
+    /** @return the length of the instruction at pc, operands included */
+    private static int instructionLength(byte[] classFile, int start, int pc) {
+      int opcode = classFile[start + pc] & 0xFF;
+      switch (opcode) {
+        case 0x10: // bipush
+        case 0x12: // ldc
+        case 0x15: // iload .. aload
+        case 0x16:
+        case 0x17:
+        case 0x18:
+        case 0x19:
+        case 0x36: // istore .. astore
+        case 0x37:
+        case 0x38:
+        case 0x39:
+        case 0x3a:
+        case 0xa9: // ret
+        case 0xbc: // newarray
+          return 2;
+        case 0x11: // sipush
+        case 0x13: // ldc_w
+        case 0x14: // ldc2_w
+        case 0x84: // iinc
+        case 0xb2: // getstatic .. invokestatic
+        case 0xb3:
+        case 0xb4:
+        case 0xb5:
+        case 0xb6:
+        case 0xb7:
+        case 0xb8:
+        case 0xbb: // new
+        case 0xbd: // anewarray
+        case 0xc0: // checkcast
+        case 0xc1: // instanceof
+        case 0xc6: // ifnull
+        case 0xc7: // ifnonnull
+          return 3;
+        case 0xc5: // multianewarray
+          return 4;
+        case 0xb9: // invokeinterface
+        case 0xba: // invokedynamic
+        case 0xc8: // goto_w
+        case 0xc9: // jsr_w
+          return 5;
+        case 0xc4: // wide
+          return (classFile[start + pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+        case 0xaa: // tableswitch
+          {
+            int operands = start + ((pc + 4) & ~3);
+            int low = s4(classFile, operands + 4);
+            int high = s4(classFile, operands + 8);
+            return operands - start - pc + 12 + 4 * (high - low + 1);
+          }
+        case 0xab: // lookupswitch
+          {
+            int operands = start + ((pc + 4) & ~3);
+            int pairs = s4(classFile, operands + 4);
+            return operands - start - pc + 8 + 8 * pairs;
+          }
+        default:
+          // if* and goto/jsr branches take a 2 byte offset
+          return opcode >= 0x99 && opcode <= 0xa8 ? 3 : 1;
+      }
+    }
+
+    /** Skips the fields or methods table at the offset and returns the offset after it */
+    private int skipMembers(int offset) {
+      int count = u2(offset);
+      offset += 2;
+      for (int i = 0; i < count; i++) {
+        int attributeCount = u2(offset + 6);
+        offset += 8;
+        for (int a = 0; a < attributeCount; a++) {
+          offset += 6 + u4(offset + 2);
+        }
+      }
+      return offset;
+    }
+
+    /** @return the content of the Utf8 constant at the index, null if it is not one */
+    private String utf8(int index) {
+      int offset = constantOffsets[index];
+      if (offset == 0 || bytes[offset] != CONSTANT_UTF8) {
+        return null;
+      }
+      // modified UTF-8 only differs from UTF-8 for characters the names compared here do not use
+      return new String(bytes, offset + 3, u2(offset + 1), StandardCharsets.UTF_8);
+    }
+
+    private int u2(int offset) {
+      return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private int u4(int offset) {
+      return s4(bytes, offset);
+    }
+
+    private static int s4(byte[] bytes, int offset) {
+      return ((bytes[offset] & 0xFF) << 24)
+          | ((bytes[offset + 1] & 0xFF) << 16)
+          | ((bytes[offset + 2] & 0xFF) << 8)
+          | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static int writeUtf8(DataOutputStream out, String value, int index) throws IOException {
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF(value);
+      return index + 1;
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Platform;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands the Unix domain sockets a server listens on over to a new server process, so that the new
+ * server replaces the old one without refusing a single connection, i.e. to upgrade nails without
+ * the clients noticing. Both servers are given the same control socket, see {@link
+ * NGServer#setHandoffSocketPath(String)}:
+ *
+ * <ol>
+ *   <li>On startup, a server connects to the control socket. If a server listens there, it passes
+ *       its listening sockets over with SCM_RIGHTS, and the new server listens on those of the same
+ *       addresses instead of binding new ones. Otherwise the new server starts as usual.
+ *   <li>Once the new server accepts connections, it tells the old one, which stops accepting, gives
+ *       up the control socket and drains, see {@link NGServer#drain(long, NGListeningAddress)}. The
+ *       sockets stay open all along: connections wait on them until one of the servers accepts
+ *       them.
+ *   <li>The new server then listens on the control socket for its own successor.
+ * </ol>
+ *
+ * <p>TCP addresses are not handed over, the new server binds them itself.
+ */
+final class NGHandoff implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(NGHandoff.class.getName());
+
+  /** How long either server waits for the other one to answer */
+  static final int REPLY_TIMEOUT_MILLIS = 30000;
+
+  /** First line sent by the old server, followed by the paths of the sockets and an empty line */
+  private static final String GREETING = "nailgun handoff 1";
+
+  /** Sent by the new server once it accepts connections */
+  private static final String READY = "ready";
+
+  /** Sent by the old server once it stopped accepting connections and closed the control socket */
+  private static final String RELEASED = "released";
+
+  private final NGServer server;
+  private final String path;
+
+  /** Connection to the server being taken over and its replies, until it released its sockets */
+  private NGUnixDomainSocket predecessor = null;
+
+  private BufferedReader predecessorReplies = null;
+
+  /** Waits for the next server, null once closed or handed over */
+  private NGUnixDomainServerSocket controlSocket = null;
+
+  /**
+   * @param server the server taking over and handing over
+   * @param path path of the control socket
+   */
+  NGHandoff(NGServer server, String path) {
+    this.server = server;
+    this.path = path;
+  }
+
+  /** @return true if listening sockets can be passed to other processes on this platform */
+  static boolean isSupported() {
+    return !Platform.isWindows() && NGUnixDomainSocketLibrary.canReceiveFileDescriptors();
+  }
+
+  /**
+   * Asks the server listening on the control socket, if any, for its listening sockets. The server
+   * goes on accepting connections until {@link #start()}.
+   *
+   * @return the listening sockets of the server being taken over by the path of their address,
+   *     owned by the caller, empty if no server listens on the control socket
+   * @throws IOException if the server listening on the control socket did not hand over
+   */
+  synchronized Map<String, Integer> takeOver() throws IOException {
+    NGUnixDomainSocket socket;
+    try {
+      socket = NGUnixDomainSocket.connect(path);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "No server to take over on " + path, e);
+      return new LinkedHashMap<>();
+    }
+    Map<String, Integer> listeningFds = new LinkedHashMap<>();
+    try {
+      socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+      socket.setReceivingFileDescriptors(true);
+      BufferedReader replies =
+          new BufferedReader(
+              new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      String greeting = replies.readLine();
+      if (!GREETING.equals(greeting)) {
+        throw new IOException("Unexpected greeting from the server on " + path + ": " + greeting);
+      }
+      List<String> paths = new ArrayList<>();
+      String line;
+      while ((line = replies.readLine()) != null && !line.isEmpty()) {
+        paths.add(line);
+      }
+      int[] fds = socket.takeReceivedFileDescriptors();
+      for (int i = 0; i < fds.length; i++) {
+        listeningFds.put(i < paths.size() ? paths.get(i) : "", fds[i]);
+      }
+      if (fds.length != paths.size()) {
+        throw new IOException(
+            "Expected " + paths.size() + " listening sockets from " + path + ", got " + fds.length);
+      }
+      predecessor = socket;
+      predecessorReplies = replies;
+    } catch (IOException e) {
+      closeSockets(listeningFds.values());
+      socket.close();
+      throw e;
+    }
+    LOG.log(
+        Level.INFO,
+        "Taking over {0} from the server on {1}",
+        new Object[] {listeningFds.keySet(), path});
+    return listeningFds;
+  }
+
+  /**
+   * Called once the server accepts connections: tells the server taken over, if any, to stop
+   * accepting, then listens on the control socket for the next server.
+   */
+  synchronized void start() {
+    if (predecessor != null) {
+      try {
+        send(predecessor, READY);
+        String reply = predecessorReplies.readLine();
+        if (!RELEASED.equals(reply)) {
+          throw new IOException("Unexpected reply: " + reply);
+        }
+        LOG.log(Level.INFO, "Took over from the server on {0}", path);
+      } catch (IOException e) {
+        // both servers accept connections until the old one stops
+        LOG.log(Level.WARNING, "Server taken over on " + path + " did not release its sockets", e);
+      } finally {
+        closePredecessor();
+      }
+    }
+
+    try {
+      // left behind by a server that is gone, or that did not release it
+      NGListeningAddress.release(path);
+      controlSocket = new NGUnixDomainServerSocket(path);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to listen for a new server on " + path, e);
+      return;
+    }
+    NGUnixDomainServerSocket socket = controlSocket;
+    Thread listener = new Thread(() -> awaitSuccessors(socket));
+    listener.setName("NGServer handoff(" + path + ")");
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+  /** Hands over to the first new server that connects to the control socket and completes */
+  private void awaitSuccessors(NGUnixDomainServerSocket socket) {
+    while (true) {
+      NGUnixDomainSocket successor;
+      try {
+        successor = (NGUnixDomainSocket) socket.accept();
+      } catch (IOException e) {
+        // closed
+        return;
+      }
+      try {
+        if (handOver(successor)) {
+          return;
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to hand over to a new server on " + path, e);
+      } finally {
+        try {
+          successor.close();
+        } catch (IOException e) {
+          LOG.log(Level.FINE, "Unable to close the connection to a new server", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Passes the listening sockets to a new server, and once it accepts connections, stops accepting
+   * and drains the server.
+   *
+   * @param successor connection to the new server
+   * @return true if the new server took over, false if this server was closed in the meantime
+   * @throws IOException if the new server failed, in which case this one goes on as if nothing
+   *     happened
+   */
+  private boolean handOver(NGUnixDomainSocket successor) throws IOException {
+    List<NGListener> handedOver = new ArrayList<>();
+    List<Integer> fds = new ArrayList<>();
+    StringBuilder message = new StringBuilder(GREETING).append('\n');
+    for (NGListener listener : server.getListeners()) {
+      int fd = listener.getUnixDomainSocketFd();
+      if (fd != -1) {
+        handedOver.add(listener);
+        fds.add(fd);
+        message.append(listener.getListeningAddress().getLocalAddress()).append('\n');
+      }
+    }
+    byte[] bytes = message.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    if (fds.isEmpty()) {
+      successor.getOutputStream().write(bytes);
+    } else {
+      successor.sendFileDescriptors(bytes, fds.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    successor.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+    BufferedReader replies =
+        new BufferedReader(
+            new InputStreamReader(successor.getInputStream(), StandardCharsets.UTF_8));
+    String reply = replies.readLine();
+    if (!READY.equals(reply)) {
+      throw new IOException("Unexpected reply: " + reply);
+    }
+
+    synchronized (this) {
+      if (controlSocket == null) {
+        return false;
+      }
+      // the new server accepts connections on the sockets from now on
+      for (NGListener listener : handedOver) {
+        listener.release();
+      }
+      controlSocket.close();
+      controlSocket = null;
+    }
+    // the new server listens on the control socket once told
+    NGListeningAddress.release(path);
+    send(successor, RELEASED);
+    LOG.log(Level.INFO, "Handed over to a new server on {0}, draining", path);
+    server.drain(server.getDrainTimeoutMillis(), null);
+    return true;
+  }
+
+  private static void send(NGUnixDomainSocket socket, String line) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    out.flush();
+  }
+
+  /** Closes listening sockets taken over but not used */
+  static void closeSockets(Collection<Integer> fds) {
+    for (int fd : fds) {
+      try {
+        NGUnixDomainSocketLibrary.close(fd);
+      } catch (LastErrorException e) {
+        LOG.log(Level.FINE, "Unable to close a socket taken over", e);
+      }
+    }
+  }
+
+  private void closePredecessor() {
+    try {
+      predecessor.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Unable to close the connection to the server taken over", e);
+    }
+    predecessor = null;
+    predecessorReplies = null;
+  }
+
+  /** Stops listening on the control socket, a new server can no longer take over */
+  public synchronized void close() {
+    if (predecessor != null) {
+      closePredecessor();
+    }
+    if (controlSocket != null) {
+      try {
+        controlSocket.close();
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Unable to close the control socket " + path, e);
+      }
+      controlSocket = null;
+      NGListeningAddress.release(path);
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+/**
+ * Phases of a single nail invocation, as measured by {@link NGSession}. Time spent by the client
+ * connecting to the server is not visible to the server and is measured by the clients themselves.
+ */
+public enum NGInvocationPhase {
+  /** From the moment the connection was accepted until an NGSession picked it up */
+  QUEUE("queue"),
+  /** Reading command, arguments, environment and working directory from the client */
+  HEADER("header"),
+  /** Resolving the command to a nail class and its entry point */
+  RESOLVE("resolve"),
+  /** Running the nail itself */
+  EXECUTE("execute"),
+  /** Flushing the nail's output to the client after it has returned */
+  DRAIN("drain");
+
+  private final String label;
+
+  NGInvocationPhase(String label) {
+    this.label = label;
+  }
+
+  /** @return short lowercase name of the phase, as reported to clients */
+  public String getLabel() {
+    return label;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power-of-two microsecond buckets. Bucket {@code i} counts
+ * durations up to {@link #getBucketUpperBoundMicros(int)} microseconds that did not fit in bucket
+ * {@code i - 1}; the last bucket is unbounded. Recording never blocks, so it is safe to call from
+ * nail threads while the histogram is being read.
+ */
+public class NGLatencyHistogram {
+
+  /** Number of buckets, the last one collecting everything above 2^29 us, ~9 minutes */
+  public static final int BUCKET_COUNT = 31;
+
+  private final AtomicLongArray buckets;
+  private final AtomicLong count;
+  private final AtomicLong totalMicros;
+  private final AtomicLong maxMicros;
+
+  /** Creates a new, empty histogram */
+  public NGLatencyHistogram() {
+    buckets = new AtomicLongArray(BUCKET_COUNT);
+    count = new AtomicLong();
+    totalMicros = new AtomicLong();
+    maxMicros = new AtomicLong();
+  }
+
+  /**
+   * Adds a duration to the histogram
+   *
+   * @param nanos the duration in nanoseconds; negative values are recorded as zero
+   */
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    buckets.incrementAndGet(bucketFor(micros));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    maxMicros.accumulateAndGet(micros, Math::max);
+  }
+
+  private static int bucketFor(long micros) {
+    if (micros <= 1) {
+      return 0;
+    }
+    // smallest i so that micros <= 2^i
+    int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+    return Math.min(bucket, BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Returns the inclusive upper bound of the specified bucket
+   *
+   * @param bucket bucket index, from 0 to {@link #BUCKET_COUNT} - 1
+   * @return the upper bound in microseconds, or Long.MAX_VALUE for the last bucket
+   */
+  public static long getBucketUpperBoundMicros(int bucket) {
+    return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * @param bucket bucket index, from 0 to {@link #BUCKET_COUNT} - 1
+   * @return number of durations recorded in the specified bucket
+   */
+  public long getBucketCount(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /** @return number of durations recorded */
+  public long getCount() {
+    return count.get();
+  }
+
+  /** @return sum of all durations recorded, in microseconds */
+  public long getTotalMicros() {
+    return totalMicros.get();
+  }
+
+  /** @return the longest duration recorded, in microseconds */
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * Returns an upper bound estimate of the specified quantile, as the upper bound of the bucket the
+   * quantile falls in.
+   *
+   * @param quantile the quantile, between 0 and 1
+   * @return the estimate in microseconds, or 0 if nothing was recorded
+   */
+  public long getQuantileMicros(double quantile) {
+    long total = 0;
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts[i];
+      if (seen >= rank && counts[i] > 0) {
+        return Math.min(getBucketUpperBoundMicros(i), getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+
+  /**
+   * Creates a copy of this histogram. The copy is taken without locking, so concurrent updates may
+   * be partially reflected.
+   *
+   * @return a copy of this histogram
+   */
+  public NGLatencyHistogram snapshot() {
+    NGLatencyHistogram result = new NGLatencyHistogram();
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      result.buckets.set(i, buckets.get(i));
+    }
+    result.count.set(count.get());
+    result.totalMicros.set(totalMicros.get());
+    result.maxMicros.set(maxMicros.get());
+    return result;
+  }
+
+  /**
+   * Returns a String representation of this histogram, in the form "count=N avg=Xus p50=Yus p90=Zus
+   * p99=Wus max=Vus".
+   */
+  public String toString() {
+    long n = getCount();
+    return "count="
+        + n
+        + " avg="
+        + (n == 0 ? 0 : getTotalMicros() / n)
+        + "us p50="
+        + getQuantileMicros(0.5)
+        + "us p90="
+        + getQuantileMicros(0.9)
+        + "us p99="
+        + getQuantileMicros(0.99)
+        + "us max="
+        + getMaxMicros()
+        + "us";
+  }
+}
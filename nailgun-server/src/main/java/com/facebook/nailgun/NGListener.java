@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import com.sun.jna.Platform;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The sockets on which an {@link NGServer} accepts client connections for one address. A server may
+ * have several listeners, i.e. a Unix domain socket for local tools and a TCP port for remote
+ * clients, all sharing the same session pool.
+ *
+ * <p>Each socket is drained by its own acceptor thread. A TCP listener may open several sockets
+ * bound to the same port with SO_REUSEPORT, so that the kernel spreads incoming connections over
+ * several acceptors; this needs Java 9 or newer and an operating system that supports it, otherwise
+ * a single socket is opened.
+ */
+final class NGListener {
+
+  private static final Logger LOG = Logger.getLogger(NGListener.class.getName());
+
+  private final NGListeningAddress listeningAddress;
+
+  /** Number of sockets to open if the address is a TCP one and SO_REUSEPORT is supported */
+  private final int acceptorCount;
+
+  /** Maximum length of the queue of pending connections, 0 for the platform default */
+  private final int backlog;
+
+  /** Options for TCP sockets */
+  private final NGSocketOptions socketOptions;
+
+  /** The sockets doing the listening, set once opened */
+  private volatile List<ServerSocket> serverSockets = Collections.emptyList();
+
+  /** Listening socket taken over from another server to use instead of binding one, or -1 */
+  private int inheritedFd = -1;
+
+  /** True once another server has taken the sockets over, see {@link #release()} */
+  private volatile boolean released = false;
+
+  /** number of connections accepted on this listener */
+  private final LongAdder acceptedConnections = new LongAdder();
+
+  /**
+   * @param listeningAddress the address to listen on
+   * @param acceptorCount number of sockets to open with SO_REUSEPORT for a TCP address, 1 to open a
+   *     single socket without it
+   * @param backlog maximum length of the queue of pending connections of each socket, 0 for the
+   *     platform default
+   * @param socketOptions options applied to TCP sockets
+   */
+  NGListener(
+      NGListeningAddress listeningAddress,
+      int acceptorCount,
+      int backlog,
+      NGSocketOptions socketOptions) {
+    this.listeningAddress = listeningAddress;
+    this.acceptorCount = acceptorCount;
+    this.backlog = backlog;
+    this.socketOptions = socketOptions;
+  }
+
+  /** @return the address this listener is bound to */
+  NGListeningAddress getListeningAddress() {
+    return listeningAddress;
+  }
+
+  /**
+   * Makes {@link #open()} use a Unix domain socket that another server listens on instead of
+   * binding a new one, see {@link NGHandoff}.
+   *
+   * @param listeningFd the listening socket, owned by this listener from now on
+   */
+  void inherit(int listeningFd) {
+    inheritedFd = listeningFd;
+  }
+
+  /** Binds the listening sockets. */
+  void open() throws IOException {
+    List<ServerSocket> sockets = new ArrayList<>();
+    try {
+      if (listeningAddress.isInetAddress()) {
+        SocketOption<Boolean> reusePort = acceptorCount > 1 ? getReusePortOption() : null;
+        if (acceptorCount > 1 && reusePort == null) {
+          LOG.log(
+              Level.WARNING,
+              "SO_REUSEPORT is not supported, using a single acceptor for {0}",
+              listeningAddress);
+        }
+        int port = listeningAddress.getInetPort();
+        for (int i = 0; i < (reusePort == null ? 1 : acceptorCount); i++) {
+          ServerSocket socket = new ServerSocket();
+          sockets.add(socket);
+          if (reusePort != null) {
+            setOption(socket, reusePort, true);
+          }
+          socketOptions.applyToServerSocket(socket);
+          // with port 0, all sockets share the port picked for the first one
+          socket.bind(new InetSocketAddress(listeningAddress.getInetAddress(), port), backlog);
+          port = socket.getLocalPort();
+        }
+      } else if (Platform.isWindows()) {
+        boolean requireStrictLength = true;
+        sockets.add(
+            new NGWin32NamedPipeServerSocket(
+                listeningAddress.getLocalAddress(), requireStrictLength));
+      } else if (inheritedFd != -1) {
+        sockets.add(NGUnixDomainServerSocket.fromListeningFileDescriptor(inheritedFd));
+        inheritedFd = -1;
+      } else if (backlog > 0) {
+        sockets.add(new NGUnixDomainServerSocket(backlog, listeningAddress.getLocalAddress()));
+      } else {
+        sockets.add(new NGUnixDomainServerSocket(listeningAddress.getLocalAddress()));
+      }
+    } catch (IOException | RuntimeException e) {
+      for (ServerSocket socket : sockets) {
+        try {
+          socket.close();
+        } catch (IOException toIgnore) {
+        }
+      }
+      throw e;
+    }
+    serverSockets = Collections.unmodifiableList(sockets);
+  }
+
+  /** @return StandardSocketOptions.SO_REUSEPORT, or null before Java 9 or if not supported */
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> getReusePortOption() {
+    try {
+      SocketOption<Boolean> option =
+          (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+      try (ServerSocket probe = new ServerSocket()) {
+        Method supportedOptions = ServerSocket.class.getMethod("supportedOptions");
+        return ((Set<?>) supportedOptions.invoke(probe)).contains(option) ? option : null;
+      }
+    } catch (ReflectiveOperationException | IOException e) {
+      return null;
+    }
+  }
+
+  /** Calls ServerSocket.setOption(), which only exists since Java 9. */
+  private static <T> void setOption(ServerSocket socket, SocketOption<T> option, T value)
+      throws IOException {
+    try {
+      ServerSocket.class
+          .getMethod("setOption", SocketOption.class, Object.class)
+          .invoke(socket, option, value);
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unable to set " + option, e);
+    }
+  }
+
+  /** @return number of listening sockets, each needing its own acceptor thread */
+  int getSocketCount() {
+    return serverSockets.size();
+  }
+
+  /**
+   * Blocks until a client connects.
+   *
+   * @param socketIndex which listening socket to accept on, less than {@link #getSocketCount()}
+   * @return the connected socket
+   * @throws IOException if the listening socket was closed or accepting failed
+   */
+  Socket accept(int socketIndex) throws IOException {
+    Socket socket = serverSockets.get(socketIndex).accept();
+    acceptedConnections.increment();
+    if (listeningAddress.isInetAddress()) {
+      try {
+        socketOptions.apply(socket);
+      } catch (SocketException e) {
+        // the client may already be gone, the session will find out
+        LOG.log(Level.FINE, "Unable to set socket options", e);
+      }
+    }
+    return socket;
+  }
+
+  /**
+   * @return the Unix domain socket this listener is bound to, to hand it over to another server, or
+   *     -1 if it is not one or not open
+   */
+  int getUnixDomainSocketFd() {
+    List<ServerSocket> sockets = serverSockets;
+    if (sockets.size() != 1 || !(sockets.get(0) instanceof NGUnixDomainServerSocket)) {
+      return -1;
+    }
+    return ((NGUnixDomainServerSocket) sockets.get(0)).getFileDescriptor();
+  }
+
+  /**
+   * Stops accepting connections once another server has taken the Unix domain socket over, which
+   * makes pending {@link #accept} calls throw; the socket keeps listening for the other server.
+   */
+  void release() throws IOException {
+    released = true;
+    for (ServerSocket socket : serverSockets) {
+      if (socket instanceof NGUnixDomainServerSocket) {
+        ((NGUnixDomainServerSocket) socket).release();
+      }
+    }
+  }
+
+  /** @return true if another server has taken this listener's socket over */
+  boolean isReleased() {
+    return released;
+  }
+
+  /** Closes the listening sockets, which makes pending {@link #accept} calls throw. */
+  void close() throws IOException {
+    IOException failure = null;
+    for (ServerSocket socket : serverSockets) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return the port the sockets are bound to, the one of the listening address if not opened yet,
+   *     -1 for local sockets
+   */
+  int getPort() {
+    List<ServerSocket> sockets = serverSockets;
+    if (!sockets.isEmpty()) {
+      return sockets.get(0).getLocalPort();
+    }
+    return listeningAddress.isInetAddress() ? listeningAddress.getInetPort() : -1;
+  }
+
+  /** @return number of connections accepted on this listener */
+  long getAcceptedConnectionCount() {
+    return acceptedConnections.sum();
+  }
+
+  /** @return the listening address, with the actual port if the system picked one */
+  public String toString() {
+    String result = listeningAddress.toString();
+    if (listeningAddress.isInetAddress() && listeningAddress.getInetPort() == 0) {
+      result += ", port " + getPort();
+    }
+    int sockets = getSocketCount();
+    return sockets > 1 ? result + " (" + sockets + " acceptors)" : result;
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves NGServer metrics at <code>/metrics</code> in the Prometheus text exposition format, using
+ * the HTTP server bundled with the JDK. Requests are handled by a single daemon thread, and all
+ * metrics are read from lock-free counters, so scraping never blocks the accept loop or running
+ * nails.
+ */
+final class NGMetricsServer {
+
+  private static final Logger LOG = Logger.getLogger(NGMetricsServer.class.getName());
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final NGServer server;
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+
+  /**
+   * Binds the metrics endpoint. It does not serve requests until {@link #start()} is called.
+   *
+   * @param server the server to report metrics of
+   * @param address the address to listen on
+   * @throws IOException if the address can not be bound
+   */
+  NGMetricsServer(NGServer server, InetSocketAddress address) throws IOException {
+    this.server = server;
+    httpServer = HttpServer.create(address, 0);
+    httpServer.createContext("/metrics", this::handle);
+    executor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "NGMetricsServer(" + address + ")");
+              thread.setDaemon(true);
+              return thread;
+            });
+    httpServer.setExecutor(executor);
+  }
+
+  /** Starts serving requests */
+  void start() {
+    httpServer.start();
+  }
+
+  /** Stops serving requests, dropping any exchange in progress */
+  void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** @return the address the endpoint is listening on, useful if it was bound to port 0 */
+  InetSocketAddress getAddress() {
+    return httpServer.getAddress();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = render().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      if ("HEAD".equals(method)) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.FINE, "Unable to serve metrics", e);
+      throw e;
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** @return all metrics in the Prometheus text exposition format */
+  String render() {
+    StringBuilder out = new StringBuilder(4096);
+
+    gauge(out, "nailgun_sessions_idle", "Sessions waiting for a connection");
+    sample(out, "nailgun_sessions_idle", null, null, server.getIdleSessionCount());
+    gauge(out, "nailgun_sessions_working", "Sessions serving a connection");
+    sample(out, "nailgun_sessions_working", null, null, server.getWorkingSessionCount());
+    gauge(out, "nailgun_sessions_abandoned", "Sessions left to nails that ignored cancellation");
+    sample(out, "nailgun_sessions_abandoned", null, null, server.getAbandonedSessionCount());
+    gauge(out, "nailgun_sessions_max_idle", "Maximum number of idle sessions kept by the pool");
+    sample(out, "nailgun_sessions_max_idle", null, null, server.getMaxIdleSessionCount());
+
+    gauge(out, "nailgun_connections_queued", "Connections accepted but not yet picked up");
+    sample(out, "nailgun_connections_queued", null, null, server.getQueuedConnectionCount());
+    counter(out, "nailgun_connections_accepted_total", "Connections accepted");
+    sample(
+        out, "nailgun_connections_accepted_total", null, null, server.getAcceptedConnectionCount());
+    counter(out, "nailgun_connections_handed_off_total", "Connections relayed to another server");
+    sample(
+        out,
+        "nailgun_connections_handed_off_total",
+        null,
+        null,
+        server.getHandedOffConnectionCount());
+    gauge(out, "nailgun_connections_relayed", "Connections currently relayed to another server");
+    sample(out, "nailgun_connections_relayed", null, null, server.getRelayedConnectionCount());
+    gauge(out, "nailgun_draining", "1 if the server is draining, 0 otherwise");
+    sample(out, "nailgun_draining", null, null, server.isDraining() ? 1 : 0);
+    counter(
+        out,
+        "nailgun_listener_connections_accepted_total",
+        "Connections accepted, by listening address");
+    for (NGListeningAddress address : server.getListeningAddresses()) {
+      sample(
+          out,
+          "nailgun_listener_connections_accepted_total",
+          "listener",
+          address.toString(),
+          server.getAcceptedConnectionCount(address));
+    }
+
+    gauge(out, "nailgun_nails_active", "Nails currently running");
+    sample(out, "nailgun_nails_active", null, null, server.getActiveNailCount());
+
+    Map<String, NailStats> nailStats = server.getNailStats();
+    counter(out, "nailgun_nail_runs_total", "Nails started, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(out, "nailgun_nail_runs_total", "nail", stats.getNailClass(), stats.getRunCount());
+    }
+    gauge(out, "nailgun_nail_active", "Nails currently running, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(out, "nailgun_nail_active", "nail", stats.getNailClass(), stats.getRefCount());
+    }
+    counter(
+        out, "nailgun_nail_cpu_seconds_total", "CPU time of the threads running nails, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_cpu_seconds_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getCpuNanos() / 1e9);
+    }
+    counter(
+        out,
+        "nailgun_nail_allocated_bytes_total",
+        "Heap bytes allocated by the threads running nails, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_allocated_bytes_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getAllocatedBytes());
+    }
+    counter(
+        out,
+        "nailgun_nail_cancellations_total",
+        "Nails interrupted on disconnect, over their allocation budget or timed out, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_cancellations_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getCancelledCount());
+    }
+    counter(
+        out,
+        "nailgun_nail_over_budget_total",
+        "Nails cancelled because they exceeded their allocation budget, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_over_budget_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getOverBudgetCount());
+    }
+    counter(out, "nailgun_nail_timeouts_total", "Nails cancelled for running too long, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_timeouts_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getTimedOutCount());
+    }
+    counter(
+        out,
+        "nailgun_nail_abandonments_total",
+        "Cancelled nails still running after the grace period, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_abandonments_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getAbandonedCount());
+    }
+    counter(
+        out,
+        "nailgun_nail_wasted_cpu_seconds_total",
+        "CPU time nails spent after they were cancelled, by class");
+    for (NailStats stats : nailStats.values()) {
+      sample(
+          out,
+          "nailgun_nail_wasted_cpu_seconds_total",
+          "nail",
+          stats.getNailClass(),
+          stats.getWastedCpuNanos() / 1e9);
+    }
+    histogram(out, "nailgun_nail_duration_seconds", "Nail execution time, by class");
+    for (NailStats stats : nailStats.values()) {
+      histogramSamples(
+          out,
+          "nailgun_nail_duration_seconds",
+          "nail",
+          stats.getNailClass(),
+          stats.getExecutionTimes());
+    }
+
+    histogram(out, "nailgun_phase_duration_seconds", "Time spent in each phase of an invocation");
+    for (Map.Entry<NGInvocationPhase, NGLatencyHistogram> entry :
+        server.getPhaseHistograms().entrySet()) {
+      histogramSamples(
+          out,
+          "nailgun_phase_duration_seconds",
+          "phase",
+          entry.getKey().getLabel(),
+          entry.getValue());
+    }
+
+    counter(
+        out,
+        "nailgun_client_disconnects_total",
+        "Clients that disconnected while their nail was running, by reason");
+    for (Map.Entry<NGClientDisconnectReason, Long> entry :
+        server.getClientDisconnectCounts().entrySet()) {
+      sample(
+          out,
+          "nailgun_client_disconnects_total",
+          "reason",
+          entry.getKey().name(),
+          entry.getValue());
+    }
+
+    counter(out, "nailgun_received_bytes_total", "Stdin bytes received from clients");
+    sample(out, "nailgun_received_bytes_total", null, null, server.getBytesReceived());
+    counter(out, "nailgun_sent_bytes_total", "Stdout and stderr bytes sent to clients");
+    sample(out, "nailgun_sent_bytes_total", null, null, server.getBytesSent());
+    counter(
+        out,
+        "nailgun_discarded_bytes_total",
+        "Stdout and stderr bytes thrown away because the client was gone or too slow");
+    sample(out, "nailgun_discarded_bytes_total", null, null, server.getBytesDiscarded());
+    counter(out, "nailgun_spilled_bytes_total", "Stdout and stderr bytes spilled to disk");
+    sample(out, "nailgun_spilled_bytes_total", null, null, server.getBytesSpilled());
+
+    counter(out, "nailgun_argfile_cache_hits_total", "Argfiles expanded from the cache");
+    sample(out, "nailgun_argfile_cache_hits_total", null, null, server.getArgfileCacheHitCount());
+    counter(out, "nailgun_argfile_cache_misses_total", "Argfiles read from the file system");
+    sample(
+        out, "nailgun_argfile_cache_misses_total", null, null, server.getArgfileCacheMissCount());
+
+    counter(out, "nailgun_compressed_connections_total", "Connections that negotiated compression");
+    sample(
+        out,
+        "nailgun_compressed_connections_total",
+        null,
+        null,
+        server.getCompressedConnectionCount());
+    counter(
+        out,
+        "nailgun_compression_raw_bytes_total",
+        "Bytes of compressed connections before compression, by direction");
+    sample(
+        out,
+        "nailgun_compression_raw_bytes_total",
+        "direction",
+        "sent",
+        server.getCompressionRawBytesSent());
+    sample(
+        out,
+        "nailgun_compression_raw_bytes_total",
+        "direction",
+        "received",
+        server.getCompressionRawBytesReceived());
+    counter(
+        out,
+        "nailgun_compression_wire_bytes_total",
+        "Bytes of compressed connections after compression, by direction");
+    sample(
+        out,
+        "nailgun_compression_wire_bytes_total",
+        "direction",
+        "sent",
+        server.getCompressionWireBytesSent());
+    sample(
+        out,
+        "nailgun_compression_wire_bytes_total",
+        "direction",
+        "received",
+        server.getCompressionWireBytesReceived());
+
+    return out.toString();
+  }
+
+  private static void gauge(StringBuilder out, String name, String help) {
+    header(out, name, help, "gauge");
+  }
+
+  private static void counter(StringBuilder out, String name, String help) {
+    header(out, name, help, "counter");
+  }
+
+  private static void histogram(StringBuilder out, String name, String help) {
+    header(out, name, help, "histogram");
+  }
+
+  private static void header(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(
+      StringBuilder out, String name, String label, String labelValue, Object value) {
+    out.append(name);
+    if (label != null) {
+      out.append('{');
+      label(out, label, labelValue);
+      out.append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static void histogramSamples(
+      StringBuilder out, String name, String label, String labelValue, NGLatencyHistogram h) {
+    long cumulative = 0;
+    for (int i = 0; i < NGLatencyHistogram.BUCKET_COUNT; i++) {
+      cumulative += h.getBucketCount(i);
+      long bound = NGLatencyHistogram.getBucketUpperBoundMicros(i);
+      out.append(name).append("_bucket{");
+      label(out, label, labelValue);
+      out.append(",le=\"")
+          .append(bound == Long.MAX_VALUE ? "+Inf" : Double.toString(bound / 1e6))
+          .append("\"} ")
+          .append(cumulative)
+          .append('\n');
+    }
+    out.append(name).append("_sum{");
+    label(out, label, labelValue);
+    out.append("} ").append(h.getTotalMicros() / 1e6).append('\n');
+    out.append(name).append("_count{");
+    label(out, label, labelValue);
+    out.append("} ").append(cumulative).append('\n');
+  }
+
+  private static void label(StringBuilder out, String label, String value) {
+    out.append(label).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which class and method each command runs, so that sessions do not have to look up the
+ * alias, load the class and find its entry point by reflection on every invocation. Entries are
+ * invalidated when Aliases change, when the way commands are resolved changes or when {@link
+ * NGSession#classLoader} is replaced.
+ */
+final class NGNailDispatchCache implements NGAliasListener {
+
+  /** The entry point of a command */
+  static final class Entry {
+    private final Class<?> nailClass;
+    private final Method method;
+    private final boolean isStaticNail;
+    private final boolean takesContext;
+    private final ClassLoader classLoader;
+    private final long generation;
+    private final long timeoutMillis;
+
+    /**
+     * @param nailClass the class the command runs
+     * @param method nailMain(NGContext), main(String[]) or, for a {@link NonStaticNail},
+     *     nailMain(String[])
+     * @param isStaticNail false if the method must be called on a new instance of nailClass
+     * @param takesContext true if the method takes an {@link NGContext}
+     * @param classLoader {@link NGSession#classLoader} when the command was resolved
+     * @param generation {@link #getGeneration()} before the command was resolved
+     * @param timeoutMillis timeout of the Alias of the command, 0 if it has none
+     */
+    Entry(
+        Class<?> nailClass,
+        Method method,
+        boolean isStaticNail,
+        boolean takesContext,
+        ClassLoader classLoader,
+        long generation,
+        long timeoutMillis) {
+      this.nailClass = nailClass;
+      this.method = method;
+      this.isStaticNail = isStaticNail;
+      this.takesContext = takesContext;
+      this.classLoader = classLoader;
+      this.generation = generation;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    Class<?> getNailClass() {
+      return nailClass;
+    }
+
+    Method getMethod() {
+      return method;
+    }
+
+    boolean isStaticNail() {
+      return isStaticNail;
+    }
+
+    boolean takesContext() {
+      return takesContext;
+    }
+
+    long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+  }
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Incremented on every invalidation. An entry resolved before an invalidation may be stored after
+   * it, so entries are only returned if they were resolved in the current generation.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /** @return the value to pass to {@link Entry} for a command about to be resolved */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param command the alias or class name sent by the client
+   * @return the entry point of the command, or null if it needs to be resolved
+   */
+  Entry get(String command) {
+    Entry entry = entries.get(command);
+    if (entry == null
+        || entry.generation != generation.get()
+        || entry.classLoader != NGSession.classLoader) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * @param command the alias or class name sent by the client
+   * @param entry its entry point
+   */
+  void put(String command, Entry entry) {
+    entries.put(command, entry);
+  }
+
+  /** Forgets all entries, i.e. after a change to the way commands are resolved. */
+  void invalidateAll() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  public void aliasesChanged(Set<String> aliasNames) {
+    generation.incrementAndGet();
+    entries.keySet().removeAll(aliasNames);
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+/**
+ * What a nail writing to stdout or stderr should do when the client reads slower than the nail
+ * writes and the per-connection output queue is full.
+ */
+public enum NGOutputPolicy {
+  /** Wait until the client has read enough output. This is the default. */
+  BLOCK,
+  /** Throw away stderr output, wait for stdout as with {@link #BLOCK} */
+  DROP_STDERR,
+  /**
+   * Append output to a temporary file, which is sent to the client after the queue. Nails never
+   * wait, at the cost of disk space.
+   */
+  SPILL
+}
@@ -61,4 +61,10 @@ class NGOutputStream extends OutputStream {
   public void write(byte[] b, int offset, int len) throws IOException {
     communicator.send(streamCode, b, offset, len);
   }
+
+  /** Blocks until everything written so far has been sent to the client */
+  @Override
+  public void flush() throws IOException {
+    communicator.flush();
+  }
 }
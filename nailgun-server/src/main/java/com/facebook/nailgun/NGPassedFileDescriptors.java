@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import com.sun.jna.LastErrorException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The stdin, stdout and stderr of a client, passed to the server over a Unix domain socket, so that
+ * nails read and write them with plain system calls instead of through stdio chunks. Reads and
+ * writes share the file offsets of the client, just like a child process of the client would.
+ *
+ * <p>The file descriptors must be closed before the exit code is sent, otherwise whoever reads the
+ * client's output through a pipe would wait for the server to close it.
+ */
+final class NGPassedFileDescriptors implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(NGPassedFileDescriptors.class.getName());
+
+  /** Passed file descriptors by client stdio number, null if the client did not pass it */
+  private final ReferenceCountedFileDescriptor[] fds = new ReferenceCountedFileDescriptor[3];
+
+  private NGPassedFileDescriptors() {}
+
+  /**
+   * Takes the file descriptors a client has passed along with the command context.
+   *
+   * @param socket the socket the command context was read from
+   * @param env client environment, naming the passed file descriptors in {@link
+   *     NGConstants#PASSED_FDS_ENV}
+   * @return the passed file descriptors, or null if the client did not pass any or they do not
+   *     match what it announced
+   */
+  static NGPassedFileDescriptors take(NGUnixDomainSocket socket, Properties env) {
+    int[] received = socket.takeReceivedFileDescriptors();
+    String announced = env == null ? null : env.getProperty(NGConstants.PASSED_FDS_ENV);
+    NGPassedFileDescriptors result = new NGPassedFileDescriptors();
+    try {
+      String[] stdioNumbers = announced == null ? new String[0] : announced.split(",");
+      if (stdioNumbers.length != received.length) {
+        throw new IllegalArgumentException(
+            received.length + " file descriptors passed, expected " + stdioNumbers.length);
+      }
+      for (int i = 0; i < received.length; i++) {
+        int stdio = Integer.parseInt(stdioNumbers[i].trim());
+        if (stdio < 0 || stdio >= result.fds.length || result.fds[stdio] != null) {
+          throw new IllegalArgumentException("Invalid stdio number " + stdio);
+        }
+        result.fds[stdio] = new ReferenceCountedFileDescriptor(received[i]);
+        received[i] = -1;
+      }
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Ignoring file descriptors passed by client: {0}", e.getMessage());
+      result.close();
+      closeAll(received);
+      return null;
+    }
+    return received.length == 0 ? null : result;
+  }
+
+  private static void closeAll(int[] fds) {
+    for (int fd : fds) {
+      if (fd != -1) {
+        try {
+          NGUnixDomainSocketLibrary.close(fd);
+        } catch (LastErrorException e) {
+          // nothing we can do about it
+        }
+      }
+    }
+  }
+
+  /**
+   * @param fallback stream to use if the client did not pass its stdin
+   * @return a stream reading the client's stdin
+   */
+  InputStream getInputStream(InputStream fallback) {
+    return fds[0] == null ? fallback : new PassedInputStream(fds[0]);
+  }
+
+  /**
+   * @param stdio 1 for stdout, 2 for stderr
+   * @param fallback stream to use if the client did not pass that file descriptor
+   * @return a stream writing to the client's stdout or stderr
+   */
+  PrintStream getPrintStream(int stdio, PrintStream fallback) {
+    return fds[stdio] == null ? fallback : new PrintStream(new PassedOutputStream(fds[stdio]));
+  }
+
+  /** @return true if the client passed the specified stdio file descriptor */
+  boolean isPassed(int stdio) {
+    return fds[stdio] != null;
+  }
+
+  /**
+   * Copies a file to the client's stdout or stderr. On Linux the kernel copies it with sendfile(2),
+   * without going through the Java heap, if the client's file descriptor allows it.
+   *
+   * @param stdio 1 for stdout, 2 for stderr, which must have been passed
+   * @param path the file to copy
+   * @return number of bytes copied
+   */
+  long sendFile(int stdio, Path path) throws IOException {
+    ReferenceCountedFileDescriptor fd = fds[stdio];
+    if (NGUnixDomainSocketLibrary.canSendFile()) {
+      int fileFd;
+      try {
+        fileFd =
+            NGUnixDomainSocketLibrary.open(path.toString(), NGUnixDomainSocketLibrary.O_RDONLY);
+      } catch (LastErrorException e) {
+        throw new IOException("Unable to open " + path, e);
+      }
+      try {
+        int outFd = fd.acquire();
+        if (outFd == -1) {
+          throw new IOException("Client file descriptor is closed");
+        }
+        return NGUnixDomainSocketLibrary.sendFile(outFd, fileFd, Files.size(path));
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != NGUnixDomainSocketLibrary.EINVAL) {
+          throw new IOException(e);
+        }
+        // sendfile(2) does not support this kind of file descriptor, i.e. on older kernels
+      } finally {
+        fd.release();
+        try {
+          NGUnixDomainSocketLibrary.close(fileFd);
+        } catch (LastErrorException e) {
+          LOG.log(Level.FINE, "Unable to close " + path, e);
+        }
+      }
+    }
+    return Files.copy(path, new PassedOutputStream(fd));
+  }
+
+  /** Closes the passed file descriptors, once no nail thread is blocked reading or writing them */
+  public void close() {
+    for (int i = 0; i < fds.length; i++) {
+      if (fds[i] != null) {
+        try {
+          fds[i].close();
+        } catch (IOException e) {
+          LOG.log(Level.FINE, "Unable to close passed file descriptor", e);
+        }
+        fds[i] = null;
+      }
+    }
+  }
+
+  private static class PassedInputStream extends InputStream {
+    private final ReferenceCountedFileDescriptor fd;
+
+    PassedInputStream(ReferenceCountedFileDescriptor fd) {
+      this.fd = fd;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      try {
+        int fdToRead = fd.acquire();
+        if (fdToRead == -1) {
+          return -1;
+        }
+        while (true) {
+          try {
+            int result =
+                NGUnixDomainSocketLibrary.read(fdToRead, ByteBuffer.wrap(b, off, len), len);
+            return result == 0 ? -1 : result;
+          } catch (LastErrorException e) {
+            if (e.getErrorCode() != NGUnixDomainSocketLibrary.EINTR) {
+              throw new IOException(e);
+            }
+          }
+        }
+      } finally {
+        fd.release();
+      }
+    }
+  }
+
+  private static class PassedOutputStream extends OutputStream {
+    private final ReferenceCountedFileDescriptor fd;
+
+    PassedOutputStream(ReferenceCountedFileDescriptor fd) {
+      this.fd = fd;
+    }
+
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        int fdToWrite = fd.acquire();
+        if (fdToWrite == -1) {
+          throw new IOException("Client file descriptor is closed");
+        }
+        // pipes and files may take fewer bytes than asked for
+        while (len > 0) {
+          try {
+            int written =
+                NGUnixDomainSocketLibrary.write(fdToWrite, ByteBuffer.wrap(b, off, len), len);
+            off += written;
+            len -= written;
+          } catch (LastErrorException e) {
+            if (e.getErrorCode() != NGUnixDomainSocketLibrary.EINTR) {
+              throw new IOException(e);
+            }
+          }
+        }
+      } finally {
+        fd.release();
+      }
+    }
+  }
+}
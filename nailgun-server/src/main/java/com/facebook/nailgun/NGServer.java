@@ -18,19 +18,32 @@
 package com.facebook.nailgun;
 
 import com.facebook.nailgun.builtins.DefaultNail;
-import com.sun.jna.Platform;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,11 +62,158 @@ public class NGServer implements Runnable {
   /** Default size for thread pool */
   public static final int DEFAULT_SESSIONPOOLSIZE = 2;
 
-  /** The address on which to listen */
-  private final NGListeningAddress listeningAddress;
+  /** Default time a cancelled nail has to return before its session is abandoned */
+  public static final long DEFAULT_CANCELLATION_GRACE_PERIOD_MILLIS = 10000;
 
-  /** The socket doing the listening */
-  private ServerSocket serversocket;
+  /**
+   * System property read by {@link #main(String[])} to serve metrics over HTTP, in the form "port",
+   * bound to the loopback address, or "IPAddress:port"
+   */
+  public static final String METRICS_ADDRESS_PROPERTY = "nailgun.metrics.address";
+
+  /**
+   * System property read by {@link #main(String[])} to set the {@link NGOutputPolicy}, i.e. "spill"
+   */
+  public static final String OUTPUT_POLICY_PROPERTY = "nailgun.output.policy";
+
+  /** System property read by {@link #main(String[])} to set the output queue capacity in bytes */
+  public static final String OUTPUT_QUEUE_CAPACITY_PROPERTY = "nailgun.output.queueCapacity";
+
+  /**
+   * System property read by {@link #main(String[])} to set how long, in milliseconds, the exit code
+   * waits for a client which does not read its output
+   */
+  public static final String OUTPUT_WRITE_TIMEOUT_PROPERTY = "nailgun.output.writeTimeout";
+
+  /**
+   * System property read by {@link #main(String[])}; set it to true to compress output for clients
+   * that ask for it
+   */
+  public static final String COMPRESSION_PROPERTY = "nailgun.compression";
+
+  /**
+   * System property read by {@link #main(String[])}; set it to true to use the stdio file
+   * descriptors passed by clients over local sockets
+   */
+  public static final String FD_PASSING_PROPERTY = "nailgun.fdPassing";
+
+  /**
+   * System property read by {@link #main(String[])}; set it to true to load the classes of all
+   * aliases in the background once the server has started, instead of on their first use
+   */
+  public static final String PRELOAD_ALIASES_PROPERTY = "nailgun.preloadAliases";
+
+  /**
+   * System property read by {@link #main(String[])}: path of a configuration file to watch, see
+   * {@link #setConfigFile(Path)}
+   */
+  public static final String CONFIG_FILE_PROPERTY = "nailgun.config";
+
+  /**
+   * System property read by {@link #main(String[])}; set it to false to intercept System.exit()
+   * calls of nails with a security manager even when {@link NGExitAgent} is loaded, see {@link
+   * #setExitAgentEnabled(boolean)}
+   */
+  public static final String EXIT_AGENT_PROPERTY = "nailgun.exitAgent";
+
+  /**
+   * System property read by {@link #main(String[])}; set it to true to interrupt nails whose client
+   * disconnects, see {@link #setCancelOnDisconnect(boolean)}
+   */
+  public static final String CANCEL_ON_DISCONNECT_PROPERTY = "nailgun.cancelOnDisconnect";
+
+  /**
+   * System property read by {@link #main(String[])}: milliseconds a cancelled nail has to return
+   * before its session is abandoned
+   */
+  public static final String CANCELLATION_GRACE_PERIOD_PROPERTY = "nailgun.cancelGracePeriod";
+
+  /**
+   * System property read by {@link #main(String[])}: bytes a nail may allocate on the heap before
+   * it is cancelled, see {@link #setAllocationBudgetBytes(long)}
+   */
+  public static final String ALLOCATION_BUDGET_PROPERTY = "nailgun.allocationBudget";
+
+  /**
+   * System property read by {@link #main(String[])}: milliseconds a nail may run before it is
+   * cancelled, see {@link #setNailTimeoutMillis(long)}
+   */
+  public static final String TIMEOUT_PROPERTY = "nailgun.timeout";
+
+  /** Default time running nails get to finish when the server stops or is taken over */
+  public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+  /**
+   * System property read by {@link #main(String[])}: milliseconds running nails get to finish when
+   * the JVM shuts down, see {@link #setDrainTimeoutMillis(long)}
+   */
+  public static final String DRAIN_TIMEOUT_PROPERTY = "nailgun.drainTimeout";
+
+  /**
+   * System property read by {@link #main(String[])}: path of a Unix domain socket over which a new
+   * server takes the listening sockets over from a running one, see {@link
+   * #setHandoffSocketPath(String)}
+   */
+  public static final String HANDOFF_SOCKET_PROPERTY = "nailgun.handoffSocket";
+
+  /** How often a draining server logs the nails it is waiting for */
+  static final long DRAIN_PROGRESS_INTERVAL_MILLIS = 1000;
+
+  /** How often a draining server checks whether its nails are done */
+  private static final long DRAIN_POLL_INTERVAL_MILLIS = 20;
+
+  /**
+   * Maximum number of idle sessions, read by {@link #main(String[])} and by the configuration file
+   */
+  public static final String MAX_IDLE_SESSIONS_PROPERTY = "nailgun.maxIdleSessions";
+
+  /**
+   * Whether nails can be run by class name, read by {@link #main(String[])} and by the
+   * configuration file
+   */
+  public static final String ALLOW_NAILS_BY_CLASS_NAME_PROPERTY = "nailgun.allowNailsByClassName";
+
+  /**
+   * System property read by {@link #main(String[])}; number of sockets bound with SO_REUSEPORT,
+   * each with its own acceptor thread, for every TCP address (see {@link #setAcceptorCount(int)})
+   */
+  public static final String ACCEPTORS_PROPERTY = "nailgun.acceptors";
+
+  /**
+   * System property read by {@link #main(String[])}; maximum length of the queue of pending
+   * connections of each listening socket (see {@link #setBacklog(int)})
+   */
+  public static final String BACKLOG_PROPERTY = "nailgun.backlog";
+
+  /**
+   * System properties read by {@link #main(String[])} to configure TCP connections, see {@link
+   * NGSocketOptions}
+   */
+  public static final String TCP_NODELAY_PROPERTY = "nailgun.tcpNoDelay";
+
+  public static final String KEEPALIVE_PROPERTY = "nailgun.keepAlive";
+
+  public static final String SEND_BUFFER_SIZE_PROPERTY = "nailgun.sendBufferSize";
+
+  public static final String RECEIVE_BUFFER_SIZE_PROPERTY = "nailgun.receiveBufferSize";
+
+  /** The addresses to listen on */
+  private final List<NGListeningAddress> listeningAddresses;
+
+  /** The sockets doing the listening, one listener for each address, set once started */
+  private volatile List<NGListener> listeners = Collections.emptyList();
+
+  /** Number of SO_REUSEPORT sockets and acceptor threads for each TCP address */
+  private int acceptorCount = 1;
+
+  /** Maximum length of the queue of pending connections of each socket, 0 for the default */
+  private int backlog = 0;
+
+  /** Options applied to accepted TCP connections */
+  private final NGSocketOptions socketOptions = new NGSocketOptions();
+
+  /** First failure to accept a connection, which brings the server down */
+  private final AtomicReference<IOException> acceptFailure = new AtomicReference<>();
 
   /** True if this NGServer has received instructions to shut down */
   private final AtomicBoolean shutdown = new AtomicBoolean(false);
@@ -61,14 +221,32 @@ public class NGServer implements Runnable {
   /** True if this NGServer has been started and is accepting connections */
   private final AtomicBoolean running = new AtomicBoolean(false);
 
+  /** Released when {@link #run()} returns */
+  private final CountDownLatch terminated = new CountDownLatch(1);
+
+  /** True once this NGServer has been told to drain */
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+
+  /** System.nanoTime() until which a draining server waits for its nails */
+  private volatile long drainDeadlineNanos = 0;
+
+  /** Server that a draining server relays new connections to, null if none */
+  private volatile NGListeningAddress handoffAddress = null;
+
+  /** Connections currently relayed to the handoff address */
+  private final Set<NGConnectionRelay> relays = ConcurrentHashMap.newKeySet();
+
   /** This NGServer's AliasManager, which maps aliases to classes */
   private final AliasManager aliasManager;
 
+  /** Entry points of recently run commands, invalidated when aliases change */
+  private final NGNailDispatchCache nailDispatchCache = new NGNailDispatchCache();
+
   /** If true, fully-qualified classnames are valid commands */
-  private boolean allowNailsByClassName = true;
+  private volatile boolean allowNailsByClassName = true;
 
   /** The default class to use if an invalid alias or classname is specified by the client. */
-  private Class defaultNailClass = DefaultNail.class;
+  private volatile Class defaultNailClass = DefaultNail.class;
 
   /** A pool of NGSessions ready to handle client connections */
   private final NGSessionPool sessionPool;
@@ -85,9 +263,102 @@ public class NGServer implements Runnable {
   /** a collection of all classes executed by this server so far */
   private final Map<String, NailStats> allNailStats;
 
+  /** number of nails currently running */
+  private final AtomicInteger activeNails = new AtomicInteger();
+
+  /** number of connections accepted so far */
+  private final LongAdder acceptedConnections = new LongAdder();
+
+  /** number of connections relayed to the handoff address so far */
+  private final LongAdder handedOffConnections = new LongAdder();
+
+  /** number of connections accepted but not yet picked up by a session */
+  private final AtomicInteger queuedConnections = new AtomicInteger();
+
+  /** number of clients that disconnected while their nail was running, by reason */
+  private final Map<NGClientDisconnectReason, LongAdder> clientDisconnects;
+
+  /** stdin bytes received from and stdout/stderr bytes sent to clients of finished sessions */
+  private final LongAdder bytesReceived = new LongAdder();
+
+  private final LongAdder bytesSent = new LongAdder();
+
+  private final LongAdder bytesDiscarded = new LongAdder();
+
+  private final LongAdder bytesSpilled = new LongAdder();
+
+  /** finished sessions that negotiated compression, and their bytes before and after compression */
+  private final LongAdder compressedConnections = new LongAdder();
+
+  private final LongAdder compressionRawBytesSent = new LongAdder();
+
+  private final LongAdder compressionWireBytesSent = new LongAdder();
+
+  private final LongAdder compressionRawBytesReceived = new LongAdder();
+
+  private final LongAdder compressionWireBytesReceived = new LongAdder();
+
+  /** Parsed argfiles, shared by all sessions */
+  private final NGArgfileCache argfileCache =
+      new NGArgfileCache(NGArgfileCache.DEFAULT_CAPACITY_BYTES);
+
+  /** If true, output is compressed for clients that ask for it */
+  private volatile boolean compressionEnabled = false;
+
+  /** If true, nails use the stdio file descriptors passed by clients over local sockets */
+  private volatile boolean fileDescriptorPassingEnabled = false;
+
+  /** What to do with output of nails when a client does not read it fast enough */
+  private volatile NGOutputPolicy outputPolicy = NGOutputPolicy.BLOCK;
+
+  /** Number of bytes of output that may be queued for a client before outputPolicy applies */
+  private volatile int outputQueueCapacity = NGChunkWriter.DEFAULT_CAPACITY;
+
+  /** How long the exit code waits for a client which does not read its output, 0 for no limit */
+  private volatile long outputWriteTimeoutMillis = NGChunkWriter.DEFAULT_WRITE_TIMEOUT_MILLIS;
+
+  /** If true, nails are interrupted when their client disconnects */
+  private volatile boolean cancelOnDisconnect = false;
+
+  /** Time an interrupted nail has to return before its session is abandoned */
+  private volatile long cancellationGracePeriodMillis = DEFAULT_CANCELLATION_GRACE_PERIOD_MILLIS;
+
+  /** Bytes a nail may allocate before it is cancelled, 0 for no limit */
+  private volatile long allocationBudgetBytes = 0;
+
+  /** Milliseconds a nail may run before it is cancelled, unless its Alias or client override it */
+  private volatile long nailTimeoutMillis = 0;
+
+  /** Address to serve metrics on, or null to not serve them */
+  private InetSocketAddress metricsAddress = null;
+
+  /** Serves metrics while the server is running, if metricsAddress is set */
+  private NGMetricsServer metricsServer = null;
+
+  /** Configuration file to watch, or null */
+  private Path configFile = null;
+
+  /** Applies changes of the configuration file while the server runs */
+  private NGConfigFile configWatcher = null;
+
+  /** Control socket to take listening sockets over from a running server and to hand them over */
+  private String handoffSocketPath = null;
+
+  /** Time nails get to finish when the server stops or is taken over */
+  private volatile long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+
+  /** latency histograms for each phase of all invocations, populated once and never modified */
+  private final Map<NGInvocationPhase, NGLatencyHistogram> phaseHistograms;
+
   /** Remember the security manager we start with so we can restore it later */
   private SecurityManager originalSecurityManager = null;
 
+  /** Whether to intercept exits with {@link NGExitAgent} when it is installed */
+  private boolean exitAgentEnabled = true;
+
+  /** Whether the running server intercepts exits with {@link NGExitAgent} */
+  private boolean interceptingWithExitAgent = false;
+
   private final int heartbeatTimeoutMillis;
 
   /**
@@ -141,10 +412,39 @@ public class NGServer implements Runnable {
    *     disconnecting them
    */
   public NGServer(NGListeningAddress listeningAddress, int sessionPoolSize, int timeoutMillis) {
-    this.listeningAddress = listeningAddress;
+    this(Collections.singletonList(listeningAddress), sessionPoolSize, timeoutMillis);
+  }
+
+  /**
+   * Creates a new NGServer that will listen at all the specified addresses with the specified
+   * session pool size, i.e. on a local socket and a TCP port. Each address gets its own acceptor
+   * thread; sessions, aliases and statistics are shared. This does <b>not</b> cause the server to
+   * start listening. To do so, create a new <code>Thread</code> wrapping this <code>NGServer</code>
+   * and start it.
+   *
+   * @param listeningAddresses the addresses at which to listen, at least one
+   * @param sessionPoolSize the max number of idle sessions allowed by the pool
+   * @param timeoutMillis timeout in millis to wait for a heartbeat from the client before
+   *     disconnecting them
+   */
+  public NGServer(
+      List<NGListeningAddress> listeningAddresses, int sessionPoolSize, int timeoutMillis) {
+    if (listeningAddresses.isEmpty()) {
+      throw new IllegalArgumentException("At least one listening address is required");
+    }
+    this.listeningAddresses = Collections.unmodifiableList(new ArrayList<>(listeningAddresses));
 
     aliasManager = new AliasManager();
-    allNailStats = new HashMap();
+    aliasManager.addAliasListener(nailDispatchCache);
+    allNailStats = new ConcurrentHashMap<>();
+    clientDisconnects = new EnumMap<>(NGClientDisconnectReason.class);
+    for (NGClientDisconnectReason reason : NGClientDisconnectReason.values()) {
+      clientDisconnects.put(reason, new LongAdder());
+    }
+    phaseHistograms = new EnumMap<>(NGInvocationPhase.class);
+    for (NGInvocationPhase phase : NGInvocationPhase.values()) {
+      phaseHistograms.put(phase, new NGLatencyHistogram());
+    }
     // allow a maximum of 10 idle threads.  probably too high a number
     // and definitely should be configurable in the future
     sessionPool = new NGSessionPool(this, sessionPoolSize);
@@ -160,6 +460,7 @@ public class NGServer implements Runnable {
    */
   public void setAllowNailsByClassName(boolean allowNailsByClassName) {
     this.allowNailsByClassName = allowNailsByClassName;
+    nailDispatchCache.invalidateAll();
   }
 
   /**
@@ -185,6 +486,7 @@ public class NGServer implements Runnable {
       throw new IllegalArgumentException("defaultNailClass");
     }
     this.defaultNailClass = defaultNailClass;
+    nailDispatchCache.invalidateAll();
   }
 
   /**
@@ -203,14 +505,10 @@ public class NGServer implements Runnable {
    * @return a NailStats object for the specified class
    */
   private NailStats getOrCreateStatsFor(Class nailClass) {
-    NailStats result;
-    synchronized (allNailStats) {
-      String nailClassName = nailClass.getName();
-      result = allNailStats.get(nailClassName);
-      if (result == null) {
-        result = new NailStats(nailClassName);
-        allNailStats.put(nailClassName, result);
-      }
+    String nailClassName = nailClass.getName();
+    NailStats result = allNailStats.get(nailClassName);
+    if (result == null) {
+      result = allNailStats.computeIfAbsent(nailClassName, NailStats::new);
     }
     return result;
   }
@@ -223,6 +521,7 @@ public class NGServer implements Runnable {
   void nailStarted(Class nailClass) {
     NailStats stats = getOrCreateStatsFor(nailClass);
     stats.nailStarted();
+    activeNails.incrementAndGet();
   }
 
   /**
@@ -230,10 +529,95 @@ public class NGServer implements Runnable {
    * server.
    *
    * @param nailClass the nail class that finished
+   * @param executionNanos how long the nail ran, in nanoseconds
+   * @param cpuNanos CPU time used by the session thread running the nail, -1 if not measured
+   * @param allocatedBytes bytes allocated by the session thread running the nail, -1 if not
+   *     measured
    */
-  void nailFinished(Class nailClass) {
+  void nailFinished(Class<?> nailClass, long executionNanos, long cpuNanos, long allocatedBytes) {
     NailStats stats = getOrCreateStatsFor(nailClass);
-    stats.nailFinished();
+    stats.nailFinished(executionNanos, cpuNanos, allocatedBytes);
+    activeNails.decrementAndGet();
+  }
+
+  /**
+   * Provides a means for an NGSession to register that a nail was interrupted because its client
+   * disconnected or it exceeded its allocation budget.
+   *
+   * @param nailClass the nail class that was cancelled
+   */
+  void nailCancelled(Class<?> nailClass) {
+    getOrCreateStatsFor(nailClass).nailCancelled();
+  }
+
+  /**
+   * Provides a means for an NGSession to register that a nail was cancelled because it allocated
+   * more than the allocation budget.
+   *
+   * @param nailClass the nail class that exceeded the budget
+   */
+  void nailOverBudget(Class<?> nailClass) {
+    getOrCreateStatsFor(nailClass).nailOverBudget();
+  }
+
+  /**
+   * Provides a means for an NGSession to register that a nail was cancelled because it ran longer
+   * than its timeout.
+   *
+   * @param nailClass the nail class that timed out
+   */
+  void nailTimedOut(Class<?> nailClass) {
+    getOrCreateStatsFor(nailClass).nailTimedOut();
+  }
+
+  /**
+   * Provides a means for an NGSession to register that a cancelled nail did not return within the
+   * grace period and its session was abandoned.
+   *
+   * @param nailClass the nail class that was abandoned
+   */
+  void nailAbandoned(Class<?> nailClass) {
+    getOrCreateStatsFor(nailClass).nailAbandoned();
+  }
+
+  /**
+   * Provides a means for an NGSession to register CPU time a nail spent after it was cancelled.
+   *
+   * @param nailClass the nail class that kept running
+   * @param cpuNanos the CPU time, in nanoseconds
+   */
+  void nailWastedCpu(Class<?> nailClass, long cpuNanos) {
+    getOrCreateStatsFor(nailClass).addWastedCpuNanos(cpuNanos);
+  }
+
+  /** Provides a means for an NGSession to register it has picked up an accepted connection. */
+  void connectionDequeued() {
+    queuedConnections.decrementAndGet();
+  }
+
+  /**
+   * Provides a means for an NGSession to register the end of a client connection with the server.
+   *
+   * @param comm the communicator of the connection, to collect its byte counts and disconnect
+   *     reason from
+   */
+  void connectionFinished(NGCommunicator comm) {
+    bytesReceived.add(comm.getBytesReceived());
+    bytesSent.add(comm.getBytesSent());
+    bytesDiscarded.add(comm.getBytesDiscarded());
+    bytesSpilled.add(comm.getBytesSpilled());
+    NGClientDisconnectReason disconnectReason = comm.getDisconnectReason();
+    if (disconnectReason != null) {
+      clientDisconnects.get(disconnectReason).increment();
+    }
+    NGDeflateCodec compression = comm.getCompression();
+    if (compression != null) {
+      compressedConnections.increment();
+      compressionRawBytesSent.add(compression.getRawBytesSent());
+      compressionWireBytesSent.add(compression.getWireBytesSent());
+      compressionRawBytesReceived.add(compression.getRawBytesReceived());
+      compressionWireBytesReceived.add(compression.getWireBytesReceived());
+    }
   }
 
   /**
@@ -244,11 +628,261 @@ public class NGServer implements Runnable {
    */
   public Map<String, NailStats> getNailStats() {
     Map<String, NailStats> result = new TreeMap();
-    synchronized (allNailStats) {
-      for (Map.Entry<String, NailStats> entry : allNailStats.entrySet()) {
-        result.put(entry.getKey(), (NailStats) entry.getValue().clone());
+    for (Map.Entry<String, NailStats> entry : allNailStats.entrySet()) {
+      result.put(entry.getKey(), (NailStats) entry.getValue().clone());
+    }
+    return result;
+  }
+
+  /** @return number of nails currently running */
+  public int getActiveNailCount() {
+    return activeNails.get();
+  }
+
+  /** @return number of client connections accepted so far */
+  public long getAcceptedConnectionCount() {
+    return acceptedConnections.sum();
+  }
+
+  /** @return the addresses this server listens on, in the order they were given */
+  public List<NGListeningAddress> getListeningAddresses() {
+    return listeningAddresses;
+  }
+
+  /** @return the listeners of the running server, empty before it starts */
+  List<NGListener> getListeners() {
+    return listeners;
+  }
+
+  /**
+   * @param listeningAddress one of {@link #getListeningAddresses()}
+   * @return number of client connections accepted on that address so far, 0 if it is not one of
+   *     this server's
+   */
+  public long getAcceptedConnectionCount(NGListeningAddress listeningAddress) {
+    for (NGListener listener : this.listeners) {
+      if (listener.getListeningAddress() == listeningAddress) {
+        return listener.getAcceptedConnectionCount();
       }
     }
+    return 0;
+  }
+
+  /** @return number of client connections relayed to another server while draining so far */
+  public long getHandedOffConnectionCount() {
+    return handedOffConnections.sum();
+  }
+
+  /** @return number of client connections currently relayed to another server */
+  public int getRelayedConnectionCount() {
+    return relays.size();
+  }
+
+  /** @return number of client connections accepted but not yet picked up by a session */
+  public int getQueuedConnectionCount() {
+    return queuedConnections.get();
+  }
+
+  /** @return number of sessions waiting for a client connection */
+  public int getIdleSessionCount() {
+    return sessionPool.getIdleCount();
+  }
+
+  /** @return number of sessions serving a client connection */
+  public int getWorkingSessionCount() {
+    return sessionPool.getWorkingCount();
+  }
+
+  /** @return number of sessions left to a nail that did not return after being cancelled */
+  public int getAbandonedSessionCount() {
+    return sessionPool.getAbandonedCount();
+  }
+
+  /** @return the maximum number of idle sessions kept by the pool */
+  public int getMaxIdleSessionCount() {
+    return sessionPool.maxIdleSessions;
+  }
+
+  /**
+   * Changes the maximum number of idle sessions kept by the pool. Idle sessions above the new
+   * maximum are stopped, running nails are not affected.
+   *
+   * @param maxIdleSessionCount the maximum number of idle sessions
+   */
+  public void setMaxIdleSessionCount(int maxIdleSessionCount) {
+    sessionPool.setMaxIdleSessions(maxIdleSessionCount);
+  }
+
+  /**
+   * Sets a configuration file to load when the server starts and to reload whenever it changes, so
+   * that aliases and settings can be changed without restarting the server. Must be called before
+   * the server is started. See {@link NGConfigFile} for the format.
+   *
+   * @param configFile path of the configuration file, or null for none
+   */
+  public void setConfigFile(Path configFile) {
+    this.configFile = configFile;
+  }
+
+  /** @return the configuration file watched by this server, or null */
+  public Path getConfigFile() {
+    return configFile;
+  }
+
+  /**
+   * Sets a control socket over which this server takes the Unix domain sockets it listens on over
+   * from a running server, if one was started with the same control socket, and hands them over to
+   * the next one, so that a new server process replaces an old one without refusing any connection.
+   * The old server then drains, see {@link #setDrainTimeoutMillis(long)}. Must be called before the
+   * server is started. See {@link NGHandoff} for details.
+   *
+   * @param handoffSocketPath path of the control socket, or null for none
+   * @throws UnsupportedOperationException if the platform cannot pass sockets to other processes
+   */
+  public void setHandoffSocketPath(String handoffSocketPath) {
+    if (handoffSocketPath != null && !NGHandoff.isSupported()) {
+      throw new UnsupportedOperationException("Handing sockets over is not supported here");
+    }
+    this.handoffSocketPath = handoffSocketPath;
+  }
+
+  /** @return the control socket to take listening sockets over and hand them over, or null */
+  public String getHandoffSocketPath() {
+    return handoffSocketPath;
+  }
+
+  /** @return time nails get to finish when the server stops or is taken over, in milliseconds */
+  public long getDrainTimeoutMillis() {
+    return drainTimeoutMillis;
+  }
+
+  /**
+   * Sets how long running nails get to finish when the JVM shuts down or another server takes this
+   * one over, see {@link #drain(long, NGListeningAddress)}.
+   *
+   * @param drainTimeoutMillis the timeout in milliseconds
+   */
+  public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+    if (drainTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Drain timeout can't be negative");
+    }
+    this.drainTimeoutMillis = drainTimeoutMillis;
+  }
+
+  /**
+   * Returns the number of clients that disconnected while their nail was running, by reason.
+   * Sessions terminated by the server itself are not included.
+   *
+   * @return a snapshot of the client disconnect counters
+   */
+  public Map<NGClientDisconnectReason, Long> getClientDisconnectCounts() {
+    Map<NGClientDisconnectReason, Long> result = new EnumMap<>(NGClientDisconnectReason.class);
+    for (Map.Entry<NGClientDisconnectReason, LongAdder> entry : clientDisconnects.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum());
+    }
+    return result;
+  }
+
+  /** @return total number of stdin bytes received from clients of finished sessions */
+  public long getBytesReceived() {
+    return bytesReceived.sum();
+  }
+
+  /** @return total number of stdout and stderr bytes sent to clients of finished sessions */
+  public long getBytesSent() {
+    return bytesSent.sum();
+  }
+
+  /**
+   * @return total number of stdout and stderr bytes of finished sessions thrown away, because the
+   *     client was gone or because of the {@link NGOutputPolicy}
+   */
+  public long getBytesDiscarded() {
+    return bytesDiscarded.sum();
+  }
+
+  /** @return total number of stdout and stderr bytes of finished sessions spilled to disk */
+  public long getBytesSpilled() {
+    return bytesSpilled.sum();
+  }
+
+  /** @return entry points of commands, shared by all sessions */
+  NGNailDispatchCache getNailDispatchCache() {
+    return nailDispatchCache;
+  }
+
+  /** @return parsed argfiles, shared by all sessions */
+  NGArgfileCache getArgfileCache() {
+    return argfileCache;
+  }
+
+  /** @return number of argfiles expanded from the cache, without reading them */
+  public long getArgfileCacheHitCount() {
+    return argfileCache.getHitCount();
+  }
+
+  /** @return number of argfiles that were read because they were not cached or had changed */
+  public long getArgfileCacheMissCount() {
+    return argfileCache.getMissCount();
+  }
+
+  /** @return number of finished sessions that negotiated compression */
+  public long getCompressedConnectionCount() {
+    return compressedConnections.sum();
+  }
+
+  /** @return total number of stdout and stderr bytes compressed for finished sessions */
+  public long getCompressionRawBytesSent() {
+    return compressionRawBytesSent.sum();
+  }
+
+  /** @return total number of compressed stdout and stderr bytes produced for finished sessions */
+  public long getCompressionWireBytesSent() {
+    return compressionWireBytesSent.sum();
+  }
+
+  /** @return total number of stdin bytes decompressed for finished sessions */
+  public long getCompressionRawBytesReceived() {
+    return compressionRawBytesReceived.sum();
+  }
+
+  /** @return total number of compressed stdin bytes received from finished sessions */
+  public long getCompressionWireBytesReceived() {
+    return compressionWireBytesReceived.sum();
+  }
+
+  /**
+   * Serves metrics in the Prometheus text format at <code>/metrics</code> on the specified address
+   * (see {@link NGMetricsServer}). Must be called before the server is started.
+   *
+   * @param metricsAddress the address to serve metrics on, or null to not serve them
+   */
+  public void setMetricsAddress(InetSocketAddress metricsAddress) {
+    this.metricsAddress = metricsAddress;
+  }
+
+  /**
+   * Provides a means for an NGSession to report how long a phase of an invocation took. This does
+   * not lock, so it can be called freely from concurrent sessions.
+   *
+   * @param phase the phase that completed
+   * @param nanos duration of the phase in nanoseconds
+   */
+  void phaseCompleted(NGInvocationPhase phase, long nanos) {
+    phaseHistograms.get(phase).record(nanos);
+  }
+
+  /**
+   * Returns a snapshot of the latency histograms of each invocation phase, aggregated over all
+   * nails run by this NGServer.
+   *
+   * @return a snapshot of this NGServer's phase latency histograms
+   */
+  public Map<NGInvocationPhase, NGLatencyHistogram> getPhaseHistograms() {
+    Map<NGInvocationPhase, NGLatencyHistogram> result = new EnumMap<>(NGInvocationPhase.class);
+    for (Map.Entry<NGInvocationPhase, NGLatencyHistogram> entry : phaseHistograms.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().snapshot());
+    }
     return result;
   }
 
@@ -271,8 +905,10 @@ public class NGServer implements Runnable {
   }
 
   /**
-   * Shuts down the server. The server will stop listening and its thread will finish. Any running
-   * nails will be allowed to finish.
+   * Shuts down the server. The server will stop listening and its thread will finish once running
+   * nails, which are interrupted, return, or after {@link
+   * NGConstants#SESSION_TERMINATION_TIMEOUT_MILLIS}. To let them finish first, see {@link
+   * #drain(long, NGListeningAddress)}.
    *
    * <p>Any nails that provide a
    *
@@ -285,12 +921,142 @@ public class NGServer implements Runnable {
       return;
     }
 
-    // NGServer main thread might be blocking on socket in `accept()`, so we close the socket
-    // here to unblock it and finish gracefully
+    // acceptor threads might be blocking on sockets in `accept()`, so we close the sockets
+    // here to unblock them and finish gracefully
+    closeListeners();
+  }
+
+  /**
+   * Shuts the server down gracefully, i.e. for a rolling restart: running nails have up to the
+   * timeout to finish before the server shuts down as with {@link #shutdown()}; the ones still
+   * running then are interrupted, and logged with their stack trace if they do not return. While
+   * waiting, the running nails are logged every second. The function returns immediately, see
+   * {@link #awaitTermination(long)}.
+   *
+   * <p>Without a handoff address, the server stops accepting connections right away. With one, it
+   * keeps accepting them until its nails are done, relaying each one to the server listening on
+   * that address, typically its successor started on another socket. The successor runs the nail,
+   * the connection is relayed until the client or the successor closes it, and the server waits for
+   * relayed connections like for running nails before it shuts down.
+   *
+   * @param timeoutMillis how long to wait for running nails
+   * @param handoffAddress address of the server to relay new connections to, or null
+   */
+  public void drain(long timeoutMillis, NGListeningAddress handoffAddress) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("Drain timeout can't be negative");
+    }
+    if (shutdown.get() || draining.getAndSet(true)) {
+      return;
+    }
+    drainDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.handoffAddress = handoffAddress;
+    Thread monitor =
+        new Thread(
+            () -> {
+              // usually started from a nail, do not log to the stderr of its client
+              if (System.err instanceof ThreadLocalPrintStream) {
+                ((ThreadLocalPrintStream) System.err).init(null);
+              }
+              if (handoffAddress == null) {
+                LOG.log(
+                    Level.INFO, "Draining, waiting up to {0} ms for running nails", timeoutMillis);
+              } else {
+                LOG.log(
+                    Level.INFO,
+                    "Draining, waiting up to {0} ms for running nails and handing new connections "
+                        + "off to {1}",
+                    new Object[] {timeoutMillis, handoffAddress});
+                awaitDrained(false);
+              }
+              shutdown();
+            });
+    monitor.setName("NGServer drain monitor");
+    monitor.setDaemon(true);
+    monitor.start();
+  }
+
+  /** @return true if the server was told to drain, see {@link #drain(long, NGListeningAddress)} */
+  public boolean isDraining() {
+    return draining.get();
+  }
+
+  /**
+   * Waits for the thread running the server to finish.
+   *
+   * @param timeoutMillis how long to wait
+   * @return true if the server has stopped, false if it is still running after the timeout
+   */
+  public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    return terminated.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** @return the nails running at the moment, with the time they have been running for */
+  public List<String> getRunningNails() {
+    List<String> nails = new ArrayList<>();
+    for (NGSession session : sessionPool.getWorkingSessions()) {
+      String nail = session.describeRunningNail();
+      if (nail != null) {
+        nails.add(nail);
+      }
+    }
+    return nails;
+  }
+
+  /**
+   * Waits until no nail is running, nor any connection relayed if requested, or until the drain
+   * deadline, logging progress every {@link #DRAIN_PROGRESS_INTERVAL_MILLIS}.
+   *
+   * @param includeRelays true to wait for relayed connections too
+   */
+  private void awaitDrained(boolean includeRelays) {
+    long nextReportNanos =
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_PROGRESS_INTERVAL_MILLIS);
+    while (sessionPool.getWorkingCount() > 0 || (includeRelays && !relays.isEmpty())) {
+      long now = System.nanoTime();
+      if (now - drainDeadlineNanos >= 0) {
+        return;
+      }
+      if (now - nextReportNanos >= 0) {
+        nextReportNanos = now + TimeUnit.MILLISECONDS.toNanos(DRAIN_PROGRESS_INTERVAL_MILLIS);
+        LOG.log(
+            Level.INFO,
+            "Draining, {0} ms left, {1} connections relayed, running nails: {2}",
+            new Object[] {
+              TimeUnit.NANOSECONDS.toMillis(drainDeadlineNanos - now),
+              relays.size(),
+              getRunningNails()
+            });
+      }
+      try {
+        Thread.sleep(DRAIN_POLL_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /** Relays a connection accepted while draining to the handoff address, see {@link #drain} */
+  private void handOff(Socket socket, NGListeningAddress successor) {
+    NGConnectionRelay relay = new NGConnectionRelay(socket, successor, relays::remove);
+    relays.add(relay);
     try {
-      serversocket.close();
-    } catch (Throwable ex) {
-      LOG.log(Level.WARNING, "Exception closing server socket on Nailgun server shutdown", ex);
+      relay.start();
+      handedOffConnections.increment();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to hand a connection off to " + successor, e);
+      relay.close();
+    }
+  }
+
+  private void closeListeners() {
+    for (NGListener listener : listeners) {
+      try {
+        listener.close();
+      } catch (Throwable ex) {
+        LOG.log(Level.WARNING, "Exception closing server socket on Nailgun server shutdown", ex);
+      }
     }
   }
 
@@ -304,18 +1070,24 @@ public class NGServer implements Runnable {
   }
 
   /**
-   * Returns the port on which this server is (or will be) listening.
+   * Returns the port on which this server is (or will be) listening. With several listening
+   * addresses, this is the port of the first one.
    *
    * @return the port on which this server is (or will be) listening.
    */
   public int getPort() {
-    return (serversocket == null) ? listeningAddress.getInetPort() : serversocket.getLocalPort();
+    List<NGListener> listeners = this.listeners;
+    if (listeners.isEmpty()) {
+      NGListeningAddress first = listeningAddresses.get(0);
+      return first.isInetAddress() ? first.getInetPort() : -1;
+    }
+    return listeners.get(0).getPort();
   }
 
   /** Listens for new connections and launches NGSession threads to process them. */
   public void run() {
-    originalSecurityManager = System.getSecurityManager();
-    System.setSecurityManager(new NGSecurityManager(originalSecurityManager));
+    interceptExits();
+    sessionPool.startAllocationMonitor();
 
     if (!(System.in instanceof ThreadLocalInputStream)) {
       System.setIn(new ThreadLocalInputStream(in));
@@ -327,91 +1099,267 @@ public class NGServer implements Runnable {
       System.setErr(new ThreadLocalPrintStream(err));
     }
 
-    try {
-      if (listeningAddress.isInetAddress()) {
-        if (listeningAddress.getInetAddress() == null) {
-          serversocket = new ServerSocket(listeningAddress.getInetPort());
-        } else {
-          serversocket =
-              new ServerSocket(
-                  listeningAddress.getInetPort(), 0, listeningAddress.getInetAddress());
-        }
-      } else {
-        if (Platform.isWindows()) {
-          boolean requireStrictLength = true;
-          serversocket =
-              new NGWin32NamedPipeServerSocket(
-                  listeningAddress.getLocalAddress(), requireStrictLength);
-        } else {
-          serversocket = new NGUnixDomainServerSocket(listeningAddress.getLocalAddress());
+    NGHandoff handoff = null;
+    Map<String, Integer> inheritedFds = new HashMap<>();
+    if (handoffSocketPath != null) {
+      handoff = new NGHandoff(this, handoffSocketPath);
+      try {
+        inheritedFds.putAll(handoff.takeOver());
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to take over from the server on " + handoffSocketPath, e);
+      }
+    }
+
+    List<NGListener> listeners = new ArrayList<>(listeningAddresses.size());
+    for (NGListeningAddress listeningAddress : listeningAddresses) {
+      NGListener listener = new NGListener(listeningAddress, acceptorCount, backlog, socketOptions);
+      if (listeningAddress.isLocalAddress()) {
+        Integer inheritedFd = inheritedFds.remove(listeningAddress.getLocalAddress());
+        if (inheritedFd != null) {
+          listener.inherit(inheritedFd);
         }
       }
+      listeners.add(listener);
+    }
+    // sockets of the old server that this one does not listen on, the old one closes them
+    NGHandoff.closeSockets(inheritedFds.values());
+    this.listeners = Collections.unmodifiableList(listeners);
+    try {
+      for (NGListener listener : listeners) {
+        listener.open();
+      }
+    } catch (IOException ex) {
+      closeListeners();
+      if (handoff != null) {
+        handoff.close();
+      }
+      terminated.countDown();
+      throw new RuntimeException(ex);
+    }
 
-      String portDescription;
-      if (listeningAddress.isInetAddress() && listeningAddress.getInetPort() == 0) {
+    for (NGListener listener : listeners) {
+      if (listener.getListeningAddress().isInetAddress()
+          && listener.getListeningAddress().getInetPort() == 0) {
         // if the port is 0, it will be automatically determined.
         // add this little wait so the ServerSocket can fully
         // initialize and we can see what port it chose.
-        int runningPort = getPort();
-        while (runningPort == 0) {
+        while (listener.getPort() == 0) {
           try {
             Thread.sleep(50);
           } catch (Throwable toIgnore) {
           }
-          runningPort = getPort();
         }
-        portDescription = ", port " + runningPort;
-      } else {
-        portDescription = "";
       }
+    }
 
-      // at this moment server is capable to accept connections
-      running.set(true);
+    if (metricsAddress != null) {
+      try {
+        metricsServer = new NGMetricsServer(this, metricsAddress);
+        metricsServer.start();
+      } catch (IOException e) {
+        // metrics are not essential, keep serving nails
+        LOG.log(Level.WARNING, "Unable to serve metrics on " + metricsAddress, e);
+        metricsServer = null;
+      }
+    }
 
-      // Only after this point nailgun server is ready to accept connections on all platforms.
-      // test_ng.py on *nix relies on reading this line from stdout to start connecting to server.
-      out.println(
-          "NGServer "
-              + NGConstants.VERSION
-              + " started on "
-              + listeningAddress.toString()
-              + portDescription
-              + ".");
+    if (configFile != null) {
+      // applied before the first connection is accepted, then on every change
+      configWatcher = new NGConfigFile(this, configFile);
+      configWatcher.start();
+    }
 
-      while (!shutdown.get()) {
-        // this call blocks until a new connection is available, or socket is closed and
-        // IOException is thrown
-        Socket socket = serversocket.accept();
+    // at this moment server is capable to accept connections
+    running.set(true);
 
-        // get a session and run nail on it
-        // the session is responsible to return itself to the pool
-        // TBD: should we reconsider this?
-        sessionPool.take().run(socket);
+    // Only after this point nailgun server is ready to accept connections on all platforms.
+    // test_ng.py on *nix relies on reading this line from stdout to start connecting to server.
+    for (NGListener listener : listeners) {
+      out.println("NGServer " + NGConstants.VERSION + " started on " + listener + ".");
+    }
+
+    if (handoff != null) {
+      // connections wait on the inherited sockets until the acceptors started below pick them up
+      handoff.start();
+    }
+
+    // the first socket is served by this thread, every other one by an acceptor thread
+    List<Thread> acceptors = new ArrayList<>();
+    for (NGListener listener : listeners) {
+      for (int i = listener == listeners.get(0) ? 1 : 0; i < listener.getSocketCount(); i++) {
+        int socketIndex = i;
+        Thread acceptor = new Thread(() -> acceptConnections(listener, socketIndex));
+        acceptor.setName("NGServer acceptor(" + listener.getListeningAddress() + ")#" + i);
+        acceptor.start();
+        acceptors.add(acceptor);
       }
-    } catch (IOException ex) {
-      // If shutdown is called while the accept() method is blocking, it wil throw IOException
-      // Do not propagate it if we are in shutdown mode
-      if (!shutdown.get()) {
-        throw new RuntimeException(ex);
+    }
+    acceptConnections(listeners.get(0), 0);
+    for (Thread acceptor : acceptors) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
       }
     }
 
+    long deadlineNanos;
+    if (draining.get()) {
+      // the pool interrupts running nails when it shuts down, let them finish first
+      awaitDrained(true);
+      deadlineNanos = drainDeadlineNanos;
+    } else {
+      deadlineNanos =
+          System.nanoTime()
+              + TimeUnit.MILLISECONDS.toNanos(NGConstants.SESSION_TERMINATION_TIMEOUT_MILLIS);
+    }
+
     // close all idle sessions and wait for all running sessions to complete
     try {
-      sessionPool.shutdown();
+      List<NGSession> stragglers =
+          sessionPool.shutdown(
+              Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+      for (NGSession session : stragglers) {
+        String nail = session.describeRunningNail();
+        if (nail == null) {
+          // the nail returned, the session is only done talking to its client
+          continue;
+        }
+        Throwable stackTrace = new Throwable("Stack trace of " + session.getName());
+        stackTrace.setStackTrace(session.getStackTrace());
+        LOG.log(Level.WARNING, "Nail still running at shutdown: " + nail, stackTrace);
+      }
     } catch (Throwable ex) {
       // we are going to die anyways so let's just continue
       LOG.log(Level.WARNING, "Exception shutting down Nailgun server", ex);
     }
+    for (NGConnectionRelay relay : relays) {
+      relay.close();
+    }
+
+    if (metricsServer != null) {
+      metricsServer.stop();
+    }
+
+    if (configWatcher != null) {
+      configWatcher.close();
+    }
+
+    if (handoff != null) {
+      handoff.close();
+    }
 
     // restore system streams
     System.setIn(in);
     System.setOut(out);
     System.setErr(err);
 
-    System.setSecurityManager(originalSecurityManager);
+    if (interceptingWithExitAgent) {
+      NGExitAgent.setIntercepting(false);
+    } else if (System.getSecurityManager() != originalSecurityManager) {
+      System.setSecurityManager(originalSecurityManager);
+    }
 
     running.set(false);
+    terminated.countDown();
+
+    IOException failure = acceptFailure.get();
+    if (failure != null) {
+      throw new RuntimeException(failure);
+    }
+  }
+
+  /**
+   * Makes System.exit() calls of nails throw an {@link NGExitException} instead of exiting the JVM,
+   * with {@link NGExitAgent} if it is installed, otherwise with a security manager on JDKs that
+   * still support them.
+   */
+  private void interceptExits() {
+    boolean securityManagerSupported =
+        supportsSecurityManager(System.getProperty("java.specification.version"));
+    interceptingWithExitAgent =
+        NGExitAgent.isInstalled() && (exitAgentEnabled || !securityManagerSupported);
+    if (interceptingWithExitAgent) {
+      NGExitAgent.setIntercepting(true);
+      return;
+    }
+    if (!securityManagerSupported) {
+      LOG.warning(
+          "NGExitAgent is not loaded and security managers are not supported, System.exit() in a "
+              + "nail will stop the server; start the JVM with -javaagent:<nailgun-server jar>");
+      return;
+    }
+    originalSecurityManager = System.getSecurityManager();
+    try {
+      System.setSecurityManager(new NGSecurityManager(originalSecurityManager));
+    } catch (UnsupportedOperationException | SecurityException e) {
+      LOG.log(
+          Level.WARNING,
+          "Unable to install a security manager, System.exit() in a nail will stop the server",
+          e);
+    }
+  }
+
+  /**
+   * Tells whether the server falls back to a security manager, which it does up to JDK 16. Later
+   * JDKs deprecate them for removal, and refuse them unless started with
+   * -Djava.security.manager=allow from JDK 18 on.
+   *
+   * @param specificationVersion the java.specification.version system property, "1.8", "17", ...
+   * @return true if the server should fall back to {@link NGSecurityManager}
+   */
+  static boolean supportsSecurityManager(String specificationVersion) {
+    if (specificationVersion == null) {
+      return false;
+    }
+    String major =
+        specificationVersion.startsWith("1.")
+            ? specificationVersion.substring(2)
+            : specificationVersion;
+    int dot = major.indexOf('.');
+    try {
+      return Integer.parseInt(dot < 0 ? major : major.substring(0, dot)) <= 16;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Accepts connections on a listening socket and hands them to sessions until the server shuts
+   * down.
+   */
+  private void acceptConnections(NGListener listener, int socketIndex) {
+    try {
+      while (!shutdown.get()) {
+        // this call blocks until a new connection is available, or socket is closed and
+        // IOException is thrown
+        Socket socket = listener.accept(socketIndex);
+        long acceptedNanos = System.nanoTime();
+        NGEventRecorder.get().connectionAccepted(listener.getListeningAddress());
+        acceptedConnections.increment();
+        NGListeningAddress successor = handoffAddress;
+        if (successor != null) {
+          handOff(socket, successor);
+          continue;
+        }
+        queuedConnections.incrementAndGet();
+
+        // get a session and run nail on it
+        // the session is responsible to return itself to the pool
+        // TBD: should we reconsider this?
+        sessionPool.take().run(socket, acceptedNanos);
+      }
+    } catch (IOException ex) {
+      // If shutdown is called while the accept() method is blocking, it wil throw IOException
+      // Do not propagate it if we are in shutdown mode or another server took the socket over;
+      // otherwise bring the whole server down
+      if (!shutdown.get() && !listener.isReleased()) {
+        LOG.log(Level.SEVERE, "Unable to accept connections on " + listener, ex);
+        acceptFailure.compareAndSet(null, ex);
+        shutdown();
+      }
+    }
   }
 
   private static void usage() {
@@ -420,6 +1368,8 @@ public class NGServer implements Runnable {
     System.err.println("   or: java NGServer IPAddress");
     System.err.println("   or: java NGServer IPAddress:port");
     System.err.println("   or: java NGServer IPAddress:port timeout");
+    System.err.println("   or: java NGServer local:/path/to/socket,IPAddress:port [timeout]");
+    System.err.println("          (to listen on several addresses)");
   }
 
   /**
@@ -438,11 +1388,12 @@ public class NGServer implements Runnable {
     }
 
     // null server address means bind to everything local
-    NGListeningAddress listeningAddress;
+    List<NGListeningAddress> listeningAddresses = new ArrayList<>();
     int timeoutMillis = NGConstants.HEARTBEAT_TIMEOUT_MILLIS;
 
     // parse the command line parameters, which
-    // may be an inetaddress to bind to, a port number,
+    // may be a comma-separated list of addresses to listen on,
+    // each an inetaddress to bind to, a port number,
     // an inetaddress followed by a port, separated
     // by a colon, or the string "local:/path/to/socket"
     // for a Unix domain socket or Windows named pipe.
@@ -451,56 +1402,384 @@ public class NGServer implements Runnable {
     // wait between heartbeats before considering the
     // client to have disconnected.
     if (args.length != 0) {
-      String[] argParts = args[0].split(":");
-      String addrPart = null;
-      String portPart = null;
-      if (argParts.length == 2) {
-        addrPart = argParts[0];
-        portPart = argParts[1];
-      } else if (argParts[0].indexOf('.') >= 0) {
-        addrPart = argParts[0];
-      } else {
-        portPart = argParts[0];
-      }
-      if ("local".equals(addrPart) && portPart != null) {
-        // Treat the port part as a path to a local Unix domain socket
-        // or Windows named pipe.
-        listeningAddress = new NGListeningAddress(portPart);
-      } else if (addrPart != null && portPart != null) {
-        listeningAddress =
-            new NGListeningAddress(InetAddress.getByName(addrPart), Integer.parseInt(portPart));
-      } else if (addrPart != null && portPart == null) {
-        listeningAddress =
-            new NGListeningAddress(InetAddress.getByName(addrPart), NGConstants.DEFAULT_PORT);
-      } else {
-        listeningAddress = new NGListeningAddress(null, Integer.parseInt(portPart));
+      for (String address : args[0].split(",")) {
+        listeningAddresses.add(parseListeningAddress(address));
       }
       if (args.length == 2) {
         timeoutMillis = Integer.parseInt(args[1]);
       }
     } else {
-      listeningAddress = new NGListeningAddress(null, NGConstants.DEFAULT_PORT);
+      listeningAddresses.add(new NGListeningAddress(null, NGConstants.DEFAULT_PORT));
+    }
+
+    NGServer server =
+        new NGServer(
+            listeningAddresses,
+            Integer.getInteger(MAX_IDLE_SESSIONS_PROPERTY, DEFAULT_SESSIONPOOLSIZE),
+            timeoutMillis);
+    server.setAllowNailsByClassName(
+        Boolean.parseBoolean(System.getProperty(ALLOW_NAILS_BY_CLASS_NAME_PROPERTY, "true")));
+
+    String outputPolicy = System.getProperty(OUTPUT_POLICY_PROPERTY);
+    if (outputPolicy != null) {
+      server.setOutputPolicy(NGOutputPolicy.valueOf(outputPolicy.toUpperCase(Locale.ROOT)));
+    }
+    String outputQueueCapacity = System.getProperty(OUTPUT_QUEUE_CAPACITY_PROPERTY);
+    if (outputQueueCapacity != null) {
+      server.setOutputQueueCapacity(Integer.parseInt(outputQueueCapacity));
+    }
+    String outputWriteTimeout = System.getProperty(OUTPUT_WRITE_TIMEOUT_PROPERTY);
+    if (outputWriteTimeout != null) {
+      server.setOutputWriteTimeoutMillis(Long.parseLong(outputWriteTimeout));
     }
 
-    NGServer server = new NGServer(listeningAddress, DEFAULT_SESSIONPOOLSIZE, timeoutMillis);
+    server.setCompressionEnabled(
+        Boolean.parseBoolean(System.getProperty(COMPRESSION_PROPERTY, "false")));
+    server.setFileDescriptorPassingEnabled(
+        Boolean.parseBoolean(System.getProperty(FD_PASSING_PROPERTY, "false")));
+    server.setAcceptorCount(Integer.getInteger(ACCEPTORS_PROPERTY, 1));
+    server.setBacklog(Integer.getInteger(BACKLOG_PROPERTY, 0));
+    NGSocketOptions socketOptions = server.getSocketOptions();
+    socketOptions.setTcpNoDelay(
+        Boolean.parseBoolean(System.getProperty(TCP_NODELAY_PROPERTY, "true")));
+    socketOptions.setKeepAlive(Boolean.getBoolean(KEEPALIVE_PROPERTY));
+    socketOptions.setSendBufferSize(Integer.getInteger(SEND_BUFFER_SIZE_PROPERTY, 0));
+    socketOptions.setReceiveBufferSize(Integer.getInteger(RECEIVE_BUFFER_SIZE_PROPERTY, 0));
+
+    String metricsAddress = System.getProperty(METRICS_ADDRESS_PROPERTY);
+    if (metricsAddress != null) {
+      server.setMetricsAddress(parseMetricsAddress(metricsAddress));
+    }
+    server.setExitAgentEnabled(
+        Boolean.parseBoolean(System.getProperty(EXIT_AGENT_PROPERTY, "true")));
+    server.setCancelOnDisconnect(Boolean.getBoolean(CANCEL_ON_DISCONNECT_PROPERTY));
+    server.setCancellationGracePeriodMillis(
+        Long.getLong(CANCELLATION_GRACE_PERIOD_PROPERTY, DEFAULT_CANCELLATION_GRACE_PERIOD_MILLIS));
+    server.setAllocationBudgetBytes(Long.getLong(ALLOCATION_BUDGET_PROPERTY, 0));
+    server.setNailTimeoutMillis(Long.getLong(TIMEOUT_PROPERTY, 0));
+    server.setDrainTimeoutMillis(
+        Long.getLong(DRAIN_TIMEOUT_PROPERTY, DEFAULT_DRAIN_TIMEOUT_MILLIS));
+    server.setHandoffSocketPath(System.getProperty(HANDOFF_SOCKET_PROPERTY));
+    String configFile = System.getProperty(CONFIG_FILE_PROPERTY);
+    if (configFile != null) {
+      server.setConfigFile(Paths.get(configFile));
+    }
     Thread t = new Thread(server);
-    t.setName("NGServer(" + listeningAddress.toString() + ")");
+    t.setName("NGServer(" + listeningAddresses.get(0).toString() + ")");
     t.start();
 
+    if (Boolean.getBoolean(PRELOAD_ALIASES_PROPERTY)) {
+      // nails can already run while their classes are being loaded
+      Thread preloader = new Thread(() -> server.getAliasManager().loadAliasedClasses());
+      preloader.setName("NGServer alias preloader");
+      preloader.setDaemon(true);
+      preloader.start();
+    }
+
     Runtime.getRuntime().addShutdownHook(new NGServerShutdowner(server));
   }
 
+  /**
+   * Parses an address given on the command line: <code>port</code>, <code>IPAddress</code>, <code>
+   * IPAddress:port</code> or <code>local:/path/to/socket</code>.
+   *
+   * @param address the address to parse
+   * @return the parsed address
+   * @throws UnknownHostException if the host of the address cannot be resolved
+   * @throws NumberFormatException if the port is not a number
+   */
+  public static NGListeningAddress parseListeningAddress(String address)
+      throws UnknownHostException {
+    String[] argParts = address.split(":");
+    String addrPart = null;
+    String portPart = null;
+    if (argParts.length == 2) {
+      addrPart = argParts[0];
+      portPart = argParts[1];
+    } else if (argParts[0].indexOf('.') >= 0) {
+      addrPart = argParts[0];
+    } else {
+      portPart = argParts[0];
+    }
+    if ("local".equals(addrPart) && portPart != null) {
+      // Treat the port part as a path to a local Unix domain socket
+      // or Windows named pipe.
+      return new NGListeningAddress(portPart);
+    } else if (addrPart != null && portPart != null) {
+      return new NGListeningAddress(InetAddress.getByName(addrPart), Integer.parseInt(portPart));
+    } else if (addrPart != null && portPart == null) {
+      return new NGListeningAddress(InetAddress.getByName(addrPart), NGConstants.DEFAULT_PORT);
+    } else {
+      return new NGListeningAddress(null, Integer.parseInt(portPart));
+    }
+  }
+
+  /**
+   * Parses the address to serve metrics on: <code>port</code> or <code>IPAddress:port</code>. A
+   * bare port is bound to the loopback address only, as the metrics endpoint is not authenticated.
+   *
+   * @param address the address to parse
+   * @return the parsed address
+   * @throws UnknownHostException if the host of the address cannot be resolved
+   * @throws NumberFormatException if the port is not a number
+   */
+  static InetSocketAddress parseMetricsAddress(String address) throws UnknownHostException {
+    int colon = address.lastIndexOf(':');
+    if (colon < 0) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+    }
+    return new InetSocketAddress(
+        InetAddress.getByName(address.substring(0, colon)),
+        Integer.parseInt(address.substring(colon + 1)));
+  }
+
   public int getHeartbeatTimeout() {
     return heartbeatTimeoutMillis;
   }
 
+  /** @return what to do with output of nails when a client does not read it fast enough */
+  public NGOutputPolicy getOutputPolicy() {
+    return outputPolicy;
+  }
+
+  /**
+   * Sets what to do with output of nails when a client does not read it fast enough. Applies to
+   * connections accepted after the call.
+   *
+   * @param outputPolicy the policy to apply when the output queue of a client is full
+   */
+  public void setOutputPolicy(NGOutputPolicy outputPolicy) {
+    this.outputPolicy = outputPolicy;
+  }
+
+  /** @return number of bytes of output that may be queued for a client before the policy applies */
+  public int getOutputQueueCapacity() {
+    return outputQueueCapacity;
+  }
+
+  /**
+   * Sets how much output may be queued for a client before the {@link NGOutputPolicy} applies.
+   * Applies to connections accepted after the call.
+   *
+   * @param outputQueueCapacity capacity of the output queue in bytes
+   */
+  public void setOutputQueueCapacity(int outputQueueCapacity) {
+    this.outputQueueCapacity = outputQueueCapacity;
+  }
+
+  /** @return milliseconds the exit code waits for a client which does not read its output */
+  public long getOutputWriteTimeoutMillis() {
+    return outputWriteTimeoutMillis;
+  }
+
+  /**
+   * Sets how long the exit code waits for a client which does not read its output. Once no output
+   * could be written for that long, the rest of it is discarded and the connection is closed
+   * without the exit code. Applies to connections accepted after the call.
+   *
+   * @param outputWriteTimeoutMillis timeout in milliseconds, 0 to wait as long as it takes
+   */
+  public void setOutputWriteTimeoutMillis(long outputWriteTimeoutMillis) {
+    this.outputWriteTimeoutMillis = outputWriteTimeoutMillis;
+  }
+
+  /** @return true if output is compressed for clients that ask for it */
+  public boolean isCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  /**
+   * Sets whether stdout, stderr and stdin are compressed for clients that ask for it (see {@link
+   * NGConstants#COMPRESSION_ENV}). Compression saves bandwidth on slow networks at the cost of CPU,
+   * it is disabled by default. Applies to connections accepted after the call.
+   *
+   * @param compressionEnabled true to compress for clients that ask for it
+   */
+  public void setCompressionEnabled(boolean compressionEnabled) {
+    this.compressionEnabled = compressionEnabled;
+  }
+
+  /** @return number of SO_REUSEPORT sockets and acceptor threads for each TCP address */
+  public int getAcceptorCount() {
+    return acceptorCount;
+  }
+
   /**
-   * A shutdown hook that will cleanly bring down the NGServer if it is interrupted.
+   * Sets how many sockets are bound to each TCP address with SO_REUSEPORT, each drained by its own
+   * acceptor thread, so that bursts of thousands of connections are not bottlenecked on a single
+   * thread calling accept(). Needs Java 9 or newer and an operating system supporting SO_REUSEPORT,
+   * otherwise a single socket is used. Must be called before the server is started.
+   *
+   * @param acceptorCount number of sockets and acceptor threads per TCP address, at least 1
+   */
+  public void setAcceptorCount(int acceptorCount) {
+    if (acceptorCount < 1) {
+      throw new IllegalArgumentException("acceptorCount must be at least 1: " + acceptorCount);
+    }
+    this.acceptorCount = acceptorCount;
+  }
+
+  /**
+   * Returns the options applied to TCP connections accepted from now on; they can be changed in
+   * place.
+   *
+   * @return the options of accepted TCP connections
+   */
+  public NGSocketOptions getSocketOptions() {
+    return socketOptions;
+  }
+
+  /** @return maximum length of the queue of pending connections, 0 for the platform default */
+  public int getBacklog() {
+    return backlog;
+  }
+
+  /**
+   * Sets the maximum length of the queue of connections not yet accepted, for each listening
+   * socket. The operating system may cap it (i.e. net.core.somaxconn on Linux). Must be called
+   * before the server is started.
+   *
+   * @param backlog the queue length, or 0 for the platform default
+   */
+  public void setBacklog(int backlog) {
+    if (backlog < 0) {
+      throw new IllegalArgumentException("backlog must not be negative: " + backlog);
+    }
+    this.backlog = backlog;
+  }
+
+  /** @return true if nails use the stdio file descriptors passed by clients */
+  public boolean isFileDescriptorPassingEnabled() {
+    return fileDescriptorPassingEnabled;
+  }
+
+  /**
+   * Sets whether nails read and write the client's stdin, stdout and stderr directly when the
+   * client passes them over a local socket (see {@link NGConstants#PASSED_FDS_ENV}), bypassing the
+   * nailgun protocol for stdio. Only the C client passes them. Disabled by default. Applies to
+   * connections accepted after the call.
+   *
+   * @param fileDescriptorPassingEnabled true to use file descriptors passed by clients
+   */
+  public void setFileDescriptorPassingEnabled(boolean fileDescriptorPassingEnabled) {
+    this.fileDescriptorPassingEnabled = fileDescriptorPassingEnabled;
+  }
+
+  /** @return true if nails are interrupted when their client disconnects */
+  public boolean isCancelOnDisconnect() {
+    return cancelOnDisconnect;
+  }
+
+  /**
+   * Sets whether to interrupt the thread of a nail when its client disconnects, i.e. when the user
+   * hits Ctrl-C, so that nails that do not register an {@link NGClientListener} stop wasting CPU. A
+   * nail still running after the grace period is abandoned: its session leaves the pool and its
+   * socket is closed, the thread is left to finish on its own. Disabled by default. Applies to
+   * nails started after the call.
+   *
+   * @param cancelOnDisconnect true to interrupt nails of disconnected clients
+   */
+  public void setCancelOnDisconnect(boolean cancelOnDisconnect) {
+    this.cancelOnDisconnect = cancelOnDisconnect;
+  }
+
+  /** @return milliseconds an interrupted nail has to return before its session is abandoned */
+  public long getCancellationGracePeriodMillis() {
+    return cancellationGracePeriodMillis;
+  }
+
+  /**
+   * Sets how long a nail interrupted because its client disconnected, it exceeded its allocation
+   * budget or it timed out has to return before its session is abandoned.
+   *
+   * @param cancellationGracePeriodMillis the grace period in milliseconds
+   */
+  public void setCancellationGracePeriodMillis(long cancellationGracePeriodMillis) {
+    if (cancellationGracePeriodMillis < 0) {
+      throw new IllegalArgumentException(
+          "Grace period must not be negative: " + cancellationGracePeriodMillis);
+    }
+    this.cancellationGracePeriodMillis = cancellationGracePeriodMillis;
+  }
+
+  /** @return bytes a nail may allocate on the heap before it is cancelled, 0 for no limit */
+  public long getAllocationBudgetBytes() {
+    return allocationBudgetBytes;
+  }
+
+  /**
+   * Sets how many bytes a nail may allocate on the heap, so that a single runaway nail cannot
+   * exhaust the heap shared by all clients. Allocations of the thread running the nail are sampled
+   * every 100 ms, threads started by the nail are not accounted for. A warning is sent to the
+   * client and logged when the nail has allocated 80% of the budget. Once the budget is exceeded,
+   * the client exits with {@link NGConstants#EXIT_ALLOCATION_BUDGET_EXCEEDED} and the nail is
+   * interrupted, then abandoned if it is still running after the cancellation grace period. Needs a
+   * JVM measuring thread allocations, such as HotSpot. Applies to running nails as well.
+   *
+   * @param allocationBudgetBytes the budget in bytes, 0 for no limit
+   */
+  public void setAllocationBudgetBytes(long allocationBudgetBytes) {
+    if (allocationBudgetBytes < 0) {
+      throw new IllegalArgumentException(
+          "Allocation budget must not be negative: " + allocationBudgetBytes);
+    }
+    this.allocationBudgetBytes = allocationBudgetBytes;
+  }
+
+  /** @return milliseconds a nail may run before it is cancelled by default, 0 for no limit */
+  public long getNailTimeoutMillis() {
+    return nailTimeoutMillis;
+  }
+
+  /**
+   * Sets how long a nail may run by default, so that stuck nails do not pile up and exhaust the
+   * session pool. An Alias may set its own timeout, and a client may set one for its invocation
+   * with the {@link NGConstants#TIMEOUT_ENV} environment variable; the client's takes precedence
+   * over the Alias', which takes precedence over this one. When the timeout expires, the client
+   * exits with {@link NGConstants#EXIT_TIMEOUT} and the nail is interrupted, then abandoned if it
+   * is still running after the cancellation grace period. Applies to nails started after the call.
+   *
+   * @param nailTimeoutMillis the timeout in milliseconds, 0 for no limit
+   */
+  public void setNailTimeoutMillis(long nailTimeoutMillis) {
+    if (nailTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeout must not be negative: " + nailTimeoutMillis);
+    }
+    this.nailTimeoutMillis = nailTimeoutMillis;
+  }
+
+  /**
+   * @return true if exits of nails are intercepted with {@link NGExitAgent} when it is loaded, as
+   *     they are by default
+   */
+  public boolean isExitAgentEnabled() {
+    return exitAgentEnabled;
+  }
+
+  /**
+   * Sets whether to intercept System.exit(), Runtime.exit() and Runtime.halt() calls of nails with
+   * {@link NGExitAgent} rather than with a security manager, which every permission check of every
+   * nail then goes through. Enabled by default. Without the agent, or with this set to false, the
+   * server falls back to {@link NGSecurityManager} up to JDK 16; later JDKs always use the agent if
+   * it is loaded and do not intercept exits otherwise. Must be called before the server is started.
+   *
+   * @param exitAgentEnabled false to prefer a security manager where the JDK supports one
+   */
+  public void setExitAgentEnabled(boolean exitAgentEnabled) {
+    this.exitAgentEnabled = exitAgentEnabled;
+  }
+
+  /**
+   * A shutdown hook that will cleanly bring down the NGServer if it is interrupted, draining it
+   * first.
    *
    * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
    */
   private static class NGServerShutdowner extends Thread {
 
+    /** Time the server gets to clean up after the drain timeout, i.e. to report stragglers */
+    private static final long CLEANUP_MILLIS = 1000;
+
     private final NGServer server;
 
     NGServerShutdowner(NGServer server) {
@@ -508,23 +1787,18 @@ public class NGServer implements Runnable {
     }
 
     public void run() {
-
-      int count = 0;
-      server.shutdown();
-
-      // give the server up to five seconds to stop.  is that enough?
-      // remember that the shutdown will call nailShutdown in any
-      // nails as well
-      while (server.isRunning() && (count < 50)) {
-
-        try {
-          Thread.sleep(100);
-        } catch (InterruptedException e) {
-        }
-        ++count;
+      long drainTimeoutMillis = server.getDrainTimeoutMillis();
+      server.drain(drainTimeoutMillis, null);
+
+      boolean stopped;
+      try {
+        stopped =
+            !server.isRunning() || server.awaitTermination(drainTimeoutMillis + CLEANUP_MILLIS);
+      } catch (InterruptedException e) {
+        stopped = false;
       }
 
-      if (server.isRunning()) {
+      if (!stopped) {
         System.err.println("Unable to cleanly shutdown server.  Exiting JVM Anyway.");
       } else {
         System.out.println("NGServer shut down.");
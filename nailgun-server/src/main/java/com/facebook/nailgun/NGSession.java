@@ -24,6 +24,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,6 +51,9 @@ public class NGSession extends Thread {
 
   private static final Logger LOG = Logger.getLogger(NGSession.class.getName());
 
+  /** Share of the allocation budget a nail may allocate before its client is warned */
+  static final int ALLOCATION_WARNING_PERCENT = 80;
+
   /** The server this NGSession is working for */
   private final NGServer server;
   /** The pool this NGSession came from, and to which it will return itself */
@@ -54,6 +64,10 @@ public class NGSession extends Thread {
   private final Object lock = new Object();
   /** The next socket this NGSession has been tasked with processing (by NGServer) */
   private Socket nextSocket = null;
+  /** System.nanoTime() at which nextSocket was accepted by the server */
+  private long nextSocketAcceptedNanos = 0;
+  /** System.nanoTime() at which the socket currently processed was accepted by the server */
+  private long acceptedNanos = 0;
   /** True if the server has been shutdown and this NGSession should terminate completely */
   private boolean done = false;
   /**
@@ -65,6 +79,46 @@ public class NGSession extends Thread {
   /** The interval to wait between heartbeats before considering the client to have disconnected. */
   private final int heartbeatTimeoutMillis;
 
+  /** Receives nail lifecycle events, i.e. for Java Flight Recorder */
+  private final NGEventRecorder events = NGEventRecorder.get();
+
+  /** Duration of each phase of the current invocation in nanoseconds, indexed by ordinal */
+  private final long[] phaseNanos = new long[NGInvocationPhase.values().length];
+  /** The phase of the current invocation being measured, or null if none */
+  private NGInvocationPhase currentPhase = null;
+  /** System.nanoTime() at which currentPhase has started */
+  private long currentPhaseStartNanos = 0;
+
+  /** stdio file descriptors passed by the current client, or null if it did not pass any */
+  private NGPassedFileDescriptors passedFds = null;
+
+  /** Guards the cancellation state of the running nail, shared with the threads cancelling it */
+  private final Object cancellationLock = new Object();
+  /** Class of the running nail, null otherwise */
+  private Class<?> cancellableNail = null;
+  /** Incremented for each nail, so that a late abandonment spares the next one */
+  private long cancellableNailCount = 0;
+  /** Communicator of the client of the running nail */
+  private NGCommunicator nailComm = null;
+  /** Socket of the client of the running nail */
+  private Socket nailSocket = null;
+  /** System.nanoTime() at which the running nail started */
+  private long nailStartNanos = 0;
+  /** Bytes allocated by this thread when the running nail started, -1 if unknown */
+  private long nailStartAllocatedBytes = -1;
+  /** True once the client of the running nail was warned that it nears its allocation budget */
+  private boolean allocationWarned = false;
+  /** Exit code for the client if the server cancelled the last nail, until exit; 0 for none */
+  private int forcedExitCode = 0;
+  /** True if the running nail was interrupted, see {@link #interruptNail(Socket, long)} */
+  private boolean cancelled = false;
+  /** CPU time of this thread when the nail was last charged for CPU time wasted, -1 if unknown */
+  private long wastedCpuStartNanos = -1;
+  /** Abandons the cancelled nail if it does not return within the grace period */
+  private ScheduledFuture<?> abandonment = null;
+  /** Cancels the running nail when its timeout expires, null if it has none */
+  private ScheduledFuture<?> timeout = null;
+
   /** The instance counter shared among all NGSessions */
   private static AtomicLong instanceCounter = new AtomicLong(0);
   /** signature of main(String[]) for reflection operations */
@@ -113,7 +167,13 @@ public class NGSession extends Thread {
     this.communicatorCreator =
         communicatorCreator != null
             ? communicatorCreator
-            : (socket -> new NGCommunicator(socket, this.heartbeatTimeoutMillis));
+            : (socket ->
+                new NGCommunicator(
+                    socket,
+                    this.heartbeatTimeoutMillis,
+                    server.getOutputQueueCapacity(),
+                    server.getOutputPolicy(),
+                    server.getOutputWriteTimeoutMillis()));
   }
 
   /**
@@ -136,8 +196,21 @@ public class NGSession extends Thread {
    * @param socket the socket (connected to a client) to process
    */
   public void run(Socket socket) {
+    run(socket, System.nanoTime());
+  }
+
+  /**
+   * Instructs this NGSession to process the specified socket, after which this NGSession will
+   * return itself to the pool from which it came.
+   *
+   * @param socket the socket (connected to a client) to process
+   * @param acceptedNanos System.nanoTime() at which the socket was accepted, used to measure how
+   *     long the connection was queued before a session picked it up
+   */
+  void run(Socket socket, long acceptedNanos) {
     synchronized (lock) {
       nextSocket = socket;
+      nextSocketAcceptedNanos = acceptedNanos;
       lock.notify();
     }
     Thread.yield();
@@ -162,16 +235,17 @@ public class NGSession extends Thread {
         result = nextSocket;
       }
       nextSocket = null;
+      acceptedNanos = nextSocketAcceptedNanos;
     }
 
     if (result != null) {
+      server.connectionDequeued();
+
       // Java InputStream API is blocking by default with no reliable way to stop pending
       // read() call. Setting the timeout to underlying socket will make socket's underlying
       // read() calls throw SocketTimeoutException which unblocks read(). The exception must
       // be properly handled by calling code.
       try {
-        // TODO(buck_team): this does not work with current NGUnixDomainSocket
-        // implementation
         result.setSoTimeout(this.heartbeatTimeoutMillis);
       } catch (SocketException e) {
         // this exception might be thrown if socket is already closed
@@ -225,6 +299,12 @@ public class NGSession extends Thread {
   }
 
   private void runImpl(NGCommunicator comm, Socket socket) {
+    Object nailEvent = null;
+    boolean timingRequested = false;
+    Arrays.fill(phaseNanos, -1);
+    currentPhase = null;
+    startPhase(NGInvocationPhase.QUEUE, acceptedNanos);
+    startPhase(NGInvocationPhase.HEADER, System.nanoTime());
     try (InputStream in = new NGInputStream(comm);
         PrintStream out = new PrintStream(new NGOutputStream(comm, NGConstants.CHUNKTYPE_STDOUT));
         PrintStream err =
@@ -236,104 +316,634 @@ public class NGSession extends Thread {
         ((ThreadLocalPrintStream) System.err).init(err);
       }
 
+      // clients pass file descriptors along with the command context, never afterwards
+      boolean receivingFds =
+          server.isFileDescriptorPassingEnabled() && socket instanceof NGUnixDomainSocket;
+      if (receivingFds) {
+        ((NGUnixDomainSocket) socket).setReceivingFileDescriptors(true);
+      }
       CommandContext cmdContext = comm.readCommandContext();
+      if (receivingFds) {
+        ((NGUnixDomainSocket) socket).setReceivingFileDescriptors(false);
+      }
+      cmdContext
+          .getCommandArguments()
+          .expandArgfiles(cmdContext.getWorkingDirectory(), server.getArgfileCache());
+      timingRequested = isTimingRequested(cmdContext.getEnvironmentVariables());
+      if (server.isCompressionEnabled()) {
+        comm.negotiateCompression(cmdContext.getEnvironmentVariables());
+      }
+      InputStream nailIn = in;
+      PrintStream nailOut = out;
+      PrintStream nailErr = err;
+      if (receivingFds) {
+        passedFds =
+            NGPassedFileDescriptors.take(
+                (NGUnixDomainSocket) socket, cmdContext.getEnvironmentVariables());
+        if (passedFds != null) {
+          nailIn = passedFds.getInputStream(in);
+          nailOut = passedFds.getPrintStream(1, out);
+          nailErr = passedFds.getPrintStream(2, err);
+          if (System.in instanceof ThreadLocalInputStream) {
+            ((ThreadLocalInputStream) System.in).init(nailIn);
+            ((ThreadLocalPrintStream) System.out).init(nailOut);
+            ((ThreadLocalPrintStream) System.err).init(nailErr);
+          }
+        }
+      }
+      startPhase(NGInvocationPhase.RESOLVE, System.nanoTime());
 
       String threadName =
           (socket.getInetAddress() == null ? "" : socket.getInetAddress().getHostAddress() + ": ")
               + cmdContext.getCommand();
       updateThreadName(threadName);
 
-      Class cmdclass;
+      NGNailDispatchCache dispatchCache = server.getNailDispatchCache();
+      NGNailDispatchCache.Entry entry = dispatchCache.get(cmdContext.getCommand());
+      Class<?> cmdclass = entry == null ? null : entry.getNailClass();
+      Object resolutionEvent = events.beginNailResolution();
       try {
-        Alias alias = server.getAliasManager().getAlias(cmdContext.getCommand());
-        if (alias != null) {
-          cmdclass = alias.getAliasedClass();
-        } else if (server.allowsNailsByClassName()) {
-          cmdclass = Class.forName(cmdContext.getCommand(), true, classLoader);
-        } else {
-          cmdclass = server.getDefaultNailClass();
+        if (entry == null) {
+          entry = resolveNail(cmdContext.getCommand(), dispatchCache);
+          cmdclass = entry.getNailClass();
         }
-      } catch (ClassNotFoundException ex) {
-        throw new NGNailNotFoundException("Nail class not found: " + cmdContext.getCommand(), ex);
+      } finally {
+        events.endNailResolution(resolutionEvent, cmdContext.getCommand(), cmdclass);
       }
 
       Object[] methodArgs = new Object[1];
-      Method mainMethod; // will be either main(String[]) or nailMain(NGContext)
-      String[] cmdlineArgs =
-          cmdContext
-              .getCommandArguments()
-              .toArray(new String[cmdContext.getCommandArguments().size()]);
-
-      boolean isStaticNail = true; // See: NonStaticNail.java
-
-      Class[] interfaces = cmdclass.getInterfaces();
-
-      for (int i = 0; i < interfaces.length; i++) {
-        if (interfaces[i].equals(NonStaticNail.class)) {
-          isStaticNail = false;
-          break;
-        }
-      }
-
-      if (!isStaticNail) {
-        mainMethod = cmdclass.getMethod("nailMain", new Class[] {String[].class});
-        methodArgs[0] = cmdlineArgs;
+      List<String> cmdlineArgs = cmdContext.getCommandArguments();
+      if (entry.takesContext()) {
+        NGContext context = new NGContext();
+        // arguments are decoded lazily, unless the nail asks for all of them with getArgs()
+        context.setArgList(cmdlineArgs);
+        context.in = nailIn;
+        context.out = nailOut;
+        context.err = nailErr;
+        context.setCommand(cmdContext.getCommand());
+        context.setNGServer(server);
+        context.setCommunicator(comm);
+        context.setPassedFileDescriptors(passedFds);
+        context.setEnv(cmdContext.getEnvironmentVariables());
+        context.setInetAddress(socket.getInetAddress());
+        context.setPort(socket.getPort());
+        context.setWorkingDirectory(cmdContext.getWorkingDirectory());
+        methodArgs[0] = context;
       } else {
-        try {
-          mainMethod = cmdclass.getMethod("nailMain", nailMainSignature);
-          NGContext context = new NGContext();
-          context.setArgs(cmdlineArgs);
-          context.in = in;
-          context.out = out;
-          context.err = err;
-          context.setCommand(cmdContext.getCommand());
-          context.setNGServer(server);
-          context.setCommunicator(comm);
-          context.setEnv(cmdContext.getEnvironmentVariables());
-          context.setInetAddress(socket.getInetAddress());
-          context.setPort(socket.getPort());
-          context.setWorkingDirectory(cmdContext.getWorkingDirectory());
-          methodArgs[0] = context;
-        } catch (NoSuchMethodException toDiscard) {
-          // nailMain is not found, let's try main(String[])
-          try {
-            mainMethod = cmdclass.getMethod("main", mainSignature);
-            methodArgs[0] = cmdlineArgs;
-          } catch (NoSuchMethodException ex) {
-            // failed to find 'main' too, so give up and throw
-            throw new NGNailNotFoundException(
-                "Can't find nailMain or main functions in " + cmdclass.getName(), ex);
-          }
-        }
+        methodArgs[0] = toArray(cmdlineArgs);
       }
 
+      startPhase(NGInvocationPhase.EXECUTE, System.nanoTime());
       server.nailStarted(cmdclass);
-
+      nailEvent = events.beginNail(cmdContext.getCommand(), cmdclass);
+
+      long startCpuNanos = NGThreadUsage.currentThreadCpuNanos();
+      long startAllocatedBytes = NGThreadUsage.threadAllocatedBytes(this);
+      startCancellableNail(
+          comm,
+          socket,
+          cmdclass,
+          startAllocatedBytes,
+          getTimeoutMillis(cmdContext.getEnvironmentVariables(), entry));
       try {
-        mainMethod.invoke(isStaticNail ? null : cmdclass.newInstance(), methodArgs);
+        entry.getMethod().invoke(entry.isStaticNail() ? null : cmdclass.newInstance(), methodArgs);
       } catch (InvocationTargetException ite) {
         throw ite.getCause();
       } finally {
-        server.nailFinished(cmdclass);
+        long cpuNanos = NGThreadUsage.delta(startCpuNanos, NGThreadUsage.currentThreadCpuNanos());
+        long allocatedBytes =
+            NGThreadUsage.delta(startAllocatedBytes, NGThreadUsage.threadAllocatedBytes(this));
+        finishCancellableNail(comm);
+        long finishedNanos = System.nanoTime();
+        server.nailFinished(
+            cmdclass, finishedNanos - currentPhaseStartNanos, cpuNanos, allocatedBytes);
+        startPhase(NGInvocationPhase.DRAIN, finishedNanos);
       }
 
+      nailOut.flush();
+      nailErr.flush();
+
       // send exit code 0 to the client; if nail previously called NGSession.exit() or
       // System.exit() explicitly then this will do nothing
-      comm.exit(NGConstants.EXIT_SUCCESS);
+      exit(comm, NGConstants.EXIT_SUCCESS, timingRequested);
 
     } catch (NGExitException exitEx) {
       // We got here if nail called System.exit(). Just quit with provided exit code.
       LOG.log(Level.INFO, "Nail cleanly exited with status {0}", exitEx.getStatus());
-      comm.exit(exitEx.getStatus());
+      exit(comm, exitEx.getStatus(), timingRequested);
     } catch (NGNailNotFoundException notFoundEx) {
       LOG.log(Level.WARNING, "Nail not found", notFoundEx);
-      comm.exit(NGConstants.EXIT_NOSUCHCOMMAND);
+      exit(comm, NGConstants.EXIT_NOSUCHCOMMAND, timingRequested);
     } catch (Throwable t) {
       LOG.log(Level.WARNING, "Nail raised unhandled exception", t);
-      comm.exit(NGConstants.EXIT_EXCEPTION); // remote exception constant
+      exit(comm, NGConstants.EXIT_EXCEPTION, timingRequested); // remote exception constant
+    } finally {
+      events.endNail(nailEvent, comm.getExitCode(), comm.getBytesReceived(), comm.getBytesSent());
+      closePassedFileDescriptors();
+      server.connectionFinished(comm);
+    }
+  }
+
+  /**
+   * Finds the class and the method to run for a command and remembers them in the dispatch cache.
+   *
+   * @param command the alias or class name sent by the client
+   * @param dispatchCache the cache to store the result in
+   * @return the entry point of the command
+   * @throws NGNailNotFoundException if the command does not match a class with a main method
+   * @throws NoSuchMethodException if a {@link NonStaticNail} has no nailMain(String[]) method
+   */
+  private NGNailDispatchCache.Entry resolveNail(String command, NGNailDispatchCache dispatchCache)
+      throws NGNailNotFoundException, NoSuchMethodException {
+    // read before the alias, so that an alias change while resolving invalidates the entry
+    long generation = dispatchCache.getGeneration();
+    ClassLoader loader = classLoader;
+
+    Class cmdclass;
+    long timeoutMillis = 0;
+    try {
+      Alias alias = server.getAliasManager().getAlias(command);
+      if (alias != null) {
+        cmdclass = alias.getAliasedClass();
+        timeoutMillis = alias.getTimeoutMillis();
+      } else if (server.allowsNailsByClassName()) {
+        cmdclass = Class.forName(command, true, loader);
+      } else {
+        cmdclass = server.getDefaultNailClass();
+      }
+    } catch (ClassNotFoundException | NoClassDefFoundError ex) {
+      throw new NGNailNotFoundException("Nail class not found: " + command, ex);
+    }
+
+    boolean isStaticNail = true; // See: NonStaticNail.java
+
+    Class[] interfaces = cmdclass.getInterfaces();
+
+    for (int i = 0; i < interfaces.length; i++) {
+      if (interfaces[i].equals(NonStaticNail.class)) {
+        isStaticNail = false;
+        break;
+      }
+    }
+
+    Method mainMethod; // will be either main(String[]) or nailMain(NGContext)
+    boolean takesContext = false;
+    if (!isStaticNail) {
+      mainMethod = cmdclass.getMethod("nailMain", new Class[] {String[].class});
+    } else {
+      try {
+        mainMethod = cmdclass.getMethod("nailMain", nailMainSignature);
+        takesContext = true;
+      } catch (NoSuchMethodException toDiscard) {
+        // nailMain is not found, let's try main(String[])
+        try {
+          mainMethod = cmdclass.getMethod("main", mainSignature);
+        } catch (NoSuchMethodException ex) {
+          // failed to find 'main' too, so give up and throw
+          throw new NGNailNotFoundException(
+              "Can't find nailMain or main functions in " + cmdclass.getName(), ex);
+        }
+      }
+    }
+
+    NGNailDispatchCache.Entry entry =
+        new NGNailDispatchCache.Entry(
+            cmdclass, mainMethod, isStaticNail, takesContext, loader, generation, timeoutMillis);
+    dispatchCache.put(command, entry);
+    return entry;
+  }
+
+  /**
+   * @param env environment variables sent by the client
+   * @param entry the entry point of the command
+   * @return milliseconds the nail may run, as requested by the client or else set by its Alias or
+   *     else by the server, 0 for no limit
+   */
+  private long getTimeoutMillis(Properties env, NGNailDispatchCache.Entry entry) {
+    String requested = env == null ? null : env.getProperty(NGConstants.TIMEOUT_ENV);
+    if (requested != null) {
+      try {
+        long timeoutMillis = Long.parseLong(requested.trim());
+        if (timeoutMillis >= 0) {
+          return timeoutMillis;
+        }
+      } catch (NumberFormatException e) {
+        // reported below
+      }
+      LOG.log(
+          Level.WARNING,
+          "Ignoring invalid {0}: {1}",
+          new Object[] {NGConstants.TIMEOUT_ENV, requested});
+    }
+    if (entry.getTimeoutMillis() > 0) {
+      return entry.getTimeoutMillis();
+    }
+    return server.getNailTimeoutMillis();
+  }
+
+  /**
+   * Makes the nail about to run on this thread cancellable: it is interrupted when it exceeds the
+   * allocation budget, when it times out or, if enabled, when its client disconnects before it
+   * exits, and abandoned if it is still running after the grace period.
+   */
+  private void startCancellableNail(
+      NGCommunicator comm,
+      Socket socket,
+      Class<?> nailClass,
+      long startAllocatedBytes,
+      long timeoutMillis) {
+    long nailCount;
+    synchronized (cancellationLock) {
+      cancellableNail = nailClass;
+      nailCount = ++cancellableNailCount;
+      nailComm = comm;
+      nailSocket = socket;
+      nailStartNanos = System.nanoTime();
+      nailStartAllocatedBytes = startAllocatedBytes;
+      allocationWarned = false;
+      cancelled = false;
+      if (timeoutMillis > 0) {
+        try {
+          timeout = sessionPool.schedule(() -> timeOut(nailCount, timeoutMillis), timeoutMillis);
+        } catch (RejectedExecutionException e) {
+          // the pool is shutting down and interrupts all sessions anyway
+        }
+      }
+    }
+    if (!server.isCancelOnDisconnect()) {
+      return;
+    }
+    // the listener runs on the communicator's thread, which logs to the client's stderr
+    comm.setDisconnectListener(
+        reason -> {
+          try {
+            sessionPool.schedule(() -> cancel(reason, socket, nailCount), 0);
+          } catch (RejectedExecutionException e) {
+            // the pool is shutting down and interrupts all sessions anyway
+          }
+        });
+  }
+
+  /**
+   * Called on this thread once the nail returned. Charges the CPU time it spent since it was
+   * cancelled, and clears the interrupt meant for it.
+   */
+  private void finishCancellableNail(NGCommunicator comm) {
+    Class<?> nailClass;
+    long wastedCpuNanos;
+    synchronized (cancellationLock) {
+      if (cancellableNail == null) {
+        return;
+      }
+      nailClass = cancellableNail;
+      cancellableNail = null;
+      nailComm = null;
+      nailSocket = null;
+      if (timeout != null) {
+        timeout.cancel(false);
+        timeout = null;
+      }
+      if (!cancelled) {
+        wastedCpuNanos = -1;
+      } else {
+        wastedCpuNanos = chargeWastedCpu(NGThreadUsage.threadCpuNanos(this));
+        if (abandonment != null) {
+          abandonment.cancel(false);
+          abandonment = null;
+        }
+      }
+    }
+    comm.setDisconnectListener(null);
+    if (wastedCpuNanos >= 0) {
+      // no more interrupts can come, do not let this one leak into the next nail
+      Thread.interrupted();
+      server.nailWastedCpu(nailClass, wastedCpuNanos);
+    }
+  }
+
+  /**
+   * Describes the nail running on this thread, i.e. for the progress reports of a draining server.
+   *
+   * @return the class of the nail and how long it has been running, or null if there is none
+   */
+  String describeRunningNail() {
+    synchronized (cancellationLock) {
+      if (cancellableNail == null) {
+        return null;
+      }
+      return cancellableNail.getName()
+          + " in NGSession "
+          + instanceNumber
+          + ", running for "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nailStartNanos)
+          + " ms"
+          + (cancelled ? ", cancelled" : "");
     }
   }
 
+  /** Interrupts the running nail because its client disconnected, runs on the pool's timer */
+  private void cancel(NGClientDisconnectReason reason, Socket socket, long nailCount) {
+    Class<?> nailClass;
+    synchronized (cancellationLock) {
+      if (cancellableNail == null || cancellableNailCount != nailCount || cancelled) {
+        return;
+      }
+      nailClass = cancellableNail;
+      interruptNail(socket, nailCount);
+    }
+    LOG.log(
+        Level.INFO,
+        "Client disconnected ({0}), interrupting nail {1} in NGSession {2}",
+        new Object[] {reason, nailClass.getName(), instanceNumber});
+  }
+
+  /**
+   * Compares the allocations of the running nail to the budget, runs on the pool's timer. The
+   * client is warned once the nail allocated {@link #ALLOCATION_WARNING_PERCENT}% of the budget;
+   * past the budget, it is sent {@link NGConstants#EXIT_ALLOCATION_BUDGET_EXCEEDED} and the nail is
+   * interrupted.
+   *
+   * @param budgetBytes bytes the nail may allocate
+   */
+  void checkAllocationBudget(long budgetBytes) {
+    Class<?> nailClass;
+    NGCommunicator comm;
+    long allocatedBytes;
+    boolean exceeded;
+    synchronized (cancellationLock) {
+      if (cancellableNail == null || cancelled) {
+        return;
+      }
+      allocatedBytes =
+          NGThreadUsage.delta(nailStartAllocatedBytes, NGThreadUsage.threadAllocatedBytes(this));
+      exceeded = allocatedBytes > budgetBytes;
+      if (!exceeded
+          && (allocationWarned
+              || allocatedBytes < budgetBytes / 100 * ALLOCATION_WARNING_PERCENT)) {
+        // also the case when allocations are not measured
+        return;
+      }
+      nailClass = cancellableNail;
+      comm = nailComm;
+      allocationWarned = true;
+      if (exceeded) {
+        server.nailOverBudget(nailClass);
+        interruptNail(NGConstants.EXIT_ALLOCATION_BUDGET_EXCEEDED);
+      }
+    }
+
+    String message =
+        "Nail "
+            + nailClass.getName()
+            + " allocated "
+            + allocatedBytes
+            + " bytes, its budget is "
+            + budgetBytes
+            + " bytes";
+    if (!exceeded) {
+      LOG.log(Level.WARNING, "{0} in NGSession {1}", new Object[] {message, instanceNumber});
+      talkToClient("allocation warning", () -> comm.sendNotice("nailgun: " + message + "\n"));
+      return;
+    }
+    LOG.log(
+        Level.WARNING,
+        "{0}, interrupting it in NGSession {1}",
+        new Object[] {message, instanceNumber});
+    sendExitCode(comm, NGConstants.EXIT_ALLOCATION_BUDGET_EXCEEDED);
+  }
+
+  /** Interrupts the running nail because it ran past its timeout, runs on the pool's timer */
+  private void timeOut(long nailCount, long timeoutMillis) {
+    Class<?> nailClass;
+    NGCommunicator comm;
+    synchronized (cancellationLock) {
+      if (cancellableNail == null || cancellableNailCount != nailCount) {
+        return;
+      }
+      timeout = null;
+      if (cancelled) {
+        return;
+      }
+      nailClass = cancellableNail;
+      comm = nailComm;
+      server.nailTimedOut(nailClass);
+      interruptNail(NGConstants.EXIT_TIMEOUT);
+    }
+    LOG.log(
+        Level.WARNING,
+        "Nail "
+            + nailClass.getName()
+            + " timed out after "
+            + timeoutMillis
+            + " ms, interrupting it in NGSession "
+            + instanceNumber);
+    sendExitCode(comm, NGConstants.EXIT_TIMEOUT);
+  }
+
+  /**
+   * Sends the exit code to the client of a nail the server cancelled, as the client does not have
+   * to wait for a nail that may keep running until it is abandoned.
+   */
+  private void sendExitCode(NGCommunicator comm, int exitCode) {
+    talkToClient("exit code", () -> comm.exit(exitCode));
+  }
+
+  /**
+   * Sends something to the client of the running nail on the pool's timer. Neither notices nor the
+   * exit code wait for room in the output queue, and exit() gives up on a client which does not
+   * read, so a slow client holds the timer up for at most the output write timeout.
+   */
+  private void talkToClient(String what, ClientWrite write) {
+    try {
+      sessionPool.execute(
+          () -> {
+            try {
+              write.run();
+            } catch (IOException e) {
+              LOG.log(Level.FINE, "Unable to send " + what + " to the client", e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // the pool is shutting down, the nail's own exit reaches the client
+    }
+  }
+
+  /** Sends something to a client */
+  private interface ClientWrite {
+    void run() throws IOException;
+  }
+
+  /**
+   * Interrupts the running nail on behalf of the server; its client exits with the specified code
+   * whatever the nail does next. Must be called under cancellationLock
+   */
+  private void interruptNail(int exitCode) {
+    forcedExitCode = exitCode;
+    interruptNail(nailSocket, cancellableNailCount);
+  }
+
+  /**
+   * Interrupts the running nail and schedules its abandonment. Must be called under
+   * cancellationLock
+   */
+  private void interruptNail(Socket socket, long nailCount) {
+    // counted first, so that the nail cannot return before its cancellation is
+    server.nailCancelled(cancellableNail);
+    cancelled = true;
+    wastedCpuStartNanos = NGThreadUsage.threadCpuNanos(this);
+    try {
+      abandonment =
+          sessionPool.schedule(
+              () -> abandon(socket, nailCount), server.getCancellationGracePeriodMillis());
+    } catch (RejectedExecutionException e) {
+      // the pool is shutting down and waits for the nail anyway
+    }
+    interrupt();
+  }
+
+  /**
+   * Gives up on a cancelled nail that is still running after the grace period: the session stops
+   * being counted as working and the client socket is closed, the nail keeps the thread.
+   */
+  private void abandon(Socket socket, long nailCount) {
+    Class<?> nailClass;
+    long wastedCpuNanos;
+    synchronized (cancellationLock) {
+      if (cancellableNail == null || cancellableNailCount != nailCount) {
+        return;
+      }
+      nailClass = cancellableNail;
+      wastedCpuNanos = chargeWastedCpu(NGThreadUsage.threadCpuNanos(this));
+      abandonment = null;
+    }
+    sessionPool.abandon(this);
+    server.nailAbandoned(nailClass);
+    server.nailWastedCpu(nailClass, wastedCpuNanos);
+
+    Throwable where = new Throwable("Stack trace of the abandoned nail");
+    where.setStackTrace(getStackTrace());
+    LOG.log(
+        Level.WARNING,
+        "Nail "
+            + nailClass.getName()
+            + " is still running "
+            + server.getCancellationGracePeriodMillis()
+            + " ms after being interrupted, abandoning NGSession "
+            + instanceNumber,
+        where);
+    try {
+      socket.close();
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Unable to close the socket of an abandoned nail", e);
+    }
+  }
+
+  /**
+   * Must be called under cancellationLock
+   *
+   * @param cpuNanos current CPU time of this thread, -1 if unknown
+   * @return CPU time spent since the nail was last charged, 0 if unknown
+   */
+  private long chargeWastedCpu(long cpuNanos) {
+    long wasted = 0;
+    if (cpuNanos >= 0 && wastedCpuStartNanos >= 0) {
+      wasted = Math.max(0, cpuNanos - wastedCpuStartNanos);
+    }
+    wastedCpuStartNanos = cpuNanos;
+    return wasted;
+  }
+
+  /** Closes the stdio file descriptors passed by the client, if any */
+  private void closePassedFileDescriptors() {
+    if (passedFds != null) {
+      passedFds.close();
+      passedFds = null;
+    }
+  }
+
+  /**
+   * Completes the phase being measured, if any, reports its duration to the server and starts
+   * measuring the next one.
+   *
+   * @param phase the phase to start measuring
+   * @param startNanos System.nanoTime() at which the phase has started
+   */
+  private void startPhase(NGInvocationPhase phase, long startNanos) {
+    if (currentPhase != null) {
+      endPhase(startNanos);
+    }
+    currentPhase = phase;
+    currentPhaseStartNanos = startNanos;
+  }
+
+  private void endPhase(long endNanos) {
+    long nanos = endNanos - currentPhaseStartNanos;
+    phaseNanos[currentPhase.ordinal()] = nanos;
+    server.phaseCompleted(currentPhase, nanos);
+    currentPhase = null;
+  }
+
+  /**
+   * Completes measurement of the current invocation, sends the timing trailer to the client if it
+   * was requested and finally sends the exit code. Phases which did not complete (i.e. because the
+   * nail was not found) are neither reported to the server nor to the client.
+   */
+  private void exit(NGCommunicator comm, int exitCode, boolean timingRequested) {
+    // whatever the nail did after being cancelled, the client learns why it was
+    synchronized (cancellationLock) {
+      if (forcedExitCode != 0) {
+        exitCode = forcedExitCode;
+        forcedExitCode = 0;
+      }
+    }
+
+    // only the drain phase is considered complete at this point, an earlier phase was interrupted
+    // by an exception and its duration is meaningless
+    if (currentPhase == NGInvocationPhase.DRAIN) {
+      endPhase(System.nanoTime());
+    }
+    currentPhase = null;
+
+    // readers of the client's output see end of stream only once the server closes its copies
+    closePassedFileDescriptors();
+
+    // nail could have already sent the exit code by calling NGContext.exit(); the client is gone
+    // at this point and it is too late for the trailer
+    if (timingRequested && !comm.isExited()) {
+      try {
+        byte[] trailer = formatTimings().getBytes(StandardCharsets.US_ASCII);
+        comm.send(NGConstants.CHUNKTYPE_TIMING, trailer, 0, trailer.length);
+      } catch (IOException e) {
+        LOG.log(Level.FINE, "Unable to send timing trailer", e);
+      }
+    }
+    comm.exit(exitCode);
+  }
+
+  /** @return timings of the current invocation, in the form "queue=12us header=34us ..." */
+  private String formatTimings() {
+    StringBuilder result = new StringBuilder();
+    for (NGInvocationPhase phase : NGInvocationPhase.values()) {
+      long nanos = phaseNanos[phase.ordinal()];
+      if (nanos < 0) {
+        continue;
+      }
+      if (result.length() > 0) {
+        result.append(' ');
+      }
+      result.append(phase.getLabel()).append('=').append(nanos / 1000).append("us");
+    }
+    return result.toString();
+  }
+
+  private static String[] toArray(List<String> args) {
+    return args.toArray(new String[args.size()]);
+  }
+
+  private static boolean isTimingRequested(Properties env) {
+    return env != null && "1".equals(env.getProperty(NGConstants.TIMING_ENV));
+  }
+
   /** Updates the current thread name (useful for debugging). */
   private void updateThreadName(String detail) {
     setName("NGSession " + instanceNumber + ": " + ((detail == null) ? "(idle)" : detail));
@@ -17,13 +17,18 @@
 
 package com.facebook.nailgun;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -37,10 +42,18 @@ import java.util.stream.Stream;
  */
 class NGSessionPool {
 
+  private static final Logger LOG = Logger.getLogger(NGSessionPool.class.getName());
+
+  /** How often allocations of running nails are compared to the server's allocation budget */
+  static final long ALLOCATION_SAMPLE_INTERVAL_MILLIS = 100;
+
   final Queue<NGSession> idlePool;
   final Set<NGSession> workingPool;
 
-  final int maxIdleSessions;
+  /** sessions whose nail ignored cancellation, no longer counted as working */
+  final Set<NGSession> abandonedPool;
+
+  volatile int maxIdleSessions;
 
   /** reference to server we're working for */
   final NGServer server;
@@ -54,6 +67,16 @@ class NGSessionPool {
   /** synchronization object */
   private final Object lock = new Object();
 
+  /** cancels nails, abandons them after their grace period and samples their allocations */
+  private final ScheduledThreadPoolExecutor cancellationTimer;
+
+  /** sizes of the pools, written under lock and published for lock-free reading by metrics */
+  private volatile int idleCount = 0;
+
+  private volatile int workingCount = 0;
+
+  private volatile int abandonedCount = 0;
+
   /**
    * Creates a new NGSessionRunner operating for the specified server, with the specified number of
    * threads
@@ -79,6 +102,24 @@ class NGSessionPool {
     this.maxIdleSessions = Math.max(0, maxIdleSessions);
     idlePool = new LinkedList<>();
     workingPool = new HashSet<>();
+    abandonedPool = new HashSet<>();
+    cancellationTimer =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Runnable task =
+                  () -> {
+                    // started from a session thread, do not log to the stderr of its client
+                    if (System.err instanceof ThreadLocalPrintStream) {
+                      ((ThreadLocalPrintStream) System.err).init(null);
+                    }
+                    r.run();
+                  };
+              Thread thread = new Thread(task, "NGSessionPool cancellation timer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    cancellationTimer.setRemoveOnCancelPolicy(true);
     this.instanceCreator =
         instanceCreator != null ? instanceCreator : (() -> new NGSession(this, server));
   }
@@ -99,6 +140,7 @@ class NGSessionPool {
         session.start();
       }
       workingPool.add(session);
+      updateCounts();
       return session;
     }
   }
@@ -116,47 +158,195 @@ class NGSessionPool {
         return;
       }
       workingPool.remove(session);
+      abandonedPool.remove(session);
 
       if (idlePool.size() < maxIdleSessions) {
         idlePool.add(session);
+        updateCounts();
         return;
       }
+      updateCounts();
     }
     session.shutdown();
   }
 
-  /** Shuts down the pool. The function waits for running nails to finish. */
-  void shutdown() throws InterruptedException {
+  /**
+   * Stops counting a session as working because its nail did not return after being cancelled. The
+   * session goes back to the pool if the nail returns eventually.
+   *
+   * @param session the session running the nail
+   */
+  void abandon(NGSession session) {
+    synchronized (lock) {
+      if (done || !workingPool.remove(session)) {
+        return;
+      }
+      abandonedPool.add(session);
+      updateCounts();
+    }
+  }
+
+  /**
+   * Runs a task after a delay on the pool's timer thread
+   *
+   * @param task the task to run
+   * @param delayMillis the delay in milliseconds
+   * @return the scheduled task, to cancel it if it is not needed anymore
+   */
+  ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+    return cancellationTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs a task as soon as possible on the pool's timer thread
+   *
+   * @param task the task to run, which must not block for long
+   */
+  void execute(Runnable task) {
+    cancellationTimer.execute(task);
+  }
+
+  /**
+   * Starts comparing the allocations of running nails to the server's allocation budget on the
+   * pool's timer thread. Sampling costs next to nothing while the budget is not set.
+   */
+  void startAllocationMonitor() {
+    cancellationTimer.scheduleWithFixedDelay(
+        this::checkAllocationBudgets,
+        ALLOCATION_SAMPLE_INTERVAL_MILLIS,
+        ALLOCATION_SAMPLE_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Warns about or cancels the running nails that allocated too much */
+  private void checkAllocationBudgets() {
+    long budgetBytes = server.getAllocationBudgetBytes();
+    if (budgetBytes <= 0) {
+      return;
+    }
+    List<NGSession> working;
+    synchronized (lock) {
+      if (workingPool.isEmpty()) {
+        return;
+      }
+      working = new ArrayList<>(workingPool);
+    }
+    for (NGSession session : working) {
+      try {
+        session.checkAllocationBudget(budgetBytes);
+      } catch (RuntimeException e) {
+        // a failure would cancel the periodic task, keep watching the other nails
+        LOG.log(Level.WARNING, "Unable to check the allocation budget of a nail", e);
+      }
+    }
+  }
+
+  /**
+   * Changes the maximum number of idle sessions. Idle sessions above the new maximum are shut down,
+   * sessions serving a connection are returned to the pool or shut down when they complete.
+   *
+   * @param maxIdleSessions the maximum number of idle threads to allow
+   */
+  void setMaxIdleSessions(int maxIdleSessions) {
+    List<NGSession> excess = new ArrayList<>();
+    synchronized (lock) {
+      this.maxIdleSessions = Math.max(0, maxIdleSessions);
+      while (idlePool.size() > this.maxIdleSessions) {
+        excess.add(idlePool.poll());
+      }
+      updateCounts();
+    }
+    for (NGSession session : excess) {
+      session.shutdown();
+    }
+  }
+
+  /** Must be called under lock after any change to idlePool or workingPool */
+  private void updateCounts() {
+    idleCount = idlePool.size();
+    workingCount = workingPool.size();
+    abandonedCount = abandonedPool.size();
+  }
+
+  /** @return number of sessions waiting for a connection, read without locking */
+  int getIdleCount() {
+    return idleCount;
+  }
+
+  /** @return number of sessions serving a connection, read without locking */
+  int getWorkingCount() {
+    return workingCount;
+  }
+
+  /** @return number of sessions running a nail that was abandoned, read without locking */
+  int getAbandonedCount() {
+    return abandonedCount;
+  }
+
+  /** @return the sessions serving a connection, running a nail or about to */
+  List<NGSession> getWorkingSessions() {
+    synchronized (lock) {
+      return new ArrayList<>(workingPool);
+    }
+  }
+
+  /**
+   * Shuts down the pool, waiting up to {@link NGConstants#SESSION_TERMINATION_TIMEOUT_MILLIS} for
+   * running nails to finish.
+   *
+   * @return the sessions whose nail has not finished, see {@link #shutdown(long)}
+   */
+  List<NGSession> shutdown() throws InterruptedException {
+    return shutdown(NGConstants.SESSION_TERMINATION_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Shuts down the pool. Sessions are interrupted and the function waits for running nails to
+   * finish, abandoned ones excepted, until all are done or the timeout expires, whichever comes
+   * first.
+   *
+   * @param timeoutMillis how long to wait for all sessions together
+   * @return the sessions still running a nail when the function returns, abandoned ones included
+   */
+  List<NGSession> shutdown(long timeoutMillis) throws InterruptedException {
     List<NGSession> allSessions;
+    List<NGSession> abandonedSessions;
     synchronized (lock) {
       done = true;
       allSessions =
           Stream.concat(workingPool.stream(), idlePool.stream()).collect(Collectors.toList());
+      abandonedSessions = new ArrayList<>(abandonedPool);
       idlePool.clear();
       workingPool.clear();
+      abandonedPool.clear();
+      updateCounts();
     }
+    cancellationTimer.shutdownNow();
     for (NGSession session : allSessions) {
       session.shutdown();
     }
+    // their threads stop if the nail returns one day
+    for (NGSession session : abandonedSessions) {
+      session.shutdown();
+    }
 
     // wait for all sessions to complete by either returning from waiting state or finishing their
     // nails
-    long start = System.nanoTime();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    List<NGSession> stragglers = new ArrayList<>();
     for (NGSession session : allSessions) {
-      long timeout =
-          NGConstants.SESSION_TERMINATION_TIMEOUT_MILLIS
-              - TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
-      if (timeout < 1) {
-        // Give all threads a chance to finish or pick up already finished threads
-        timeout = 1;
-      }
+      // give all threads a chance to finish or pick up already finished threads
+      long timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
       session.join(timeout);
       if (session.isAlive()) {
-        throw new IllegalStateException(
-            "NGSession has not completed in "
-                + NGConstants.SESSION_TERMINATION_TIMEOUT_MILLIS
-                + " ms");
+        stragglers.add(session);
+      }
+    }
+    for (NGSession session : abandonedSessions) {
+      if (session.isAlive()) {
+        stragglers.add(session);
       }
     }
+    return stragglers;
   }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Options applied to TCP connections accepted by an {@link NGServer}. Local sockets are left alone.
+ * Changes apply to connections accepted afterwards, except for the receive buffer size, which is
+ * also set on the listening sockets when the server starts so that larger TCP windows can be
+ * negotiated.
+ *
+ * <p>TCP_NODELAY is on by default: the protocol exchanges many small chunks (send-input requests,
+ * heartbeats, exit codes), and Nagle's algorithm combined with delayed acknowledgements adds tens
+ * of milliseconds to each of them.
+ */
+public class NGSocketOptions {
+
+  private volatile boolean tcpNoDelay = true;
+  private volatile boolean keepAlive = false;
+  private volatile int sendBufferSize = 0;
+  private volatile int receiveBufferSize = 0;
+
+  /** @return true if Nagle's algorithm is disabled on accepted connections */
+  public boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  /** @param tcpNoDelay true to disable Nagle's algorithm on accepted connections (default) */
+  public void setTcpNoDelay(boolean tcpNoDelay) {
+    this.tcpNoDelay = tcpNoDelay;
+  }
+
+  /** @return true if TCP keepalive probes are sent on idle accepted connections */
+  public boolean getKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * @param keepAlive true to have the operating system probe idle connections, so that clients
+   *     which vanished without closing the connection are eventually detected
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /** @return SO_SNDBUF for accepted connections, 0 for the operating system default */
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  /**
+   * @param sendBufferSize SO_SNDBUF for accepted connections, 0 for the operating system default
+   */
+  public void setSendBufferSize(int sendBufferSize) {
+    if (sendBufferSize < 0) {
+      throw new IllegalArgumentException("sendBufferSize must not be negative: " + sendBufferSize);
+    }
+    this.sendBufferSize = sendBufferSize;
+  }
+
+  /** @return SO_RCVBUF for accepted connections, 0 for the operating system default */
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  /**
+   * @param receiveBufferSize SO_RCVBUF for accepted connections, 0 for the operating system default
+   */
+  public void setReceiveBufferSize(int receiveBufferSize) {
+    if (receiveBufferSize < 0) {
+      throw new IllegalArgumentException(
+          "receiveBufferSize must not be negative: " + receiveBufferSize);
+    }
+    this.receiveBufferSize = receiveBufferSize;
+  }
+
+  /** Sets the options that must be set before binding on a TCP listening socket. */
+  void applyToServerSocket(ServerSocket serverSocket) throws SocketException {
+    int receiveBufferSize = this.receiveBufferSize;
+    if (receiveBufferSize > 0) {
+      serverSocket.setReceiveBufferSize(receiveBufferSize);
+    }
+  }
+
+  /** Sets the options on a TCP connection that was just accepted. */
+  void apply(Socket socket) throws SocketException {
+    socket.setTcpNoDelay(tcpNoDelay);
+    socket.setKeepAlive(keepAlive);
+    int sendBufferSize = this.sendBufferSize;
+    if (sendBufferSize > 0) {
+      socket.setSendBufferSize(sendBufferSize);
+    }
+    int receiveBufferSize = this.receiveBufferSize;
+    if (receiveBufferSize > 0) {
+      socket.setReceiveBufferSize(receiveBufferSize);
+    }
+  }
+
+  public String toString() {
+    return "tcpNoDelay="
+        + tcpNoDelay
+        + " keepAlive="
+        + keepAlive
+        + " sendBufferSize="
+        + sendBufferSize
+        + " receiveBufferSize="
+        + receiveBufferSize;
+  }
+}
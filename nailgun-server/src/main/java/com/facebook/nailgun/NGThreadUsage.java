@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and the heap allocations of threads, as far as the JVM measures them. CPU time
+ * comes from the standard ThreadMXBean; allocated bytes need the com.sun.management extension
+ * offered by HotSpot and OpenJ9. Every method returns -1 when the value is not available, i.e. when
+ * the measurement is not supported or was disabled, or when the thread is not alive.
+ */
+final class NGThreadUsage {
+
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /** The HotSpot extension measuring allocations, or null if not available */
+  private static final com.sun.management.ThreadMXBean allocationMXBean = getAllocationMXBean();
+
+  private NGThreadUsage() {}
+
+  private static com.sun.management.ThreadMXBean getAllocationMXBean() {
+    try {
+      if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (bean.isThreadAllocatedMemorySupported()) {
+          return bean;
+        }
+      }
+    } catch (LinkageError e) {
+      // com.sun.management is not part of this JVM
+    }
+    return null;
+  }
+
+  /** @return CPU time used by the current thread in nanoseconds, or -1 */
+  static long currentThreadCpuNanos() {
+    if (!threadMXBean.isCurrentThreadCpuTimeSupported()) {
+      return -1;
+    }
+    return threadMXBean.getCurrentThreadCpuTime();
+  }
+
+  /**
+   * @param thread the thread to measure
+   * @return CPU time used by the thread in nanoseconds, or -1
+   */
+  static long threadCpuNanos(Thread thread) {
+    if (!threadMXBean.isThreadCpuTimeSupported()) {
+      return -1;
+    }
+    return threadMXBean.getThreadCpuTime(thread.getId());
+  }
+
+  /**
+   * @param thread the thread to measure
+   * @return bytes allocated on the heap by the thread since it started, or -1
+   */
+  static long threadAllocatedBytes(Thread thread) {
+    if (allocationMXBean == null) {
+      return -1;
+    }
+    return allocationMXBean.getThreadAllocatedBytes(thread.getId());
+  }
+
+  /**
+   * @param start value returned by one of the methods of this class at the start of a measurement
+   * @param end value returned by the same method at its end
+   * @return the difference, or -1 if either value is not available
+   */
+  static long delta(long start, long end) {
+    return start < 0 || end < 0 ? -1 : Math.max(0, end - start);
+  }
+}
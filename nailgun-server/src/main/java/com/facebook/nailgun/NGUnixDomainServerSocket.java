@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -60,6 +62,12 @@ public class NGUnixDomainServerSocket extends ServerSocket {
   private boolean isBound;
   private boolean isClosed;
 
+  /** Pipe polled by accept() along with the socket, written to by close() and release() */
+  private final int[] wakeupPipe = new int[2];
+
+  /** True once another process has taken the socket over, see {@link #release()} */
+  private volatile boolean isReleased;
+
   public static class NGUnixDomainServerSocketAddress extends SocketAddress {
     private final String path;
 
@@ -98,6 +106,7 @@ public class NGUnixDomainServerSocket extends ServerSocket {
               NGUnixDomainSocketLibrary.socket(
                   NGUnixDomainSocketLibrary.PF_LOCAL, NGUnixDomainSocketLibrary.SOCK_STREAM, 0));
       this.backlog = backlog;
+      NGUnixDomainSocketLibrary.pipe(wakeupPipe);
       if (path != null) {
         bind(new NGUnixDomainServerSocketAddress(path));
       }
@@ -106,6 +115,30 @@ public class NGUnixDomainServerSocket extends ServerSocket {
     }
   }
 
+  private NGUnixDomainServerSocket(AtomicInteger listeningFd) throws IOException {
+    fd = listeningFd;
+    backlog = DEFAULT_BACKLOG;
+    try {
+      NGUnixDomainSocketLibrary.pipe(wakeupPipe);
+      NGUnixDomainSocketLibrary.setNonBlocking(listeningFd.get(), true);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    }
+    isBound = true;
+  }
+
+  /**
+   * Wraps a Unix domain socket that is already bound and listening, i.e. one passed by another
+   * process with SCM_RIGHTS.
+   *
+   * @param listeningFd the listening socket, owned by the returned instance
+   * @return the server socket
+   */
+  public static NGUnixDomainServerSocket fromListeningFileDescriptor(int listeningFd)
+      throws IOException {
+    return new NGUnixDomainServerSocket(new AtomicInteger(listeningFd));
+  }
+
   public synchronized void bind(SocketAddress endpoint) throws IOException {
     if (!(endpoint instanceof NGUnixDomainServerSocketAddress)) {
       throw new IllegalArgumentException(
@@ -124,6 +157,8 @@ public class NGUnixDomainServerSocket extends ServerSocket {
       int socketFd = fd.get();
       NGUnixDomainSocketLibrary.bind(socketFd, address, address.size());
       NGUnixDomainSocketLibrary.listen(socketFd, backlog);
+      // another process sharing the socket may take the connection accept() was woken up for
+      NGUnixDomainSocketLibrary.setNonBlocking(socketFd, true);
       isBound = true;
     } catch (LastErrorException e) {
       throw new IOException(e);
@@ -131,9 +166,9 @@ public class NGUnixDomainServerSocket extends ServerSocket {
   }
 
   public Socket accept() throws IOException {
-    // We explicitly do not make this method synchronized, since the
-    // call to NGUnixDomainSocketLibrary.accept() will block
-    // indefinitely, causing another thread's call to close() to deadlock.
+    // We explicitly do not make this method synchronized, since it waits
+    // indefinitely for a connection, causing another thread's call to close()
+    // to deadlock.
     synchronized (this) {
       if (!isBound) {
         throw new IllegalStateException("Socket is not bound");
@@ -142,12 +177,81 @@ public class NGUnixDomainServerSocket extends ServerSocket {
         throw new IllegalStateException("Socket is already closed");
       }
     }
+    NGUnixDomainSocketLibrary.Pollfd[] pollfds =
+        (NGUnixDomainSocketLibrary.Pollfd[]) new NGUnixDomainSocketLibrary.Pollfd().toArray(2);
     try {
-      NGUnixDomainSocketLibrary.SockaddrUn sockaddrUn = new NGUnixDomainSocketLibrary.SockaddrUn();
-      IntByReference addressLen = new IntByReference();
-      addressLen.setValue(sockaddrUn.size());
-      int clientFd = NGUnixDomainSocketLibrary.accept(fd.get(), sockaddrUn, addressLen);
-      return new NGUnixDomainSocket(clientFd);
+      while (true) {
+        int socketFd = fd.get();
+        if (socketFd == -1 || isReleased) {
+          throw new SocketException("Socket is closed");
+        }
+        pollfds[0].fd = socketFd;
+        pollfds[0].events = NGUnixDomainSocketLibrary.POLLIN;
+        pollfds[1].fd = wakeupPipe[0];
+        pollfds[1].events = NGUnixDomainSocketLibrary.POLLIN;
+        pollfds[1].revents = 0;
+        pollfds[1].write();
+        try {
+          NGUnixDomainSocketLibrary.poll(pollfds[0], 2, -1);
+        } catch (LastErrorException e) {
+          if (e.getErrorCode() != NGUnixDomainSocketLibrary.EINTR) {
+            throw e;
+          }
+          continue;
+        }
+        pollfds[1].read();
+        if (pollfds[1].revents != 0) {
+          // closed or released
+          continue;
+        }
+        int clientFd;
+        try {
+          NGUnixDomainSocketLibrary.SockaddrUn sockaddrUn =
+              new NGUnixDomainSocketLibrary.SockaddrUn();
+          IntByReference addressLen = new IntByReference();
+          addressLen.setValue(sockaddrUn.size());
+          clientFd = NGUnixDomainSocketLibrary.accept(socketFd, sockaddrUn, addressLen);
+        } catch (LastErrorException e) {
+          if (e.getErrorCode() != NGUnixDomainSocketLibrary.EAGAIN) {
+            throw e;
+          }
+          // another process sharing the socket took the connection
+          continue;
+        }
+        if (!Platform.isLinux()) {
+          // BSD sockets inherit non-blocking mode from the listening socket
+          NGUnixDomainSocketLibrary.setNonBlocking(clientFd, false);
+        }
+        return new NGUnixDomainSocket(clientFd);
+      }
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Stops accepting connections once another process has taken the socket over, without shutting
+   * the socket down: pending and future {@link #accept()} calls throw, and the socket keeps
+   * listening for the other process after this one closes it.
+   */
+  public void release() throws IOException {
+    synchronized (this) {
+      if (isClosed) {
+        return;
+      }
+      isReleased = true;
+    }
+    wakeUpAcceptors();
+  }
+
+  /** @return the listening socket, i.e. to pass it to another process, -1 once closed */
+  int getFileDescriptor() {
+    return fd.get();
+  }
+
+  private void wakeUpAcceptors() throws IOException {
+    try {
+      NGUnixDomainSocketLibrary.write(wakeupPipe[1], ByteBuffer.wrap(new byte[1]), 1);
     } catch (LastErrorException e) {
       throw new IOException(e);
     }
@@ -161,16 +265,13 @@ public class NGUnixDomainServerSocket extends ServerSocket {
       // Close listening socket to unblock a thread calling 'accept()'
       int socketFd = fd.getAndSet(-1);
 
-      // Mac and Linux have different behavior. On Mac, calling 'close()' on socket descriptor
-      // will cause `accept()` to throw and unblock (allowing us to finish gracefully), while on
-      // Linux it remains blocked. To unblock listening socket on Linux we have to call `shutdown()`
-      // first, but on Mac it fails with 'Socket not connected' exception. So we only call shutdown
-      // on Linux.
-      if (Platform.isLinux()) {
-        NGUnixDomainSocketLibrary.shutdown(socketFd, NGUnixDomainSocketLibrary.SHUT_RDWR);
-      }
-
+      // 'accept()' waits for the wake-up pipe too, so the socket does not need to be shut down to
+      // unblock it, which is just as well: shutting it down would break it for other processes
+      // sharing it, see 'release()'.
+      wakeUpAcceptors();
       NGUnixDomainSocketLibrary.close(socketFd);
+      NGUnixDomainSocketLibrary.close(wakeupPipe[0]);
+      NGUnixDomainSocketLibrary.close(wakeupPipe[1]);
       isClosed = true;
     } catch (LastErrorException e) {
       throw new IOException(e);
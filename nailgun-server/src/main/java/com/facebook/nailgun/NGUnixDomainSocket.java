@@ -22,7 +22,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implements a {@link Socket} backed by a native Unix domain socket.
@@ -36,6 +40,15 @@ public class NGUnixDomainSocket extends Socket {
   private final InputStream is;
   private final OutputStream os;
 
+  /** File descriptors passed by the peer with SCM_RIGHTS that nobody has taken yet */
+  private final List<Integer> receivedFds = new ArrayList<>();
+
+  /** Whether reads pick up file descriptors passed by the peer */
+  private volatile boolean receivingFds = false;
+
+  /** Read timeout in milliseconds, 0 to wait forever */
+  private volatile int soTimeout;
+
   /** Creates a Unix domain socket backed by a native file descriptor. */
   public NGUnixDomainSocket(int fd) {
     this.fd = new ReferenceCountedFileDescriptor(fd);
@@ -43,6 +56,36 @@ public class NGUnixDomainSocket extends Socket {
     this.os = new NGUnixDomainSocketOutputStream();
   }
 
+  /**
+   * Connects to a Unix domain socket.
+   *
+   * @param path the path the socket listens on
+   * @return the connected socket
+   * @throws IOException if the connection fails
+   */
+  public static NGUnixDomainSocket connect(String path) throws IOException {
+    NGUnixDomainSocketLibrary.SockaddrUn address = new NGUnixDomainSocketLibrary.SockaddrUn(path);
+    int socketFd;
+    try {
+      socketFd =
+          NGUnixDomainSocketLibrary.socket(
+              NGUnixDomainSocketLibrary.PF_LOCAL, NGUnixDomainSocketLibrary.SOCK_STREAM, 0);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    }
+    try {
+      NGUnixDomainSocketLibrary.connect(socketFd, address, address.size());
+    } catch (LastErrorException e) {
+      try {
+        NGUnixDomainSocketLibrary.close(socketFd);
+      } catch (LastErrorException closeFailure) {
+        e.addSuppressed(closeFailure);
+      }
+      throw new IOException("Unable to connect to " + path, e);
+    }
+    return new NGUnixDomainSocket(socketFd);
+  }
+
   public InputStream getInputStream() {
     return is;
   }
@@ -51,6 +94,103 @@ public class NGUnixDomainSocket extends Socket {
     return os;
   }
 
+  /**
+   * Sets the read timeout. Like for TCP sockets, a read that does not get any data within the
+   * timeout throws {@link SocketTimeoutException} and the socket remains usable.
+   *
+   * @param timeout the timeout in milliseconds, 0 to wait forever
+   */
+  public void setSoTimeout(int timeout) throws SocketException {
+    if (isClosed()) {
+      throw new SocketException("Socket is closed");
+    }
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout can't be negative");
+    }
+    soTimeout = timeout;
+  }
+
+  public int getSoTimeout() throws SocketException {
+    if (isClosed()) {
+      throw new SocketException("Socket is closed");
+    }
+    return soTimeout;
+  }
+
+  /**
+   * Sets whether reads pick up file descriptors the peer passes along with data (SCM_RIGHTS). That
+   * takes a recvmsg(2) call and native buffers for every read, so it should only be enabled while
+   * file descriptors are expected. Any that arrive while it is disabled are discarded.
+   *
+   * @param receivingFds true to receive passed file descriptors
+   */
+  void setReceivingFileDescriptors(boolean receivingFds) {
+    this.receivingFds = receivingFds;
+  }
+
+  /**
+   * Takes ownership of the file descriptors the peer has passed over this socket so far, in the
+   * order they were received. File descriptors that are never taken are closed with the socket.
+   *
+   * @return the received file descriptors, possibly empty
+   */
+  int[] takeReceivedFileDescriptors() {
+    synchronized (receivedFds) {
+      int[] result = new int[receivedFds.size()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = receivedFds.get(i);
+      }
+      receivedFds.clear();
+      return result;
+    }
+  }
+
+  /**
+   * Copies bytes from a file straight to this socket, without going through the Java heap. Requires
+   * {@link NGUnixDomainSocketLibrary#canSendFile()}.
+   *
+   * @param inFd file to read from, starting at its current offset
+   * @param count number of bytes to copy
+   * @return number of bytes copied, less than count only if the end of the file was reached
+   */
+  long transferFrom(int inFd, long count) throws IOException {
+    try {
+      int socketFd = fd.acquire();
+      if (socketFd == -1) {
+        throw new IOException("Socket is closed");
+      }
+      return NGUnixDomainSocketLibrary.sendFile(socketFd, inFd, count);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      fd.release();
+    }
+  }
+
+  /**
+   * Writes bytes, passing file descriptors to the peer along with them (SCM_RIGHTS). Only supported
+   * if {@link NGUnixDomainSocketLibrary#canReceiveFileDescriptors()}.
+   *
+   * @param data bytes to write, at least one
+   * @param fds file descriptors to pass, which stay open in this process
+   */
+  void sendFileDescriptors(byte[] data, int[] fds) throws IOException {
+    int sent;
+    try {
+      int socketFd = fd.acquire();
+      if (socketFd == -1) {
+        throw new SocketException("Socket is closed");
+      }
+      sent = NGUnixDomainSocketLibrary.send(socketFd, data, fds);
+    } catch (LastErrorException e) {
+      throw new IOException(e);
+    } finally {
+      fd.release();
+    }
+    // the file descriptors travel with the first byte, the rest may still need sending
+    os.write(data, sent, data.length - sent);
+  }
+
   public void shutdownInput() throws IOException {
     doShutdown(NGUnixDomainSocketLibrary.SHUT_RD);
   }
@@ -83,6 +223,14 @@ public class NGUnixDomainSocket extends Socket {
       fd.close();
     } catch (LastErrorException e) {
       throw new IOException(e);
+    } finally {
+      for (int receivedFd : takeReceivedFileDescriptors()) {
+        try {
+          NGUnixDomainSocketLibrary.close(receivedFd);
+        } catch (LastErrorException e) {
+          // nothing we can do about it
+        }
+      }
     }
   }
 
@@ -117,7 +265,21 @@ public class NGUnixDomainSocket extends Socket {
         if (fdToRead == -1) {
           return -1;
         }
-        return NGUnixDomainSocketLibrary.read(fdToRead, buf, buf.remaining());
+        int timeout = soTimeout;
+        if (timeout > 0 && !NGUnixDomainSocketLibrary.waitReadable(fdToRead, timeout)) {
+          throw new SocketTimeoutException("Read timed out after " + timeout + " ms");
+        }
+        if (!receivingFds || !NGUnixDomainSocketLibrary.canReceiveFileDescriptors()) {
+          return NGUnixDomainSocketLibrary.read(fdToRead, buf, buf.remaining());
+        }
+        List<Integer> fds = new ArrayList<>(0);
+        int result = NGUnixDomainSocketLibrary.receive(fdToRead, buf, fds);
+        if (!fds.isEmpty()) {
+          synchronized (receivedFds) {
+            receivedFds.addAll(fds);
+          }
+        }
+        return result;
       } catch (LastErrorException e) {
         throw new IOException(e);
       } finally {
@@ -18,8 +18,11 @@
 package com.facebook.nailgun;
 
 import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
 import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Union;
 import com.sun.jna.ptr.IntByReference;
@@ -27,6 +30,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** Utility class to bridge native Unix domain socket calls to Java using JNA. */
 public class NGUnixDomainSocketLibrary {
@@ -38,6 +42,21 @@ public class NGUnixDomainSocketLibrary {
   public static final int SHUT_WR = 1;
   public static final int SHUT_RDWR = 2;
 
+  public static final int SOL_SOCKET = Platform.isMac() ? 0xffff : 1;
+  public static final int SCM_RIGHTS = 1;
+  public static final int MSG_CMSG_CLOEXEC = 0x40000000;
+  public static final int EINTR = 4;
+  public static final int EINVAL = 22;
+  public static final int EAGAIN = Platform.isLinux() ? 11 : 35;
+  public static final int O_RDONLY = 0;
+  public static final int O_NONBLOCK = Platform.isLinux() ? 0x800 : 0x4;
+  public static final int F_GETFL = 3;
+  public static final int F_SETFL = 4;
+  public static final short POLLIN = 0x0001;
+
+  /** Room for the control message of a few file descriptors */
+  private static final int CONTROL_BUFFER_SIZE = 128;
+
   // Utility class, do not instantiate.
   private NGUnixDomainSocketLibrary() {}
 
@@ -117,6 +136,299 @@ public class NGUnixDomainSocketLibrary {
     }
   }
 
+  /** Bridges {@code struct iovec} to and from native code. */
+  public static class Iovec extends Structure {
+    public Pointer iovBase;
+    public NativeLong iovLen;
+
+    protected List<String> getFieldOrder() {
+      return Arrays.asList(new String[] {"iovBase", "iovLen"});
+    }
+  }
+
+  /** Bridges {@code struct msghdr} as laid out on Linux, where lengths are {@code size_t}. */
+  public static class MsghdrLinux extends Structure {
+    public Pointer msgName;
+    public int msgNamelen;
+    public Pointer msgIov;
+    public NativeLong msgIovlen;
+    public Pointer msgControl;
+    public NativeLong msgControllen;
+    public int msgFlags;
+
+    protected List<String> getFieldOrder() {
+      return Arrays.asList(
+          new String[] {
+            "msgName",
+            "msgNamelen",
+            "msgIov",
+            "msgIovlen",
+            "msgControl",
+            "msgControllen",
+            "msgFlags"
+          });
+    }
+  }
+
+  /** Bridges {@code struct msghdr} as laid out on macOS, where lengths are {@code int}. */
+  public static class MsghdrMac extends Structure {
+    public Pointer msgName;
+    public int msgNamelen;
+    public Pointer msgIov;
+    public int msgIovlen;
+    public Pointer msgControl;
+    public int msgControllen;
+    public int msgFlags;
+
+    protected List<String> getFieldOrder() {
+      return Arrays.asList(
+          new String[] {
+            "msgName",
+            "msgNamelen",
+            "msgIov",
+            "msgIovlen",
+            "msgControl",
+            "msgControllen",
+            "msgFlags"
+          });
+    }
+  }
+
+  /** Bridges {@code struct pollfd} to and from native code. */
+  public static class Pollfd extends Structure {
+    public int fd;
+    public short events;
+    public short revents;
+
+    protected List<String> getFieldOrder() {
+      return Arrays.asList(new String[] {"fd", "events", "revents"});
+    }
+  }
+
+  /**
+   * Waits until a file descriptor has data to read, has reached end of stream or has failed, using
+   * poll(2). Interrupted waits are resumed with the remaining time.
+   *
+   * @param fd file descriptor to wait for
+   * @param timeoutMillis how long to wait, must be positive
+   * @return true if a read would not block, false if the timeout expired first
+   */
+  public static boolean waitReadable(int fd, int timeoutMillis) throws LastErrorException {
+    Pollfd pollfd = new Pollfd();
+    pollfd.fd = fd;
+    pollfd.events = POLLIN;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int remaining = timeoutMillis;
+    while (true) {
+      try {
+        // errors and hangups are reported regardless of the requested events, and the read that
+        // follows will report them
+        return poll(pollfd, 1, remaining) > 0;
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() != EINTR) {
+          throw e;
+        }
+      }
+      remaining = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        return false;
+      }
+    }
+  }
+
+  /** @return true if {@link #receive} can pick up file descriptors passed with SCM_RIGHTS */
+  public static boolean canReceiveFileDescriptors() {
+    return Platform.isLinux() || Platform.isMac();
+  }
+
+  /**
+   * Reads from a socket like {@link #read}, also picking up file descriptors the peer passed along
+   * with the data (SCM_RIGHTS). Only supported if {@link #canReceiveFileDescriptors()}.
+   *
+   * @param fd socket to read from
+   * @param buffer buffer to read into, up to its remaining bytes
+   * @param receivedFds list to add received file descriptors to
+   * @return number of bytes read, 0 at end of stream
+   */
+  public static int receive(int fd, ByteBuffer buffer, List<Integer> receivedFds)
+      throws LastErrorException {
+    int count = buffer.remaining();
+    Memory data = new Memory(count);
+    Memory control = new Memory(CONTROL_BUFFER_SIZE);
+    control.clear();
+
+    Iovec iovec = new Iovec();
+    iovec.iovBase = data;
+    iovec.iovLen = new NativeLong(count);
+    iovec.write();
+
+    Structure message;
+    if (Platform.isLinux()) {
+      MsghdrLinux linux = new MsghdrLinux();
+      linux.msgIov = iovec.getPointer();
+      linux.msgIovlen = new NativeLong(1);
+      linux.msgControl = control;
+      linux.msgControllen = new NativeLong(CONTROL_BUFFER_SIZE);
+      message = linux;
+    } else {
+      MsghdrMac mac = new MsghdrMac();
+      mac.msgIov = iovec.getPointer();
+      mac.msgIovlen = 1;
+      mac.msgControl = control;
+      mac.msgControllen = CONTROL_BUFFER_SIZE;
+      message = mac;
+    }
+    message.write();
+
+    // received file descriptors must not leak into processes the nails spawn
+    int result = recvmsg(fd, message.getPointer(), Platform.isLinux() ? MSG_CMSG_CLOEXEC : 0);
+    if (result > 0) {
+      // like read(), leave the position of the buffer alone
+      buffer.duplicate().put(data.getByteArray(0, result));
+    }
+
+    message.read();
+    long controlLength =
+        Platform.isLinux()
+            ? ((MsghdrLinux) message).msgControllen.longValue()
+            : ((MsghdrMac) message).msgControllen;
+    parseControlMessages(control, controlLength, receivedFds);
+    return result;
+  }
+
+  /** Adds the file descriptors of all SCM_RIGHTS messages in a control buffer to the list. */
+  private static void parseControlMessages(
+      Pointer control, long controlLength, List<Integer> receivedFds) {
+    // struct cmsghdr { len; int level; int type; data } where len is size_t on Linux and
+    // socklen_t on macOS, and messages and data are aligned to the size of len
+    int lengthSize = Platform.isLinux() ? NativeLong.SIZE : 4;
+    int headerSize = align(lengthSize + 8, lengthSize);
+    long offset = 0;
+    while (offset + headerSize <= controlLength) {
+      long length =
+          lengthSize == 8 ? control.getLong(offset) : control.getInt(offset) & 0xffffffffL;
+      if (length < headerSize || offset + length > controlLength) {
+        break;
+      }
+      int level = control.getInt(offset + lengthSize);
+      int type = control.getInt(offset + lengthSize + 4);
+      if (level == SOL_SOCKET && type == SCM_RIGHTS) {
+        for (long i = headerSize; i + 4 <= length; i += 4) {
+          receivedFds.add(control.getInt(offset + i));
+        }
+      }
+      offset += align((int) length, lengthSize);
+    }
+  }
+
+  /**
+   * Writes to a socket, passing file descriptors to the peer along with the data (SCM_RIGHTS). Only
+   * supported if {@link #canReceiveFileDescriptors()}, which the peer needs anyway.
+   *
+   * @param fd socket to write to
+   * @param data bytes to write, at least one
+   * @param fds file descriptors to pass, which stay open in this process
+   * @return number of bytes written, the file descriptors travel with the first one
+   */
+  public static int send(int fd, byte[] data, int[] fds) throws LastErrorException {
+    int lengthSize = Platform.isLinux() ? NativeLong.SIZE : 4;
+    int headerSize = align(lengthSize + 8, lengthSize);
+    int controlLength = align(headerSize + 4 * fds.length, lengthSize);
+    if (controlLength > CONTROL_BUFFER_SIZE) {
+      throw new IllegalArgumentException("Too many file descriptors: " + fds.length);
+    }
+    Memory control = new Memory(controlLength);
+    control.clear();
+    if (lengthSize == 8) {
+      control.setLong(0, headerSize + 4 * fds.length);
+    } else {
+      control.setInt(0, headerSize + 4 * fds.length);
+    }
+    control.setInt(lengthSize, SOL_SOCKET);
+    control.setInt(lengthSize + 4, SCM_RIGHTS);
+    control.write(headerSize, fds, 0, fds.length);
+
+    Memory buffer = new Memory(data.length);
+    buffer.write(0, data, 0, data.length);
+    Iovec iovec = new Iovec();
+    iovec.iovBase = buffer;
+    iovec.iovLen = new NativeLong(data.length);
+    iovec.write();
+
+    Structure message;
+    if (Platform.isLinux()) {
+      MsghdrLinux linux = new MsghdrLinux();
+      linux.msgIov = iovec.getPointer();
+      linux.msgIovlen = new NativeLong(1);
+      linux.msgControl = control;
+      linux.msgControllen = new NativeLong(controlLength);
+      message = linux;
+    } else {
+      MsghdrMac mac = new MsghdrMac();
+      mac.msgIov = iovec.getPointer();
+      mac.msgIovlen = 1;
+      mac.msgControl = control;
+      mac.msgControllen = controlLength;
+      message = mac;
+    }
+    message.write();
+    return sendmsg(fd, message.getPointer(), 0);
+  }
+
+  /**
+   * Switches a file descriptor between blocking and non-blocking mode. The mode belongs to the open
+   * file, so it changes for every process sharing it.
+   *
+   * @param fd the file descriptor
+   * @param nonBlocking true for non-blocking mode
+   */
+  public static void setNonBlocking(int fd, boolean nonBlocking) throws LastErrorException {
+    int flags = fcntl(fd, F_GETFL, 0);
+    int newFlags = nonBlocking ? flags | O_NONBLOCK : flags & ~O_NONBLOCK;
+    if (newFlags != flags) {
+      fcntl(fd, F_SETFL, newFlags);
+    }
+  }
+
+  /** @return true if {@link #sendFile} is supported */
+  public static boolean canSendFile() {
+    return Platform.isLinux();
+  }
+
+  /**
+   * Copies bytes from a file to another file descriptor, i.e. a socket, within the kernel with
+   * sendfile(2). Reading starts at the current file offset. Only supported if {@link
+   * #canSendFile()}.
+   *
+   * @param outFd file descriptor to write to
+   * @param inFd file descriptor to read from, must support mmap
+   * @param count number of bytes to copy
+   * @return number of bytes copied, less than count only if the end of the file was reached
+   */
+  public static long sendFile(int outFd, int inFd, long count) throws LastErrorException {
+    long done = 0;
+    while (done < count) {
+      long sent;
+      try {
+        sent = sendfile(outFd, inFd, null, new NativeLong(count - done)).longValue();
+      } catch (LastErrorException e) {
+        if (e.getErrorCode() == EINTR) {
+          continue;
+        }
+        throw e;
+      }
+      if (sent == 0) {
+        break;
+      }
+      done += sent;
+    }
+    return done;
+  }
+
+  private static int align(int length, int alignment) {
+    return (length + alignment - 1) & -alignment;
+  }
+
   static {
     Native.register(Platform.C_LIBRARY_NAME);
   }
@@ -138,6 +450,21 @@ public class NGUnixDomainSocketLibrary {
 
   public static native int write(int fd, ByteBuffer buffer, int count) throws LastErrorException;
 
+  public static native int recvmsg(int fd, Pointer message, int flags) throws LastErrorException;
+
+  public static native int sendmsg(int fd, Pointer message, int flags) throws LastErrorException;
+
+  public static native int poll(Pollfd fds, int nfds, int timeout) throws LastErrorException;
+
+  public static native int pipe(int[] fds) throws LastErrorException;
+
+  public static native int fcntl(int fd, int cmd, int arg) throws LastErrorException;
+
+  public static native int open(String path, int flags) throws LastErrorException;
+
+  public static native NativeLong sendfile(int outFd, int inFd, Pointer offset, NativeLong count)
+      throws LastErrorException;
+
   public static native int close(int fd) throws LastErrorException;
 
   public static native int shutdown(int fd, int how) throws LastErrorException;
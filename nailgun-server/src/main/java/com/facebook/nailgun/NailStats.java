@@ -17,17 +17,27 @@
 
 package com.facebook.nailgun;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Collects and provides statistics on a nail.
+ * Collects and provides statistics on a nail. Counters are updated without locking, so reading them
+ * never blocks running nails.
  *
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
 public class NailStats implements Cloneable {
 
   private final String nailclass;
-  private long runCounter;
-  private long refCounter;
-  private final Object lock;
+  private AtomicLong runCounter;
+  private AtomicLong refCounter;
+  private AtomicLong cancelledCounter;
+  private AtomicLong abandonedCounter;
+  private AtomicLong overBudgetCounter;
+  private AtomicLong timedOutCounter;
+  private AtomicLong wastedCpuNanos;
+  private AtomicLong cpuNanos;
+  private AtomicLong allocatedBytes;
+  private NGLatencyHistogram executionTimes;
 
   /**
    * Creates a new NailStats object for the specified class
@@ -36,26 +46,74 @@ public class NailStats implements Cloneable {
    */
   NailStats(String nailclass) {
     this.nailclass = nailclass;
-    runCounter = 0;
-    refCounter = 0;
-    lock = new Object();
+    runCounter = new AtomicLong();
+    refCounter = new AtomicLong();
+    cancelledCounter = new AtomicLong();
+    abandonedCounter = new AtomicLong();
+    overBudgetCounter = new AtomicLong();
+    timedOutCounter = new AtomicLong();
+    wastedCpuNanos = new AtomicLong();
+    cpuNanos = new AtomicLong();
+    allocatedBytes = new AtomicLong();
+    executionTimes = new NGLatencyHistogram();
   }
 
   /** Logs the fact that an instance of this nail has started */
   void nailStarted() {
-    synchronized (lock) {
-      ++runCounter;
-      ++refCounter;
-    }
+    runCounter.incrementAndGet();
+    refCounter.incrementAndGet();
   }
 
-  /** Logs the fact that an instance of this nail has finished */
-  void nailFinished() {
-    synchronized (lock) {
-      --refCounter;
+  /**
+   * Logs the fact that an instance of this nail has finished
+   *
+   * @param executionNanos how long the nail ran, in nanoseconds
+   * @param cpuNanos CPU time used by the thread running the nail, -1 if not measured
+   * @param allocatedBytes bytes allocated by the thread running the nail, -1 if not measured
+   */
+  void nailFinished(long executionNanos, long cpuNanos, long allocatedBytes) {
+    refCounter.decrementAndGet();
+    executionTimes.record(executionNanos);
+    if (cpuNanos > 0) {
+      this.cpuNanos.addAndGet(cpuNanos);
+    }
+    if (allocatedBytes > 0) {
+      this.allocatedBytes.addAndGet(allocatedBytes);
     }
   }
 
+  /**
+   * Logs the fact that an instance of this nail was interrupted because its client went away, it
+   * exceeded its allocation budget or it timed out
+   */
+  void nailCancelled() {
+    cancelledCounter.incrementAndGet();
+  }
+
+  /** Logs the fact that an instance of this nail was cancelled for allocating too much */
+  void nailOverBudget() {
+    overBudgetCounter.incrementAndGet();
+  }
+
+  /** Logs the fact that an instance of this nail was cancelled for running too long */
+  void nailTimedOut() {
+    timedOutCounter.incrementAndGet();
+  }
+
+  /** Logs the fact that an instance of this nail ignored cancellation and was abandoned */
+  void nailAbandoned() {
+    abandonedCounter.incrementAndGet();
+  }
+
+  /**
+   * Logs CPU time an instance of this nail spent after its client went away
+   *
+   * @param cpuNanos the CPU time, in nanoseconds
+   */
+  void addWastedCpuNanos(long cpuNanos) {
+    wastedCpuNanos.addAndGet(cpuNanos);
+  }
+
   /**
    * Returns the number of times this nail has been run. Nails that have started but not yet
    * finished are included in this number.
@@ -63,9 +121,7 @@ public class NailStats implements Cloneable {
    * @return the number of times this nail has been run.
    */
   public long getRunCount() {
-    synchronized (lock) {
-      return (runCounter);
-    }
+    return runCounter.get();
   }
 
   /**
@@ -74,9 +130,85 @@ public class NailStats implements Cloneable {
    * @return the number of sessions currently running this nail.
    */
   public long getRefCount() {
-    synchronized (lock) {
-      return (refCounter);
-    }
+    return refCounter.get();
+  }
+
+  /**
+   * Returns the CPU time used by the session threads running this nail, summed over all finished
+   * runs. Threads started by the nail are not included.
+   *
+   * @return the CPU time in nanoseconds, 0 if the JVM does not measure it.
+   */
+  public long getCpuNanos() {
+    return cpuNanos.get();
+  }
+
+  /**
+   * Returns the bytes allocated on the heap by the session threads running this nail, summed over
+   * all finished runs. Threads started by the nail are not included.
+   *
+   * @return the allocated bytes, 0 if the JVM does not measure them.
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * Returns the number of times this nail was interrupted because its client disconnected, it
+   * exceeded its allocation budget or it timed out.
+   *
+   * @return the number of times this nail was interrupted.
+   */
+  public long getCancelledCount() {
+    return cancelledCounter.get();
+  }
+
+  /**
+   * Returns the number of times this nail allocated more than the server's allocation budget and
+   * was cancelled.
+   *
+   * @return the number of times this nail exceeded its allocation budget.
+   */
+  public long getOverBudgetCount() {
+    return overBudgetCounter.get();
+  }
+
+  /**
+   * Returns the number of times this nail ran longer than its timeout and was cancelled.
+   *
+   * @return the number of times this nail timed out.
+   */
+  public long getTimedOutCount() {
+    return timedOutCounter.get();
+  }
+
+  /**
+   * Returns the number of times this nail was still running after the cancellation grace period,
+   * and its session was abandoned.
+   *
+   * @return the number of times this nail was abandoned.
+   */
+  public long getAbandonedCount() {
+    return abandonedCounter.get();
+  }
+
+  /**
+   * Returns the CPU time this nail spent running after it was cancelled, if the JVM measures thread
+   * CPU time.
+   *
+   * @return the CPU time spent for no client, in nanoseconds.
+   */
+  public long getWastedCpuNanos() {
+    return wastedCpuNanos.get();
+  }
+
+  /**
+   * Returns the histogram of execution times of this nail.
+   *
+   * @return the histogram of execution times of this nail.
+   */
+  public NGLatencyHistogram getExecutionTimes() {
+    return executionTimes;
   }
 
   /**
@@ -114,9 +246,20 @@ public class NailStats implements Cloneable {
    * @return a copy of this <code>NailStats</code> object.
    */
   public Object clone() {
-    Object result = null;
+    NailStats result = null;
     try {
-      result = super.clone();
+      result = (NailStats) super.clone();
+      // counters are mutable, so copy them to keep the clone a snapshot
+      result.runCounter = new AtomicLong(runCounter.get());
+      result.refCounter = new AtomicLong(refCounter.get());
+      result.cancelledCounter = new AtomicLong(cancelledCounter.get());
+      result.abandonedCounter = new AtomicLong(abandonedCounter.get());
+      result.overBudgetCounter = new AtomicLong(overBudgetCounter.get());
+      result.timedOutCounter = new AtomicLong(timedOutCounter.get());
+      result.wastedCpuNanos = new AtomicLong(wastedCpuNanos.get());
+      result.cpuNanos = new AtomicLong(cpuNanos.get());
+      result.allocatedBytes = new AtomicLong(allocatedBytes.get());
+      result.executionTimes = executionTimes.snapshot();
     } catch (CloneNotSupportedException toDiscard) {
     }
     return (result);
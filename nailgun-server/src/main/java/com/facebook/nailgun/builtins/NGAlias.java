@@ -67,15 +67,14 @@ public class NGAlias {
       for (Iterator i = aliases.iterator(); i.hasNext(); ) {
         Alias alias = (Alias) i.next();
         maxAliasLength = Math.max(maxAliasLength, alias.getName().length());
-        maxClassnameLength =
-            Math.max(maxClassnameLength, alias.getAliasedClass().getName().length());
+        maxClassnameLength = Math.max(maxClassnameLength, alias.getAliasedClassName().length());
       }
       for (Iterator i = aliases.iterator(); i.hasNext(); ) {
         Alias alias = (Alias) i.next();
         context.out.println(
             padl(alias.getName(), maxAliasLength)
                 + "\t"
-                + padl(alias.getAliasedClass().getName(), maxClassnameLength));
+                + padl(alias.getAliasedClassName(), maxClassnameLength));
         context.out.println(padl("", maxAliasLength) + "\t" + alias.getDescription());
         context.out.println();
       }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun.builtins;
+
+import com.facebook.nailgun.NGContext;
+import com.facebook.nailgun.NGListeningAddress;
+import com.facebook.nailgun.NGServer;
+import java.net.UnknownHostException;
+
+/**
+ * Drains the currently running server, e.g. for a rolling restart: it stops taking nails, lets the
+ * running ones finish and shuts down, see {@link NGServer#drain(long, NGListeningAddress)}.
+ *
+ * <p>This is aliased by default to the command "<code>ng-drain</code>":
+ *
+ * <pre><code>ng-drain [timeout in milliseconds] [handoff address]</code></pre>
+ *
+ * The timeout defaults to 5 seconds. The handoff address, in the format of the server's command
+ * line, e.g. <code>local:/path/to/socket</code>, is the address of the server new connections are
+ * relayed to until the server shuts down.
+ *
+ * <p>No command line validation is performed. If you trigger an exception, your client will display
+ * it.
+ */
+public class NGDrain {
+
+  public static void nailMain(NGContext context) throws UnknownHostException {
+    String[] args = context.getArgs();
+    long timeoutMillis =
+        args.length > 0 ? Long.parseLong(args[0]) : NGServer.DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    NGListeningAddress handoffAddress =
+        args.length > 1 ? NGServer.parseListeningAddress(args[1]) : null;
+    // like ng-stop, the server drains asynchronously, this nail is one of those it waits for
+    context.getNGServer().drain(timeoutMillis, handoffAddress);
+  }
+}
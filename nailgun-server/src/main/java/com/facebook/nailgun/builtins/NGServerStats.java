@@ -20,8 +20,16 @@ Copyright 2017-Present Facebook, Inc
 package com.facebook.nailgun.builtins;
 
 import com.facebook.nailgun.NGContext;
+import com.facebook.nailgun.NGInvocationPhase;
+import com.facebook.nailgun.NGLatencyHistogram;
+import com.facebook.nailgun.NGListeningAddress;
 import com.facebook.nailgun.NGServer;
+import com.facebook.nailgun.NailStats;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,6 +38,13 @@ import java.util.Map;
  * <p>This can be run standalone with no arguments. It will also run automatically upon <code>
  * NGServer</code> shutdown, sending its output to the server's <code>System.out</code>.
  *
+ * <p>With the <code>-v</code> argument, latency histograms of each invocation phase (see <a
+ * href="../NGInvocationPhase.html">NGInvocationPhase</a>), connections accepted on each listening
+ * address, argfile cache hits and misses, compression ratios of the connections that negotiated
+ * compression, nails cancelled because their client disconnected, they exceeded their allocation
+ * budget or they timed out, and the CPU time and heap allocations of each nail, heaviest allocator
+ * first, are displayed as well.
+ *
  * <p>This is aliased by default to the command "<code>ng-stats</code>".
  *
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
@@ -37,17 +52,85 @@ import java.util.Map;
 public class NGServerStats {
 
   public static void nailShutdown(NGServer server) {
-    dumpStats(server, server.out);
+    dumpStats(server, server.out, false);
   }
 
   public static void nailMain(NGContext context) {
-    dumpStats(context.getNGServer(), context.out);
+    boolean verbose = Arrays.asList(context.getArgs()).contains("-v");
+    dumpStats(context.getNGServer(), context.out, verbose);
   }
 
-  private static void dumpStats(NGServer server, java.io.PrintStream out) {
+  private static void dumpStats(NGServer server, java.io.PrintStream out, boolean verbose) {
     Map stats = server.getNailStats();
     for (Iterator i = stats.values().iterator(); i.hasNext(); ) {
       out.println(i.next());
     }
+    if (verbose) {
+      Map<NGInvocationPhase, NGLatencyHistogram> phases = server.getPhaseHistograms();
+      for (Map.Entry<NGInvocationPhase, NGLatencyHistogram> entry : phases.entrySet()) {
+        out.println("phase " + entry.getKey().getLabel() + ": " + entry.getValue());
+      }
+      for (NGListeningAddress address : server.getListeningAddresses()) {
+        out.println(
+            "listener " + address + ": accepted=" + server.getAcceptedConnectionCount(address));
+      }
+      String sent =
+          formatRatio(server.getCompressionRawBytesSent(), server.getCompressionWireBytesSent());
+      String received =
+          formatRatio(
+              server.getCompressionRawBytesReceived(), server.getCompressionWireBytesReceived());
+      out.println(
+          "argfiles: hits="
+              + server.getArgfileCacheHitCount()
+              + " misses="
+              + server.getArgfileCacheMissCount());
+      out.println(
+          "compression: connections="
+              + server.getCompressedConnectionCount()
+              + " sent="
+              + sent
+              + " received="
+              + received);
+      List<NailStats> byAllocation = new ArrayList<>();
+      for (Object nailStats : stats.values()) {
+        byAllocation.add((NailStats) nailStats);
+      }
+      byAllocation.sort(Comparator.comparingLong(NailStats::getAllocatedBytes).reversed());
+      for (NailStats nail : byAllocation) {
+        out.println(
+            "usage "
+                + nail.getNailClass()
+                + ": cpu="
+                + nail.getCpuNanos() / 1000000
+                + "ms allocated="
+                + nail.getAllocatedBytes()
+                + "B");
+      }
+      for (Object nailStats : stats.values()) {
+        NailStats nail = (NailStats) nailStats;
+        if (nail.getCancelledCount() > 0) {
+          out.println(
+              "cancelled "
+                  + nail.getNailClass()
+                  + ": interrupted="
+                  + nail.getCancelledCount()
+                  + " overBudget="
+                  + nail.getOverBudgetCount()
+                  + " timedOut="
+                  + nail.getTimedOutCount()
+                  + " abandoned="
+                  + nail.getAbandonedCount()
+                  + " wastedCpu="
+                  + nail.getWastedCpuNanos() / 1000000
+                  + "ms");
+        }
+      }
+    }
+  }
+
+  /** @return "raw->wire" byte counts with the compression ratio, i.e. "1000->250 (4.00x)" */
+  private static String formatRatio(long rawBytes, long wireBytes) {
+    String ratio = wireBytes == 0 ? "-" : String.format("%.2fx", (double) rawBytes / wireBytes);
+    return rawBytes + "->" + wireBytes + " (" + ratio + ")";
   }
 }
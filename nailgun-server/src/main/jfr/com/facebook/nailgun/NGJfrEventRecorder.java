@@ -0,0 +1,212 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.nailgun;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits nail lifecycle events to Java Flight Recorder. This class is only compiled when building
+ * with JDK 11 or newer (see the "jfr" profile in pom.xml) and is loaded reflectively by {@link
+ * NGEventRecorder#get()}, so the server keeps running on Java 8.
+ *
+ * <p>Events are only allocated and committed when the corresponding event type is enabled in a
+ * running recording, so the overhead is close to zero otherwise.
+ */
+final class NGJfrEventRecorder extends NGEventRecorder {
+
+  private static final String CATEGORY = "Nailgun";
+
+  @Name("com.facebook.nailgun.ConnectionAccepted")
+  @Label("Connection Accepted")
+  @Category(CATEGORY)
+  @Description("A client connection was accepted by the server")
+  @StackTrace(false)
+  static final class ConnectionAcceptedEvent extends Event {
+    @Label("Listening Address")
+    String listeningAddress;
+  }
+
+  @Name("com.facebook.nailgun.CommandContextParsed")
+  @Label("Command Context Parsed")
+  @Category(CATEGORY)
+  @Description("Command, arguments and environment were read from the client")
+  @StackTrace(false)
+  static final class CommandContextEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Arguments")
+    int argumentCount;
+
+    @Label("Environment Variables")
+    int environmentCount;
+  }
+
+  @Name("com.facebook.nailgun.NailResolved")
+  @Label("Nail Resolved")
+  @Category(CATEGORY)
+  @Description("The command was resolved to a nail class")
+  @StackTrace(false)
+  static final class NailResolutionEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Nail Class")
+    Class<?> nailClass;
+  }
+
+  @Name("com.facebook.nailgun.NailExecution")
+  @Label("Nail Execution")
+  @Category(CATEGORY)
+  @Description("A nail was run from start to the moment its exit code was sent to the client")
+  @StackTrace(false)
+  static final class NailExecutionEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Nail Class")
+    Class<?> nailClass;
+
+    @Label("Exit Code")
+    int exitCode;
+
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+  }
+
+  @Name("com.facebook.nailgun.HeartbeatMissed")
+  @Label("Heartbeat Missed")
+  @Category(CATEGORY)
+  @Description("Nothing was received from the client within the heartbeat timeout")
+  @StackTrace(false)
+  static final class HeartbeatMissedEvent extends Event {
+    @Label("Timeout")
+    @Timespan(Timespan.MILLISECONDS)
+    long timeout;
+  }
+
+  @Name("com.facebook.nailgun.ClientDisconnected")
+  @Label("Client Disconnected")
+  @Category(CATEGORY)
+  @Description("The server detected that the client has gone away while the nail was running")
+  @StackTrace(false)
+  static final class ClientDisconnectedEvent extends Event {
+    @Label("Reason")
+    String reason;
+  }
+
+  @Override
+  void connectionAccepted(NGListeningAddress listeningAddress) {
+    ConnectionAcceptedEvent event = new ConnectionAcceptedEvent();
+    if (event.isEnabled()) {
+      event.listeningAddress = listeningAddress.toString();
+      event.commit();
+    }
+  }
+
+  @Override
+  Object beginCommandContext() {
+    return begin(new CommandContextEvent());
+  }
+
+  @Override
+  void endCommandContext(Object handle, String command, int argumentCount, int environmentCount) {
+    if (handle != null) {
+      CommandContextEvent event = (CommandContextEvent) handle;
+      event.command = command;
+      event.argumentCount = argumentCount;
+      event.environmentCount = environmentCount;
+      event.commit();
+    }
+  }
+
+  @Override
+  Object beginNailResolution() {
+    return begin(new NailResolutionEvent());
+  }
+
+  @Override
+  void endNailResolution(Object handle, String command, Class nailClass) {
+    if (handle != null) {
+      NailResolutionEvent event = (NailResolutionEvent) handle;
+      event.command = command;
+      event.nailClass = nailClass;
+      event.commit();
+    }
+  }
+
+  @Override
+  Object beginNail(String command, Class nailClass) {
+    NailExecutionEvent event = new NailExecutionEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.command = command;
+    event.nailClass = nailClass;
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void endNail(Object handle, int exitCode, long bytesIn, long bytesOut) {
+    if (handle != null) {
+      NailExecutionEvent event = (NailExecutionEvent) handle;
+      event.exitCode = exitCode;
+      event.bytesIn = bytesIn;
+      event.bytesOut = bytesOut;
+      event.commit();
+    }
+  }
+
+  @Override
+  void heartbeatMissed(long timeoutMillis) {
+    HeartbeatMissedEvent event = new HeartbeatMissedEvent();
+    if (event.isEnabled()) {
+      event.timeout = timeoutMillis;
+      event.commit();
+    }
+  }
+
+  @Override
+  void clientDisconnected(NGClientDisconnectReason reason) {
+    ClientDisconnectedEvent event = new ClientDisconnectedEvent();
+    if (event.isEnabled()) {
+      event.reason = reason.name();
+      event.commit();
+    }
+  }
+
+  private static Event begin(Event event) {
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.facebook.nailgun.builtins.NGVersion;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class AliasManagerTest {
+
+  private static final AtomicBoolean lazyNailInitialized = new AtomicBoolean();
+
+  static class LazyNail {
+    static {
+      lazyNailInitialized.set(true);
+    }
+
+    public static void main(String[] args) {}
+  }
+
+  @Test
+  void aliasedClassesAreLoadedOnFirstUse() {
+    AliasManager aliasManager = new AliasManager();
+    Properties properties = new Properties();
+    properties.setProperty("lazy", LazyNail.class.getName());
+    aliasManager.loadFromProperties(properties);
+
+    Alias alias = aliasManager.getAlias("lazy");
+    assertEquals(LazyNail.class.getName(), alias.getAliasedClassName());
+    assertFalse(alias.isAliasedClassLoaded());
+    assertFalse(lazyNailInitialized.get(), "aliased class should not be initialized yet");
+
+    assertSame(LazyNail.class, alias.getAliasedClass());
+    assertTrue(lazyNailInitialized.get());
+    assertTrue(alias.isAliasedClassLoaded());
+  }
+
+  @Test
+  void reloadReplacesAllButBuiltinAliases() {
+    AliasManager aliasManager = new AliasManager();
+    assertNotNull(aliasManager.getAlias("ng-version"), "builtins should be loaded");
+    aliasManager.addAlias(new Alias("added", "", NGVersion.class));
+
+    Properties properties = new Properties();
+    properties.setProperty("first", NGVersion.class.getName());
+    properties.setProperty("first.desc", "First alias");
+    properties.setProperty("missing", "com.example.DoesNotExist");
+    aliasManager.reloadFromProperties(properties);
+
+    assertNotNull(aliasManager.getAlias("ng-version"));
+    assertNull(aliasManager.getAlias("added"));
+    Alias missing = aliasManager.getAlias("missing");
+    assertThrows(NoClassDefFoundError.class, missing::getAliasedClass);
+    assertEquals("First alias", aliasManager.getAlias("first").getDescription());
+  }
+
+  @Test
+  void aliasTimeoutsAreLoaded() {
+    AliasManager aliasManager = new AliasManager();
+    List<Set<String>> changes = new ArrayList<>();
+    aliasManager.addAliasListener(changes::add);
+
+    Properties properties = new Properties();
+    properties.setProperty("slow", NGVersion.class.getName());
+    properties.setProperty("slow.timeout", "60000");
+    properties.setProperty("fast", NGVersion.class.getName());
+    aliasManager.reloadFromProperties(properties);
+    assertEquals(60000, aliasManager.getAlias("slow").getTimeoutMillis());
+    assertEquals(0, aliasManager.getAlias("fast").getTimeoutMillis());
+    assertNull(aliasManager.getAlias("slow.timeout"));
+
+    properties.setProperty("slow.timeout", "1000");
+    aliasManager.reloadFromProperties(properties);
+    assertEquals(1000, aliasManager.getAlias("slow").getTimeoutMillis());
+    assertEquals(new HashSet<>(Arrays.asList("slow")), changes.get(1));
+  }
+
+  @Test
+  void listenersAreNotifiedOfChangedAliases() {
+    AliasManager aliasManager = new AliasManager();
+    List<Set<String>> changes = new ArrayList<>();
+    aliasManager.addAliasListener(changes::add);
+
+    aliasManager.addAlias(new Alias("first", "", NGVersion.class));
+    aliasManager.addAlias(new Alias("second", "", NGVersion.class));
+    Properties properties = new Properties();
+    properties.setProperty("second", NGVersion.class.getName());
+    properties.setProperty("third", NGVersion.class.getName());
+    aliasManager.reloadFromProperties(properties);
+    aliasManager.removeAlias("third");
+
+    assertEquals(4, changes.size());
+    assertEquals(new HashSet<>(Arrays.asList("first")), changes.get(0));
+    assertEquals(new HashSet<>(Arrays.asList("second")), changes.get(1));
+    // "second" did not change
+    assertEquals(new HashSet<>(Arrays.asList("first", "third")), changes.get(2));
+    assertEquals(new HashSet<>(Arrays.asList("third")), changes.get(3));
+  }
+
+  @Test
+  void aliasChangesInvalidateDispatchCache() throws Exception {
+    AliasManager aliasManager = new AliasManager();
+    NGNailDispatchCache dispatchCache = new NGNailDispatchCache();
+    aliasManager.addAliasListener(dispatchCache);
+
+    NGNailDispatchCache.Entry entry =
+        new NGNailDispatchCache.Entry(
+            NGVersion.class,
+            NGVersion.class.getMethod("nailMain", NGContext.class),
+            true,
+            true,
+            NGSession.classLoader,
+            dispatchCache.getGeneration(),
+            0);
+    dispatchCache.put("version", entry);
+    assertSame(entry, dispatchCache.get("version"));
+
+    aliasManager.addAlias(new Alias("version", "", NGVersion.class));
+    assertNull(dispatchCache.get("version"));
+
+    // resolved before the change but stored after it
+    dispatchCache.put("version", entry);
+    assertNull(dispatchCache.get("version"));
+  }
+}
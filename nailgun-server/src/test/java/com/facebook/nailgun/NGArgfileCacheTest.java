@@ -0,0 +1,89 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NGArgfileCacheTest {
+
+  private Path directory;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    directory = Files.createTempDirectory("nailgun-argfiles");
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    NGCommunicatorTest.deleteDirectory(directory);
+  }
+
+  @Test
+  void servesUnchangedFileFromCache() throws IOException {
+    Path argfile = write("args", "one\ntwo\n");
+    NGArgfileCache cache = new NGArgfileCache(1024);
+    NGArgumentList arguments = cache.get(argfile);
+    assertSame(arguments, cache.get(argfile));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  void reparsesChangedFile() throws IOException {
+    Path argfile = write("args", "one\ntwo\n");
+    FileTime modified = Files.getLastModifiedTime(argfile);
+    NGArgfileCache cache = new NGArgfileCache(1024);
+    cache.get(argfile);
+
+    // the modification time alone is not enough on file systems with a coarse clock
+    write("args", "one\ntwo\nthree\n");
+    Files.setLastModifiedTime(argfile, modified);
+    assertEquals(Arrays.asList("one", "two", "three"), cache.get(argfile));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  void evictsLeastRecentlyUsedFiles() throws IOException {
+    Path first = write("first", "one\n");
+    Path second = write("second", "two\n");
+    NGArgfileCache cache = new NGArgfileCache(6);
+
+    NGArgumentList arguments = cache.get(first);
+    cache.get(second);
+    assertNotSame(arguments, cache.get(first));
+    assertEquals(3, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  private Path write(String name, String contents) throws IOException {
+    return Files.write(directory.resolve(name), contents.getBytes(StandardCharsets.UTF_8));
+  }
+}
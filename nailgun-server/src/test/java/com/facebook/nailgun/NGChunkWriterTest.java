@@ -0,0 +1,189 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NGChunkWriterTest {
+
+  /** Queue capacity, room for three chunks with a 4 byte payload */
+  private static final int CAPACITY = 3 * (NGChunkWriter.HEADER_LENGTH + 4);
+
+  /** A client that does not read anything until opened */
+  private static class SlowOutputStream extends OutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private final Semaphore started = new Semaphore(0);
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      started.release();
+      try {
+        opened.await();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      synchronized (written) {
+        written.write(b, off, len);
+      }
+    }
+
+    /** @return the chunks written so far, as the chunk type followed by the payload */
+    List<String> chunks() throws IOException {
+      byte[] bytes;
+      synchronized (written) {
+        bytes = written.toByteArray();
+      }
+      List<String> result = new ArrayList<>();
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      while (in.available() > 0) {
+        byte[] payload = new byte[in.readInt()];
+        char chunkType = (char) in.readByte();
+        in.readFully(payload);
+        result.add(chunkType + new String(payload, StandardCharsets.US_ASCII));
+      }
+      return result;
+    }
+  }
+
+  private SlowOutputStream out;
+  private ExecutorService executor;
+
+  @BeforeEach
+  private void before() {
+    out = new SlowOutputStream();
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @AfterEach
+  private void after() {
+    out.opened.countDown();
+    executor.shutdownNow();
+  }
+
+  private static boolean send(NGChunkWriter writer, byte chunkType, String payload)
+      throws IOException {
+    byte[] bytes = payload.getBytes(StandardCharsets.US_ASCII);
+    return writer.enqueue(chunkType, bytes, 0, bytes.length);
+  }
+
+  /**
+   * Fills the queue with stdout chunks "o000" to "o002": the first one is being written, waiting
+   * for the client, and the other two are queued.
+   */
+  private void fill(NGChunkWriter writer) throws Exception {
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDOUT, "o000"));
+    assertTrue(out.started.tryAcquire(10, TimeUnit.SECONDS), "writer should be writing");
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDOUT, "o001"));
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDOUT, "o002"));
+  }
+
+  /** @return the chunks sent by fill() followed by the specified ones */
+  private static List<String> filledAnd(String... chunks) {
+    List<String> result = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      result.add(String.format("1o%03d", i));
+    }
+    for (String chunk : chunks) {
+      result.add(chunk);
+    }
+    return result;
+  }
+
+  @Test
+  void blockPolicyWaitsForRoom() throws Exception {
+    NGChunkWriter writer = new NGChunkWriter(out, executor, CAPACITY, NGOutputPolicy.BLOCK);
+    fill(writer);
+
+    Thread sender =
+        new Thread(
+            () -> {
+              try {
+                send(writer, NGConstants.CHUNKTYPE_STDOUT, "o003");
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    sender.start();
+    sender.join(200);
+    assertTrue(sender.isAlive(), "a full queue should block the sender");
+    out.opened.countDown();
+    sender.join(10000);
+    assertFalse(sender.isAlive());
+    writer.flush();
+
+    assertEquals(filledAnd("1o003"), out.chunks());
+  }
+
+  @Test
+  void dropStderrPolicyDropsStderrWhenFull() throws Exception {
+    NGChunkWriter writer = new NGChunkWriter(out, executor, CAPACITY, NGOutputPolicy.DROP_STDERR);
+    fill(writer);
+
+    assertFalse(send(writer, NGConstants.CHUNKTYPE_STDERR, "e000"));
+    out.opened.countDown();
+    writer.flush();
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDERR, "e001"));
+    writer.flush();
+
+    assertEquals(filledAnd("2e001"), out.chunks());
+    assertEquals(4, writer.getPayloadBytesDiscarded());
+  }
+
+  @Test
+  void spillPolicyKeepsOrder() throws Exception {
+    NGChunkWriter writer = new NGChunkWriter(out, executor, CAPACITY, NGOutputPolicy.SPILL);
+    fill(writer);
+
+    // nothing blocks: these go to the spill file, behind the queue
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDOUT, "o003"));
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDERR, "e000"));
+    assertTrue(send(writer, NGConstants.CHUNKTYPE_STDOUT, "o004"));
+    out.opened.countDown();
+    writer.flush();
+
+    assertEquals(filledAnd("1o003", "2e000", "1o004"), out.chunks());
+    assertEquals(3 * 4, writer.getPayloadBytesSpilled());
+    writer.close();
+  }
+}
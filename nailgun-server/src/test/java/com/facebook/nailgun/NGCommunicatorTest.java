@@ -18,20 +18,41 @@ limitations under the License.
 
 package com.facebook.nailgun;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -80,13 +101,317 @@ class NGCommunicatorTest {
     assertEquals(command, context.getCommand());
   }
 
+  @Test
+  void canReadLongArguments() throws IOException {
+    byte[] payload;
+    try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream)) {
+      writeChunk(stream, NGConstants.CHUNKTYPE_ARGUMENT, "first");
+      writeChunk(stream, NGConstants.CHUNKTYPE_LONGARG, "long ");
+      writeChunk(stream, NGConstants.CHUNKTYPE_LONGARG, "argument");
+      writeChunk(stream, NGConstants.CHUNKTYPE_LONGARG, "");
+      writeChunk(stream, NGConstants.CHUNKTYPE_LONGARG, "");
+      writeChunk(stream, NGConstants.CHUNKTYPE_ARGUMENT, "last");
+      writeChunk(stream, NGConstants.CHUNKTYPE_COMMAND, "some_command");
+      stream.flush();
+      payload = byteStream.toByteArray();
+    }
+    when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(payload));
+
+    NGCommunicator comm = new NGCommunicator(socket, 0);
+    CommandContext context = comm.readCommandContext();
+    assertEquals(
+        Arrays.asList("first", "long argument", "", "last"), context.getCommandArguments());
+  }
+
+  @Test
+  void expandsArgfiles() throws IOException {
+    Path directory = Files.createTempDirectory("nailgun-argfiles");
+    try {
+      String lines = "plain\n\"quoted\" # no comment\n\n@nested\ncrlf\r\ncaf\u00e9";
+      Files.write(directory.resolve("args"), lines.getBytes(StandardCharsets.UTF_8));
+
+      byte[] payload;
+      try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+          DataOutputStream stream = new DataOutputStream(byteStream)) {
+        writeChunk(stream, NGConstants.CHUNKTYPE_ARGUMENT, "before");
+        writeChunk(stream, NGConstants.CHUNKTYPE_ARGFILE, "args");
+        writeChunk(stream, NGConstants.CHUNKTYPE_ARGUMENT, "after");
+        writeChunk(stream, NGConstants.CHUNKTYPE_WORKINGDIRECTORY, directory.toString());
+        writeChunk(stream, NGConstants.CHUNKTYPE_COMMAND, "some_command");
+        stream.flush();
+        payload = byteStream.toByteArray();
+      }
+      when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(payload));
+
+      NGCommunicator comm = new NGCommunicator(socket, 0);
+      CommandContext context = comm.readCommandContext();
+      NGArgumentList arguments = context.getCommandArguments();
+      arguments.expandArgfiles(context.getWorkingDirectory(), new NGArgfileCache(1024));
+
+      // lines are taken as they are, only empty lines and carriage returns are dropped
+      assertEquals(
+          Arrays.asList(
+              "before",
+              "plain",
+              "\"quoted\" # no comment",
+              "@nested",
+              "crlf",
+              "caf\u00e9",
+              "after"),
+          arguments);
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void missingArgfileFails() throws IOException {
+    Path directory = Files.createTempDirectory("nailgun-argfiles");
+    try {
+      NGArgumentList arguments = new NGArgumentList();
+      byte[] path = "missing".getBytes(StandardCharsets.UTF_8);
+      arguments.addArgfile(path, 0, path.length);
+      assertThrows(
+          NoSuchFileException.class,
+          () -> arguments.expandArgfiles(directory.toString(), new NGArgfileCache(1024)));
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void sendsFileOverTcpSocketAfterEarlierOutput() throws IOException {
+    // larger than the copy buffer, so the file goes out in several chunks
+    byte[] contents = new byte[150_000];
+    new Random(42).nextBytes(contents);
+    Path file = Files.createTempFile("nailgun-sendfile", ".bin");
+    try {
+      Files.write(file, contents);
+      ByteArrayOutputStream sent = new ByteArrayOutputStream();
+      when(socket.getOutputStream()).thenReturn(sent);
+      NGCommunicator comm = new NGCommunicator(socket, 0);
+      NGContext context = new NGContext();
+      context.setCommunicator(comm);
+      context.out = new PrintStream(new NGOutputStream(comm, NGConstants.CHUNKTYPE_STDOUT));
+
+      context.out.print("header\n");
+      assertEquals(contents.length, context.sendFile(file));
+      comm.flush();
+
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      expected.write("header\n".getBytes(StandardCharsets.UTF_8));
+      expected.write(contents);
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      DataInputStream chunks = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+      while (chunks.available() > 0) {
+        byte[] payload = new byte[chunks.readInt()];
+        assertEquals(NGConstants.CHUNKTYPE_STDOUT, chunks.readByte());
+        chunks.readFully(payload);
+        stdout.write(payload);
+      }
+      assertArrayEquals(expected.toByteArray(), stdout.toByteArray());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void sendingMissingFileFails() throws IOException {
+    Path directory = Files.createTempDirectory("nailgun-sendfile");
+    try {
+      NGCommunicator comm = new NGCommunicator(socket, 0);
+      assertThrows(
+          NoSuchFileException.class,
+          () -> comm.sendFile(NGConstants.CHUNKTYPE_STDERR, directory.resolve("missing")));
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void truncatedFileShutsConnectionDown() throws Exception {
+    assumeTrue(NGUnixDomainSocketLibrary.canSendFile());
+    Path directory = Files.createTempDirectory("nailgun-sendfile");
+    try {
+      // several times larger than the socket buffer, so the copy is under way when it shrinks
+      byte[] contents = new byte[4 * 1024 * 1024];
+      Arrays.fill(contents, (byte) 'x');
+      Path file = Files.write(directory.resolve("file"), contents);
+      String socketPath = directory.resolve("sock").toString();
+
+      try (NGUnixDomainServerSocket serverSocket = new NGUnixDomainServerSocket(socketPath)) {
+        int fd =
+            NGUnixDomainSocketLibrary.socket(
+                NGUnixDomainSocketLibrary.PF_LOCAL, NGUnixDomainSocketLibrary.SOCK_STREAM, 0);
+        NGUnixDomainSocketLibrary.SockaddrUn address =
+            new NGUnixDomainSocketLibrary.SockaddrUn(socketPath);
+        NGUnixDomainSocketLibrary.connect(fd, address, address.size());
+        try (NGUnixDomainSocket client = new NGUnixDomainSocket(fd)) {
+          NGCommunicator comm = new NGCommunicator(serverSocket.accept(), 0);
+          ExecutorService sender = Executors.newSingleThreadExecutor();
+          Future<Long> sent =
+              sender.submit(() -> comm.sendFile(NGConstants.CHUNKTYPE_STDOUT, file));
+
+          DataInputStream in = new DataInputStream(client.getInputStream());
+          int len = in.readInt();
+          assertEquals(NGConstants.CHUNKTYPE_STDOUT, in.readByte());
+          in.readFully(new byte[1024]);
+          try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+          }
+
+          // the chunk is cut short rather than padded, and nothing follows it
+          int received = 1024;
+          int b;
+          while ((b = in.read()) != -1) {
+            assertEquals('x', b);
+            received++;
+          }
+          assertTrue(received < len, "the chunk should be cut short");
+          ExecutionException e = assertThrows(ExecutionException.class, sent::get);
+          assertTrue(e.getCause() instanceof IOException);
+          sender.shutdown();
+          comm.close();
+        }
+      }
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  static void deleteDirectory(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        Files.delete(path);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  private static void writeChunk(DataOutputStream stream, byte chunkType, String payload)
+      throws IOException {
+    byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+    stream.writeInt(bytes.length);
+    stream.writeByte(chunkType);
+    stream.write(bytes);
+  }
+
+  @Test
+  void canReadInvocationHeader() throws IOException {
+    byte[] payload;
+    try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream)) {
+      stream.writeByte(NGConstants.INVOCATION_HEADER_VERSION);
+      writeHeaderString(stream, "some_command");
+      writeHeaderString(stream, "/some/dir");
+      stream.writeInt(2);
+      writeHeaderString(stream, "arg1");
+      writeHeaderString(stream, "arg2");
+      stream.writeInt(1);
+      writeHeaderString(stream, "NAME=value");
+      stream.flush();
+      payload = byteStream.toByteArray();
+    }
+
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    try (DataOutputStream stream = new DataOutputStream(chunk)) {
+      stream.writeInt(payload.length);
+      stream.writeByte(NGConstants.CHUNKTYPE_INVOCATION_HEADER);
+      stream.write(payload);
+    }
+    when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(chunk.toByteArray()));
+
+    NGCommunicator comm = new NGCommunicator(socket, 0);
+    CommandContext context = comm.readCommandContext();
+    assertEquals("some_command", context.getCommand());
+    assertEquals("/some/dir", context.getWorkingDirectory());
+    assertEquals(Arrays.asList("arg1", "arg2"), context.getCommandArguments());
+    assertEquals("value", context.getEnvironmentVariables().getProperty("NAME"));
+  }
+
+  private static void writeHeaderString(DataOutputStream stream, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    stream.writeInt(bytes.length);
+    stream.write(bytes);
+  }
+
   @Test
   void canWriteData() throws IOException {
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    when(socket.getOutputStream()).thenReturn(sent);
     NGCommunicator comm = new NGCommunicator(socket, 0);
 
     byte[] data = {0x01, 0x02, 0x03};
     comm.send(NGConstants.CHUNKTYPE_STDOUT, data, 0, data.length);
+    comm.flush();
+
+    byte[] chunk = {0x00, 0x00, 0x00, 0x03, NGConstants.CHUNKTYPE_STDOUT, 0x01, 0x02, 0x03};
+    assertArrayEquals(chunk, sent.toByteArray());
+  }
+
+  @Test
+  void keepsOrderOfChunks() throws IOException {
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    when(socket.getOutputStream()).thenReturn(sent);
+    NGCommunicator comm = new NGCommunicator(socket, 0);
+
+    byte[] data = {0x01};
+    for (int i = 0; i < 1000; i++) {
+      data[0] = (byte) i;
+      comm.send(NGConstants.CHUNKTYPE_STDOUT, data, 0, data.length);
+    }
+    comm.flush();
+
+    byte[] result = sent.toByteArray();
+    assertEquals(1000 * 6, result.length);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals((byte) i, result[i * 6 + 5]);
+    }
+  }
+
+  @Test
+  void sendsExitCodeFromInterruptedThread() throws IOException {
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    when(socket.getOutputStream()).thenReturn(sent);
+    NGCommunicator comm = new NGCommunicator(socket, 0);
+
+    // like a nail that was cancelled
+    Thread.currentThread().interrupt();
+    try {
+      comm.exit(42);
+      assertTrue(Thread.currentThread().isInterrupted(), "interrupt should be restored");
+    } finally {
+      Thread.interrupted();
+    }
+
+    byte[] chunk = {0x00, 0x00, 0x00, 0x03, NGConstants.CHUNKTYPE_EXIT, '4', '2', '\n'};
+    assertArrayEquals(chunk, sent.toByteArray());
+  }
 
-    verify(ostream).write(data, 0, data.length);
+  @Test
+  void exitGivesUpOnClientThatDoesNotRead() throws IOException {
+    CountDownLatch reading = new CountDownLatch(1);
+    when(socket.getOutputStream())
+        .thenReturn(
+            new OutputStream() {
+              @Override
+              public void write(int b) throws IOException {
+                try {
+                  reading.await();
+                } catch (InterruptedException e) {
+                  throw new InterruptedIOException();
+                }
+              }
+            });
+    // the queue is full once the first chunk is being written
+    NGCommunicator comm = new NGCommunicator(socket, 0, 16, NGOutputPolicy.BLOCK, 100);
+    try {
+      byte[] data = new byte[8];
+      comm.send(NGConstants.CHUNKTYPE_STDOUT, data, 0, data.length);
+      assertTimeoutPreemptively(Duration.ofSeconds(10), () -> comm.exit(0));
+    } finally {
+      reading.countDown();
+    }
   }
 }
@@ -0,0 +1,119 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.facebook.nailgun.builtins.NGVersion;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+class NGConfigFileTest {
+
+  private static NGServer newServer() {
+    return new NGServer(InetAddress.getLoopbackAddress(), 0, 2, 10000);
+  }
+
+  @Test
+  void appliesSettingsAndAliases() throws IOException {
+    NGServer server = newServer();
+    Path file = Files.createTempFile("nailgun", ".properties");
+    try {
+      NGConfigFile config = new NGConfigFile(server, file);
+
+      Properties properties = new Properties();
+      properties.setProperty(NGServer.MAX_IDLE_SESSIONS_PROPERTY, "5");
+      properties.setProperty(NGServer.OUTPUT_POLICY_PROPERTY, "spill");
+      properties.setProperty(NGServer.COMPRESSION_PROPERTY, "not a boolean");
+      properties.setProperty("version", NGVersion.class.getName());
+      server.setCompressionEnabled(true);
+      config.apply(properties);
+
+      assertEquals(5, server.getMaxIdleSessionCount());
+      assertEquals(NGOutputPolicy.SPILL, server.getOutputPolicy());
+      assertTrue(server.isCompressionEnabled(), "invalid values should be ignored");
+      assertNotNull(server.getAliasManager().getAlias("version"));
+      assertNotNull(server.getAliasManager().getAlias("ng-version"));
+
+      // removed settings go back to their initial value, removed aliases are removed
+      properties = new Properties();
+      properties.setProperty(NGServer.ALLOW_NAILS_BY_CLASS_NAME_PROPERTY, "false");
+      config.apply(properties);
+
+      assertEquals(2, server.getMaxIdleSessionCount());
+      assertEquals(NGOutputPolicy.BLOCK, server.getOutputPolicy());
+      assertFalse(server.allowsNailsByClassName());
+      assertNull(server.getAliasManager().getAlias("version"));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void invalidAliasLeavesConfigurationAlone() throws IOException {
+    NGServer server = newServer();
+    Path file = Files.createTempFile("nailgun", ".properties");
+    try {
+      NGConfigFile config = new NGConfigFile(server, file);
+
+      Properties properties = new Properties();
+      properties.setProperty(NGServer.MAX_IDLE_SESSIONS_PROPERTY, "5");
+      properties.setProperty("version", NGVersion.class.getName());
+      properties.setProperty("version.timeout", "soon");
+      assertThrows(NumberFormatException.class, () -> config.apply(properties));
+
+      assertEquals(2, server.getMaxIdleSessionCount());
+      assertNull(server.getAliasManager().getAlias("version"));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  void reloadsChangedFile() throws Exception {
+    NGServer server = newServer();
+    Path directory = Files.createTempDirectory("nailgun");
+    Path file = directory.resolve("nailgun.properties");
+    try (NGConfigFile config = new NGConfigFile(server, file)) {
+      // a missing file is not an error, it may be created later
+      config.start();
+
+      Files.write(
+          file, Arrays.asList("version=" + NGVersion.class.getName()), StandardCharsets.ISO_8859_1);
+      long deadline = System.currentTimeMillis() + 30000;
+      while (server.getAliasManager().getAlias("version") == null) {
+        assertTrue(System.currentTimeMillis() < deadline, "file change was not noticed");
+        Thread.sleep(50);
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(directory);
+    }
+  }
+}
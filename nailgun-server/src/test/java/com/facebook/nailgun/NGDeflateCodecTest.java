@@ -0,0 +1,150 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+class NGDeflateCodecTest {
+
+  private static final byte[] TEXT =
+      "the quick brown fox jumps over the lazy dog\n".getBytes(StandardCharsets.US_ASCII);
+
+  /** Collects the chunks passed to the sink */
+  private static class Chunks implements NGDeflateCodec.ChunkSink {
+    final List<Byte> types = new ArrayList<>();
+    final List<byte[]> payloads = new ArrayList<>();
+
+    @Override
+    public void write(byte chunkType, byte[] b, int offset, int len) {
+      types.add(chunkType);
+      payloads.add(Arrays.copyOfRange(b, offset, offset + len));
+    }
+  }
+
+  /** Inflates one chunk of a raw deflate stream, or returns null if it can not be decoded */
+  private static byte[] inflate(Inflater inflater, byte[] chunk) {
+    inflater.setInput(chunk);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    try {
+      int len;
+      while ((len = inflater.inflate(buffer)) > 0) {
+        result.write(buffer, 0, len);
+      }
+    } catch (DataFormatException e) {
+      return null;
+    }
+    return result.toByteArray();
+  }
+
+  @Test
+  void stdoutChunksArePiecesOfOneStream() throws IOException {
+    NGDeflateCodec codec = new NGDeflateCodec(NGOutputPolicy.BLOCK);
+    Chunks chunks = new Chunks();
+    for (int i = 0; i < 3; i++) {
+      codec.deflate(NGConstants.CHUNKTYPE_STDOUT, TEXT, 0, TEXT.length, chunks);
+    }
+
+    assertEquals(3, chunks.payloads.size());
+    // each chunk can be decompressed as soon as it arrives
+    Inflater inflater = new Inflater(true);
+    for (byte[] payload : chunks.payloads) {
+      assertArrayEquals(TEXT, inflate(inflater, payload));
+    }
+    inflater.end();
+    // later chunks refer to the earlier ones
+    assertTrue(chunks.payloads.get(1).length < chunks.payloads.get(0).length);
+
+    long wire = 0;
+    for (byte[] payload : chunks.payloads) {
+      wire += payload.length;
+    }
+    assertEquals(3 * TEXT.length, codec.getRawBytesSent());
+    assertEquals(wire, codec.getWireBytesSent());
+    codec.end();
+  }
+
+  @Test
+  void fullFlushedStderrSurvivesDroppedChunks() throws IOException {
+    NGDeflateCodec codec = new NGDeflateCodec(NGOutputPolicy.DROP_STDERR);
+    Chunks chunks = new Chunks();
+    byte[] first = "dropped\n".getBytes(StandardCharsets.US_ASCII);
+    codec.deflate(NGConstants.CHUNKTYPE_STDERR, first, 0, first.length, chunks);
+    codec.deflate(NGConstants.CHUNKTYPE_STDERR, TEXT, 0, TEXT.length, chunks);
+    codec.deflate(NGConstants.CHUNKTYPE_STDERR, TEXT, 0, TEXT.length, chunks);
+
+    // the client never got the first chunk, the others still decode
+    Inflater inflater = new Inflater(true);
+    assertArrayEquals(TEXT, inflate(inflater, chunks.payloads.get(1)));
+    assertArrayEquals(TEXT, inflate(inflater, chunks.payloads.get(2)));
+    inflater.end();
+
+    // stdout is still sync flushed
+    codec.deflate(NGConstants.CHUNKTYPE_STDOUT, TEXT, 0, TEXT.length, chunks);
+    codec.deflate(NGConstants.CHUNKTYPE_STDOUT, TEXT, 0, TEXT.length, chunks);
+    assertTrue(chunks.payloads.get(4).length < chunks.payloads.get(3).length);
+    codec.end();
+  }
+
+  /** Compresses stdin the way a client does: one raw deflate stream, sync flushed per chunk */
+  private static byte[] deflate(Deflater deflater, byte[] data) {
+    deflater.setInput(data);
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int len;
+    do {
+      len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+      result.write(buffer, 0, len);
+    } while (len == buffer.length);
+    return result.toByteArray();
+  }
+
+  @Test
+  void decodesStdin() throws IOException {
+    NGDeflateCodec codec = new NGDeflateCodec(NGOutputPolicy.BLOCK);
+    Deflater client = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    // decompresses to more than the initial buffer of the codec
+    byte[] large = new byte[NGConstants.MAXIMUM_CHUNK_LENGTH * 10];
+    Arrays.fill(large, (byte) 'a');
+
+    long wire = 0;
+    for (byte[] data : Arrays.asList(TEXT, large, TEXT)) {
+      byte[] chunk = deflate(client, data);
+      wire += chunk.length;
+      assertArrayEquals(data, codec.inflate(chunk));
+    }
+    client.end();
+
+    assertEquals(2 * TEXT.length + large.length, codec.getRawBytesReceived());
+    assertEquals(wire, codec.getWireBytesReceived());
+    codec.end();
+  }
+}
@@ -0,0 +1,222 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class NGExitCallRewriterTest {
+
+  /** Calls every exit method, behind switches and wide constants the rewriter has to step over */
+  public static class ExitingNail {
+    public static long run(int how, int status) {
+      long total = 1L << 40;
+      switch (how) {
+        case 0:
+          System.exit(status);
+          break;
+        case 1:
+          Runtime.getRuntime().exit(status);
+          break;
+        case 2:
+          Runtime.getRuntime().halt(status);
+          break;
+        default:
+          break;
+      }
+      switch (status) {
+        case 10:
+          total += 3;
+          break;
+        case 1000:
+          total += 5;
+          break;
+        default:
+          total += 7.5;
+      }
+      return total;
+    }
+  }
+
+  public static class QuietNail {
+    public static int run(int status) {
+      return status + 1;
+    }
+  }
+
+  @BeforeEach
+  void setUp() {
+    NGExitAgent.setIntercepting(true);
+  }
+
+  @AfterEach
+  void tearDown() {
+    NGExitAgent.setIntercepting(false);
+  }
+
+  @Test
+  void exitCallsThrowNGExitException() throws Exception {
+    assertExitsAreIntercepted(NGExitCallRewriter.rewrite(classFile(ExitingNail.class)));
+  }
+
+  @Test
+  void callsThroughRepeatedMethodrefsAreRewritten() throws Exception {
+    byte[] classFile = withRepeatedConstants(classFile(ExitingNail.class), true, false);
+    assertExitsAreIntercepted(NGExitCallRewriter.rewrite(classFile));
+  }
+
+  @Test
+  void codeThroughRepeatedAttributeNameIsRewritten() throws Exception {
+    byte[] classFile = withRepeatedConstants(classFile(ExitingNail.class), false, true);
+    assertExitsAreIntercepted(NGExitCallRewriter.rewrite(classFile));
+  }
+
+  @Test
+  void classesWithoutExitCallsAreLeftAlone() throws IOException {
+    assertNull(NGExitCallRewriter.rewrite(classFile(QuietNail.class)));
+    assertNull(NGExitCallRewriter.rewrite(new byte[] {(byte) 0xCA, (byte) 0xFE}));
+  }
+
+  @Test
+  void agentRewritesNailsInTheServerJar() throws IOException {
+    NGExitAgent.ExitCallTransformer transformer = new NGExitAgent.ExitCallTransformer();
+    ClassLoader loader = NGExitCallRewriterTest.class.getClassLoader();
+    // loaded from the same place as the server, like nails shaded into its jar
+    ProtectionDomain domain = NGExitAgent.class.getProtectionDomain();
+    byte[] classFile = classFile(ExitingNail.class);
+
+    assertNotNull(transformer.transform(loader, "com/example/Nail", null, domain, classFile));
+    assertNotNull(
+        transformer.transform(
+            loader, "com/facebook/nailgun/examples/Exit", null, domain, classFile));
+    assertNull(
+        transformer.transform(loader, "com/facebook/nailgun/NGServer", null, domain, classFile));
+    assertNull(
+        transformer.transform(
+            loader, "com/facebook/nailgun/builtins/NGStop", null, domain, classFile));
+  }
+
+  /** Runs a rewritten ExitingNail, checking that every exit method throws NGExitException */
+  private static void assertExitsAreIntercepted(byte[] rewritten) throws Exception {
+    assertNotNull(rewritten);
+    Method run = defineClass(ExitingNail.class, rewritten).getMethod("run", int.class, int.class);
+
+    for (int i = 0; i < 3; i++) {
+      int how = i;
+      int status = 40 + how;
+      InvocationTargetException e =
+          assertThrows(InvocationTargetException.class, () -> run.invoke(null, how, status));
+      assertEquals(NGExitException.class, e.getCause().getClass());
+      assertEquals(status, ((NGExitException) e.getCause()).getStatus());
+    }
+    assertEquals((1L << 40) + 5, run.invoke(null, 3, 1000));
+  }
+
+  /**
+   * Appends copies of constants to the constant pool of a class file, like some compilers and
+   * bytecode tools do. The copies are not used: the code keeps referring to the originals.
+   *
+   * @param methodrefs true to copy every Methodref
+   * @param codeName true to add another Utf8 "Code"
+   */
+  private static byte[] withRepeatedConstants(
+      byte[] classFile, boolean methodrefs, boolean codeName) throws IOException {
+    int count = ((classFile[8] & 0xFF) << 8) | (classFile[9] & 0xFF);
+    ByteArrayOutputStream copies = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(copies);
+    int added = 0;
+    int offset = 10;
+    for (int i = 1; i < count; i++) {
+      int tag = classFile[offset];
+      int length;
+      switch (tag) {
+        case 1: // Utf8
+          length = 3 + (((classFile[offset + 1] & 0xFF) << 8) | (classFile[offset + 2] & 0xFF));
+          break;
+        case 5: // Long
+        case 6: // Double
+          length = 9;
+          i++;
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+          length = 3;
+          break;
+        case 15: // MethodHandle
+          length = 4;
+          break;
+        default:
+          length = 5;
+      }
+      if (tag == 10 && methodrefs) {
+        out.write(classFile, offset, length);
+        added++;
+      }
+      offset += length;
+    }
+    if (codeName) {
+      out.writeByte(1);
+      out.writeUTF("Code");
+      added++;
+    }
+
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    result.write(classFile, 0, offset);
+    copies.writeTo(result);
+    result.write(classFile, offset, classFile.length - offset);
+    byte[] bytes = result.toByteArray();
+    bytes[8] = (byte) ((count + added) >> 8);
+    bytes[9] = (byte) (count + added);
+    return bytes;
+  }
+
+  private static byte[] classFile(Class<?> clazz) throws IOException {
+    String resource = clazz.getName().substring(clazz.getPackage().getName().length() + 1);
+    try (InputStream in = clazz.getResourceAsStream(resource + ".class")) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+        bytes.write(buffer, 0, n);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  /** Defines a copy of the class from the bytes in its own class loader, which sees NGExitAgent */
+  private static Class<?> defineClass(Class<?> clazz, byte[] bytes) {
+    return new ClassLoader(NGExitCallRewriterTest.class.getClassLoader()) {
+      Class<?> define() {
+        return defineClass(clazz.getName(), bytes, 0, bytes.length);
+      }
+    }.define();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class NGLatencyHistogramTest {
+
+  private static long micros(long micros) {
+    return TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  @Test
+  void durationsGoToPowerOfTwoBuckets() {
+    NGLatencyHistogram histogram = new NGLatencyHistogram();
+    histogram.record(-micros(5));
+    histogram.record(micros(1));
+    histogram.record(micros(3));
+    histogram.record(micros(1025));
+    histogram.record(TimeUnit.HOURS.toNanos(1));
+
+    assertEquals(2, histogram.getBucketCount(0));
+    assertEquals(1, histogram.getBucketCount(2));
+    assertEquals(1, histogram.getBucketCount(11));
+    // the last bucket collects everything longer
+    assertEquals(1, histogram.getBucketCount(NGLatencyHistogram.BUCKET_COUNT - 1));
+    assertEquals(5, histogram.getCount());
+  }
+
+  @Test
+  void quantilesAreBucketUpperBounds() {
+    NGLatencyHistogram histogram = new NGLatencyHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(micros(3));
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(micros(100));
+    }
+    histogram.record(micros(5000));
+
+    assertEquals(4, histogram.getQuantileMicros(0.5));
+    assertEquals(128, histogram.getQuantileMicros(0.99));
+    // capped by the longest duration rather than the bucket bound of 8192us
+    assertEquals(5000, histogram.getQuantileMicros(1));
+  }
+
+  @Test
+  void snapshotIsIndependentCopy() {
+    NGLatencyHistogram histogram = new NGLatencyHistogram();
+    histogram.record(micros(10));
+    NGLatencyHistogram snapshot = histogram.snapshot();
+    histogram.record(micros(20));
+
+    assertEquals("count=1 avg=10us p50=10us p90=10us p99=10us max=10us", snapshot.toString());
+    assertEquals(2, histogram.getCount());
+  }
+}
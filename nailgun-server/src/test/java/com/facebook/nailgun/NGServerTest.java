@@ -17,16 +17,26 @@ limitations under the License.
 */
 package com.facebook.nailgun;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 import com.facebook.nailgun.builtins.NGVersion;
 import com.sun.jna.Platform;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -44,32 +54,129 @@ class NGServerTest {
     public final Thread thread;
   }
 
+  /** Sleeps until interrupted */
+  public static class SleepingNail {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static final CountDownLatch interrupted = new CountDownLatch(1);
+
+    public static void main(String[] args) {
+      started.countDown();
+      try {
+        Thread.sleep(60000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    }
+  }
+
+  /** Burns CPU and ignores interrupts until told to stop */
+  public static class SpinningNail {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static volatile boolean stop = false;
+
+    public static void main(String[] args) {
+      started.countDown();
+      long spins = 0;
+      while (!stop) {
+        spins++;
+      }
+      System.out.println(spins);
+    }
+  }
+
+  /** Allocates 16 MB */
+  public static class AllocatingNail {
+    static volatile Object sink;
+
+    public static void main(String[] args) {
+      for (int i = 0; i < 16; i++) {
+        sink = new byte[1024 * 1024];
+      }
+    }
+  }
+
+  /** Allocates 1 MB every 10 ms until interrupted */
+  public static class HoardingNail {
+    static final CountDownLatch interrupted = new CountDownLatch(1);
+    static volatile Object sink;
+
+    public static void main(String[] args) {
+      try {
+        for (int i = 0; i < 6000; i++) {
+          sink = new byte[1024 * 1024];
+          Thread.sleep(10);
+        }
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    }
+  }
+  /** Sleeps until interrupted, for a test of its own */
+  public static class SlowNail {
+    static final CountDownLatch interrupted = new CountDownLatch(1);
+
+    public static void main(String[] args) {
+      try {
+        Thread.sleep(60000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+    }
+  }
+
+  /** Waits until released */
+  public static class GatedNail {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static final CountDownLatch release = new CountDownLatch(1);
+
+    public static void main(String[] args) throws InterruptedException {
+      started.countDown();
+      release.await();
+    }
+  }
+
   private static final String SOCKET_ADDR = "local:sock";
   private NGServerContext context = null;
 
   @BeforeEach
   private void startServer() throws InterruptedException {
     NGListeningAddress.release(SOCKET_ADDR);
-    NGServer server = new NGServer(new NGListeningAddress(SOCKET_ADDR), 2, 10000);
+    context = start(new NGServer(new NGListeningAddress(SOCKET_ADDR), 2, 10000));
+  }
+
+  @AfterEach
+  private void stopServer() throws InterruptedException {
+    stop(context);
+    NGListeningAddress.release(SOCKET_ADDR);
+  }
+
+  /** Runs a server on a new thread and waits until it accepts connections */
+  private static NGServerContext start(NGServer server) throws InterruptedException {
     Thread t = new Thread(server);
     t.start();
     while (!server.isRunning()) {
       assertTrue(t.isAlive());
       Thread.sleep(50);
     }
-    context = new NGServerContext(server, t);
+    return new NGServerContext(server, t);
   }
 
-  @AfterEach
-  private void stopServer() throws InterruptedException {
+  private static void stop(NGServerContext context) throws InterruptedException {
     context.server.shutdown();
     context.thread.join();
-    NGListeningAddress.release(SOCKET_ADDR);
   }
 
   @Test
   void serverCanBeStartedAndStopped() {}
 
+  @Test
+  void securityManagerFallbackStopsAfterJdk16() {
+    assertTrue(NGServer.supportsSecurityManager("1.8"));
+    assertTrue(NGServer.supportsSecurityManager("16"));
+    assertFalse(NGServer.supportsSecurityManager("17"));
+    assertFalse(NGServer.supportsSecurityManager("21"));
+  }
+
   @Test
   void canProcessNail() throws IOException {
     // TODO(buck_team): make it work on Windows too using NGWin32NamedPipeSocket
@@ -118,4 +225,356 @@ class NGServerTest {
       assertTrue(out.contains("version"), "NGVersion nail should output version");
     }
   }
+
+  @Test
+  void disconnectInterruptsNail() throws Exception {
+    assumeFalse(Platform.isWindows());
+    context.server.setCancelOnDisconnect(true);
+
+    try (NGUnixDomainSocket socket = sendCommand(SleepingNail.class.getName())) {
+      assertTrue(SleepingNail.started.await(10, TimeUnit.SECONDS));
+    }
+    assertTrue(SleepingNail.interrupted.await(10, TimeUnit.SECONDS));
+    NailStats stats = context.server.getNailStats().get(SleepingNail.class.getName());
+    assertEquals(1, stats.getCancelledCount());
+    assertEquals(0, stats.getAbandonedCount());
+  }
+
+  @Test
+  void nailIgnoringCancellationIsAbandoned() throws Exception {
+    assumeFalse(Platform.isWindows());
+    context.server.setCancelOnDisconnect(true);
+    context.server.setCancellationGracePeriodMillis(200);
+
+    try {
+      try (NGUnixDomainSocket socket = sendCommand(SpinningNail.class.getName())) {
+        assertTrue(SpinningNail.started.await(10, TimeUnit.SECONDS));
+      }
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (context.server.getAbandonedSessionCount() == 0) {
+        assertTrue(System.nanoTime() < deadline, "nail should have been abandoned");
+        Thread.sleep(20);
+      }
+      assertEquals(0, context.server.getWorkingSessionCount());
+      NailStats stats = context.server.getNailStats().get(SpinningNail.class.getName());
+      assertEquals(1, stats.getCancelledCount());
+      assertEquals(1, stats.getAbandonedCount());
+      assertEquals(1, stats.getRefCount(), "abandoned nail is still running");
+    } finally {
+      SpinningNail.stop = true;
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (context.server.getAbandonedSessionCount() != 0) {
+      assertTrue(System.nanoTime() < deadline, "abandoned session should return to the pool");
+      Thread.sleep(20);
+    }
+    NailStats stats = context.server.getNailStats().get(SpinningNail.class.getName());
+    assertEquals(0, stats.getRefCount());
+    assertTrue(stats.getWastedCpuNanos() > 0, "CPU burnt for no client should be recorded");
+  }
+
+  @Test
+  void nailCpuAndAllocationsAreRecorded() throws Exception {
+    assumeFalse(Platform.isWindows());
+
+    try (NGUnixDomainSocket socket = sendCommand(AllocatingNail.class.getName())) {
+      assertEquals(0, readExitCode(socket));
+    }
+    NailStats stats = context.server.getNailStats().get(AllocatingNail.class.getName());
+    assertTrue(stats.getCpuNanos() > 0, "CPU time should be recorded");
+    assertTrue(
+        stats.getAllocatedBytes() >= 16 * 1024 * 1024,
+        "allocations should be recorded, got " + stats.getAllocatedBytes());
+  }
+
+  @Test
+  void nailExceedingAllocationBudgetIsCancelled() throws Exception {
+    assumeFalse(Platform.isWindows());
+    assumeTrue(NGThreadUsage.threadAllocatedBytes(Thread.currentThread()) >= 0);
+    context.server.setAllocationBudgetBytes(32 * 1024 * 1024);
+
+    try (NGUnixDomainSocket socket = sendCommand(HoardingNail.class.getName())) {
+      assertEquals(NGConstants.EXIT_ALLOCATION_BUDGET_EXCEEDED, readExitCode(socket));
+    }
+    assertTrue(HoardingNail.interrupted.await(10, TimeUnit.SECONDS));
+    NailStats stats = context.server.getNailStats().get(HoardingNail.class.getName());
+    assertEquals(1, stats.getOverBudgetCount());
+    assertEquals(1, stats.getCancelledCount());
+  }
+
+  @Test
+  void metricsReportRecordedNails() throws Exception {
+    assumeFalse(Platform.isWindows());
+
+    for (int i = 0; i < 2; i++) {
+      try (NGUnixDomainSocket socket = sendCommand(NGVersion.class.getName())) {
+        assertEquals(0, readExitCode(socket));
+      }
+    }
+    // the exit code is sent before the session records the end of the nail
+    while (context.server.getWorkingSessionCount() != 0) {
+      Thread.sleep(10);
+    }
+
+    NGMetricsServer metricsServer =
+        new NGMetricsServer(
+            context.server, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    String metrics;
+    try {
+      metrics = metricsServer.render();
+    } finally {
+      metricsServer.stop();
+    }
+
+    String nail = "nail=\"" + NGVersion.class.getName() + "\"";
+    assertTrue(metrics.contains("# TYPE nailgun_nail_runs_total counter\n"), metrics);
+    assertTrue(metrics.contains("\nnailgun_nail_runs_total{" + nail + "} 2\n"), metrics);
+    assertTrue(metrics.contains("\nnailgun_connections_accepted_total 2\n"), metrics);
+    assertTrue(
+        metrics.contains("\nnailgun_nail_duration_seconds_count{" + nail + "} 2\n"), metrics);
+  }
+
+  @Test
+  void metricsPortIsBoundToLoopback() throws Exception {
+    assertEquals(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 9100),
+        NGServer.parseMetricsAddress("9100"));
+    assertEquals(
+        new InetSocketAddress(InetAddress.getByName("0.0.0.0"), 9100),
+        NGServer.parseMetricsAddress("0.0.0.0:9100"));
+  }
+
+  @Test
+  void serverListensOnSeveralAddresses() throws Exception {
+    assumeFalse(Platform.isWindows());
+
+    NGListeningAddress tcp = new NGListeningAddress(InetAddress.getLoopbackAddress(), 0);
+    NGListeningAddress local = new NGListeningAddress("local:second-sock");
+    NGListeningAddress.release(local.getLocalAddress());
+    NGServerContext second = start(new NGServer(Arrays.asList(tcp, local), 2, 10000));
+    try {
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), second.server.getPort())) {
+        writeCommand(socket, NGVersion.class.getName());
+        assertEquals(0, readExitCode(socket));
+      }
+      try (NGUnixDomainSocket socket = connect(local.getLocalAddress())) {
+        writeCommand(socket, NGVersion.class.getName());
+        assertEquals(0, readExitCode(socket));
+      }
+
+      assertEquals(1, second.server.getAcceptedConnectionCount(tcp));
+      assertEquals(1, second.server.getAcceptedConnectionCount(local));
+    } finally {
+      stop(second);
+      NGListeningAddress.release(local.getLocalAddress());
+    }
+  }
+
+  @Test
+  void acceptorsShareTcpPort() throws Exception {
+    NGListeningAddress tcp = new NGListeningAddress(InetAddress.getLoopbackAddress(), 0);
+    NGServer server = new NGServer(Arrays.asList(tcp), 2, 10000);
+    server.setAcceptorCount(3);
+    NGServerContext second = start(server);
+    try {
+      NGListener listener = server.getListeners().get(0);
+      if (Platform.isLinux()) {
+        assertEquals(3, listener.getSocketCount(), "Linux supports SO_REUSEPORT");
+      }
+      // the kernel spreads connections over the sockets, each with its own acceptor thread
+      for (int i = 0; i < 20; i++) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getPort())) {
+          writeCommand(socket, NGVersion.class.getName());
+          assertEquals(0, readExitCode(socket));
+        }
+      }
+      assertEquals(20, server.getAcceptedConnectionCount(tcp));
+    } finally {
+      stop(second);
+    }
+  }
+
+  @Test
+  void nailRunningPastItsTimeoutIsCancelled() throws Exception {
+    assumeFalse(Platform.isWindows());
+    context.server.setNailTimeoutMillis(60000);
+
+    long start = System.nanoTime();
+    try (NGUnixDomainSocket socket =
+        sendCommand(SlowNail.class.getName(), NGConstants.TIMEOUT_ENV + "=200")) {
+      assertEquals(NGConstants.EXIT_TIMEOUT, readExitCode(socket));
+    }
+    assertTrue(
+        System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30), "client timeout should win");
+    assertTrue(SlowNail.interrupted.await(10, TimeUnit.SECONDS));
+    NailStats stats = context.server.getNailStats().get(SlowNail.class.getName());
+    assertEquals(1, stats.getTimedOutCount());
+    assertEquals(1, stats.getCancelledCount());
+  }
+
+  @Test
+  void drainingServerHandsConnectionsOff() throws Exception {
+    assumeFalse(Platform.isWindows());
+
+    String successorAddr = "local:successor-sock";
+    NGListeningAddress.release(successorAddr);
+    NGServerContext successor =
+        start(new NGServer(new NGListeningAddress(successorAddr), 1, 10000));
+    try {
+      try (NGUnixDomainSocket running = sendCommand(GatedNail.class.getName())) {
+        assertTrue(GatedNail.started.await(10, TimeUnit.SECONDS));
+        context.server.drain(10000, new NGListeningAddress(successorAddr));
+        assertTrue(context.server.isDraining());
+
+        try (NGUnixDomainSocket socket = sendCommand(NGVersion.class.getName())) {
+          assertEquals(0, readExitCode(socket));
+        }
+        assertEquals(1, context.server.getHandedOffConnectionCount());
+        assertTrue(successor.server.getNailStats().containsKey(NGVersion.class.getName()));
+        assertFalse(context.server.getNailStats().containsKey(NGVersion.class.getName()));
+        assertTrue(context.thread.isAlive(), "server should wait for its running nail");
+
+        GatedNail.release.countDown();
+        assertEquals(0, readExitCode(running));
+      }
+      assertTrue(context.server.awaitTermination(10000), "drained server should stop");
+    } finally {
+      GatedNail.release.countDown();
+      stop(successor);
+      NGListeningAddress.release(successorAddr);
+    }
+  }
+
+  @Test
+  void newServerTakesListeningSocketOver() throws Exception {
+    assumeTrue(NGHandoff.isSupported());
+
+    String addr = "local:handoff-sock";
+    String controlPath = "handoff-control-sock";
+    NGListeningAddress.release(addr);
+    NGListeningAddress.release(controlPath);
+    NGServer oldServer = new NGServer(new NGListeningAddress(addr), 1, 10000);
+    oldServer.setHandoffSocketPath(controlPath);
+    Thread oldThread = new Thread(oldServer);
+    NGServer newServer = new NGServer(new NGListeningAddress(addr), 1, 10000);
+    newServer.setHandoffSocketPath(controlPath);
+    Thread newThread = new Thread(newServer);
+    oldThread.start();
+    try {
+      // the old server listens for a successor once it runs
+      while (!oldServer.isRunning() || !new File(controlPath).exists()) {
+        assertTrue(oldThread.isAlive());
+        Thread.sleep(50);
+      }
+      newThread.start();
+      assertTrue(oldServer.awaitTermination(10000), "old server should stop once taken over");
+      assertTrue(newThread.isAlive());
+      try (NGUnixDomainSocket socket = connect(addr)) {
+        writeCommand(socket, NGVersion.class.getName());
+        assertEquals(0, readExitCode(socket));
+      }
+      assertTrue(newServer.getNailStats().containsKey(NGVersion.class.getName()));
+      assertFalse(oldServer.getNailStats().containsKey(NGVersion.class.getName()));
+    } finally {
+      oldServer.shutdown();
+      newServer.shutdown();
+      oldThread.join();
+      if (newThread.isAlive()) {
+        newThread.join();
+      }
+      NGListeningAddress.release(addr);
+      NGListeningAddress.release(controlPath);
+    }
+  }
+
+  /** Reads chunks until the exit code and returns it */
+  private static int readExitCode(Socket socket) throws IOException {
+    DataInputStream input = new DataInputStream(socket.getInputStream());
+    while (true) {
+      int len = input.readInt();
+      byte chunkType = input.readByte();
+      byte[] payload = new byte[len];
+      input.readFully(payload);
+      if (chunkType == NGConstants.CHUNKTYPE_EXIT) {
+        return Integer.parseInt(new String(payload, StandardCharsets.US_ASCII).trim());
+      }
+    }
+  }
+
+  /**
+   * Connects to the server and sends a command, without waiting for its output
+   *
+   * @param command the command
+   * @param env environment variables, in the form "NAME=value"
+   */
+  private static NGUnixDomainSocket sendCommand(String command, String... env) throws IOException {
+    NGUnixDomainSocket socket = connect(SOCKET_ADDR);
+    writeCommand(socket, command, env);
+    return socket;
+  }
+
+  /**
+   * Connects to a server
+   *
+   * @param socketAddress the local address the server listens on
+   */
+  private static NGUnixDomainSocket connect(String socketAddress) throws IOException {
+    int fd =
+        NGUnixDomainSocketLibrary.socket(
+            NGUnixDomainSocketLibrary.PF_LOCAL, NGUnixDomainSocketLibrary.SOCK_STREAM, 0);
+    NGUnixDomainSocketLibrary.SockaddrUn address =
+        new NGUnixDomainSocketLibrary.SockaddrUn(socketAddress);
+    NGUnixDomainSocketLibrary.connect(fd, address, address.size());
+    return new NGUnixDomainSocket(fd);
+  }
+
+  /**
+   * Sends a command over a connected socket
+   *
+   * @param socket the socket connected to the server
+   * @param command the command
+   * @param env environment variables, in the form "NAME=value"
+   */
+  private static void writeCommand(Socket socket, String command, String... env)
+      throws IOException {
+    DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+    for (String variable : env) {
+      byte[] bytes = variable.getBytes(StandardCharsets.UTF_8);
+      output.writeInt(bytes.length);
+      output.writeByte(NGConstants.CHUNKTYPE_ENVIRONMENT);
+      output.write(bytes);
+    }
+    byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.writeByte(NGConstants.CHUNKTYPE_COMMAND);
+    output.write(bytes);
+    output.flush();
+  }
+
+  @Test
+  void stalledClientIsDisconnected() throws Exception {
+    assumeFalse(Platform.isWindows());
+
+    String stalledAddr = "local:stalled-sock";
+    NGListeningAddress.release(stalledAddr);
+    NGServerContext stalled = start(new NGServer(new NGListeningAddress(stalledAddr), 1, 500));
+    try (NGUnixDomainSocket socket = connect(stalledAddr)) {
+      // announce a chunk but never send it, the session must not wait for it forever
+      DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+      output.writeInt(8);
+      output.writeByte(NGConstants.CHUNKTYPE_ARGUMENT);
+      output.flush();
+
+      socket.setSoTimeout(10000);
+      InputStream input = socket.getInputStream();
+      byte[] buffer = new byte[1024];
+      while (input.read(buffer) != -1) {
+        // the server may report the failure before closing the connection
+      }
+    } finally {
+      stop(stalled);
+      NGListeningAddress.release(stalledAddr);
+    }
+  }
 }
@@ -69,6 +69,27 @@ class NGSessionPoolTest {
     assertNotEquals(session1, session2);
   }
 
+  @Test
+  void loweringMaxIdleSessionsTerminatesExcessSessions() {
+    NGSession sessionMock1 = mock(NGSession.class);
+    NGSession sessionMock2 = mock(NGSession.class);
+    Supplier<NGSession> instanceCreatorMock = mock(Supplier.class);
+    when(instanceCreatorMock.get()).thenReturn(sessionMock1, sessionMock2);
+    NGSessionPool pool = new NGSessionPool(server, 2, instanceCreatorMock);
+    NGSession session1 = pool.take();
+    NGSession session2 = pool.take();
+    pool.give(session1);
+
+    pool.setMaxIdleSessions(0);
+    verify(sessionMock1, times(1)).shutdown();
+    assertEquals(0, pool.getIdleCount());
+
+    // running sessions are not affected until they are given back
+    verify(sessionMock2, times(0)).shutdown();
+    pool.give(session2);
+    verify(sessionMock2, times(1)).shutdown();
+  }
+
   @Test
   void shutdownTerminatesSession() throws InterruptedException {
     NGSession sessionMock = mock(NGSession.class);
@@ -24,7 +24,6 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -68,11 +67,14 @@ class NGSessionTest {
     when(server.allowsNailsByClassName()).thenReturn(true);
     aliasManager = mock(AliasManager.class);
     when(server.getAliasManager()).thenReturn(aliasManager);
+    when(server.getNailDispatchCache()).thenReturn(new NGNailDispatchCache());
     pool = mock(NGSessionPool.class);
     communicator = mock(NGCommunicator.class);
     commandContext = mock(CommandContext.class);
     when(commandContext.getCommand()).thenReturn(NGSessionTestCompletionSignal.class.getName());
-    when(commandContext.getCommandArguments()).thenReturn(Arrays.asList(String.valueOf(id)));
+    NGArgumentList arguments = new NGArgumentList();
+    arguments.add(String.valueOf(id));
+    when(commandContext.getCommandArguments()).thenReturn(arguments);
     when(communicator.readCommandContext()).thenReturn(commandContext);
 
     socket = mock(Socket.class);
@@ -0,0 +1,73 @@
+/*
+
+Copyright 2017-present Facebook, Inc.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package com.facebook.nailgun;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+class NGSocketOptionsTest {
+
+  @Test
+  void rejectsNegativeBufferSizes() {
+    NGSocketOptions options = new NGSocketOptions();
+    assertThrows(IllegalArgumentException.class, () -> options.setSendBufferSize(-1));
+    assertThrows(IllegalArgumentException.class, () -> options.setReceiveBufferSize(-1));
+  }
+
+  @Test
+  void acceptedTcpConnectionsGetSocketOptions() throws IOException {
+    NGSocketOptions options = new NGSocketOptions();
+    options.setKeepAlive(true);
+    options.setSendBufferSize(64 * 1024);
+    NGListener listener =
+        new NGListener(new NGListeningAddress(InetAddress.getLoopbackAddress(), 0), 1, 0, options);
+    listener.open();
+    try (Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getPort());
+        Socket accepted = listener.accept(0)) {
+      assertTrue(accepted.getTcpNoDelay(), "TCP_NODELAY should be on by default");
+      assertTrue(accepted.getKeepAlive());
+      // the operating system may round the buffer size, but it must have been changed
+      assertTrue(accepted.getSendBufferSize() >= 64 * 1024);
+    } finally {
+      listener.close();
+    }
+
+    options.setTcpNoDelay(false);
+    options.setKeepAlive(false);
+    listener.open();
+    try (Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getPort());
+        Socket accepted = listener.accept(0)) {
+      assertFalse(accepted.getTcpNoDelay());
+      assertFalse(accepted.getKeepAlive());
+    } finally {
+      listener.close();
+    }
+  }
+
+  @Test
+  void serverDisablesNagleByDefault() {
+    NGServer server = new NGServer(InetAddress.getLoopbackAddress(), 0, 2, 10000);
+    assertTrue(server.getSocketOptions().getTcpNoDelay());
+  }
+}